@@ -21,8 +21,8 @@ import static org.sakaiproject.nakamura.api.activity.ActivityConstants.PARAM_ACT
 import static org.sakaiproject.nakamura.api.activity.ActivityConstants.PARAM_SOURCE;
 
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
-import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
@@ -30,11 +30,15 @@ import org.sakaiproject.nakamura.api.activity.ActivityConstants;
 import org.sakaiproject.nakamura.api.activity.ActivityRoute;
 import org.sakaiproject.nakamura.api.activity.ActivityRouterManager;
 import org.sakaiproject.nakamura.api.activity.ActivityUtils;
+import org.sakaiproject.nakamura.api.jcr.AdminSessionService;
 import org.sakaiproject.nakamura.util.JcrUtils;
+import org.sakaiproject.nakamura.util.KeyedExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Dictionary;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -46,16 +50,36 @@ import javax.jms.MessageConsumer;
 import javax.jms.MessageListener;
 import javax.jms.Topic;
 
+/**
+ * Delivers new activities to their feeds. Messages are acknowledged as soon as they are
+ * handed to the delivery threads, so delivery is at most once: an activity that is queued
+ * but not yet delivered when the server stops is not delivered, although it stays in the
+ * activity store. The subscription to the topic is not durable, so activities posted
+ * while the listener is down are not delivered whatever the acknowledge mode.
+ */
 @Component(label = "ActivityListener", description = "Listens for new activities", immediate = true, metatype = true)
 public class ActivityListener implements MessageListener {
 
+  @Property(intValue = 4, label = "Concurrency", description = "The number of threads that deliver activities. Activities by the same actor are delivered in order.")
+  static final String CONCURRENCY = "activity.listener.concurrency";
+
+  /**
+   * The number of activities that may wait for each delivery thread.
+   */
+  private static final int QUEUE_SIZE = 100;
+
+  /**
+   * Time to wait for queued activities to be delivered when deactivating, in ms.
+   */
+  private static final long SHUTDOWN_TIMEOUT = 30000L;
+
   // References/properties need for JMS
   @Reference
   protected ConnectionFactoryService connFactoryService;
 
   // References needed to actually deliver the activity.
   @Reference
-  protected SlingRepository slingRepository;
+  protected AdminSessionService adminSessionService;
   @Reference
   protected ActivityRouterManager activityRouterManager;
 
@@ -63,11 +87,19 @@ public class ActivityListener implements MessageListener {
       .getLogger(ActivityListener.class);
 
   private Connection connection = null;
+  private volatile KeyedExecutor executor;
 
   /**
    * Start a JMS connection.
    */
   public void activate(ComponentContext componentContext) {
+    int concurrency = 4;
+    Dictionary<?, ?> props = componentContext.getProperties();
+    if (props != null && props.get(CONCURRENCY) instanceof Integer) {
+      concurrency = (Integer) props.get(CONCURRENCY);
+    }
+    executor = new KeyedExecutor("ActivityListener", concurrency, QUEUE_SIZE);
+    LOG.info("Delivering activities with {} threads", concurrency);
     try {
       connection = connFactoryService.getDefaultConnectionFactory().createConnection();
       javax.jms.Session session = connection.createSession(false,
@@ -88,7 +120,7 @@ public class ActivityListener implements MessageListener {
   }
 
   /**
-   * Close the JMS connection
+   * Close the JMS connection, then wait for activities already received to be delivered.
    */
   protected void deactivate(ComponentContext ctx) {
     if (connection != null) {
@@ -98,6 +130,13 @@ public class ActivityListener implements MessageListener {
         LOG.error("Cannot close the activity JMS connection.", e);
       }
     }
+    if (executor != null) {
+      if (!executor.shutdown(SHUTDOWN_TIMEOUT)) {
+        LOG.warn("Activities were still being delivered after {} ms, {} not delivered",
+            SHUTDOWN_TIMEOUT, executor.getQueueLength());
+      }
+      executor = null;
+    }
   }
 
   /**
@@ -109,8 +148,39 @@ public class ActivityListener implements MessageListener {
     try {
       final String activityItemPath = message
           .getStringProperty(ActivityConstants.EVENT_PROP_PATH);
+      String actor = message.getStringProperty(ActivityConstants.EVENT_PROP_ACTOR_ID);
+      KeyedExecutor deliveryExecutor = executor;
+      if (deliveryExecutor == null) {
+        deliverActivity(activityItemPath);
+      } else {
+        // keep the activities of one actor in order, hand the rest out to the pool.
+        deliveryExecutor.execute(actor == null ? activityItemPath : actor, new Runnable() {
+          public void run() {
+            deliverActivity(activityItemPath);
+          }
+        });
+      }
+    } catch (JMSException e) {
+      LOG.error("Got a JMS exception in the activity listener.", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOG.error("Interrupted while queueing activity, not delivered.", e);
+    } catch (RejectedExecutionException e) {
+      LOG.error("Activity listener is shutting down, activity not delivered.", e);
+    }
+  }
+
+  /**
+   * Deliver an activity to all of its routes.
+   *
+   * @param activityItemPath
+   *          The path of the activity in the store.
+   */
+  protected void deliverActivity(String activityItemPath) {
+    Session session = null;
+    try {
       LOG.info("Processing activity: {}", activityItemPath);
-      Session session = slingRepository.loginAdministrative(null); // usage checked and Ok KERN-577
+      session = adminSessionService.borrowSession(); // usage checked and Ok KERN-577
       Node activity = (Node) session.getItem(activityItemPath);
       if (!activity.hasProperty(PARAM_ACTOR_ID)) {
         // we must know the actor
@@ -127,10 +197,10 @@ public class ActivityListener implements MessageListener {
         deliverActivityToFeed(session, activity, route.getDestination());
       }
 
-    } catch (JMSException e) {
-      LOG.error("Got a JMS exception in the activity listener.", e);
     } catch (RepositoryException e) {
       LOG.error("Got a repository exception in the activity listener.", e);
+    } finally {
+      adminSessionService.returnSession(session);
     }
   }
 
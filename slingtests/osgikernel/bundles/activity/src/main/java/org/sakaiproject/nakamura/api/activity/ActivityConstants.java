@@ -87,5 +87,10 @@ public interface ActivityConstants {
    * The property in the event which will hold the location to the original activity.
    */
   public static final String EVENT_PROP_PATH = "sakai:activity-item-path";
+  /**
+   * The property in the event which will hold the id of the actor, activities by the same
+   * actor are delivered in order.
+   */
+  public static final String EVENT_PROP_ACTOR_ID = "sakai:activity-actor";
 
 }
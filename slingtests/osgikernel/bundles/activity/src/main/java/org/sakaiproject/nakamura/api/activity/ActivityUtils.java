@@ -46,6 +46,21 @@ public class ActivityUtils {
     map.put(ActivityConstants.EVENT_PROP_PATH, activityItemPath);
     return new Event(EVENT_TOPIC, (Dictionary) map);
   }
+
+  /**
+   * @param activityItemPath
+   *          The path of the activity.
+   * @param actorId
+   *          The id of the user who performed the activity.
+   * @return An event for the activity.
+   */
+  @SuppressWarnings("unchecked")
+  public static Event createEvent(String activityItemPath, String actorId) {
+    final Dictionary<String, String> map = new Hashtable(2);
+    map.put(ActivityConstants.EVENT_PROP_PATH, activityItemPath);
+    map.put(ActivityConstants.EVENT_PROP_ACTOR_ID, actorId);
+    return new Event(EVENT_TOPIC, (Dictionary) map);
+  }
   
   /**
    * Returns the path to the activity feed for a user.
@@ -20,18 +20,32 @@ package org.sakaiproject.nakamura.activity;
 import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.easymock.EasyMock;
 import org.junit.Before;
 import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
 import org.sakaiproject.nakamura.api.activity.ActivityConstants;
 import org.sakaiproject.nakamura.api.activity.ActivityUtils;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.Workspace;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
 
 /**
  *
@@ -103,6 +117,51 @@ public class ActivityListenerTest {
     EasyMock.verify(session);
   }
 
+  @Test
+  public void testOnMessageKeepsActorOrder() throws Exception {
+    final Map<String, List<Integer>> delivered = new HashMap<String, List<Integer>>();
+    delivered.put("alice", Collections.synchronizedList(new ArrayList<Integer>()));
+    delivered.put("bob", Collections.synchronizedList(new ArrayList<Integer>()));
+    ActivityListener listener = new ActivityListener() {
+      @Override
+      protected void deliverActivity(String activityItemPath) {
+        String[] parts = activityItemPath.split("/");
+        delivered.get(parts[1]).add(Integer.valueOf(parts[2]));
+      }
+    };
+
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put(ActivityListener.CONCURRENCY, 2);
+    ComponentContext ctx = createMock(ComponentContext.class);
+    expect(ctx.getProperties()).andReturn(props);
+    ConnectionFactory connFactory = createMock(ConnectionFactory.class);
+    expect(connFactory.createConnection()).andThrow(new JMSException("No broker"));
+    listener.connFactoryService = createMock(ConnectionFactoryService.class);
+    expect(listener.connFactoryService.getDefaultConnectionFactory()).andReturn(
+        connFactory);
+    replay(ctx, connFactory, listener.connFactoryService);
+    listener.activate(ctx);
+
+    for (int i = 0; i < 200; i++) {
+      String actor = i % 2 == 0 ? "alice" : "bob";
+      Message message = createMock(Message.class);
+      expect(message.getStringProperty(ActivityConstants.EVENT_PROP_PATH)).andReturn(
+          "/" + actor + "/" + i);
+      expect(message.getStringProperty(ActivityConstants.EVENT_PROP_ACTOR_ID))
+          .andReturn(actor);
+      replay(message);
+      listener.onMessage(message);
+    }
+    listener.deactivate(ctx);
+
+    for (List<Integer> activities : delivered.values()) {
+      assertEquals(100, activities.size());
+      for (int i = 1; i < activities.size(); i++) {
+        assertTrue(activities.get(i - 1) < activities.get(i));
+      }
+    }
+  }
+
   public void prepareCopy(String srcAbsPath, String destAbsPath)
       throws RepositoryException {
     Workspace workspace = createMock(Workspace.class);
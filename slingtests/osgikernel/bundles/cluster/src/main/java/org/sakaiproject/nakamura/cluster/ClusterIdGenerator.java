@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.cluster;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates ids that are unique in the cluster, packing the ms since an epoch, the number
+ * of the server and a per ms sequence into a long. The last time and sequence used are
+ * held in a single atomic long and advanced with compare and set, so callers never block
+ * or spin waiting for the clock. If more ids than the sequence can hold are needed in one
+ * ms, or the clock goes backwards, the generator carries on from the last time it used,
+ * moving it forward as needed, so ids from one server always increase.
+ */
+public class ClusterIdGenerator {
+
+  /**
+   * Bits for the sequence within a ms.
+   */
+  static final int SEQUENCE_BITS = 12;
+  /**
+   * Bits for the server number.
+   */
+  static final int SERVER_BITS = 10;
+  static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+  static final long SERVER_MASK = (1L << SERVER_BITS) - 1;
+
+  private final long epoch;
+  private final long server;
+  /**
+   * The time and sequence of the last id, time << SEQUENCE_BITS | sequence.
+   */
+  private final AtomicLong last = new AtomicLong();
+
+  /**
+   * @param epoch
+   *          the start of time for ids, in ms.
+   * @param serverNumber
+   *          the number of this server in the cluster, only the low bits are used.
+   */
+  public ClusterIdGenerator(long epoch, int serverNumber) {
+    this.epoch = epoch;
+    this.server = serverNumber & SERVER_MASK;
+  }
+
+  /**
+   * @return the next id.
+   */
+  public long nextId() {
+    while (true) {
+      long now = currentTimeMillis() - epoch;
+      long prev = last.get();
+      long time = prev >>> SEQUENCE_BITS;
+      long sequence;
+      if (now > time) {
+        time = now;
+        sequence = 0;
+      } else {
+        // the same ms, or the clock went backwards, stay on the last time used.
+        sequence = (prev & SEQUENCE_MASK) + 1;
+        if (sequence > SEQUENCE_MASK) {
+          time++;
+          sequence = 0;
+        }
+      }
+      if (last.compareAndSet(prev, (time << SEQUENCE_BITS) | sequence)) {
+        return (time << (SERVER_BITS + SEQUENCE_BITS)) | (server << SEQUENCE_BITS)
+            | sequence;
+      }
+    }
+  }
+
+  /**
+   * @return the current time, in ms.
+   */
+  protected long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * @param id
+   * @return the number of the server that generated the id.
+   */
+  public static int getServerNumber(long id) {
+    return (int) ((id >>> SEQUENCE_BITS) & SERVER_MASK);
+  }
+
+  /**
+   * @param id
+   * @return the time encoded in the id, in ms since the epoch of the generator.
+   */
+  public static long getTime(long id) {
+    return id >>> (SERVER_BITS + SEQUENCE_BITS);
+  }
+}
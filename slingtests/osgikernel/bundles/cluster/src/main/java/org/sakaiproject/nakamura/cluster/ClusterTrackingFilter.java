@@ -25,9 +25,13 @@ import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
 
 import java.io.IOException;
+import java.util.Dictionary;
+import java.util.HashSet;
+import java.util.Set;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -43,17 +47,111 @@ import javax.servlet.http.HttpServletResponse;
  * Sakai Cache and Transaction services..
  */
 @Service(value=Filter.class)
-@Component(immediate=true, metatype=false)
+@Component(immediate=true, metatype=true)
 @Properties(value={@Property(name="service.description", value="Custer Tracking Filter"),
     @Property(name="service.vendor",value="The Sakai Foundation"),
     @Property(name="filter.scope",value="request", propertyPrivate=true),
     @Property(name="filter.order",intValue={10}, propertyPrivate=true)})
 public class ClusterTrackingFilter implements Filter {
 
+  private static final String DEVWIDGETS = "/devwidgets/";
+  private static final String VAR = "/var/";
+
+  /**
+   * Requests for paths starting with any of these are not tracked. This is for static
+   * content only, the pages under /dev/ and /system/me set and refresh the tracking cookie.
+   */
+  @Property(value = { DEVWIDGETS, VAR }, description = "Requests for paths starting with any of these are not tracked.")
+  static final String SKIP_PATHS = "tracking.skip.paths";
+
+  /**
+   * The skipped paths used when none are configured.
+   */
+  static final String[] DEFAULT_SKIP_PATHS = { DEVWIDGETS, VAR };
+
+  /**
+   * Requests for paths ending in any of these extensions are not tracked.
+   */
+  @Property(value = { "js", "css", "png", "gif", "jpg", "ico", "swf" }, description = "Requests for paths ending in any of these extensions are not tracked.")
+  static final String SKIP_EXTENSIONS = "tracking.skip.extensions";
+
+  /**
+   * The skipped extensions used when none are configured.
+   */
+  static final String[] DEFAULT_SKIP_EXTENSIONS = { "js", "css", "png", "gif", "jpg", "ico",
+      "swf" };
 
   @Reference
   private transient ClusterTrackingService clusterTrackingService;
 
+  private String[] skipPaths = new String[0];
+  private Set<String> skipExtensions = new HashSet<String>();
+
+  public ClusterTrackingFilter() {
+  }
+
+  /**
+   * Constructor for testing purposes only.
+   *
+   * @param clusterTrackingService
+   */
+  protected ClusterTrackingFilter(ClusterTrackingService clusterTrackingService) {
+    this.clusterTrackingService = clusterTrackingService;
+  }
+
+  /**
+   * @param ctx
+   */
+  protected void activate(ComponentContext ctx) {
+    Dictionary<?, ?> properties = ctx.getProperties();
+    Object paths = properties.get(SKIP_PATHS);
+    skipPaths = paths == null ? DEFAULT_SKIP_PATHS.clone() : toArray(paths);
+    Object configured = properties.get(SKIP_EXTENSIONS);
+    Set<String> extensions = new HashSet<String>();
+    for (String extension : configured == null ? DEFAULT_SKIP_EXTENSIONS
+        : toArray(configured)) {
+      extensions.add(extension.toLowerCase());
+    }
+    skipExtensions = extensions;
+  }
+
+  /**
+   * @param value
+   *          a property value, a String or String[].
+   * @return the value as an array, never null.
+   */
+  private String[] toArray(Object value) {
+    if (value instanceof String[]) {
+      return (String[]) value;
+    } else if (value instanceof String) {
+      return new String[] { (String) value };
+    }
+    return new String[0];
+  }
+
+  /**
+   * @param path
+   *          the request uri.
+   * @return true if requests for the path don't need tracking.
+   */
+  protected boolean isSkipped(String path) {
+    if (path == null) {
+      return false;
+    }
+    for (String skipPath : skipPaths) {
+      if (path.startsWith(skipPath)) {
+        return true;
+      }
+    }
+    if (!skipExtensions.isEmpty()) {
+      int dot = path.lastIndexOf('.');
+      if (dot > path.lastIndexOf('/')) {
+        return skipExtensions.contains(path.substring(dot + 1).toLowerCase());
+      }
+    }
+    return false;
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -83,7 +181,9 @@ public class ClusterTrackingFilter implements Filter {
       throws IOException, ServletException {
     HttpServletRequest hrequest = (HttpServletRequest) request;
     HttpServletResponse hresponse = (HttpServletResponse) response;
-    clusterTrackingService.trackClusterUser(hrequest, hresponse);
+    if (!isSkipped(hrequest.getRequestURI())) {
+      clusterTrackingService.trackClusterUser(hrequest, hresponse);
+    }
     chain.doFilter(request, response);
   }
 
@@ -39,11 +39,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.management.ManagementFactory;
-import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Dictionary;
 import java.util.GregorianCalendar;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Queue;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
@@ -83,6 +89,11 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
    */
   private static final String SAKAI_TRACKING = "SAKAI-TRACKING";
 
+  /**
+   * Pings to remote servers are sent at most this often, in ms.
+   */
+  private static final long PING_BATCH_INTERVAL = 5000L;
+
   @Property(name="secure-host-url", value = "http://localhost:8081",description = "The URL where other nodes in the cluster can contact this App server, will be different for each app server. Normal urls appended to the end of the url.")
   protected static final String PROP_SECURE_HOST_URL = "secure-host-url";
 
@@ -114,11 +125,20 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
    */
   private boolean isReady = false;
   private int serverNumber;
-  private Object lockObject = new Object();
-  private long next;
   private long epoch;
-  private long prev;
   private String thisSecureUrl;
+  /**
+   * Generates cluster unique ids, replaced once the server number is known.
+   */
+  private volatile ClusterIdGenerator idGenerator;
+  /**
+   * Pings waiting to be sent, by remote server id, each a tracking cookie and user.
+   */
+  private final ConcurrentMap<String, Queue<String[]>> pendingPings = new ConcurrentHashMap<String, Queue<String[]>>();
+  /**
+   * When pending pings are next sent, in ms.
+   */
+  private final AtomicLong nextPingFlush = new AtomicLong();
 
   /**
    * Constructor for testing purposes only.
@@ -129,12 +149,13 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
     this.cacheManagerService = cacheManagerService;
     GregorianCalendar calendar = new GregorianCalendar(2009, 8, 22);
     epoch = calendar.getTimeInMillis();
-
+    idGenerator = new ClusterIdGenerator(epoch, serverNumber);
   }
 
   public ClusterTrackingServiceImpl() {
     GregorianCalendar calendar = new GregorianCalendar(2009, 8, 22);
     epoch = calendar.getTimeInMillis();
+    idGenerator = new ClusterIdGenerator(epoch, serverNumber);
   }
 
   /**
@@ -155,6 +176,7 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
     serverId = ((String) mbeanServer.getAttribute(name, "Name")).replace("@", "-");
     isActive = true;
     pingInstance();
+    idGenerator = new ClusterIdGenerator(epoch, serverNumber);
     isReady = true;
   }
 
@@ -165,6 +187,7 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
    * @throws Exception
    */
   protected void deactivate(ComponentContext ctx) throws Exception {
+    flushPings();
     removeInstance(serverId);
   }
 
@@ -188,9 +211,14 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
           String cookieName = cookie.getName();
           if (cookieName.equals(SAKAI_TRACKING)) {
             String trackingCookie = cookie.getValue();
-            if (isServerAlive(trackingCookie)) {
+            // a user tracked here within the TTL needs no further work, this avoids
+            // looking up the server in the cluster cache on every request.
+            ClusterUser cuser = getTrackingCache().get(trackingCookie);
+            if (cuser != null && !((ClusterUserImpl) cuser).expired(remoteUser)) {
+              tracking = true;
+            } else if (isServerAlive(trackingCookie)) {
               try {
-                pingTracking(trackingCookie, remoteUser);
+                updateTracking(trackingCookie, remoteUser, true);
                 tracking = true;
               } catch (PingRemoteTrackingFailedException e) {
                 LOGGER.warn(e.getMessage());
@@ -222,6 +250,7 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
       // we *do not* track cookies the first time, to avoid DOS on the cookie store.
       // pingTracking(trackingCookie, remoteUser);
     }
+    flushPingsIfDue();
 
   }
 
@@ -288,26 +317,29 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
    *          the user id.
    * @throws PingRemoteTrackingFailedException
    */
-  private void pingTracking(String trackingCookie, String remoteUser)
+  protected void pingTracking(String trackingCookie, String remoteUser, boolean andRemote)
       throws PingRemoteTrackingFailedException {
-    pingTracking(trackingCookie, remoteUser, true);
+    Cache<ClusterUser> cache = getTrackingCache();
+    ClusterUser cuser = cache.get(trackingCookie);
+    if (cuser == null || ((ClusterUserImpl) cuser).expired(remoteUser)) {
+      updateTracking(trackingCookie, remoteUser, andRemote);
+    }
   }
 
   /**
+   * Track the user here, and if the cookie belongs to another server ping that server.
+   *
    * @param trackingCookie
    * @param remoteUser
+   * @param andRemote
    * @throws PingRemoteTrackingFailedException
    */
-  protected void pingTracking(String trackingCookie, String remoteUser, boolean andRemote)
+  private void updateTracking(String trackingCookie, String remoteUser, boolean andRemote)
       throws PingRemoteTrackingFailedException {
-    Cache<ClusterUser> cache = getTrackingCache();
-    ClusterUser cuser = cache.get(trackingCookie);
-    if (cuser == null || ((ClusterUserImpl) cuser).expired(remoteUser)) {
-      if (andRemote && isRemote(trackingCookie)) {
-        pingRemoteTracking(trackingCookie, remoteUser);
-      }
-      cache.put(trackingCookie, new ClusterUserImpl(remoteUser, serverId));
+    if (andRemote && isRemote(trackingCookie)) {
+      pingRemoteTracking(trackingCookie, remoteUser);
     }
+    getTrackingCache().put(trackingCookie, new ClusterUserImpl(remoteUser, serverId));
   }
 
   /**
@@ -322,16 +354,54 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
       throw new PingRemoteTrackingFailedException("Server at " + trackingCookie
           + " not alive ");
     }
-    // send over OSGi and then JMS over the OSGi2JMS Bridge
-    Dictionary<String, Object> messageDict = new Hashtable<String, Object>();
-    messageDict.put(EVENT_FROM_SERVER, serverId);
-    messageDict.put(EVENT_TO_SERVER, clusterServer.getServerId());
-    messageDict.put(EVENT_TRACKING_COOKIE, trackingCookie);
-    messageDict.put(EVENT_USER, remoteUser);
-    Event pingUserEvent = new Event(EVENT_PING_CLUSTER_USER + "/"
-        + clusterServer.getServerId(), messageDict);
-    eventAdmin.postEvent(pingUserEvent);
+    String toServer = clusterServer.getServerId();
+    Queue<String[]> pings = pendingPings.get(toServer);
+    if (pings == null) {
+      pings = new ConcurrentLinkedQueue<String[]>();
+      Queue<String[]> existing = pendingPings.putIfAbsent(toServer, pings);
+      if (existing != null) {
+        pings = existing;
+      }
+    }
+    pings.add(new String[] { trackingCookie, remoteUser });
+  }
 
+  /**
+   * Send the pending pings if the batch interval has passed since they were last sent.
+   */
+  private void flushPingsIfDue() {
+    long flushAt = nextPingFlush.get();
+    long now = System.currentTimeMillis();
+    if (now >= flushAt && nextPingFlush.compareAndSet(flushAt, now + PING_BATCH_INTERVAL)) {
+      flushPings();
+    }
+  }
+
+  /**
+   * Send the pending pings, one event per remote server holding every cookie and user
+   * pinged since the last flush.
+   */
+  protected void flushPings() {
+    for (Entry<String, Queue<String[]>> e : pendingPings.entrySet()) {
+      List<String> trackingCookies = new ArrayList<String>();
+      List<String> users = new ArrayList<String>();
+      Queue<String[]> pings = e.getValue();
+      for (String[] ping = pings.poll(); ping != null; ping = pings.poll()) {
+        trackingCookies.add(ping[0]);
+        users.add(ping[1]);
+      }
+      if (trackingCookies.size() > 0) {
+        // send over OSGi and then JMS over the OSGi2JMS Bridge
+        Dictionary<String, Object> messageDict = new Hashtable<String, Object>();
+        messageDict.put(EVENT_FROM_SERVER, serverId);
+        messageDict.put(EVENT_TO_SERVER, e.getKey());
+        messageDict.put(EVENT_TRACKING_COOKIE, trackingCookies);
+        messageDict.put(EVENT_USER, users);
+        Event pingUserEvent = new Event(EVENT_PING_CLUSTER_USER + "/" + e.getKey(),
+            messageDict);
+        eventAdmin.postEvent(pingUserEvent);
+      }
+    }
   }
 
   /**
@@ -433,6 +503,7 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
    */
   public void run() {
     pingInstance();
+    flushPings();
   }
 
   /**
@@ -459,15 +530,14 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
    * @see org.sakaiproject.nakamura.api.cluster.ClusterTrackingService#getClusterUniqueId()
    */
   public String getClusterUniqueId() {
-    synchronized (lockObject) {
-      do {
-        next = System.currentTimeMillis() - epoch;
-      } while (next == prev);
+    long id = idGenerator.nextId();
+    byte[] b = new byte[8];
+    for (int i = 7; i >= 0; i--) {
+      b[i] = (byte) id;
+      id >>>= 8;
     }
-    BigInteger idNum = new BigInteger(String.valueOf(serverNumber) + String.valueOf(next));
-    prev = next;
     Base64 b64 = new Base64();
-    return b64.encodeToString(idNum.toByteArray()).trim();
+    return b64.encodeToString(b).trim();
   }
 
 }
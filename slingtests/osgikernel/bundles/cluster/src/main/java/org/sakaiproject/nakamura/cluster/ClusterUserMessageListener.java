@@ -25,6 +25,8 @@ import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.List;
+
 import javax.jms.Connection;
 import javax.jms.JMSException;
 import javax.jms.Message;
@@ -95,19 +97,37 @@ public class ClusterUserMessageListener implements MessageListener {
       String fromServer = message
           .getStringProperty(ClusterTrackingService.EVENT_FROM_SERVER);
       String toServer = message.getStringProperty(ClusterTrackingService.EVENT_TO_SERVER);
-      String trackingCookie = message
-          .getStringProperty(ClusterTrackingService.EVENT_TRACKING_COOKIE);
-      String remoteUser = message.getStringProperty(ClusterTrackingService.EVENT_USER);
-      LOGGER.info(
+      Object trackingCookie = message
+          .getObjectProperty(ClusterTrackingService.EVENT_TRACKING_COOKIE);
+      Object remoteUser = message.getObjectProperty(ClusterTrackingService.EVENT_USER);
+      LOGGER.debug(
           "Started handling cluster user jms message. from:{} to:{} cookie:{} user:{}",
           new Object[] { fromServer, toServer, trackingCookie, remoteUser });
-      clusterTrackingServiceImpl.pingTracking(trackingCookie, remoteUser, false);
-    } catch (PingRemoteTrackingFailedException e) {
-      LOGGER.error(e.getMessage());
+      if (trackingCookie instanceof List<?> && remoteUser instanceof List<?>) {
+        // a batch of pings, cookies and users in the same order.
+        List<?> trackingCookies = (List<?>) trackingCookie;
+        List<?> remoteUsers = (List<?>) remoteUser;
+        for (int i = 0; i < trackingCookies.size() && i < remoteUsers.size(); i++) {
+          pingTracking((String) trackingCookies.get(i), (String) remoteUsers.get(i));
+        }
+      } else {
+        pingTracking((String) trackingCookie, (String) remoteUser);
+      }
     } catch (JMSException e) {
       LOGGER.error(e.getMessage(), e);
     }
   }
 
+  /**
+   * @param trackingCookie
+   * @param remoteUser
+   */
+  private void pingTracking(String trackingCookie, String remoteUser) {
+    try {
+      clusterTrackingServiceImpl.pingTracking(trackingCookie, remoteUser, false);
+    } catch (PingRemoteTrackingFailedException e) {
+      LOGGER.error(e.getMessage());
+    }
+  }
 
 }
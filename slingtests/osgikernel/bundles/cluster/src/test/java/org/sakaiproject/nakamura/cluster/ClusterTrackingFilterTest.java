@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.cluster;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
+
+import java.util.Hashtable;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ *
+ */
+public class ClusterTrackingFilterTest extends AbstractEasyMockTest {
+
+  private ComponentContext componentContext;
+
+  @Before
+  public void before() {
+    componentContext = createMock(ComponentContext.class);
+    Hashtable<String, Object> dict = new Hashtable<String, Object>();
+    dict.put(ClusterTrackingFilter.SKIP_PATHS, new String[] { "/devwidgets/", "/var/" });
+    dict.put(ClusterTrackingFilter.SKIP_EXTENSIONS, new String[] { "js", "css", "png" });
+    expect(componentContext.getProperties()).andReturn(dict).anyTimes();
+  }
+
+  @Test
+  public void testSkipped() throws Exception {
+    ClusterTrackingService clusterTrackingService = createMock(ClusterTrackingService.class);
+    HttpServletRequest request = createMock(HttpServletRequest.class);
+    HttpServletResponse response = createMock(HttpServletResponse.class);
+    FilterChain chain = createMock(FilterChain.class);
+    expect(request.getRequestURI()).andReturn("/devwidgets/chat/chat.html");
+    chain.doFilter(request, response);
+    replay();
+    ClusterTrackingFilter filter = new ClusterTrackingFilter(clusterTrackingService);
+    filter.activate(componentContext);
+    filter.doFilter(request, response, chain);
+    verify();
+  }
+
+  @Test
+  public void testTracked() throws Exception {
+    ClusterTrackingService clusterTrackingService = createMock(ClusterTrackingService.class);
+    HttpServletRequest request = createMock(HttpServletRequest.class);
+    HttpServletResponse response = createMock(HttpServletResponse.class);
+    FilterChain chain = createMock(FilterChain.class);
+    expect(request.getRequestURI()).andReturn("/sites/mysite.json");
+    clusterTrackingService.trackClusterUser(request, response);
+    chain.doFilter(request, response);
+    replay();
+    ClusterTrackingFilter filter = new ClusterTrackingFilter(clusterTrackingService);
+    filter.activate(componentContext);
+    filter.doFilter(request, response, chain);
+    verify();
+  }
+
+  @Test
+  public void testSystemMeTracked() throws Exception {
+    ClusterTrackingService clusterTrackingService = createMock(ClusterTrackingService.class);
+    HttpServletRequest request = createMock(HttpServletRequest.class);
+    HttpServletResponse response = createMock(HttpServletResponse.class);
+    FilterChain chain = createMock(FilterChain.class);
+    ComponentContext defaults = createMock(ComponentContext.class);
+    expect(defaults.getProperties()).andReturn(new Hashtable<String, Object>());
+    expect(request.getRequestURI()).andReturn("/system/me");
+    clusterTrackingService.trackClusterUser(request, response);
+    chain.doFilter(request, response);
+    replay();
+    ClusterTrackingFilter filter = new ClusterTrackingFilter(clusterTrackingService);
+    filter.activate(defaults);
+    filter.doFilter(request, response, chain);
+    // the pages that establish the tracking cookie are tracked with the default paths.
+    assertFalse(filter.isSkipped("/dev/index.html"));
+    assertTrue(filter.isSkipped("/devwidgets/chat/chat.html"));
+    assertTrue(filter.isSkipped("/_user/a/ab/abc/public/photo.png"));
+    assertFalse(filter.isSkipped("/_user/a/ab/abc/public/authprofile.json"));
+    verify();
+  }
+
+  @Test
+  public void testIsSkipped() {
+    replay();
+    ClusterTrackingFilter filter = new ClusterTrackingFilter(null);
+    filter.activate(componentContext);
+    assertTrue(filter.isSkipped("/devwidgets/chat/chat.js"));
+    assertTrue(filter.isSkipped("/_user/a/ab/abc/public/photo.PNG"));
+    assertFalse(filter.isSkipped("/_user/a/ab/abc/public/authprofile.json"));
+    assertTrue(filter.isSkipped("/var/search/files.json"));
+    assertFalse(filter.isSkipped("/system/me"));
+    assertFalse(filter.isSkipped("/dev/index.html"));
+    assertFalse(filter.isSkipped("/_user/a/ab/abc/public/files.js/foo"));
+    assertFalse(filter.isSkipped("/"));
+    assertFalse(filter.isSkipped(null));
+  }
+}
@@ -17,18 +17,17 @@
  */
 package org.sakaiproject.nakamura.cluster;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
-import org.apache.commons.codec.binary.Base64;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.math.BigInteger;
 import java.util.GregorianCalendar;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -37,71 +36,69 @@ import java.util.concurrent.ConcurrentHashMap;
 public class IDTest {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(IDTest.class);
-  private static long tstart;
   private static long epoch;
-  private Map<BigInteger, BigInteger> hash = new ConcurrentHashMap<BigInteger, BigInteger>();
-  private long prev = 0;
-  private long next = 0;
-  private Object lockObject = new Object();
-  private int nrunning = 0;
+  private Map<Long, Long> hash = new ConcurrentHashMap<Long, Long>();
+  private ClusterIdGenerator generator;
 
   @BeforeClass
   public static void beforeClass() {
     GregorianCalendar calendar = new GregorianCalendar(2009,8, 21);
     epoch = calendar.getTimeInMillis();
-    tstart = 99;
   }
 
   @Test
-  public void testId() {
-
-    for (int i = 0; i < 10; i++) {
-      Thread t = new Thread(new Runnable() {
+  public void testId() throws InterruptedException {
+    generator = new ClusterIdGenerator(epoch, 99);
+    Thread[] threads = new Thread[10];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new Runnable() {
 
         public void run() {
-          nrunning++;
-          try {
-            for (int j = 0; j < 100; j++) {
-              BigInteger id = getId();
-              assertFalse("Failed for " + id + " after " + j, hash.containsKey(id));
-              hash.put(id, id);
-            }
-          } finally {
-            nrunning--;
+          long prev = -1;
+          for (int j = 0; j < 10000; j++) {
+            long id = generator.nextId();
+            assertTrue("Not increasing " + id + " after " + prev, id > prev);
+            assertFalse("Failed for " + id + " after " + j, hash.containsKey(id));
+            hash.put(id, id);
+            prev = id;
           }
-
         }
 
       });
-      t.start();
+      threads[i].start();
     }
-
-    do {
-      LOGGER.info("Running " + nrunning + " Hash Size is " + hash.size());
-      try {
-        Thread.sleep(1000);
-      } catch (InterruptedException e) {
-        LOGGER.info(e.getMessage(),e);
-      }
-    } while (nrunning > 0);
-
-    Base64 b64 = new Base64();
-    for ( Entry<BigInteger, BigInteger> e : hash.entrySet() ) {
-      LOGGER.info(" Entry is "+e.getValue()+" "+ b64.encodeToString(e.getValue().toByteArray()).trim());
-
+    for (Thread t : threads) {
+      t.join();
+    }
+    LOGGER.info("Hash Size is " + hash.size());
+    assertEquals(100000, hash.size());
+    for (Long id : hash.keySet()) {
+      assertEquals(99, ClusterIdGenerator.getServerNumber(id));
     }
-
   }
 
-  private BigInteger getId() {
-    synchronized (lockObject) {
-      do {
-        next = System.currentTimeMillis()-epoch;
-      } while (next == prev);
-      BigInteger ret = new BigInteger(String.valueOf(tstart) + String.valueOf(next));
-      prev = next;
-      return ret;
+  @Test
+  public void testClockRegression() {
+    final long[] now = { epoch + 1000 };
+    ClusterIdGenerator regressing = new ClusterIdGenerator(epoch, 3) {
+      @Override
+      protected long currentTimeMillis() {
+        return now[0];
+      }
+    };
+    long prev = regressing.nextId();
+    assertEquals(1000, ClusterIdGenerator.getTime(prev));
+    now[0] -= 500;
+    // more ids than the sequence holds in one ms, with the clock behind.
+    for (int i = 0; i < 5000; i++) {
+      long id = regressing.nextId();
+      assertTrue(id > prev);
+      assertEquals(3, ClusterIdGenerator.getServerNumber(id));
+      prev = id;
     }
+    assertEquals(1001, ClusterIdGenerator.getTime(prev));
+    now[0] = epoch + 2000;
+    assertEquals(2000, ClusterIdGenerator.getTime(regressing.nextId()));
   }
 
 }
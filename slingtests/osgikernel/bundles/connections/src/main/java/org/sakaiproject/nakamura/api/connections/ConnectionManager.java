@@ -19,6 +19,7 @@ package org.sakaiproject.nakamura.api.connections;
 
 import org.apache.sling.api.resource.Resource;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -59,4 +60,17 @@ public interface ConnectionManager {
    */
   List<String> getConnectedUsers(String user, ConnectionState state);
 
+  /**
+   * Get the listing of connected users for many users at once, see
+   * {@link #getConnectedUsers(String, ConnectionState)}.
+   * 
+   * @param users the ids of the users to get connections for
+   * @param state [OPTIONAL] if null then all connections are returned regardless of state
+   * @return a map of user id to the ids of the users connected to it, with an entry for every
+   * user asked for
+   * @throws IllegalStateException if there is a failure in the system
+   */
+  Map<String, List<String>> getConnectedUsers(Collection<String> users,
+      ConnectionState state);
+
 }
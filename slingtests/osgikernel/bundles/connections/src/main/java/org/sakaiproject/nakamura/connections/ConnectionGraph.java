@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.connections;
+
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A bounded, least recently used index of the connections of each user, keyed by user id
+ * and holding the state of each connection as seen by that user. A user is either fully
+ * loaded from the contact store or not present at all; transitions made through the
+ * connection manager are applied to users that are loaded. Changes made to contact nodes
+ * by other means drop both users of the connection, and a user that was loaded longer
+ * ago than the time to live is read again, in case a change was missed.
+ */
+public class ConnectionGraph {
+
+  private final Map<String, Contacts> users;
+  private final long ttl;
+  private long generation;
+
+  /**
+   * The connections of one user and the path of the contact store they were loaded from.
+   */
+  private static class Contacts {
+    private final String storePath;
+    private final Map<String, ConnectionState> states;
+    private final long loaded;
+
+    Contacts(String storePath, Map<String, ConnectionState> states, long loaded) {
+      this.storePath = storePath;
+      this.states = states;
+      this.loaded = loaded;
+    }
+  }
+
+  /**
+   * @param maxUsers
+   *          the maximum number of users to hold connections for.
+   * @param ttl
+   *          the number of ms the connections of a user are held for after loading.
+   */
+  public ConnectionGraph(final int maxUsers, long ttl) {
+    this.ttl = ttl;
+    users = new LinkedHashMap<String, Contacts>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, Contacts> eldest) {
+        return size() > maxUsers;
+      }
+    };
+  }
+
+  /**
+   * @param user
+   * @param state
+   *          the state to match, or null for every connection.
+   * @return the ids of the users connected to the user in that state, or null if the user
+   *         is not loaded.
+   */
+  public synchronized List<String> get(String user, ConnectionState state) {
+    Contacts contacts = users.get(user);
+    if (contacts == null) {
+      return null;
+    }
+    if (now() - contacts.loaded > ttl) {
+      users.remove(user);
+      return null;
+    }
+    List<String> connected = new ArrayList<String>();
+    for (Entry<String, ConnectionState> e : contacts.states.entrySet()) {
+      if (state == null || state.equals(e.getValue())) {
+        connected.add(e.getKey());
+      }
+    }
+    return connected;
+  }
+
+  /**
+   * @return a token to pass to {@link #put(String, String, Map, long)}, taken before the
+   *         contact store is read.
+   */
+  public synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Load the connections of a user, unless the graph has changed since the generation was
+   * taken, in which case what was read may already be stale and is not kept.
+   *
+   * @param user
+   * @param storePath
+   *          the path of the contact store of the user.
+   * @param states
+   *          every connection of the user, by other user id.
+   * @param generation
+   *          from {@link #getGeneration()} before the contact store was read.
+   */
+  public synchronized void put(String user, String storePath,
+      Map<String, ConnectionState> states, long generation) {
+    if (generation == this.generation) {
+      users.put(user, new Contacts(storePath, new LinkedHashMap<String, ConnectionState>(
+          states), now()));
+    }
+  }
+
+  /**
+   * Apply a transition to the view a user has of a connection.
+   *
+   * @param user
+   * @param otherUser
+   * @param state
+   *          the new state, the contact node stays in the store when this is NONE.
+   */
+  public synchronized void update(String user, String otherUser, ConnectionState state) {
+    generation++;
+    Contacts contacts = users.get(user);
+    if (contacts != null) {
+      contacts.states.put(otherUser, state);
+    }
+  }
+
+  /**
+   * Drop every user whose contact store is at, above or below the path.
+   *
+   * @param path
+   *          a path that has been removed.
+   */
+  public synchronized void removePath(String path) {
+    generation++;
+    String prefix = path.endsWith("/") ? path : path + "/";
+    for (Iterator<Contacts> i = users.values().iterator(); i.hasNext();) {
+      String storePath = i.next().storePath;
+      if (storePath.equals(path) || storePath.startsWith(prefix)
+          || path.startsWith(storePath + "/")) {
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * Drop both users of a contact node that was changed outside of the connection manager.
+   * The owner is the user whose contact store holds the node, the other user is the one
+   * the node is named after.
+   *
+   * @param path
+   *          the path of a contact node that was added, changed or removed.
+   */
+  public synchronized void removeContact(String path) {
+    removePath(path);
+    users.remove(path.substring(path.lastIndexOf('/') + 1));
+  }
+
+  /**
+   * Drop everything.
+   */
+  public synchronized void clear() {
+    generation++;
+    users.clear();
+  }
+
+  /**
+   * @return the current time in ms.
+   */
+  protected long now() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * @return the number of users held.
+   */
+  public synchronized int size() {
+    return users.size();
+  }
+}
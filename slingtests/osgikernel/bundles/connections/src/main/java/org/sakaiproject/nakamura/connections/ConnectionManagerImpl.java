@@ -46,8 +46,8 @@ import org.apache.felix.scr.annotations.Service;
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.UserManager;
 import org.apache.jackrabbit.util.ISO9075;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.resource.Resource;
-import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
@@ -55,17 +55,24 @@ import org.sakaiproject.nakamura.api.connections.ConnectionException;
 import org.sakaiproject.nakamura.api.connections.ConnectionManager;
 import org.sakaiproject.nakamura.api.connections.ConnectionOperation;
 import org.sakaiproject.nakamura.api.connections.ConnectionState;
+import org.sakaiproject.nakamura.api.jcr.AdminSessionService;
 import org.sakaiproject.nakamura.api.locking.LockManager;
 import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
 import org.sakaiproject.nakamura.api.personal.PersonalUtils;
 import org.sakaiproject.nakamura.util.JcrUtils;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -86,9 +93,13 @@ import javax.jcr.query.QueryResult;
  * Service for doing operations with connections.
  */
 @Component(immediate = true, description = "Service for doing operations with connections.", label = "ConnectionSearchResultProcessor")
-@Properties(value = { @Property(name = "service.vendor", value = "The Sakai Foundation") })
-@Service(value = ConnectionManager.class)
-public class ConnectionManagerImpl implements ConnectionManager {
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = EventConstants.EVENT_TOPIC, value = {
+        SlingConstants.TOPIC_RESOURCE_ADDED, SlingConstants.TOPIC_RESOURCE_CHANGED,
+        SlingConstants.TOPIC_RESOURCE_REMOVED }, propertyPrivate = true) })
+@Service(value = { ConnectionManager.class, EventHandler.class })
+public class ConnectionManagerImpl implements ConnectionManager, EventHandler {
 
   private static final Logger LOGGER = LoggerFactory
       .getLogger(ConnectionManagerImpl.class);
@@ -97,7 +108,27 @@ public class ConnectionManagerImpl implements ConnectionManager {
   protected LockManager lockManager;
 
   @Reference
-  protected SlingRepository slingRepository;
+  protected AdminSessionService adminSessionService;
+
+  /**
+   * The number of users to hold connections for in memory.
+   */
+  private static final int MAX_CACHED_USERS = 10000;
+
+  /**
+   * How long the connections of a user are held, in case a change to a contact store was
+   * not seen.
+   */
+  private static final long CACHED_USER_TTL = 10L * 60L * 1000L;
+
+  /**
+   * Part of the path of every node in a contact store.
+   */
+  private static final String CONTACT_STORE_SEGMENT = "/"
+      + ConnectionConstants.CONTACT_STORE_NAME + "/";
+
+  private final ConnectionGraph connectionGraph = new ConnectionGraph(MAX_CACHED_USERS,
+      CACHED_USER_TTL);
 
   private static Map<TransitionKey, StatePair> stateMap = new HashMap<TransitionKey, StatePair>();
 
@@ -230,7 +261,7 @@ public class ConnectionManagerImpl implements ConnectionManager {
 
     Session adminSession = null;
     try {
-      adminSession = slingRepository.loginAdministrative(null);
+      adminSession = adminSessionService.borrowSession();
 
       // get the contact userstore nodes
       Node thisNode = getOrCreateConnectionNode(adminSession, thisAu, otherAu);
@@ -259,6 +290,8 @@ public class ConnectionManagerImpl implements ConnectionManager {
       if (adminSession.hasPendingChanges()) {
         adminSession.save();
       }
+      connectionGraph.update(thisUserId, otherUserId, sp.getThisState());
+      connectionGraph.update(otherUserId, thisUserId, sp.getOtherState());
 
       if (operation == ConnectionOperation.invite) {
         throw new ConnectionException(200, "Invitation made between "
@@ -272,10 +305,7 @@ public class ConnectionManagerImpl implements ConnectionManager {
     } catch (RepositoryException e) {
       throw new ConnectionException(500, e.getMessage(), e);
     } finally {
-      if (adminSession != null) {
-        // destroy the admin session
-        adminSession.logout();
-      }
+      adminSessionService.returnSession(adminSession);
     }
     return true;
   }
@@ -287,41 +317,125 @@ public class ConnectionManagerImpl implements ConnectionManager {
    *      org.sakaiproject.nakamura.api.connections.ConnectionState)
    */
   public List<String> getConnectedUsers(String user, ConnectionState state) {
-    ArrayList<String> l = new ArrayList<String>();
-    // search string should look something like this
-    // "//_user/contacts/a0/b0/c0/d0/aaron/*[@sling:resourceType=\"sakai/contact\" and @sakai:state=\"ACCEPTED\"]"
+    List<String> connected = connectionGraph.get(user, state);
+    if (connected == null) {
+      connected = getConnectedUsers(Collections.singletonList(user), state).get(user);
+    }
+    return connected;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.connections.ConnectionManager#getConnectedUsers(java.util.Collection,
+   *      org.sakaiproject.nakamura.api.connections.ConnectionState)
+   */
+  public Map<String, List<String>> getConnectedUsers(Collection<String> users,
+      ConnectionState state) {
+    Map<String, List<String>> connected = new HashMap<String, List<String>>();
+    List<String> missing = new ArrayList<String>();
+    for (String user : users) {
+      List<String> l = connectionGraph.get(user, state);
+      if (l == null) {
+        missing.add(user);
+      } else {
+        connected.put(user, l);
+      }
+    }
+    if (missing.isEmpty()) {
+      return connected;
+    }
+    // one admin session for every user not yet in the graph
     try {
-      Session adminSession = slingRepository.loginAdministrative(null);
+      Session adminSession = adminSessionService.borrowSession();
       try {
         UserManager um = AccessControlUtil.getUserManager(adminSession);
-        Authorizable au = um.getAuthorizable(user);
-        // this will generate the bigstore path
-        String connectionPath = ConnectionUtils.getConnectionPathBase(au);
-        // create the search query string
-        String search = "/jcr:root" + ISO9075.encodePath(connectionPath)
-            + "//element(*)[@" + JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY
-            + "=\"" + ConnectionConstants.SAKAI_CONTACT_RT + "\"";
-        if (state != null) {
-          search += " and @" + ConnectionConstants.SAKAI_CONNECTION_STATE + "=\""
-              + state.name() + "\"]";
-        } else {
-          search += "]";
-        }
         QueryManager qm = adminSession.getWorkspace().getQueryManager();
-        Query query = qm.createQuery(search, Query.XPATH);
-        QueryResult result = query.execute();
-        NodeIterator nodeIterator = result.getNodes();
-        while (nodeIterator.hasNext()) {
-          Node node = nodeIterator.nextNode();
-          l.add(node.getName());
+        for (String user : missing) {
+          long generation = connectionGraph.getGeneration();
+          Authorizable au = um.getAuthorizable(user);
+          if (au == null) {
+            connected.put(user, new ArrayList<String>());
+            continue;
+          }
+          // this will generate the bigstore path
+          String connectionPath = ConnectionUtils.getConnectionPathBase(au);
+          Map<String, ConnectionState> states = loadConnectionStates(qm, connectionPath);
+          connectionGraph.put(user, connectionPath, states, generation);
+          List<String> l = new ArrayList<String>();
+          for (Entry<String, ConnectionState> e : states.entrySet()) {
+            if (state == null || state.equals(e.getValue())) {
+              l.add(e.getKey());
+            }
+          }
+          connected.put(user, l);
         }
       } finally {
-        adminSession.logout();
+        adminSessionService.returnSession(adminSession);
       }
     } catch (RepositoryException e) {
       throw new IllegalStateException(e.getMessage(), e);
     }
-    return l;
+    return connected;
+  }
+
+  /**
+   * Read every contact node in a contact store, whatever its state. Nodes without a state
+   * are NONE, as they are for {@link #connect(Map, Resource, String, String, ConnectionOperation)}.
+   * 
+   * @param qm
+   * @param connectionPath
+   *          the base of the contact store.
+   * @return the state of each connection, by the id of the other user.
+   * @throws RepositoryException
+   */
+  private Map<String, ConnectionState> loadConnectionStates(QueryManager qm,
+      String connectionPath) throws RepositoryException {
+    Map<String, ConnectionState> states = new LinkedHashMap<String, ConnectionState>();
+    // search string should look something like this
+    // "//_user/contacts/a0/b0/c0/d0/aaron/*[@sling:resourceType=\"sakai/contact\"]"
+    String search = "/jcr:root" + ISO9075.encodePath(connectionPath) + "//element(*)[@"
+        + JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY + "=\""
+        + ConnectionConstants.SAKAI_CONTACT_RT + "\"]";
+    Query query = qm.createQuery(search, Query.XPATH);
+    QueryResult result = query.execute();
+    NodeIterator nodeIterator = result.getNodes();
+    while (nodeIterator.hasNext()) {
+      Node node = nodeIterator.nextNode();
+      ConnectionState state = ConnectionState.NONE;
+      if (node.hasProperty(ConnectionConstants.SAKAI_CONNECTION_STATE)) {
+        try {
+          state = ConnectionState.valueOf(node.getProperty(
+              ConnectionConstants.SAKAI_CONNECTION_STATE).getString());
+        } catch (IllegalArgumentException e) {
+          LOGGER.warn("Unknown connection state on {} ", node.getPath());
+        }
+      }
+      states.put(node.getName(), state);
+    }
+    return states;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * Contact stores and users that are removed are dropped from the connection graph. A
+   * contact node that is added, changed or removed drops both users of the connection,
+   * as the change may not have been made by
+   * {@link #connect(Map, Resource, String, String, ConnectionOperation)}.
+   * 
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (path == null) {
+      return;
+    }
+    if (path.indexOf(CONTACT_STORE_SEGMENT) >= 0) {
+      connectionGraph.removeContact(path);
+    } else if (SlingConstants.TOPIC_RESOURCE_REMOVED.equals(event.getTopic())) {
+      connectionGraph.removePath(path);
+    }
   }
 
   private Node getOrCreateConnectionNode(Session session, Authorizable fromUser, Authorizable toUser)
@@ -408,12 +522,12 @@ public class ConnectionManagerImpl implements ConnectionManager {
     }
   }
 
-  protected void bindSlingRepository(SlingRepository slingRepository) {
-    this.slingRepository = slingRepository;
+  protected void bindAdminSessionService(AdminSessionService adminSessionService) {
+    this.adminSessionService = adminSessionService;
   }
 
-  protected void unbindSlingRepository(SlingRepository slingRepository) {
-    this.slingRepository = null;
+  protected void unbindAdminSessionService(AdminSessionService adminSessionService) {
+    this.adminSessionService = null;
   }
 
 }
@@ -17,6 +17,8 @@
  */
 package org.sakaiproject.nakamura.connections;
 
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 
@@ -32,4 +34,14 @@ public interface StatePair {
    */
   void transition(Node thisNode, Node otherNode) throws RepositoryException;
 
+  /**
+   * @return the state of the connection as seen by this user after the transition.
+   */
+  ConnectionState getThisState();
+
+  /**
+   * @return the state of the connection as seen by the other user after the transition.
+   */
+  ConnectionState getOtherState();
+
 }
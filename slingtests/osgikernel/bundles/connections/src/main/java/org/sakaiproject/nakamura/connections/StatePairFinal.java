@@ -79,4 +79,20 @@ public class StatePairFinal implements StatePair {
     otherNode.setProperty(SAKAI_CONNECTION_STATE, otherState.toString());
   }
 
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.connections.StatePair#getThisState()
+   */
+  public ConnectionState getThisState() {
+    return thisState;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.connections.StatePair#getOtherState()
+   */
+  public ConnectionState getOtherState() {
+    return otherState;
+  }
+
 }
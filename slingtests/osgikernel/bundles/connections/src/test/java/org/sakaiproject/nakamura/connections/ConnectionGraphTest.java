@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.connections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Test the in memory connection graph.
+ */
+public class ConnectionGraphTest {
+
+  private static final String ALICE_STORE = "/_user/a/al/ali/alice/alice/contacts";
+
+  private Map<String, ConnectionState> states() {
+    Map<String, ConnectionState> states = new LinkedHashMap<String, ConnectionState>();
+    states.put("bob", ConnectionState.ACCEPTED);
+    states.put("carol", ConnectionState.INVITED);
+    states.put("dave", ConnectionState.ACCEPTED);
+    return states;
+  }
+
+  @Test
+  public void testGetByState() {
+    ConnectionGraph graph = new ConnectionGraph(10, 60000);
+    assertNull(graph.get("alice", ConnectionState.ACCEPTED));
+    graph.put("alice", ALICE_STORE, states(), graph.getGeneration());
+    assertEquals(Arrays.asList("bob", "dave"), graph.get("alice", ConnectionState.ACCEPTED));
+    assertEquals(Arrays.asList("carol"), graph.get("alice", ConnectionState.INVITED));
+    assertEquals(Arrays.asList("bob", "carol", "dave"), graph.get("alice", null));
+  }
+
+  @Test
+  public void testUpdate() {
+    ConnectionGraph graph = new ConnectionGraph(10, 60000);
+    graph.put("alice", ALICE_STORE, states(), graph.getGeneration());
+    graph.update("alice", "carol", ConnectionState.ACCEPTED);
+    graph.update("alice", "bob", ConnectionState.NONE);
+    graph.update("alice", "erin", ConnectionState.PENDING);
+    // users that are not loaded are left to be read from the repository
+    graph.update("bob", "alice", ConnectionState.NONE);
+    assertNull(graph.get("bob", null));
+    assertEquals(Arrays.asList("carol", "dave"), graph.get("alice",
+        ConnectionState.ACCEPTED));
+    assertEquals(Arrays.asList("erin"), graph.get("alice", ConnectionState.PENDING));
+    assertEquals(Arrays.asList("bob"), graph.get("alice", ConnectionState.NONE));
+  }
+
+  @Test
+  public void testStaleLoadNotKept() {
+    ConnectionGraph graph = new ConnectionGraph(10, 60000);
+    long generation = graph.getGeneration();
+    graph.update("bob", "alice", ConnectionState.ACCEPTED);
+    graph.put("alice", ALICE_STORE, states(), generation);
+    assertNull(graph.get("alice", null));
+  }
+
+  @Test
+  public void testRemovePath() {
+    ConnectionGraph graph = new ConnectionGraph(10, 60000);
+    graph.put("alice", ALICE_STORE, states(), graph.getGeneration());
+    graph.removePath("/_user/b");
+    assertEquals(1, graph.size());
+    graph.removePath(ALICE_STORE + "/b/bo/bob/bob");
+    assertEquals(0, graph.size());
+    graph.put("alice", ALICE_STORE, states(), graph.getGeneration());
+    graph.removePath("/_user/a/al");
+    assertEquals(0, graph.size());
+  }
+
+  @Test
+  public void testRemoveContact() {
+    ConnectionGraph graph = new ConnectionGraph(10, 60000);
+    graph.put("alice", ALICE_STORE, states(), graph.getGeneration());
+    graph.put("bob", "/_user/b/bo/bob/bob/contacts", states(), graph.getGeneration());
+    graph.put("carol", "/_user/c/ca/car/carol/carol/contacts", states(), graph
+        .getGeneration());
+    // alice's view of bob changed, both of them are read again.
+    graph.removeContact(ALICE_STORE + "/b/bo/bob/bob");
+    assertNull(graph.get("alice", null));
+    assertNull(graph.get("bob", null));
+    assertEquals(3, graph.get("carol", null).size());
+  }
+
+  @Test
+  public void testExpires() {
+    final long[] clock = new long[] { 1000 };
+    ConnectionGraph graph = new ConnectionGraph(10, 500) {
+      @Override
+      protected long now() {
+        return clock[0];
+      }
+    };
+    graph.put("alice", ALICE_STORE, states(), graph.getGeneration());
+    clock[0] += 500;
+    assertEquals(3, graph.get("alice", null).size());
+    clock[0] += 1;
+    assertNull(graph.get("alice", null));
+    assertEquals(0, graph.size());
+  }
+
+  @Test
+  public void testBounded() {
+    ConnectionGraph graph = new ConnectionGraph(2, 60000);
+    graph.put("alice", ALICE_STORE, states(), graph.getGeneration());
+    graph.put("bob", "/_user/b/bo/bob/bob/contacts", states(), graph.getGeneration());
+    graph.get("alice", null);
+    graph.put("carol", "/_user/c/ca/car/carol/carol/contacts", states(), graph
+        .getGeneration());
+    assertEquals(2, graph.size());
+    assertNull(graph.get("bob", null));
+    assertEquals(3, graph.get("alice", null).size());
+  }
+}
@@ -21,7 +21,7 @@ import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
-import org.sakaiproject.nakamura.api.personal.PersonalUtils;
+import org.sakaiproject.nakamura.api.personal.CompactUserInfoResolver;
 import org.sakaiproject.nakamura.util.ACLUtils;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.StringUtils;
@@ -33,7 +33,6 @@ import java.util.List;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
-import javax.jcr.Session;
 import javax.jcr.UnsupportedRepositoryOperationException;
 import javax.jcr.security.AccessControlManager;
 import javax.jcr.security.Privilege;
@@ -45,12 +44,37 @@ public class Post {
   private Node node;
   private List<Post> children;
   private String postId;
+  private CompactUserInfoResolver userInfo;
 
   public Post(Node node) {
     setNode(node);
     children = new ArrayList<Post>();
   }
 
+  /**
+   * @param node
+   * @param userInfo
+   *          The resolver to write the authors and editors with, shared by the posts of a
+   *          listing. They are registered on it here, so resolving it once the posts are
+   *          made looks them all up at once.
+   */
+  public Post(Node node, CompactUserInfoResolver userInfo) {
+    this(node);
+    this.userInfo = userInfo;
+    try {
+      if (node.hasProperty(DiscussionConstants.PROP_EDITEDBY)) {
+        userInfo.register(StringUtils.split(node.getProperty(
+            DiscussionConstants.PROP_EDITEDBY).getString(), ','));
+      }
+      if (node.hasProperty(MessageConstants.PROP_SAKAI_FROM)) {
+        userInfo.register(StringUtils.split(node.getProperty(
+            MessageConstants.PROP_SAKAI_FROM).getString(), ','));
+      }
+    } catch (RepositoryException e) {
+      LOG.warn("Unable to read the authors of post {}", postId);
+    }
+  }
+
   public Node getNode() {
     return node;
   }
@@ -170,7 +194,10 @@ public class Post {
       writer.key("canDelete");
       writer.value(canDelete);
 
-      Session session = node.getSession();
+      CompactUserInfoResolver userInfo = this.userInfo;
+      if (userInfo == null) {
+        userInfo = new CompactUserInfoResolver(node.getSession());
+      }
 
       // Show profile of editters.
       if (node.hasProperty(DiscussionConstants.PROP_EDITEDBY)) {
@@ -181,7 +208,7 @@ public class Post {
         writer.key(DiscussionConstants.PROP_EDITEDBYPROFILES);
         writer.array();
         for (int i = 0; i < edittedBy.length; i++) {
-          PersonalUtils.writeCompactUserInfo(session, edittedBy[i], writer);
+          userInfo.write(edittedBy[i], writer);
         }
         writer.endArray();
       }
@@ -192,7 +219,7 @@ public class Post {
       String[] senders = StringUtils.split(fromVal, ',');
       writer.array();
       for (String sender : senders) {
-        PersonalUtils.writeCompactUserInfo(session, sender, writer);
+        userInfo.write(sender, writer);
       }
       writer.endArray();
       writer.endObject();
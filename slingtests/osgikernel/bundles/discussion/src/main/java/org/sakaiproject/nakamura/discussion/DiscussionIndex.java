@@ -0,0 +1,329 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.discussion;
+
+import static org.apache.sling.jcr.resource.JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY;
+
+import org.sakaiproject.nakamura.api.discussion.DiscussionConstants;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+import javax.jcr.query.Query;
+
+/**
+ * An in memory index of where discussion posts and settings live, so they can be found
+ * without a query. It is filled from one query for each when it is started and then
+ * follows the repository through observation. Events arrive after the save, so a path
+ * from the index may be out of date for a moment, callers check the node they get before
+ * using it and fall back to a query.
+ */
+public class DiscussionIndex implements EventListener {
+
+  public static final Logger LOG = LoggerFactory.getLogger(DiscussionIndex.class);
+
+  private static final int EVENT_TYPES = Event.NODE_ADDED | Event.NODE_REMOVED
+      | Event.NODE_MOVED | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED
+      | Event.PROPERTY_REMOVED;
+
+  /**
+   * The properties that decide if and where a node is indexed.
+   */
+  private static final Set<String> INDEXED_PROPERTIES = new HashSet<String>(Arrays
+      .asList(SLING_RESOURCE_TYPE_PROPERTY, MessageConstants.PROP_SAKAI_TYPE,
+          MessageConstants.PROP_SAKAI_ID, DiscussionConstants.PROP_MARKER));
+
+  private static final String SETTINGS_RT = "sakai/settings";
+
+  private final int maxSize;
+  private final ConcurrentMap<String, String> messages =
+      new ConcurrentHashMap<String, String>();
+  private final ConcurrentMap<String, String> settings =
+      new ConcurrentHashMap<String, String>();
+  /**
+   * The key of every indexed path, sorted so a removed subtree can be found. Only used
+   * with its own lock held.
+   */
+  private final TreeMap<String, String> keys = new TreeMap<String, String>();
+  /**
+   * The number of entries in keys, so the size can be read without the lock. Written with
+   * the keys lock held.
+   */
+  private volatile int count;
+  private Session session;
+
+  /**
+   * @param maxSize
+   *          The most posts and settings to index, once full new ones are only found by
+   *          query.
+   */
+  public DiscussionIndex(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Start following the repository and fill the index. The listener is added first so
+   * that nothing saved while the index is filled is missed.
+   *
+   * @param session
+   *          An administrative session, used for the events only. It stays open until
+   *          stop is called.
+   * @throws RepositoryException
+   */
+  public void start(Session session) throws RepositoryException {
+    this.session = session;
+    ObservationManager observationManager = session.getWorkspace()
+        .getObservationManager();
+    observationManager.addEventListener(this, EVENT_TYPES, "/", true, null, null, false);
+    rebuild(session);
+  }
+
+  /**
+   * Stop following the repository. The session passed to start is not logged out.
+   */
+  public void stop() {
+    if (session != null) {
+      try {
+        session.getWorkspace().getObservationManager().removeEventListener(this);
+      } catch (RepositoryException e) {
+        LOG.warn("Unable to remove discussion index listener: {}", e.getMessage());
+      }
+      session = null;
+    }
+  }
+
+  /**
+   * Index every discussion post and settings node.
+   *
+   * @param session
+   * @throws RepositoryException
+   */
+  public void rebuild(Session session) throws RepositoryException {
+    synchronized (keys) {
+      messages.clear();
+      settings.clear();
+      keys.clear();
+      count = 0;
+    }
+    long start = System.currentTimeMillis();
+    indexQuery(session, "//*[@" + SLING_RESOURCE_TYPE_PROPERTY + "='"
+        + MessageConstants.SAKAI_MESSAGE_RT + "' and @" + MessageConstants.PROP_SAKAI_TYPE
+        + "='" + DiscussionConstants.TYPE_DISCUSSION + "']");
+    indexQuery(session, "//*[@" + SLING_RESOURCE_TYPE_PROPERTY + "='" + SETTINGS_RT
+        + "']");
+    LOG.info("Indexed {} discussion posts and {} settings in {} ms", new Object[] {
+        messages.size(), settings.size(), System.currentTimeMillis() - start });
+  }
+
+  private void indexQuery(Session session, String queryString) throws RepositoryException {
+    Query query = session.getWorkspace().getQueryManager().createQuery(queryString,
+        Query.XPATH);
+    NodeIterator nodes = query.execute().getNodes();
+    while (nodes.hasNext()) {
+      index(nodes.nextNode());
+    }
+  }
+
+  /**
+   * @param marker
+   * @param messageId
+   * @return The path the post was last seen at, or null.
+   */
+  public String getMessagePath(String marker, String messageId) {
+    return messages.get(marker + "\n" + messageId);
+  }
+
+  /**
+   * @param type
+   * @param marker
+   * @return The path the settings were last seen at, or null.
+   */
+  public String getSettingsPath(String type, String marker) {
+    return settings.get(type + "\n" + marker);
+  }
+
+  /**
+   * Index a node if it is a discussion post or settings, replacing what was indexed at
+   * its path.
+   *
+   * @param node
+   * @throws RepositoryException
+   */
+  public void index(Node node) throws RepositoryException {
+    String path = node.getPath();
+    String key = null;
+    if (node.hasProperty(SLING_RESOURCE_TYPE_PROPERTY)
+        && node.hasProperty(DiscussionConstants.PROP_MARKER)
+        && node.hasProperty(MessageConstants.PROP_SAKAI_TYPE)) {
+      String resourceType = node.getProperty(SLING_RESOURCE_TYPE_PROPERTY).getString();
+      String marker = node.getProperty(DiscussionConstants.PROP_MARKER).getString();
+      String type = node.getProperty(MessageConstants.PROP_SAKAI_TYPE).getString();
+      if (MessageConstants.SAKAI_MESSAGE_RT.equals(resourceType)
+          && DiscussionConstants.TYPE_DISCUSSION.equals(type)
+          && node.hasProperty(MessageConstants.PROP_SAKAI_ID)) {
+        key = "m" + marker + "\n"
+            + node.getProperty(MessageConstants.PROP_SAKAI_ID).getString();
+      } else if (SETTINGS_RT.equals(resourceType)) {
+        key = "s" + type + "\n" + marker;
+      }
+    }
+
+    synchronized (keys) {
+      removeKey(path, keys.remove(path));
+      if (key != null && count < maxSize) {
+        keys.put(path, key);
+        count++;
+        getMap(key).put(key.substring(1), path);
+      }
+    }
+  }
+
+  /**
+   * Forget a path and everything under it.
+   *
+   * @param path
+   */
+  public void remove(String path) {
+    synchronized (keys) {
+      removeKey(path, keys.remove(path));
+      // '0' is the character after '/', so this is every path under this one.
+      Map<String, String> subtree = keys.subMap(path + "/", path + "0");
+      for (Map.Entry<String, String> e : subtree.entrySet()) {
+        removeKey(e.getKey(), e.getValue());
+      }
+      subtree.clear();
+    }
+  }
+
+  /**
+   * Forget the key of a path that has been taken out of keys.
+   */
+  private void removeKey(String path, String key) {
+    if (key != null) {
+      count--;
+      // only if no other node has taken the key since.
+      getMap(key).remove(key.substring(1), path);
+    }
+  }
+
+  private ConcurrentMap<String, String> getMap(String key) {
+    return key.charAt(0) == 'm' ? messages : settings;
+  }
+
+  /**
+   * @return The number of indexed posts and settings.
+   */
+  public int size() {
+    return count;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jcr.observation.EventListener#onEvent(javax.jcr.observation.EventIterator)
+   */
+  public void onEvent(EventIterator events) {
+    Session session = this.session;
+    if (session == null) {
+      return;
+    }
+    // Several events for one node in a save are handled once, after the removals.
+    Set<String> changed = new HashSet<String>();
+    // nothing below a moved node has events of its own.
+    Set<String> moved = new HashSet<String>();
+    while (events.hasNext()) {
+      Event event = events.nextEvent();
+      try {
+        String path = event.getPath();
+        switch (event.getType()) {
+        case Event.NODE_REMOVED:
+          remove(path);
+          changed.remove(path);
+          break;
+        case Event.NODE_ADDED:
+          changed.add(path);
+          break;
+        case Event.NODE_MOVED:
+          moved.add(path);
+          break;
+        default:
+          int i = path.lastIndexOf('/');
+          if (INDEXED_PROPERTIES.contains(path.substring(i + 1))) {
+            changed.add(i == 0 ? "/" : path.substring(0, i));
+          }
+        }
+      } catch (RepositoryException e) {
+        LOG.warn("Unable to read discussion index event: {}", e.getMessage());
+      }
+    }
+
+    changed.removeAll(moved);
+    for (String path : changed) {
+      try {
+        if (session.nodeExists(path)) {
+          index(session.getNode(path));
+        } else {
+          remove(path);
+        }
+      } catch (RepositoryException e) {
+        LOG.warn("Unable to index {}: {}", path, e.getMessage());
+        remove(path);
+      }
+    }
+    for (String path : moved) {
+      try {
+        remove(path);
+        if (session.nodeExists(path)) {
+          indexTree(session.getNode(path));
+        }
+      } catch (RepositoryException e) {
+        LOG.warn("Unable to index {}: {}", path, e.getMessage());
+        remove(path);
+      }
+    }
+  }
+
+  /**
+   * Index a node and everything under it.
+   *
+   * @param node
+   * @throws RepositoryException
+   */
+  private void indexTree(Node node) throws RepositoryException {
+    index(node);
+    for (NodeIterator children = node.getNodes(); children.hasNext();) {
+      indexTree(children.nextNode());
+    }
+  }
+}
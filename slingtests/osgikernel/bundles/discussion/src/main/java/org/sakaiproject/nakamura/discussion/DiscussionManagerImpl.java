@@ -17,7 +17,13 @@
  */
 package org.sakaiproject.nakamura.discussion;
 
+import static org.apache.sling.jcr.resource.JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY;
+
+import org.apache.sling.jcr.api.SlingRepository;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.discussion.DiscussionConstants;
 import org.sakaiproject.nakamura.api.discussion.DiscussionManager;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.message.MessagingException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,18 +37,63 @@ import javax.jcr.query.QueryManager;
 import javax.jcr.query.QueryResult;
 
 /**
- * Manager for the discussions.
+ * Manager for the discussions. Posts and settings are looked up in a {@link DiscussionIndex}
+ * first, a query is only done when the index does not know the node or is out of date.
  * 
  * @scr.component immediate="true" label="Sakai Discussion Manager"
  *                description="Service for doing operations with discussions." name
  *                ="org.sakaiproject.nakamura.api.discussion.DiscussionManager"
  * @scr.property name="service.vendor" value="The Sakai Foundation"
  * @scr.service interface="org.sakaiproject.nakamura.api.discussion.DiscussionManager"
+ * @scr.reference interface="org.apache.sling.jcr.api.SlingRepository"
+ *                name="SlingRepository"
  */
 public class DiscussionManagerImpl implements DiscussionManager {
 
   public static final Logger LOG = LoggerFactory.getLogger(DiscussionManagerImpl.class);
 
+  /**
+   * @scr.property value="100000" type="Integer" label="Index size" description=
+   *               "The most discussion posts and settings to keep the location of in memory."
+   */
+  static final String INDEX_MAX_SIZE = "discussion.index.maxSize";
+
+  private static final int DEFAULT_INDEX_MAX_SIZE = 100000;
+
+  private SlingRepository slingRepository;
+  private Session indexSession;
+  DiscussionIndex index = new DiscussionIndex(DEFAULT_INDEX_MAX_SIZE);
+
+  protected void activate(ComponentContext context) {
+    int maxSize = DEFAULT_INDEX_MAX_SIZE;
+    if (context != null) {
+      Object value = context.getProperties().get(INDEX_MAX_SIZE);
+      if (value != null) {
+        try {
+          maxSize = Integer.parseInt(String.valueOf(value));
+        } catch (NumberFormatException e) {
+          LOG.warn("Invalid {} of {}, using {}", new Object[] { INDEX_MAX_SIZE, value,
+              maxSize });
+        }
+      }
+    }
+    index = new DiscussionIndex(maxSize);
+    try {
+      indexSession = slingRepository.loginAdministrative(null);
+      index.start(indexSession);
+    } catch (RepositoryException e) {
+      LOG.warn("Unable to build the discussion index, posts will be found by query", e);
+    }
+  }
+
+  protected void deactivate(ComponentContext context) {
+    index.stop();
+    if (indexSession != null) {
+      indexSession.logout();
+      indexSession = null;
+    }
+  }
+
   /**
    * 
    * {@inheritDoc}
@@ -64,6 +115,21 @@ public class DiscussionManagerImpl implements DiscussionManager {
       path = path.substring(0, path.length());
     }
 
+    String indexed = index.getMessagePath(marker, messageId);
+    String prefix = path.endsWith("/") ? path : path + "/";
+    if (indexed != null && (indexed + "/").startsWith(prefix)) {
+      Node n = getIndexedNode(session, indexed);
+      // the same conditions as the query, the node may have changed since it was indexed.
+      if (n != null
+          && hasProperty(n, SLING_RESOURCE_TYPE_PROPERTY, MessageConstants.SAKAI_MESSAGE_RT)
+          && hasProperty(n, MessageConstants.PROP_SAKAI_TYPE,
+              DiscussionConstants.TYPE_DISCUSSION)
+          && hasProperty(n, MessageConstants.PROP_SAKAI_ID, messageId)
+          && hasProperty(n, DiscussionConstants.PROP_MARKER, marker)) {
+        return n;
+      }
+    }
+
     String queryString = "/"
         + path
         + "//*[@sling:resourceType=\"sakai/message\" and @sakai:type='discussion' and @sakai:id='"
@@ -77,6 +143,7 @@ public class DiscussionManagerImpl implements DiscussionManager {
 
       while (nodeIterator.hasNext()) {
         Node n = nodeIterator.nextNode();
+        index.index(n);
         return n;
       }
 
@@ -98,6 +165,17 @@ public class DiscussionManagerImpl implements DiscussionManager {
     if (type == null || "".equals(type)) {
       type = "discussion";
     }
+
+    String indexed = index.getSettingsPath(type, marker);
+    if (indexed != null) {
+      Node n = getIndexedNode(session, indexed);
+      if (n != null && hasProperty(n, SLING_RESOURCE_TYPE_PROPERTY, "sakai/settings")
+          && hasProperty(n, MessageConstants.PROP_SAKAI_TYPE, type)
+          && hasProperty(n, DiscussionConstants.PROP_MARKER, marker)) {
+        return n;
+      }
+    }
+
     String queryString = "//*[@sling:resourceType=\"sakai/settings\" and @sakai:type='"
         + type + "' and @sakai:marker='" + marker + "']";
     LOG.info("Trying to find settings with query: {}", queryString);
@@ -109,6 +187,7 @@ public class DiscussionManagerImpl implements DiscussionManager {
 
       while (nodeIterator.hasNext()) {
         Node n = nodeIterator.nextNode();
+        index.index(n);
         return n;
       }
 
@@ -120,4 +199,36 @@ public class DiscussionManagerImpl implements DiscussionManager {
 
     return null;
   }
+
+  /**
+   * @param session
+   * @param path
+   * @return The node at a path from the index, or null if it is gone or can't be read.
+   */
+  private Node getIndexedNode(Session session, String path) {
+    try {
+      if (session.nodeExists(path)) {
+        return session.getNode(path);
+      }
+    } catch (RepositoryException e) {
+      LOG.debug("Unable to get indexed node {}: {}", path, e.getMessage());
+    }
+    return null;
+  }
+
+  private boolean hasProperty(Node node, String name, String value) {
+    try {
+      return node.hasProperty(name) && value.equals(node.getProperty(name).getString());
+    } catch (RepositoryException e) {
+      return false;
+    }
+  }
+
+  protected void bindSlingRepository(SlingRepository slingRepository) {
+    this.slingRepository = slingRepository;
+  }
+
+  protected void unbindSlingRepository(SlingRepository slingRepository) {
+    this.slingRepository = null;
+  }
 }
@@ -22,6 +22,7 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.sakaiproject.nakamura.api.discussion.Post;
+import org.sakaiproject.nakamura.api.personal.CompactUserInfoResolver;
 import org.sakaiproject.nakamura.api.search.Aggregator;
 import org.sakaiproject.nakamura.api.search.SearchException;
 import org.sakaiproject.nakamura.api.search.SearchResultProcessor;
@@ -53,7 +54,8 @@ public class CommentSearchResultProcessor implements SearchResultProcessor {
     if (aggregator != null) {
       aggregator.add(node);
     }
-    Post p = new Post(node);
+    // the authors are kept for the request, so each is looked up once for all the rows.
+    Post p = new Post(node, CompactUserInfoResolver.getResolver(request, session));
     p.outputPostAsJSON(write);
   }
   
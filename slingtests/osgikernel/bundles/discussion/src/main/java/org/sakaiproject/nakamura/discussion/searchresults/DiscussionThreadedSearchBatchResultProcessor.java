@@ -17,15 +17,20 @@
  */
 package org.sakaiproject.nakamura.discussion.searchresults;
 
+import static org.sakaiproject.nakamura.api.search.SearchConstants.PARAMS_ITEMS_PER_PAGE;
+
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.sakaiproject.nakamura.api.discussion.DiscussionConstants;
 import org.sakaiproject.nakamura.api.discussion.Post;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.personal.CompactUserInfoResolver;
 import org.sakaiproject.nakamura.api.search.AbstractSearchResultSet;
 import org.sakaiproject.nakamura.api.search.Aggregator;
+import org.sakaiproject.nakamura.api.search.RowIteratorImpl;
 import org.sakaiproject.nakamura.api.search.SearchBatchResultProcessor;
+import org.sakaiproject.nakamura.api.search.SearchConstants;
 import org.sakaiproject.nakamura.api.search.SearchException;
 import org.sakaiproject.nakamura.api.search.SearchResultSet;
 import org.sakaiproject.nakamura.api.search.SearchUtil;
@@ -34,15 +39,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import javax.jcr.Node;
-import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
-import javax.jcr.ValueFormatException;
 import javax.jcr.query.Query;
-import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
 import javax.jcr.query.RowIterator;
 
 /**
@@ -60,45 +66,63 @@ public class DiscussionThreadedSearchBatchResultProcessor implements
   public static final Logger LOG = LoggerFactory
       .getLogger(DiscussionThreadedSearchBatchResultProcessor.class);
 
+  /**
+   * The request parameter that limits how deep replies are nested. 0 gives only the
+   * threads, 1 the threads and their direct replies and so on.
+   */
+  public static final String PARAMS_MAX_DEPTH = "maxDepth";
+
+  /**
+   * Writes the posts as threads. The rows are expected to hold every post of the threads,
+   * with a post always before its replies, as returned by getSearchResultSet.
+   * 
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.search.SearchBatchResultProcessor#writeNodes(org.apache.sling.api.SlingHttpServletRequest,
+   *      org.apache.sling.commons.json.io.JSONWriter,
+   *      org.sakaiproject.nakamura.api.search.Aggregator, javax.jcr.query.RowIterator)
+   */
   public void writeNodes(SlingHttpServletRequest request, JSONWriter writer,
       Aggregator aggregator, RowIterator iterator) throws JSONException,
       RepositoryException {
 
     Session session = request.getResourceResolver().adaptTo(Session.class);
-    List<Node> allNodes = new ArrayList<Node>();
-    for (; iterator.hasNext();) {
+    CompactUserInfoResolver userInfo = new CompactUserInfoResolver(session);
+    List<Post> basePosts = new ArrayList<Post>();
+    Map<String, Post> posts = new HashMap<String, Post>();
+    while (iterator.hasNext()) {
       Node node = RowUtils.getNode(iterator.nextRow(), session);
       if (aggregator != null) {
         aggregator.add(node);
       }
-      allNodes.add(node);
-    }
-
-    List<Post> basePosts = new ArrayList<Post>();
-    for (int i = 0; i < allNodes.size(); i++) {
-      Node n = allNodes.get(i);
-
-      if (n.hasProperty(DiscussionConstants.PROP_REPLY_ON)) {
-        String replyon = n.getProperty(DiscussionConstants.PROP_REPLY_ON)
-            .getString();
-        // This post is a reply on another post.
-        // Find that post and add it.
-        addPost(basePosts, n, replyon);
-
+      Post post = new Post(node, userInfo);
+      Post parent = null;
+      if (node.hasProperty(DiscussionConstants.PROP_REPLY_ON)) {
+        parent = posts.get(node.getProperty(DiscussionConstants.PROP_REPLY_ON)
+            .getString());
+      }
+      if (parent != null) {
+        parent.getChildren().add(post);
       } else {
         // This post is not a reply to another post, thus it is a basepost.
-        basePosts.add(new Post(n));
+        basePosts.add(post);
+      }
+      if (post.getPostId() != null) {
+        posts.put(post.getPostId(), post);
       }
     }
 
-    // The posts are sorted, now return them as json.
-
+    // every author and editor of the threads is looked up once.
+    userInfo.resolve();
     for (Post p : basePosts) {
       p.outputPostAsJSON(writer);
     }
   }
 
   /**
+   * Builds the threads from all the posts and keeps the posts of the threads on the
+   * requested page. The size of the result set is the number of threads.
+   * 
    * {@inheritDoc}
    * 
    * @see org.sakaiproject.nakamura.api.search.SearchResultProcessor#getSearchResultSet(org.apache.sling.api.SlingHttpServletRequest,
@@ -108,40 +132,119 @@ public class DiscussionThreadedSearchBatchResultProcessor implements
       Query query) throws SearchException {
     try {
       // Perform the query
-      QueryResult qr = query.execute();
-      RowIterator iterator = qr.getRows();
-
-      // Get the hits
-      int hits = SearchUtil.getHits(qr);
+      RowIterator iterator = query.execute().getRows();
+      Session session = request.getResourceResolver().adaptTo(Session.class);
+      List<ThreadedRow> threads = buildThreads(iterator, session);
+
+      // Page on the threads.
+      int nitems = SearchUtil.intRequestParameter(request, PARAMS_ITEMS_PER_PAGE,
+          SearchConstants.DEFAULT_PAGED_ITEMS);
+      int maxDepth = SearchUtil.intRequestParameter(request, PARAMS_MAX_DEPTH, -1);
+      long start = SearchUtil.getPaging(request, threads.size());
+      long end = Math.min(start + nitems, threads.size());
+      List<Row> rows = new ArrayList<Row>();
+      for (int i = (int) start; i < end; i++) {
+        addRows(threads.get(i), maxDepth, rows);
+      }
 
       // Return the result set.
-      return new AbstractSearchResultSet(iterator, hits);
+      return new AbstractSearchResultSet(new RowIteratorImpl(rows), threads.size());
     } catch (RepositoryException e) {
       throw new SearchException(500, "Unable to execute query.");
     }
   }
 
   /**
-   * Adds the post to the list at the correct place.
+   * Put the posts in threads in one pass. A reply can come before the post it replies on,
+   * it then waits until that post is found. Replies on posts that are never found are
+   * left out.
    * 
-   * @param basePosts
-   * @param n
-   * @return
-   * @throws ValueFormatException
-   * @throws PathNotFoundException
+   * @param iterator
+   * @param session
+   * @return The posts that are not a reply, in the order of the rows.
    * @throws RepositoryException
    */
-  private void addPost(List<Post> basePosts, Node n, String replyon)
-      throws ValueFormatException, PathNotFoundException, RepositoryException {
-    String postid = n.getProperty(MessageConstants.PROP_SAKAI_ID).getString();
-    for (Post p : basePosts) {
-      if (p.getPostId().equals(replyon)) {
-        p.getChildren().add(new Post(n));
-        break;
+  protected List<ThreadedRow> buildThreads(RowIterator iterator, Session session)
+      throws RepositoryException {
+    List<ThreadedRow> threads = new ArrayList<ThreadedRow>();
+    Map<String, ThreadedRow> posts = new HashMap<String, ThreadedRow>();
+    Map<String, List<ThreadedRow>> waiting = new HashMap<String, List<ThreadedRow>>();
+    while (iterator.hasNext()) {
+      Row row = iterator.nextRow();
+      Node node = RowUtils.getNode(row, session);
+      ThreadedRow post = new ThreadedRow(row);
+      String id = null;
+      if (node.hasProperty(MessageConstants.PROP_SAKAI_ID)) {
+        id = node.getProperty(MessageConstants.PROP_SAKAI_ID).getString();
+      }
+
+      if (node.hasProperty(DiscussionConstants.PROP_REPLY_ON)) {
+        String replyon = node.getProperty(DiscussionConstants.PROP_REPLY_ON).getString();
+        ThreadedRow parent = posts.get(replyon);
+        if (parent != null) {
+          parent.replies.add(post);
+        } else {
+          List<ThreadedRow> replies = waiting.get(replyon);
+          if (replies == null) {
+            replies = new ArrayList<ThreadedRow>();
+            waiting.put(replyon, replies);
+          }
+          replies.add(post);
+        }
       } else {
-        p.addPost(n, postid, replyon);
+        threads.add(post);
+      }
+
+      if (id != null) {
+        posts.put(id, post);
+        List<ThreadedRow> replies = waiting.remove(id);
+        if (replies != null) {
+          post.replies.addAll(replies);
+        }
       }
     }
+    if (!waiting.isEmpty()) {
+      LOG.debug("Left out replies on {} posts that could not be found", waiting.size());
+    }
+    return threads;
   }
 
+  /**
+   * Add the rows of a thread, each post before its replies.
+   * 
+   * @param thread
+   * @param maxDepth
+   *          How many levels of replies to add, negative for all of them.
+   * @param rows
+   */
+  private void addRows(ThreadedRow thread, int maxDepth, List<Row> rows) {
+    // Walk the thread without recursing, a long chain of replies is not a problem.
+    LinkedList<ThreadedRow> stack = new LinkedList<ThreadedRow>();
+    thread.depth = 0;
+    stack.push(thread);
+    while (!stack.isEmpty()) {
+      ThreadedRow post = stack.pop();
+      rows.add(post.row);
+      if (maxDepth < 0 || post.depth < maxDepth) {
+        for (int i = post.replies.size() - 1; i >= 0; i--) {
+          ThreadedRow reply = post.replies.get(i);
+          reply.depth = post.depth + 1;
+          stack.push(reply);
+        }
+      }
+    }
+  }
+
+  /**
+   * A row and the rows of its replies.
+   */
+  protected static class ThreadedRow {
+    protected final Row row;
+    protected final List<ThreadedRow> replies = new ArrayList<ThreadedRow>();
+    private int depth;
+
+    ThreadedRow(Row row) {
+      this.row = row;
+    }
+  }
 }
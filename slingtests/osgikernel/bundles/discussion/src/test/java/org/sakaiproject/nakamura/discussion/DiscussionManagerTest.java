@@ -1,13 +1,18 @@
 package org.sakaiproject.nakamura.discussion;
 
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
 import static org.apache.sling.jcr.resource.JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
 import static org.junit.Assert.assertEquals;
 
 import org.apache.jackrabbit.api.JackrabbitRepository;
 import org.apache.jackrabbit.core.TransientRepository;
 import org.apache.jackrabbit.core.fs.local.FileUtil;
+import org.apache.sling.jcr.api.SlingRepository;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -164,4 +169,126 @@ public class DiscussionManagerTest {
     assertNotNull(result);
     assertEquals("/messages/msgNodeCorrect", result.getPath());
   }
+
+  @Test
+  public void testIndexFollowsPosts() throws Exception {
+    startRepo();
+
+    Session adminSession = loginAsAdmin();
+    Node store = adminSession.getRootNode().addNode("indexstore");
+    createPost(store, "post1", "bar", "1");
+    Node settingsNode = store.addNode("settings");
+    settingsNode.setProperty(SLING_RESOURCE_TYPE_PROPERTY, "sakai/settings");
+    settingsNode.setProperty("sakai:marker", "bar");
+    settingsNode.setProperty("sakai:type", "discussion");
+    adminSession.save();
+
+    SlingRepository slingRepository = createMock(SlingRepository.class);
+    expect(slingRepository.loginAdministrative(null)).andReturn(loginAsAdmin());
+    replay(slingRepository);
+    DiscussionManagerImpl manager = new DiscussionManagerImpl();
+    manager.bindSlingRepository(slingRepository);
+    manager.activate(null);
+    try {
+      // Built when the manager starts.
+      DiscussionIndex index = manager.index;
+      assertEquals("/indexstore/post1", index.getMessagePath("bar", "1"));
+      assertEquals("/indexstore/settings", index.getSettingsPath("discussion", "bar"));
+      assertEquals("/indexstore/settings", manager.findSettings("bar", adminSession,
+          null).getPath());
+
+      // Added
+      createPost(store, "post2", "bar", "2");
+      adminSession.save();
+      assertEquals("/indexstore/post2", manager.findMessage("2", "bar", adminSession,
+          "/indexstore").getPath());
+      waitForIndex(index, "2", "/indexstore/post2");
+
+      // Moved
+      store.addNode("thread");
+      adminSession.save();
+      adminSession.move("/indexstore/post2", "/indexstore/thread/post2");
+      adminSession.save();
+      assertEquals("/indexstore/thread/post2", manager.findMessage("2", "bar",
+          adminSession, "/indexstore").getPath());
+      waitForIndex(index, "2", "/indexstore/thread/post2");
+
+      // Moved with the node above it, which is the only one with an event.
+      adminSession.move("/indexstore/thread", "/indexstore/moved");
+      adminSession.save();
+      waitForIndex(index, "2", "/indexstore/moved/post2");
+
+      // Removed
+      adminSession.getNode("/indexstore/moved").remove();
+      adminSession.save();
+      assertNull(manager.findMessage("2", "bar", adminSession, "/indexstore"));
+      waitForIndex(index, "2", null);
+      assertEquals("/indexstore/post1", manager.findMessage("1", "bar", adminSession,
+          "/indexstore").getPath());
+    } finally {
+      manager.deactivate(null);
+      adminSession.logout();
+    }
+  }
+
+  @Test
+  public void testIndexedNodeChecked() throws Exception {
+    startRepo();
+
+    Session adminSession = loginAsAdmin();
+    Node store = adminSession.getRootNode().addNode("checkedstore");
+    createPost(store, "post1", "baz", "1");
+    createPost(store, "post2", "baz", "2");
+    adminSession.save();
+
+    SlingRepository slingRepository = createMock(SlingRepository.class);
+    expect(slingRepository.loginAdministrative(null)).andReturn(loginAsAdmin());
+    replay(slingRepository);
+    DiscussionManagerImpl manager = new DiscussionManagerImpl();
+    manager.bindSlingRepository(slingRepository);
+    manager.activate(null);
+    try {
+      DiscussionIndex index = manager.index;
+      int size = index.size();
+      assertEquals("/checkedstore/post1", index.getMessagePath("baz", "1"));
+      // stop following the repository so the index keeps the old path.
+      index.stop();
+      adminSession.getNode("/checkedstore/post1").setProperty(
+          SLING_RESOURCE_TYPE_PROPERTY, "sakai/page");
+      adminSession.save();
+      assertEquals("/checkedstore/post1", index.getMessagePath("baz", "1"));
+      assertNull(manager.findMessage("1", "baz", adminSession, "/checkedstore"));
+
+      index.remove("/checkedstore");
+      assertEquals(size - 2, index.size());
+    } finally {
+      manager.deactivate(null);
+      adminSession.logout();
+    }
+  }
+
+  private Node createPost(Node parent, String name, String marker, String id)
+      throws RepositoryException {
+    Node post = parent.addNode(name);
+    post.setProperty(SLING_RESOURCE_TYPE_PROPERTY, MessageConstants.SAKAI_MESSAGE_RT);
+    post.setProperty("sakai:marker", marker);
+    post.setProperty("sakai:type", "discussion");
+    post.setProperty("sakai:id", id);
+    return post;
+  }
+
+  /**
+   * Observation events arrive after the save, wait for the index to see them.
+   */
+  private void waitForIndex(DiscussionIndex index, String id, String path)
+      throws InterruptedException {
+    for (int i = 0; i < 100; i++) {
+      String indexed = index.getMessagePath("bar", id);
+      if (path == null ? indexed == null : path.equals(indexed)) {
+        return;
+      }
+      Thread.sleep(50);
+    }
+    assertEquals(path, index.getMessagePath("bar", id));
+  }
 }
@@ -24,14 +24,17 @@ import org.apache.jackrabbit.api.JackrabbitSession;
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.UserManager;
 import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.apache.sling.commons.testing.jcr.MockNode;
+import org.easymock.EasyMock;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.discussion.DiscussionConstants;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.search.SearchResultSet;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 import org.sakaiproject.nakamura.testutils.easymock.MockRowIterator;
 
@@ -48,6 +51,8 @@ import javax.jcr.Session;
 import javax.jcr.ValueFormatException;
 import javax.jcr.lock.LockException;
 import javax.jcr.nodetype.ConstraintViolationException;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryResult;
 import javax.jcr.query.RowIterator;
 import javax.jcr.security.AccessControlManager;
 import javax.jcr.version.VersionException;
@@ -136,10 +141,11 @@ public class DiscussionThreadedProcessorTest extends AbstractEasyMockTest {
     expect(session.getItem("/msg/b")).andReturn(nodeB);
     expect(session.getItem("/msg/c")).andReturn(nodeC);
     expect(session.getItem("/msg/d")).andReturn(nodeD);
+    // admin wrote three posts and edited one, but is looked up once.
     expect(session.getItem("/_user/a/ad/admin/public/authprofile")).andReturn(
-        profileNode).anyTimes();
+        profileNode).once();
     expect(session.getItem("/_user/a/an/anonymous/public/authprofile")).andReturn(
-        anonProfileNode).anyTimes();
+        anonProfileNode).once();
 
     RowIterator iterator = new MockRowIterator(nodes);
 
@@ -156,6 +162,86 @@ public class DiscussionThreadedProcessorTest extends AbstractEasyMockTest {
     assertEquals("a", json.getJSONObject("post").get("sakai:id"));
     assertEquals("b", json.getJSONArray("replies").getJSONObject(0).getJSONObject("post")
         .get("sakai:id"));
+    assertEquals("admin", json.getJSONArray("replies").getJSONObject(0).getJSONObject(
+        "post").getJSONArray(DiscussionConstants.PROP_EDITEDBYPROFILES).getJSONObject(0)
+        .get("userid"));
+    EasyMock.verify(session);
   }
 
+  @Test
+  public void testPaging() throws Exception {
+    // t1
+    // - r1
+    // -- r2
+    // t2
+    // t3
+    // - r3 (found before t3)
+    List<Node> nodes = new ArrayList<Node>();
+    Session session = EasyMock.createMock(Session.class);
+    nodes.add(createPost(session, "t1", null));
+    nodes.add(createPost(session, "r1", "t1"));
+    nodes.add(createPost(session, "t2", null));
+    nodes.add(createPost(session, "r3", "t3"));
+    nodes.add(createPost(session, "r2", "r1"));
+    nodes.add(createPost(session, "t3", null));
+    nodes.add(createPost(session, "orphan", "gone"));
+    EasyMock.replay(session);
+
+    assertEquals("[/msg/t3, /msg/r3]", getPage(session, nodes, "1", "2", null));
+    assertEquals("[/msg/t1, /msg/r1, /msg/r2, /msg/t2]", getPage(session, nodes, "0",
+        "2", null));
+    assertEquals("[/msg/t1, /msg/r1, /msg/t2]", getPage(session, nodes, "0", "2", "1"));
+    assertEquals("[/msg/t1, /msg/t2, /msg/t3]", getPage(session, nodes, "0", "5", "0"));
+  }
+
+  private MockNode createPost(Session session, String id, String replyon)
+      throws RepositoryException {
+    MockNode node = new MockNode("/msg/" + id);
+    node.setSession(session);
+    node.setProperty(MessageConstants.PROP_SAKAI_ID, id);
+    if (replyon != null) {
+      node.setProperty(DiscussionConstants.PROP_REPLY_ON, replyon);
+    }
+    expect(session.getItem(node.getPath())).andReturn(node).anyTimes();
+    return node;
+  }
+
+  private String getPage(Session session, List<Node> nodes, String page, String items,
+      String maxDepth) throws Exception {
+    SlingHttpServletRequest request = EasyMock.createMock(SlingHttpServletRequest.class);
+    expect(request.getRequestParameter("page")).andReturn(createParameter(page))
+        .anyTimes();
+    expect(request.getRequestParameter("items")).andReturn(createParameter(items))
+        .anyTimes();
+    expect(request.getRequestParameter("maxDepth")).andReturn(createParameter(maxDepth))
+        .anyTimes();
+    ResourceResolver resolver = EasyMock.createMock(ResourceResolver.class);
+    expect(resolver.adaptTo(Session.class)).andReturn(session).anyTimes();
+    expect(request.getResourceResolver()).andReturn(resolver).anyTimes();
+    QueryResult result = EasyMock.createMock(QueryResult.class);
+    expect(result.getRows()).andReturn(new MockRowIterator(nodes));
+    Query query = EasyMock.createMock(Query.class);
+    expect(query.execute()).andReturn(result);
+    EasyMock.replay(request, resolver, result, query);
+
+    SearchResultSet rs = processor.getSearchResultSet(request, query);
+    assertEquals(3, rs.getSize());
+    List<String> paths = new ArrayList<String>();
+    RowIterator rows = rs.getRowIterator();
+    while (rows.hasNext()) {
+      paths.add(rows.nextRow().getValue("jcr:path").getString());
+    }
+    EasyMock.verify(query, result);
+    return paths.toString();
+  }
+
+  private RequestParameter createParameter(String value) {
+    if (value == null) {
+      return null;
+    }
+    RequestParameter param = EasyMock.createMock(RequestParameter.class);
+    expect(param.getString()).andReturn(value).anyTimes();
+    EasyMock.replay(param);
+    return param;
+  }
 }
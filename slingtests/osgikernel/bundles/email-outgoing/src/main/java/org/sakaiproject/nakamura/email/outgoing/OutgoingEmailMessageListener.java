@@ -34,9 +34,11 @@ import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
 import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.util.KeyedExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Date;
 import java.util.Dictionary;
@@ -47,6 +49,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
@@ -60,7 +63,17 @@ import javax.jms.MessageConsumer;
 import javax.jms.MessageListener;
 import javax.jms.Session;
 import javax.jms.Topic;
-
+import javax.mail.MessagingException;
+
+/**
+ * Sends the email messages posted to the outgoing email topic. Messages are acknowledged
+ * as soon as they are handed to the send threads, so delivery is at most once: an email
+ * that is queued but not yet sent when the server stops is not sent, and its message node
+ * stays in the outbox. The subscription to the topic is not durable, so messages posted
+ * while the listener is down are lost whatever the acknowledge mode. Temporary SMTP
+ * failures are retried by posting the message again later, see
+ * sakai.email.retryIntervalMinutes.
+ */
 @Component(label = "%email.out.name", description = "%email.out.description", immediate = true, metatype = true)
 public class OutgoingEmailMessageListener implements MessageListener {
   private static final Logger LOGGER = LoggerFactory
@@ -74,6 +87,21 @@ public class OutgoingEmailMessageListener implements MessageListener {
   private static final String MAX_RETRIES = "sakai.email.maxRetries";
   @Property(intValue = 30)
   private static final String RETRY_INTERVAL = "sakai.email.retryIntervalMinutes";
+  @Property(intValue = 4)
+  private static final String CONCURRENCY = "sakai.email.concurrency";
+  @Property(intValue = 4)
+  private static final String SMTP_MAX_CONNECTIONS = "sakai.smtp.maxConnections";
+  @Property(intValue = 100)
+  private static final String SMTP_MAX_MESSAGES = "sakai.smtp.maxMessagesPerConnection";
+
+  /**
+   * The number of messages that may wait for each sending thread.
+   */
+  private static final int QUEUE_SIZE = 100;
+  /**
+   * Time to wait for queued messages to be sent when deactivating, in ms.
+   */
+  private static final long SHUTDOWN_TIMEOUT = 60000L;
 
   protected static final String TOPIC_NAME = "org/sakaiproject/nakamura/message/email/outgoing";
 
@@ -97,6 +125,10 @@ public class OutgoingEmailMessageListener implements MessageListener {
   private String smtpServer;
 
   private Integer retryInterval;
+  private volatile KeyedExecutor executor;
+  private volatile SmtpTransportPool transportPool;
+  private int poolConnections;
+  private int poolMessages;
 
   public OutgoingEmailMessageListener() {
   }
@@ -110,8 +142,8 @@ public class OutgoingEmailMessageListener implements MessageListener {
     try {
       LOGGER.info("Started handling email jms message.");
 
-      String nodePath = message.getStringProperty(NODE_PATH_PROPERTY);
-      Object objRcpt = message.getObjectProperty(RECIPIENTS);
+      final String nodePath = message.getStringProperty(NODE_PATH_PROPERTY);
+      final Object objRcpt = message.getObjectProperty(RECIPIENTS);
       List<String> recipients = null;
 
       if (objRcpt instanceof List<?>) {
@@ -124,6 +156,40 @@ public class OutgoingEmailMessageListener implements MessageListener {
         }
       }
 
+      KeyedExecutor sendExecutor = executor;
+      if (sendExecutor == null) {
+        sendMessage(nodePath, objRcpt, recipients);
+      } else {
+        // a retry of a message queues behind any earlier attempt to send it.
+        final List<String> messageRecipients = recipients;
+        sendExecutor.execute(nodePath, new Runnable() {
+          public void run() {
+            sendMessage(nodePath, objRcpt, messageRecipients);
+          }
+        });
+      }
+    } catch (JMSException e) {
+      LOGGER.error(e.getMessage(), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOGGER.error("Interrupted while queueing email, not sent.", e);
+    } catch (RejectedExecutionException e) {
+      LOGGER.error("Email listener is shutting down, email not sent.", e);
+    }
+  }
+
+  /**
+   * Send the message stored at a path.
+   *
+   * @param nodePath
+   *          the path of the message node.
+   * @param objRcpt
+   *          the recipients as found in the JMS message.
+   * @param recipients
+   *          the recipients as a list.
+   */
+  protected void sendMessage(String nodePath, Object objRcpt, List<String> recipients) {
+    try {
       javax.jcr.Session adminSession = repository.loginAdministrative(null);
       ResourceResolver resolver = jcrResourceResolverFactory.getResourceResolver(adminSession);
 
@@ -149,7 +215,7 @@ public class OutgoingEmailMessageListener implements MessageListener {
                 email.setSmtpPort(smtpPort);
                 email.setHostName(smtpServer);
 
-                email.send();
+                send(email);
               } catch (EmailException e) {
                 String exMessage = e.getMessage();
                 Throwable cause = e.getCause();
@@ -181,6 +247,11 @@ public class OutgoingEmailMessageListener implements MessageListener {
                     }
                   }
                 }
+                if (!rescheduled && isConnectionFailure(cause)) {
+                  // the server could not be reached, treat it as unavailable for now.
+                  scheduleRetry(421, messageNode);
+                  rescheduled = true;
+                }
                 if (rescheduled) {
                   LOGGER.info("Email rescheduled for redelivery.");
                 } else {
@@ -202,13 +273,52 @@ public class OutgoingEmailMessageListener implements MessageListener {
         String retval = "null";
         setError(messageNode, "Expected recipients to be String or List<String>.  Found " + retval);
       }
-    } catch (JMSException e) {
-      LOGGER.error(e.getMessage(), e);
     } catch (RepositoryException e) {
       LOGGER.error(e.getMessage(), e);
     }
   }
 
+  /**
+   * Send an email over a pooled SMTP connection.
+   *
+   * @param email
+   * @throws EmailException
+   *           if the email could not be built or sent, with the cause from the transport.
+   */
+  private void send(MultiPartEmail email) throws EmailException {
+    email.buildMimeMessage();
+    SmtpTransportPool pool = transportPool;
+    if (pool == null) {
+      throw new EmailException("No valid SMTP server and port are configured");
+    }
+    try {
+      pool.send(email.getMimeMessage());
+    } catch (MessagingException e) {
+      throw new EmailException("Sending the email to the following server failed : "
+          + smtpServer + ":" + smtpPort, e);
+    }
+  }
+
+  /**
+   * @param cause
+   * @return true if the cause, or an exception nested in it, is an I/O failure talking to
+   *         the server rather than a response from it.
+   */
+  private boolean isConnectionFailure(Throwable cause) {
+    for (Throwable t = cause; t != null;) {
+      if (t instanceof IOException) {
+        return true;
+      }
+      if (t instanceof MessagingException
+          && ((MessagingException) t).getNextException() != null) {
+        t = ((MessagingException) t).getNextException();
+      } else {
+        t = t.getCause();
+      }
+    }
+    return false;
+  }
+
   private MultiPartEmail constructMessage(Node messageNode, List<String> recipients)
       throws EmailException,
       RepositoryException, PathNotFoundException, ValueFormatException {
@@ -340,11 +450,19 @@ public class OutgoingEmailMessageListener implements MessageListener {
       LOGGER.warn("SMTP retry window is very short.");
     }
 
+    Integer concurrency = (Integer) props.get(CONCURRENCY);
+    if (concurrency == null) {
+      concurrency = 4;
+    }
+    executor = new KeyedExecutor("OutgoingEmailMessageListener", concurrency, QUEUE_SIZE);
+
+    boolean changed = false;
     Integer _smtpPort = (Integer) props.get(SMTP_PORT);
     boolean validPort = _smtpPort != null && _smtpPort >= 0 && _smtpPort <= 65535;
     if (validPort) {
       if (diff(smtpPort, _smtpPort)) {
         smtpPort = _smtpPort;
+        changed = true;
       }
     } else {
       LOGGER.error("Invalid port set for SMTP");
@@ -355,11 +473,34 @@ public class OutgoingEmailMessageListener implements MessageListener {
     if (!smtpServerEmpty) {
       if (diff(smtpServer, _smtpServer)) {
         smtpServer = _smtpServer;
+        changed = true;
       }
     } else {
       LOGGER.error("No SMTP server set");
     }
 
+    Integer maxConnections = (Integer) props.get(SMTP_MAX_CONNECTIONS);
+    if (maxConnections == null) {
+      maxConnections = concurrency;
+    }
+    Integer maxMessages = (Integer) props.get(SMTP_MAX_MESSAGES);
+    if (maxMessages == null) {
+      maxMessages = 100;
+    }
+    changed = changed || maxConnections != poolConnections || maxMessages != poolMessages;
+    // connections in use by the old pool are closed once their message is sent.
+    boolean valid = validPort && !smtpServerEmpty;
+    if (transportPool != null && (changed || !valid)) {
+      transportPool.close();
+      transportPool = null;
+    }
+    if (transportPool == null && valid) {
+      transportPool = new SmtpTransportPool(smtpServer, smtpPort, maxConnections,
+          maxMessages);
+      poolConnections = maxConnections;
+      poolMessages = maxMessages;
+    }
+
 
     try {
       connection = connFactoryService.getDefaultConnectionFactory().createConnection();
@@ -386,6 +527,19 @@ public class OutgoingEmailMessageListener implements MessageListener {
       } catch (JMSException e) {
       }
     }
+    if (executor != null) {
+      if (!executor.shutdown(SHUTDOWN_TIMEOUT)) {
+        LOGGER.warn("Emails were still being sent after {} ms, {} not sent",
+            SHUTDOWN_TIMEOUT, executor.getQueueLength());
+      }
+      executor = null;
+    }
+    if (transportPool != null) {
+      transportPool.close();
+      LOGGER.info("Sent {} emails over {} SMTP connections",
+          transportPool.getMessagesSent(), transportPool.getConnectionsOpened());
+      transportPool = null;
+    }
   }
 
   private void setError(Node node, String error) throws RepositoryException {
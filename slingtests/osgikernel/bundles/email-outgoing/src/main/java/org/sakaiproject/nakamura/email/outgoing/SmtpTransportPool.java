@@ -0,0 +1,247 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedList;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * A pool of connected SMTP transports, so that a run of messages is sent over a few long
+ * lived connections rather than opening, greeting and closing a connection for each
+ * message. A connection is retired after it has sent a set number of messages, a
+ * connection that has been idle for a while is checked with a NOOP before it is used, and
+ * a connection that fails while sending is discarded.
+ */
+public class SmtpTransportPool {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SmtpTransportPool.class);
+
+  /**
+   * Connections idle for longer than this, in ms, are checked before use.
+   */
+  protected static final long VALIDATE_AFTER_IDLE = 10000L;
+  /**
+   * Connect and read timeout for the SMTP connections, in ms.
+   */
+  private static final String SOCKET_TIMEOUT = "60000";
+
+  private final Session session;
+  private final int maxMessagesPerConnection;
+  private final Semaphore permits;
+  private final LinkedList<PooledTransport> idle = new LinkedList<PooledTransport>();
+  private final AtomicLong messagesSent = new AtomicLong();
+  private final AtomicLong connectionsOpened = new AtomicLong();
+  private final AtomicLong connectionsFailed = new AtomicLong();
+  private volatile boolean closed;
+
+  /**
+   * @param host
+   *          the SMTP server.
+   * @param port
+   *          the SMTP port.
+   * @param maxConnections
+   *          the most connections open at once, senders wait for a free connection.
+   * @param maxMessagesPerConnection
+   *          the number of messages to send over a connection before closing it.
+   */
+  public SmtpTransportPool(String host, int port, int maxConnections,
+      int maxMessagesPerConnection) {
+    Properties props = new Properties();
+    props.setProperty("mail.smtp.host", host);
+    props.setProperty("mail.smtp.port", String.valueOf(port));
+    props.setProperty("mail.smtp.connectiontimeout", SOCKET_TIMEOUT);
+    props.setProperty("mail.smtp.timeout", SOCKET_TIMEOUT);
+    this.session = Session.getInstance(props);
+    this.maxMessagesPerConnection = Math.max(1, maxMessagesPerConnection);
+    this.permits = new Semaphore(Math.max(1, maxConnections), true);
+  }
+
+  /**
+   * Send a message over a pooled connection.
+   *
+   * @param message
+   *          the message to send, to all of its recipients.
+   * @throws MessagingException
+   *           if the message could not be sent, the connection it was sent on is
+   *           discarded.
+   */
+  public void send(MimeMessage message) throws MessagingException {
+    if (closed) {
+      throw new MessagingException("SMTP transport pool is closed");
+    }
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MessagingException("Interrupted waiting for an SMTP connection", e);
+    }
+    PooledTransport transport = null;
+    boolean healthy = false;
+    try {
+      transport = borrow();
+      message.saveChanges();
+      transport.transport.sendMessage(message, message.getAllRecipients());
+      transport.messages++;
+      messagesSent.incrementAndGet();
+      healthy = true;
+    } finally {
+      if (transport != null) {
+        release(transport, healthy);
+      }
+      permits.release();
+    }
+  }
+
+  /**
+   * @return an idle connection that is still usable, or a new connection.
+   * @throws MessagingException
+   */
+  private PooledTransport borrow() throws MessagingException {
+    while (true) {
+      PooledTransport transport;
+      synchronized (idle) {
+        transport = idle.poll();
+      }
+      if (transport == null) {
+        break;
+      }
+      if (System.currentTimeMillis() - transport.lastUsed < VALIDATE_AFTER_IDLE
+          || isConnected(transport)) {
+        return transport;
+      }
+      LOGGER.debug("Discarding stale SMTP connection");
+      close(transport);
+    }
+    Transport transport = session.getTransport("smtp");
+    try {
+      transport.connect();
+    } catch (MessagingException e) {
+      connectionsFailed.incrementAndGet();
+      throw e;
+    }
+    connectionsOpened.incrementAndGet();
+    return new PooledTransport(transport);
+  }
+
+  /**
+   * Return a connection to the pool, or close it if it failed, has sent its share of
+   * messages or the pool is closed.
+   *
+   * @param transport
+   * @param healthy
+   */
+  private void release(PooledTransport transport, boolean healthy) {
+    transport.lastUsed = System.currentTimeMillis();
+    if (healthy && !closed && transport.messages < maxMessagesPerConnection) {
+      synchronized (idle) {
+        // most recently used first, so spare connections go idle and are checked.
+        idle.addFirst(transport);
+      }
+    } else {
+      close(transport);
+    }
+  }
+
+  /**
+   * @param transport
+   * @return true if the server still answers on the connection, this costs a round trip.
+   */
+  private boolean isConnected(PooledTransport transport) {
+    try {
+      return transport.transport.isConnected();
+    } catch (RuntimeException e) {
+      return false;
+    }
+  }
+
+  private void close(PooledTransport transport) {
+    try {
+      transport.transport.close();
+    } catch (MessagingException e) {
+      LOGGER.debug("Failed to close SMTP connection: {}", e.getMessage());
+    }
+  }
+
+  /**
+   * Close the idle connections, connections in use are closed when their message has been
+   * sent.
+   */
+  public void close() {
+    closed = true;
+    synchronized (idle) {
+      for (PooledTransport transport : idle) {
+        close(transport);
+      }
+      idle.clear();
+    }
+  }
+
+  /**
+   * @return the number of messages sent.
+   */
+  public long getMessagesSent() {
+    return messagesSent.get();
+  }
+
+  /**
+   * @return the number of connections opened.
+   */
+  public long getConnectionsOpened() {
+    return connectionsOpened.get();
+  }
+
+  /**
+   * @return the number of attempts to open a connection that failed.
+   */
+  public long getConnectionsFailed() {
+    return connectionsFailed.get();
+  }
+
+  /**
+   * @return the number of connections waiting to be used.
+   */
+  public int getIdleConnections() {
+    synchronized (idle) {
+      return idle.size();
+    }
+  }
+
+  /**
+   * A connected transport and its usage.
+   */
+  private static class PooledTransport {
+    private final Transport transport;
+    private int messages;
+    private long lastUsed;
+
+    PooledTransport(Transport transport) {
+      this.transport = transport;
+      this.lastUsed = System.currentTimeMillis();
+    }
+  }
+}
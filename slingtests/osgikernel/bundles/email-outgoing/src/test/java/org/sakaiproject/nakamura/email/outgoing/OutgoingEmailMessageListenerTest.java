@@ -44,6 +44,7 @@ public class OutgoingEmailMessageListenerTest {
   private OutgoingEmailMessageListener oeml;
   private Session adminSession;
   private Node messageNode;
+  private ComponentContext ctx;
   private static Wiser wiser;
   private static int smtpPort;
 
@@ -60,7 +61,7 @@ public class OutgoingEmailMessageListenerTest {
     props.put("sakai.email.maxRetries", 240);
     props.put("sakai.email.retryIntervalMinutes", 30);
 
-    ComponentContext ctx = createMock(ComponentContext.class);
+    ctx = createMock(ComponentContext.class);
     expect(ctx.getProperties()).andReturn(props).anyTimes();
 
     adminSession = createMock(Session.class);
@@ -130,6 +131,8 @@ public class OutgoingEmailMessageListenerTest {
     replay(message, messageNode);
 
     oeml.onMessage(message);
+    // wait for the message to be sent
+    oeml.deactivate(ctx);
   }
 
   @Test
@@ -156,6 +159,8 @@ public class OutgoingEmailMessageListenerTest {
     replay(message, messageNode, boxName);
 
     oeml.onMessage(message);
+    // wait for the message to be sent
+    oeml.deactivate(ctx);
   }
 
   @Test
@@ -185,6 +190,8 @@ public class OutgoingEmailMessageListenerTest {
     replay(message, messageNode, boxName);
 
     oeml.onMessage(message);
+    // wait for the message to be sent
+    oeml.deactivate(ctx);
   }
 
   @Test
@@ -215,6 +222,8 @@ public class OutgoingEmailMessageListenerTest {
     replay(message, messageNode, boxName);
 
     oeml.onMessage(message);
+    // wait for the message to be sent
+    oeml.deactivate(ctx);
   }
 
   @Test
@@ -256,6 +265,8 @@ public class OutgoingEmailMessageListenerTest {
     replay(message, messageNode, boxName, toProp, fromProp);
 
     oeml.onMessage(message);
+    // wait for the message to be sent
+    oeml.deactivate(ctx);
 
     for (WiserMessage m : wiser.getMessages()) {
       assertEquals("tonobody@example.com", m.getEnvelopeReceiver());
@@ -311,6 +322,8 @@ public class OutgoingEmailMessageListenerTest {
     replay(message, messageNode, boxName, toProp, fromProp);
 
     oeml.onMessage(message);
+    // wait for the message to be sent
+    oeml.deactivate(ctx);
 
     int i = 0;
     for (WiserMessage m : wiser.getMessages()) {
@@ -362,6 +375,8 @@ public class OutgoingEmailMessageListenerTest {
     replay(message, messageNode, boxName, toProp, fromProp, bodyProp);
 
     oeml.onMessage(message);
+    // wait for the message to be sent
+    oeml.deactivate(ctx);
 
     for (WiserMessage m : wiser.getMessages()) {
       assertEquals("tonobody@example.com", m.getEnvelopeReceiver());
@@ -415,6 +430,8 @@ public class OutgoingEmailMessageListenerTest {
     replay(message, messageNode, boxName, toProp, fromProp, subjProp);
 
     oeml.onMessage(message);
+    // wait for the message to be sent
+    oeml.deactivate(ctx);
 
     for (WiserMessage m : wiser.getMessages()) {
       assertEquals("tonobody@example.com", m.getEnvelopeReceiver());
@@ -432,6 +449,8 @@ public class OutgoingEmailMessageListenerTest {
     replay(message);
 
     oeml.onMessage(message);
+    // wait for the message to be sent
+    oeml.deactivate(ctx);
   }
 
   @Test
@@ -446,6 +465,8 @@ public class OutgoingEmailMessageListenerTest {
     replay(message, messageNode);
 
     oeml.onMessage(message);
+    // wait for the message to be sent
+    oeml.deactivate(ctx);
   }
 
   @Test
@@ -522,6 +543,8 @@ public class OutgoingEmailMessageListenerTest {
         ctProp, childNode, nodeType, nodeIterator);
 
     oeml.onMessage(message);
+    // wait for the message to be sent
+    oeml.deactivate(ctx);
 
     for (WiserMessage m : wiser.getMessages()) {
       assertEquals("tonobody@example.com", m.getEnvelopeReceiver());
@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.commons.mail.MultiPartEmail;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.wiser.Wiser;
+
+import java.net.BindException;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+public class SmtpTransportPoolTest {
+  private static final Logger LOGGER = LoggerFactory.getLogger(SmtpTransportPoolTest.class);
+
+  private static Wiser wiser;
+  private static int smtpPort;
+
+  @BeforeClass
+  public static void startWiser() {
+    wiser = new Wiser();
+    smtpPort = 8125;
+    boolean started = false;
+    while (!started) {
+      wiser.setPort(smtpPort);
+      try {
+        wiser.start();
+        started = true;
+      } catch (RuntimeException re) {
+        if (re.getCause() instanceof BindException) {
+          smtpPort++;
+        }
+      }
+    }
+  }
+
+  @AfterClass
+  public static void stopWiser() {
+    wiser.stop();
+  }
+
+  @Before
+  public void setUp() {
+    wiser.getMessages().clear();
+  }
+
+  @Test
+  public void testConnectionsReused() throws Exception {
+    SmtpTransportPool pool = new SmtpTransportPool("localhost", smtpPort, 2, 20);
+    for (int i = 0; i < 50; i++) {
+      pool.send(createMessage(i));
+    }
+    pool.close();
+
+    assertEquals(50, wiser.getMessages().size());
+    assertEquals(50, pool.getMessagesSent());
+    // sent one at a time, so one connection is used until it has sent 20 messages.
+    assertEquals(3, pool.getConnectionsOpened());
+    assertEquals(0, pool.getIdleConnections());
+  }
+
+  @Test
+  public void testConcurrentSenders() throws Exception {
+    final SmtpTransportPool pool = new SmtpTransportPool("localhost", smtpPort, 2, 100);
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 25; i++) {
+              pool.send(createMessage(i));
+            }
+          } catch (Exception e) {
+            LOGGER.error(e.getMessage(), e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    pool.close();
+
+    assertEquals(100, wiser.getMessages().size());
+    assertTrue(pool.getConnectionsOpened() <= 2);
+  }
+
+  @Test
+  public void testConnectFailure() throws Exception {
+    SmtpTransportPool pool = new SmtpTransportPool("localhost", smtpPort + 1000, 1, 10);
+    try {
+      pool.send(createMessage(0));
+      fail("Nothing is listening, the send should fail");
+    } catch (MessagingException e) {
+      // expected
+    }
+    assertEquals(1, pool.getConnectionsFailed());
+    assertEquals(0, pool.getMessagesSent());
+    pool.close();
+  }
+
+  /**
+   * Not a test of correctness, compares sending over a connection per message with
+   * sending over the pool.
+   */
+  @Test
+  public void testThroughput() throws Exception {
+    int n = 200;
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < n; i++) {
+      MultiPartEmail email = createEmail(i);
+      email.send();
+    }
+    long unpooled = System.currentTimeMillis() - start;
+
+    SmtpTransportPool pool = new SmtpTransportPool("localhost", smtpPort, 1, 100);
+    start = System.currentTimeMillis();
+    for (int i = 0; i < n; i++) {
+      pool.send(createMessage(i));
+    }
+    long pooled = System.currentTimeMillis() - start;
+    pool.close();
+
+    assertEquals(2 * n, wiser.getMessages().size());
+    LOGGER.info("Sent {} emails in {} ms with a connection each, {} ms pooled",
+        new Object[] { n, unpooled, pooled });
+  }
+
+  private MultiPartEmail createEmail(int i) throws Exception {
+    MultiPartEmail email = new MultiPartEmail();
+    email.setHostName("localhost");
+    email.setSmtpPort(smtpPort);
+    email.setFrom("fromnobody@example.com");
+    email.addTo("tonobody" + i + "@example.com");
+    email.setSubject("Message " + i);
+    email.setMsg("Message body " + i);
+    return email;
+  }
+
+  private MimeMessage createMessage(int i) throws Exception {
+    MultiPartEmail email = createEmail(i);
+    email.buildMimeMessage();
+    return email.getMimeMessage();
+  }
+}
@@ -29,9 +29,15 @@ import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Dictionary;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jms.Connection;
 import javax.jms.DeliveryMode;
@@ -42,7 +48,13 @@ import javax.jms.Session;
 import javax.jms.Topic;
 
 /**
- * Bridge to send OSGi events onto a JMS topic.
+ * Bridge to send OSGi events onto a JMS topic. Events are queued and sent by a single
+ * sender thread that holds a long lived connection, session and a producer per topic, so
+ * none of the JMS objects are shared between threads. The sender collects up to
+ * bridge.batchSize events, waiting at most bridge.flushInterval ms for a batch to fill,
+ * and sends a batch of more than one event in a single transaction. When the broker is
+ * slow and the queue fills, handleEvent blocks for up to bridge.offerTimeout ms before
+ * dropping the event.
  */
 @Component(label = "%bridge.name", description = "%bridge.description", metatype = true, immediate = true)
 @Service
@@ -61,12 +73,58 @@ public class OsgiJmsBridge implements EventHandler {
   @Property(intValue = Session.AUTO_ACKNOWLEDGE, propertyPrivate = true)
   static final String ACKNOWLEDGE_MODE = "bridge.acknowledgeMode";
 
+  @Property(intValue = 1)
+  static final String BATCH_SIZE = "bridge.batchSize";
+
+  @Property(longValue = 100L)
+  static final String FLUSH_INTERVAL = "bridge.flushInterval";
+
+  @Property(intValue = 10000)
+  static final String QUEUE_SIZE = "bridge.queueSize";
+
+  @Property(longValue = 1000L)
+  static final String OFFER_TIMEOUT = "bridge.offerTimeout";
+
+  /**
+   * Time to wait for the sender to finish when deactivating, in ms.
+   */
+  private static final long SHUTDOWN_TIMEOUT = 10000L;
+
+  /**
+   * Queued to wake the sender when deactivating.
+   */
+  private static final Event STOP = new Event(
+      "org/sakaiproject/nakamura/events/OsgiJmsBridge/STOP", (Dictionary<?, ?>) null);
+
   @Reference
   private ConnectionFactoryService connFactoryService;
 
   private boolean transacted;
   private String connectionClientId;
   private int acknowledgeMode;
+  private int batchSize;
+  private long flushInterval;
+  private long offerTimeout;
+
+  private BlockingQueue<Event> queue;
+  private Thread sender;
+  private volatile boolean running;
+
+  /**
+   * The connection, session and producers, only used by the sender thread.
+   */
+  private Connection connection;
+  private Session session;
+  private final Map<String, MessageProducer> producers = new HashMap<String, MessageProducer>();
+
+  private long activated;
+  private final AtomicLong eventsSent = new AtomicLong();
+  private final AtomicLong eventsFailed = new AtomicLong();
+  private final AtomicLong eventsDropped = new AtomicLong();
+  private final AtomicLong batchesSent = new AtomicLong();
+  private final AtomicLong sends = new AtomicLong();
+  private final AtomicLong totalSendTime = new AtomicLong();
+  private volatile long maxSendTime;
 
   /**
    * Default constructor.
@@ -97,20 +155,53 @@ public class OsgiJmsBridge implements EventHandler {
   protected void activate(ComponentContext ctx) {
     Dictionary props = ctx.getProperties();
 
-    transacted = (Boolean) props.get(SESSION_TRANSACTED);
     acknowledgeMode = (Integer) props.get(ACKNOWLEDGE_MODE);
     connectionClientId = (String) props.get(CONNECTION_CLIENT_ID);
+    batchSize = Math.max(1, (int) getLong(props, BATCH_SIZE, 1));
+    flushInterval = getLong(props, FLUSH_INTERVAL, 100L);
+    offerTimeout = getLong(props, OFFER_TIMEOUT, 1000L);
+    int queueSize = Math.max(batchSize, (int) getLong(props, QUEUE_SIZE, 10000));
+    // a batch is committed as one unit.
+    transacted = (Boolean) props.get(SESSION_TRANSACTED) || batchSize > 1;
+
+    LOGGER.info("Session Transacted: {}, Acknowledge Mode: {}, " + "Client ID: {}, "
+        + "Batch Size: {}, Flush Interval: {}, Queue Size: {}", new Object[] { transacted,
+        acknowledgeMode, connectionClientId, batchSize, flushInterval, queueSize });
 
-    LOGGER.info("Session Transacted: {}, Acknowledge Mode: {}, " + "Client ID: {}",
-        new Object[] { transacted, acknowledgeMode, connectionClientId });
+    queue = new ArrayBlockingQueue<Event>(queueSize);
+    activated = System.currentTimeMillis();
+    running = true;
+    sender = new Thread(new Runnable() {
+      public void run() {
+        sendEvents();
+      }
+    }, "OSGi JMS Bridge");
+    sender.setDaemon(true);
+    sender.start();
   }
 
   /**
-   * Called by the OSGi container to deactivate this component.
+   * Called by the OSGi container to deactivate this component. Events already queued are
+   * sent before the connection is closed.
    * 
    * @param ctx
    */
   protected void deactivate(ComponentContext ctx) {
+    running = false;
+    if (sender != null) {
+      try {
+        // if the queue is full the sender is busy and will see running is false.
+        queue.offer(STOP, offerTimeout, TimeUnit.MILLISECONDS);
+        sender.join(SHUTDOWN_TIMEOUT);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (sender.isAlive()) {
+        LOGGER.warn("JMS bridge sender did not stop within {} ms", SHUTDOWN_TIMEOUT);
+      }
+      sender = null;
+    }
+    LOGGER.info("JMS bridge stopped, {}", getStatistics());
   }
 
   /**
@@ -118,60 +209,287 @@ public class OsgiJmsBridge implements EventHandler {
    * 
    * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
    */
-  @SuppressWarnings("unchecked")
   public void handleEvent(Event event) {
     LOGGER.trace("Receiving event");
-    Connection conn = null;
+    if (!running) {
+      LOGGER.debug("JMS bridge is not active, dropping event {}", event);
+      eventsDropped.incrementAndGet();
+      return;
+    }
+    try {
+      if (!queue.offer(event, offerTimeout, TimeUnit.MILLISECONDS)) {
+        LOGGER.warn("JMS bridge queue full after {} ms, dropping event {}", offerTimeout,
+            event);
+        eventsDropped.incrementAndGet();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      eventsDropped.incrementAndGet();
+    }
+  }
 
-    LOGGER.debug("Processing event {}", event);
-    Session clientSession = null;
+  /**
+   * The sender loop, takes batches of events from the queue and sends them until
+   * deactivated, then sends whatever is left and closes the connection.
+   */
+  private void sendEvents() {
+    List<Event> batch = new ArrayList<Event>(batchSize);
     try {
-      
-      conn = connFactoryService.getDefaultPooledConnectionFactory().createConnection();
-      // conn.setClientID(connectionClientId);
-      // post to JMS
-      // Sessions are not thread safe, so we need to create and destroy a session, for
-      // sending.
-      clientSession = conn.createSession(transacted, acknowledgeMode);
-
-      Topic emailTopic = clientSession.createTopic(event.getTopic());
-      MessageProducer client = clientSession.createProducer(emailTopic);
-      Message msg = clientSession.createMessage();
-      // may need to set a delivery mode eg persistent for certain types of messages.
-      // this should be specified in the OSGi event.
-      msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
-      msg.setJMSType(event.getTopic());
-      for (String name : event.getPropertyNames()) {
-        Object obj = event.getProperty(name);
-        // "Only objectified primitive objects, String, Map and List types are
-        // allowed" as stated by an exception when putting something into the
-        // message that was not of one of these types.
-        if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
-            || obj instanceof Number || obj instanceof Map || obj instanceof String
-            || obj instanceof List) {
-          msg.setObjectProperty(name, obj);
+      while (running) {
+        Event event = queue.take();
+        if (event != STOP) {
+          batch.add(event);
+          fillBatch(batch);
+          send(batch);
         }
       }
+    } catch (InterruptedException e) {
+      LOGGER.debug("JMS bridge sender interrupted");
+    }
+    while (true) {
+      if (!batch.isEmpty()) {
+        send(batch);
+      }
+      if (queue.drainTo(batch, batchSize) == 0) {
+        break;
+      }
+      batch.remove(STOP);
+    }
+    closeSession();
+  }
 
-      client.send(msg);
+  /**
+   * Add events to the batch until it is full or the flush interval has passed.
+   * 
+   * @param batch
+   * @throws InterruptedException
+   */
+  private void fillBatch(List<Event> batch) throws InterruptedException {
+    if (batch.size() >= batchSize) {
+      return;
+    }
+    queue.drainTo(batch, batchSize - batch.size());
+    long deadline = System.currentTimeMillis() + flushInterval;
+    while (batch.size() < batchSize && !batch.remove(STOP)) {
+      long wait = deadline - System.currentTimeMillis();
+      if (wait <= 0) {
+        break;
+      }
+      Event event = queue.poll(wait, TimeUnit.MILLISECONDS);
+      if (event == null || event == STOP) {
+        break;
+      }
+      batch.add(event);
+    }
+  }
+
+  /**
+   * Send a batch of events, committing them together if the session is transacted. If
+   * the send fails the connection is closed, to be opened again for the next batch.
+   * 
+   * @param batch
+   *          the events to send, cleared once sent.
+   */
+  private void send(List<Event> batch) {
+    LOGGER.debug("Sending {} events", batch.size());
+    long start = System.nanoTime();
+    try {
+      Session clientSession = getSession();
+      for (Event event : batch) {
+        MessageProducer client = getProducer(clientSession, event.getTopic());
+        client.send(createMessage(clientSession, event));
+      }
+      if (transacted) {
+        clientSession.commit();
+      }
+      eventsSent.addAndGet(batch.size());
+      batchesSent.incrementAndGet();
     } catch (JMSException e) {
-      LOGGER.error(e.getMessage(), e);
+      failed(batch, e);
+    } catch (RuntimeException e) {
+      // don't let the sender thread die.
+      failed(batch, e);
     } finally {
+      long time = System.nanoTime() - start;
+      sends.incrementAndGet();
+      totalSendTime.addAndGet(time);
+      if (time > maxSendTime) {
+        maxSendTime = time;
+      }
+      batch.clear();
+    }
+  }
+
+  private void failed(List<Event> batch, Exception e) {
+    LOGGER.error(e.getMessage(), e);
+    eventsFailed.addAndGet(batch.size());
+    closeSession();
+  }
+
+  /**
+   * @return the session of the sender, opening a connection if there is none.
+   * @throws JMSException
+   */
+  private Session getSession() throws JMSException {
+    if (session == null) {
+      if (connection == null) {
+        connection = connFactoryService.getDefaultPooledConnectionFactory()
+            .createConnection();
+        // connection.setClientID(connectionClientId);
+      }
+      session = connection.createSession(transacted, acknowledgeMode);
+    }
+    return session;
+  }
+
+  /**
+   * @param clientSession
+   * @param topic
+   * @return the producer for the topic, created on first use.
+   * @throws JMSException
+   */
+  private MessageProducer getProducer(Session clientSession, String topic)
+      throws JMSException {
+    MessageProducer producer = producers.get(topic);
+    if (producer == null) {
+      Topic emailTopic = clientSession.createTopic(topic);
+      producer = clientSession.createProducer(emailTopic);
+      producers.put(topic, producer);
+    }
+    return producer;
+  }
+
+  /**
+   * @param clientSession
+   * @param event
+   * @return a message carrying the topic and properties of the event.
+   * @throws JMSException
+   */
+  private Message createMessage(Session clientSession, Event event) throws JMSException {
+    Message msg = clientSession.createMessage();
+    // may need to set a delivery mode eg persistent for certain types of messages.
+    // this should be specified in the OSGi event.
+    msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
+    msg.setJMSType(event.getTopic());
+    for (String name : event.getPropertyNames()) {
+      Object obj = event.getProperty(name);
+      // "Only objectified primitive objects, String, Map and List types are
+      // allowed" as stated by an exception when putting something into the
+      // message that was not of one of these types.
+      if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
+          || obj instanceof Number || obj instanceof Map || obj instanceof String
+          || obj instanceof List) {
+        msg.setObjectProperty(name, obj);
+      }
+    }
+    return msg;
+  }
+
+  /**
+   * Close the producers, session and connection of the sender.
+   */
+  private void closeSession() {
+    for (MessageProducer producer : producers.values()) {
       try {
-        if (conn != null) {
-          conn.close();
-        }
+        producer.close();
       } catch (Exception e) {
         LOGGER.error(e.getMessage(), e);
       }
+    }
+    producers.clear();
+    try {
+      if (session != null) {
+        session.close();
+      }
+    } catch (Exception e) {
+      LOGGER.error(e.getMessage(), e);
+    }
+    session = null;
+    try {
+      if (connection != null) {
+        connection.close();
+      }
+    } catch (Exception e) {
+      LOGGER.error(e.getMessage(), e);
+    }
+    connection = null;
+  }
+
+  @SuppressWarnings("unchecked")
+  private long getLong(Dictionary props, String name, long defaultValue) {
+    Object value = props.get(name);
+    if (value instanceof Number) {
+      return ((Number) value).longValue();
+    } else if (value != null) {
       try {
-        if (clientSession != null) {
-          clientSession.close();
-        }
-      } catch (Exception e) {
-        LOGGER.error(e.getMessage(), e);
+        return Long.parseLong(String.valueOf(value));
+      } catch (NumberFormatException e) {
+        LOGGER.warn("Invalid value {} for {}, using {}", new Object[] { value, name,
+            defaultValue });
       }
     }
+    return defaultValue;
   }
 
+  /**
+   * @return the number of events sent to JMS.
+   */
+  public long getEventsSent() {
+    return eventsSent.get();
+  }
+
+  /**
+   * @return the number of events that failed to send.
+   */
+  public long getEventsFailed() {
+    return eventsFailed.get();
+  }
+
+  /**
+   * @return the number of events dropped because the queue was full or the bridge was not
+   *         active.
+   */
+  public long getEventsDropped() {
+    return eventsDropped.get();
+  }
+
+  /**
+   * @return the number of events waiting to be sent.
+   */
+  public int getQueueLength() {
+    return queue == null ? 0 : queue.size();
+  }
+
+  /**
+   * @return the average number of events sent per second since activation.
+   */
+  public double getEventsPerSecond() {
+    long elapsed = System.currentTimeMillis() - activated;
+    return elapsed <= 0 ? 0 : eventsSent.get() * 1000.0 / elapsed;
+  }
+
+  /**
+   * @return the average time to send a batch, in ms.
+   */
+  public double getAverageSendTime() {
+    long count = sends.get();
+    return count == 0 ? 0 : totalSendTime.get() / 1000000.0 / count;
+  }
+
+  /**
+   * @return the longest time to send a batch, in ms.
+   */
+  public double getMaxSendTime() {
+    return maxSendTime / 1000000.0;
+  }
+
+  /**
+   * @return a summary of the bridge metrics, for logging.
+   */
+  public String getStatistics() {
+    return String.format("sent %d events in %d batches (%.1f/s), failed %d, dropped %d, "
+        + "queued %d, send time avg %.2f ms max %.2f ms", eventsSent.get(), batchesSent
+        .get(), getEventsPerSecond(), eventsFailed.get(), eventsDropped.get(),
+        getQueueLength(), getAverageSendTime(), getMaxSendTime());
+  }
 }
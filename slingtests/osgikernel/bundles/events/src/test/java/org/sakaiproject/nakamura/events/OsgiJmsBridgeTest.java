@@ -24,8 +24,10 @@ import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import org.apache.activemq.command.ActiveMQMessage;
+import org.easymock.IAnswer;
 import org.junit.Before;
 import org.junit.Test;
 import org.osgi.service.component.ComponentContext;
@@ -37,6 +39,8 @@ import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
@@ -179,8 +183,10 @@ public class OsgiJmsBridgeTest {
     // construct and send the message
     Dictionary<Object, Object> props = buildEventProperties();
     sendMessage(props);
+    bridge.deactivate(ctx);
     // should log the message, but not fail
     verify(ctx, connFactory);
+    assertEquals(1, bridge.getEventsFailed());
   }
 
 
@@ -213,6 +219,86 @@ public class OsgiJmsBridgeTest {
     verify(ctx, conn, connFactory);
   }
 
+  /**
+   * Test that a batch of events is sent in one transaction, using one producer per topic.
+   *
+   * @throws JMSException
+   */
+  @Test
+  public void testBatchedSend() throws JMSException {
+    compProps.put(OsgiJmsBridge.BATCH_SIZE, 3);
+    compProps.put(OsgiJmsBridge.FLUSH_INTERVAL, 60000L);
+    setUpConnection(true);
+
+    sess = createMock(Session.class);
+    expect(conn.createSession(true, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
+    topic = createMock(Topic.class);
+    expect(sess.createTopic("test-event")).andReturn(topic);
+    prod = createMock(MessageProducer.class);
+    expect(sess.createProducer(topic)).andReturn(prod);
+    Topic otherTopic = createMock(Topic.class);
+    expect(sess.createTopic("other-event")).andReturn(otherTopic);
+    MessageProducer otherProd = createMock(MessageProducer.class);
+    expect(sess.createProducer(otherTopic)).andReturn(otherProd);
+    expect(sess.createMessage()).andReturn(new ActiveMQMessage()).times(3);
+    prod.send((Message) anyObject());
+    expectLastCall().times(2);
+    otherProd.send((Message) anyObject());
+    // all three events are committed together
+    sess.commit();
+    prod.close();
+    otherProd.close();
+    sess.close();
+
+    replay(ctx, connFactory, connFactoryService, conn, sess, topic, prod, otherTopic,
+        otherProd);
+
+    sendMessage(buildEventProperties());
+    bridge.handleEvent(new Event("other-event", buildEventProperties()));
+    bridge.handleEvent(new Event("test-event", buildEventProperties()));
+    bridge.deactivate(ctx);
+
+    verify(ctx, connFactory, conn, sess, topic, prod, otherTopic, otherProd);
+    assertEquals(3, bridge.getEventsSent());
+  }
+
+  /**
+   * Test that events are dropped when the broker is slow and the queue is full.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testQueueFullDropsEvent() throws Exception {
+    compProps.put(OsgiJmsBridge.QUEUE_SIZE, 1);
+    compProps.put(OsgiJmsBridge.OFFER_TIMEOUT, 0L);
+    final CountDownLatch sending = new CountDownLatch(1);
+    final CountDownLatch brokerReady = new CountDownLatch(1);
+    expect(connFactory.createConnection()).andAnswer(new IAnswer<Connection>() {
+      public Connection answer() throws Throwable {
+        sending.countDown();
+        brokerReady.await();
+        throw new JMSException("broker unavailable");
+      }
+    }).times(2);
+
+    replay(ctx, connFactoryService, connFactory);
+
+    sendMessage(buildEventProperties());
+    // the first event is being sent, the second waits in the queue.
+    assertTrue(sending.await(10, TimeUnit.SECONDS));
+    bridge.handleEvent(new Event("test-event", buildEventProperties()));
+    bridge.handleEvent(new Event("test-event", buildEventProperties()));
+    assertEquals(1, bridge.getEventsDropped());
+    assertEquals(1, bridge.getQueueLength());
+
+    brokerReady.countDown();
+    bridge.deactivate(ctx);
+
+    verify(ctx, connFactory);
+    assertEquals(0, bridge.getEventsSent());
+    assertEquals(2, bridge.getEventsFailed());
+  }
+
   /**
    * Constructs the bridge, activates it, constructs a message with 2 properties
    * and calls the bridge to handle it.
@@ -310,7 +396,9 @@ public class OsgiJmsBridgeTest {
 
       // expect the message to be sent
       prod.send(message);
-      
+
+      // the producer and session are kept until the bridge is deactivated
+      prod.close();
 
       sess.close();
     } catch (JMSException e) {
@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.files;
+
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.sakaiproject.nakamura.api.site.SiteService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.security.AccessControlManager;
+import javax.jcr.security.Privilege;
+
+/**
+ * Holds what is looked up while writing a run of files for one request, so that a site
+ * used by many files is only resolved once. It is bound to a session and must not be
+ * shared between requests or threads.
+ */
+public class FileRenderContext {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(FileRenderContext.class);
+
+  private static final SiteSummary NOT_A_SITE = new SiteSummary(null, null);
+
+  private final Session session;
+  private final SiteService siteService;
+  private final Map<String, SiteSummary> sites = new HashMap<String, SiteSummary>();
+  private AccessControlManager accessControlManager;
+
+  /**
+   * @param session
+   *          The session of the request, used for every lookup.
+   * @param siteService
+   *          The site service to describe sites with.
+   */
+  public FileRenderContext(Session session, SiteService siteService) {
+    this.session = session;
+    this.siteService = siteService;
+  }
+
+  public Session getSession() {
+    return session;
+  }
+
+  public SiteService getSiteService() {
+    return siteService;
+  }
+
+  /**
+   * Get the names of the privileges the session has on a path, with aggregate privileges
+   * such as jcr:all expanded into the privileges they contain.
+   *
+   * @param path
+   * @return The privilege names, empty if the path can't be read.
+   */
+  Set<String> getPrivilegeNames(String path) {
+    try {
+      if (accessControlManager == null) {
+        accessControlManager = AccessControlUtil.getAccessControlManager(session);
+      }
+      Set<String> names = new HashSet<String>();
+      for (Privilege privilege : accessControlManager.getPrivileges(path)) {
+        addPrivilege(privilege, names);
+      }
+      return names;
+    } catch (RepositoryException e) {
+      LOGGER.debug("Unable to get the privileges on {}: {}", path, e.getMessage());
+      return Collections.emptySet();
+    }
+  }
+
+  private void addPrivilege(Privilege privilege, Set<String> names) {
+    if (names.add(privilege.getName()) && privilege.isAggregate()) {
+      for (Privilege p : privilege.getDeclaredAggregatePrivileges()) {
+        addPrivilege(p, names);
+      }
+    }
+  }
+
+  /**
+   * Resolve a site by its identifier, once per request.
+   *
+   * @param uuid
+   *          The identifier of the site node.
+   * @return The site, or null if the identifier is not a site this session can see.
+   */
+  SiteSummary getSite(String uuid) {
+    SiteSummary site = sites.get(uuid);
+    if (site == null) {
+      site = NOT_A_SITE;
+      try {
+        // getNodeByIdentifier fails if the session can't read the site.
+        Node siteNode = session.getNodeByIdentifier(uuid);
+        if (siteService.isSite(siteNode)) {
+          site = new SiteSummary(siteNode, String.valueOf(siteService
+              .getMemberCount(siteNode)));
+        }
+      } catch (ItemNotFoundException e) {
+        LOGGER.debug("File is used in site {} which can't be found", uuid);
+      } catch (RepositoryException e) {
+        LOGGER.info("Unable to look up site {}: {}", uuid, e.getMessage());
+      }
+      sites.put(uuid, site);
+    }
+    return (site == NOT_A_SITE) ? null : site;
+  }
+
+  /**
+   * A site and its member count.
+   */
+  static class SiteSummary {
+    final Node node;
+    final String memberCount;
+
+    SiteSummary(Node node, String memberCount) {
+      this.node = node;
+      this.memberCount = memberCount;
+    }
+  }
+}
@@ -45,10 +45,9 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.AccessControlException;
-import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.List;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 import javax.jcr.AccessDeniedException;
 import javax.jcr.ItemNotFoundException;
@@ -59,7 +58,6 @@ import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.Value;
 import javax.jcr.ValueFactory;
-import javax.jcr.security.AccessControlManager;
 import javax.jcr.security.Privilege;
 
 // TODO: Javadoc
@@ -346,11 +344,27 @@ public class FileUtils {
    */
   public static void writeFileNode(Node node, Session session, JSONWriter write,
       SiteService siteService) throws JSONException, RepositoryException {
+    writeFileNode(node, write, new FileRenderContext(session, siteService));
+  }
+
+  /**
+   * Writes all the properties of a sakai/file node, sharing site lookups with the other
+   * files written with the same context.
+   * 
+   * @param node
+   * @param write
+   * @param context
+   *          The context for the request, see {@link FileRenderContext}.
+   * @throws JSONException
+   * @throws RepositoryException
+   */
+  public static void writeFileNode(Node node, JSONWriter write, FileRenderContext context)
+      throws JSONException, RepositoryException {
     write.object();
     // dump all the properties.
     ExtendedJSONWriter.writeNodeContentsToWriter(write, node);
     // The permissions for this session.
-    writePermissions(node, session, write);
+    writePermissions(node, context, write);
 
     // The download path to this file.
     write.key("path");
@@ -371,7 +385,7 @@ public class FileUtils {
     }
 
     // Get all the sites where this file is referenced.
-    getSites(node, write, siteService);
+    getSites(node, write, context);
 
     write.endObject();
   }
@@ -387,6 +401,23 @@ public class FileUtils {
    */
   public static void writeLinkNode(Node node, Session session, JSONWriter write,
       SiteService siteService) throws JSONException, RepositoryException {
+    writeLinkNode(node, write, new FileRenderContext(session, siteService));
+  }
+
+  /**
+   * Writes all the properties for a linked node, sharing site lookups with the other
+   * files written with the same context.
+   * 
+   * @param node
+   * @param write
+   * @param context
+   *          The context for the request, see {@link FileRenderContext}.
+   * @throws JSONException
+   * @throws RepositoryException
+   */
+  public static void writeLinkNode(Node node, JSONWriter write, FileRenderContext context)
+      throws JSONException, RepositoryException {
+    Session session = context.getSession();
     write.object();
     // Write all the properties.
     ExtendedJSONWriter.writeNodeContentsToWriter(write, node);
@@ -397,7 +428,7 @@ public class FileUtils {
     write.key("path");
     write.value(node.getPath());
     // permissions
-    writePermissions(node, session, write);
+    writePermissions(node, context, write);
 
     // Write the actual file.
     if (node.hasProperty("jcr:reference")) {
@@ -405,7 +436,7 @@ public class FileUtils {
       write.key("file");
       try {
         Node fileNode = session.getNodeByIdentifier(uuid);
-        writeFileNode(fileNode, session, write, siteService);
+        writeFileNode(fileNode, write, context);
       } catch (ItemNotFoundException e) {
         write.value(false);
       }
@@ -415,56 +446,38 @@ public class FileUtils {
   }
 
   /**
-   * Gives the permissions for this user.
+   * Gives the permissions for this user, from one lookup of the privileges on the node.
    * 
    * @param node
-   * @param session
+   * @param context
    * @param write
    * @throws RepositoryException
    * @throws JSONException
    */
-  private static void writePermissions(Node node, Session session, JSONWriter write)
-      throws RepositoryException, JSONException {
-    String path = node.getPath();
+  private static void writePermissions(Node node, FileRenderContext context,
+      JSONWriter write) throws RepositoryException, JSONException {
+    Set<String> privileges = context.getPrivilegeNames(node.getPath());
     write.key("permissions");
     write.object();
     write.key("set_property");
-    write.value(hasPermission(session, path, "set_property"));
+    write.value(privileges.contains(Privilege.JCR_MODIFY_PROPERTIES));
     write.key("read");
-    write.value(hasPermission(session, path, "read"));
+    write.value(privileges.contains(Privilege.JCR_READ));
     write.key("remove");
-    write.value(hasPermission(session, path, "remove"));
+    write.value(privileges.contains(Privilege.JCR_REMOVE_NODE));
     write.endObject();
   }
 
-  /**
-   * Checks if the current user has a permission on a path.
-   * 
-   * @param session
-   * @param path
-   * @param permission
-   * @return
-   */
-  private static boolean hasPermission(Session session, String path, String permission) {
-    try {
-      session.checkPermission(path, permission);
-      return true;
-    } catch (AccessControlException e) {
-      return false;
-    } catch (RepositoryException e) {
-      return false;
-    }
-  }
-
   /**
    * Gets all the sites where this file is used and parses the info for it.
    * 
    * @param node
    * @param write
+   * @param context
    * @throws RepositoryException
    * @throws JSONException
    */
-  private static void getSites(Node node, JSONWriter write, SiteService siteService)
+  private static void getSites(Node node, JSONWriter write, FileRenderContext context)
       throws RepositoryException, JSONException {
 
     write.key("usedIn");
@@ -473,32 +486,18 @@ public class FileUtils {
     write.array();
 
     // sakai:sites contains uuid's of sites where the file is being referenced.
-    Value[] sites = JcrUtils.getValues(node, "sakai:sites");
-    Session session = node.getSession();
+    Set<String> uuids = new LinkedHashSet<String>();
+    for (Value v : JcrUtils.getValues(node, "sakai:sites")) {
+      uuids.add(v.getString());
+    }
 
     int total = 0;
-    try {
-      List<String> handledSites = new ArrayList<String>();
-      AccessControlManager acm = AccessControlUtil.getAccessControlManager(session);
-      Privilege read = acm.privilegeFromName(Privilege.JCR_READ);
-      Privilege[] privs = new Privilege[] { read };
-      for (Value v : sites) {
-        String path = v.getString();
-        if (!handledSites.contains(path)) {
-          handledSites.add(path);
-          Node siteNode = (Node) session.getNodeByIdentifier(v.getString());
-
-          boolean hasAccess = acm.hasPrivileges(path, privs);
-          if (siteService.isSite(siteNode) && hasAccess) {
-            writeSiteInfo(siteNode, write, siteService);
-            total++;
-          }
-        }
+    for (String uuid : uuids) {
+      FileRenderContext.SiteSummary site = context.getSite(uuid);
+      if (site != null) {
+        writeSiteInfo(site, write);
+        total++;
       }
-    } catch (Exception e) {
-      // We ignore every exception it has when looking up sites.
-      // it is dirty ..
-      log.info("Catched exception when looking up used sites for a file.");
     }
     write.endArray();
     write.key("total");
@@ -509,19 +508,19 @@ public class FileUtils {
   /**
    * Parses the info for a site.
    * 
-   * @param siteNode
+   * @param site
    * @param write
    * @throws JSONException
    * @throws RepositoryException
    */
-  private static void writeSiteInfo(Node siteNode, JSONWriter write,
-      SiteService siteService) throws JSONException, RepositoryException {
+  private static void writeSiteInfo(FileRenderContext.SiteSummary site, JSONWriter write)
+      throws JSONException, RepositoryException {
     write.object();
     write.key("member-count");
-    write.value(String.valueOf(siteService.getMemberCount(siteNode)));
+    write.value(site.memberCount);
     write.key("path");
-    write.value(siteNode.getPath());
-    ExtendedJSONWriter.writeNodeContentsToWriter(write, siteNode);
+    write.value(site.node.getPath());
+    ExtendedJSONWriter.writeNodeContentsToWriter(write, site.node);
     write.endObject();
   }
 
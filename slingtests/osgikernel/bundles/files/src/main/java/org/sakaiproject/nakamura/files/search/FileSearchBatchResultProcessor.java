@@ -29,6 +29,7 @@ import org.apache.jackrabbit.JcrConstants;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.sakaiproject.nakamura.api.files.FileRenderContext;
 import org.sakaiproject.nakamura.api.files.FileUtils;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
 import org.sakaiproject.nakamura.api.search.AbstractSearchResultSet;
@@ -45,7 +46,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
@@ -107,40 +110,7 @@ public class FileSearchBatchResultProcessor implements SearchBatchResultProcesso
       iterator.skip(start);
 
       Session session = request.getResourceResolver().adaptTo(Session.class);
-
-      long i = start;
-      List<Row> savedRows = new ArrayList<Row>();
-      List<String> processedResults = new ArrayList<String>();
-      // Loop over the rows
-      while (i < (start + nitems) && iterator.hasNext()) {
-        // Grab the next row and node.
-        Row row = iterator.nextRow();
-        Node node = RowUtils.getNode(row, session);
-        String path = node.getPath();
-
-        // We only check nt:file's no nt:resource (those are just children anyway)
-        if (node.getProperty(JcrConstants.JCR_PRIMARYTYPE).getString().equals(
-            JcrConstants.NT_RESOURCE)) {
-          node = node.getParent();
-        }
-
-        // We're not interested in OS X's dummy/hidden files.
-        String name = node.getName();
-        if (name.startsWith(".")) {
-          continue;
-        }
-
-        // If by some magic we already processed this path, we ignore it.
-        if (processedResults.contains(path)) {
-          continue;
-        }
-
-        // Remember this node.
-        processedResults.add(path);
-        savedRows.add(row);
-        i++;
-      }
-
+      List<Row> savedRows = getUniqueRows(iterator, session, nitems);
       RowIterator newIterator = new RowIteratorImpl(savedRows);
 
       // Return the result set.
@@ -151,6 +121,48 @@ public class FileSearchBatchResultProcessor implements SearchBatchResultProcesso
     }
   }
 
+  /**
+   * Take up to nitems rows from the iterator, leaving out hidden files and files that were
+   * already found, for example through a hit on their jcr:content node.
+   * 
+   * @param iterator
+   *          The rows, already moved to the start of the page.
+   * @param session
+   * @param nitems
+   *          The number of rows to return.
+   * @return The rows, in the order they were found.
+   * @throws RepositoryException
+   */
+  protected List<Row> getUniqueRows(RowIterator iterator, Session session, int nitems)
+      throws RepositoryException {
+    List<Row> savedRows = new ArrayList<Row>();
+    Set<String> processedResults = new HashSet<String>();
+    // Loop over the rows
+    while (savedRows.size() < nitems && iterator.hasNext()) {
+      // Grab the next row and node.
+      Row row = iterator.nextRow();
+      Node node = RowUtils.getNode(row, session);
+
+      // We only check nt:file's no nt:resource (those are just children anyway)
+      if (node.getProperty(JcrConstants.JCR_PRIMARYTYPE).getString().equals(
+          JcrConstants.NT_RESOURCE)) {
+        node = node.getParent();
+      }
+
+      // We're not interested in OS X's dummy/hidden files.
+      String name = node.getName();
+      if (name.startsWith(".")) {
+        continue;
+      }
+
+      // If by some magic we already processed this file, we ignore it.
+      if (processedResults.add(node.getPath())) {
+        savedRows.add(row);
+      }
+    }
+    return savedRows;
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -162,6 +174,7 @@ public class FileSearchBatchResultProcessor implements SearchBatchResultProcesso
       Aggregator aggregator, RowIterator iterator) throws JSONException,
       RepositoryException {
     Session session = request.getResourceResolver().adaptTo(Session.class);
+    FileRenderContext context = new FileRenderContext(session, siteService);
 
     while (iterator.hasNext()) {
       Row row = iterator.nextRow();
@@ -170,7 +183,7 @@ public class FileSearchBatchResultProcessor implements SearchBatchResultProcesso
         aggregator.add(node);
       }
 
-      handleNode(node, session, write);
+      handleNode(node, context, write);
     }
   }
 
@@ -195,10 +208,11 @@ public class FileSearchBatchResultProcessor implements SearchBatchResultProcesso
       JSONException {
 
     Session session = request.getResourceResolver().adaptTo(Session.class);
+    FileRenderContext context = new FileRenderContext(session, siteService);
     iterator.skip(start);
     for (long i = start; i < end && iterator.hasNext(); i++) {
       Node node = iterator.nextNode();
-      handleNode(node, session, write);
+      handleNode(node, context, write);
     }
   }
 
@@ -207,14 +221,14 @@ public class FileSearchBatchResultProcessor implements SearchBatchResultProcesso
    * 
    * @param node
    *          The node
-   * @param session
-   *          The {@link Session} to use to grab more information.
+   * @param context
+   *          The {@link FileRenderContext} for this request.
    * @param write
    *          The {@link JSONWriter} to use.
    * @throws JSONException
    * @throws RepositoryException
    */
-  protected void handleNode(Node node, Session session, JSONWriter write)
+  protected void handleNode(Node node, FileRenderContext context, JSONWriter write)
       throws JSONException, RepositoryException {
     String type = "";
     if (node.hasProperty(SLING_RESOURCE_TYPE_PROPERTY)) {
@@ -222,9 +236,9 @@ public class FileSearchBatchResultProcessor implements SearchBatchResultProcesso
     }
 
     if (FilesConstants.RT_SAKAI_LINK.equals(type)) {
-      FileUtils.writeLinkNode(node, session, write, siteService);
+      FileUtils.writeLinkNode(node, write, context);
     } else {
-      FileUtils.writeFileNode(node, session, write, siteService);
+      FileUtils.writeFileNode(node, write, context);
     }
   }
 }
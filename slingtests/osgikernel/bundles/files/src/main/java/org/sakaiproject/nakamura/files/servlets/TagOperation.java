@@ -30,11 +30,11 @@ import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.servlets.HtmlResponse;
-import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.servlets.post.AbstractSlingPostOperation;
 import org.apache.sling.servlets.post.Modification;
 import org.apache.sling.servlets.post.SlingPostOperation;
 import org.sakaiproject.nakamura.api.files.FileUtils;
+import org.sakaiproject.nakamura.api.jcr.AdminSessionService;
 import org.sakaiproject.nakamura.util.JcrUtils;
 
 import java.util.List;
@@ -56,7 +56,7 @@ import javax.servlet.http.HttpServletResponse;
 public class TagOperation extends AbstractSlingPostOperation {
 
   @Reference
-  protected SlingRepository slingRepository;
+  protected AdminSessionService adminSessionService;
 
   /**
    * 
@@ -117,7 +117,7 @@ public class TagOperation extends AbstractSlingPostOperation {
       if (!hasUuid(node, uuid)) {
         Session adminSession = null;
         try {
-          adminSession = slingRepository.loginAdministrative(null);
+          adminSession = adminSessionService.borrowSession();
 
           // Grab the node via the adminSession
           String path = node.getPath();
@@ -144,7 +144,7 @@ public class TagOperation extends AbstractSlingPostOperation {
           }
 
         } finally {
-          adminSession.logout();
+          adminSessionService.returnSession(adminSession);
         }
       }
 
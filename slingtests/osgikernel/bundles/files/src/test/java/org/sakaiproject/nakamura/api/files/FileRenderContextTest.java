@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.files;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.site.SiteService;
+
+import java.util.Set;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.Session;
+import javax.jcr.security.AccessControlManager;
+import javax.jcr.security.Privilege;
+
+/**
+ *
+ */
+public class FileRenderContextTest {
+
+  @Test
+  public void testSiteResolvedOnce() throws Exception {
+    Session session = createMock(Session.class);
+    SiteService siteService = createMock(SiteService.class);
+    Node siteNode = createMock(Node.class);
+    Node folderNode = createMock(Node.class);
+    expect(session.getNodeByIdentifier("site")).andReturn(siteNode).once();
+    expect(session.getNodeByIdentifier("folder")).andReturn(folderNode).once();
+    expect(session.getNodeByIdentifier("gone")).andThrow(new ItemNotFoundException())
+        .once();
+    expect(siteService.isSite(siteNode)).andReturn(true).once();
+    expect(siteService.isSite(folderNode)).andReturn(false).once();
+    expect(siteService.getMemberCount(siteNode)).andReturn(3).once();
+    replay(session, siteService, siteNode, folderNode);
+
+    FileRenderContext context = new FileRenderContext(session, siteService);
+    for (int i = 0; i < 5; i++) {
+      FileRenderContext.SiteSummary site = context.getSite("site");
+      assertSame(siteNode, site.node);
+      assertEquals("3", site.memberCount);
+      assertNull(context.getSite("folder"));
+      assertNull(context.getSite("gone"));
+    }
+    verify(session, siteService);
+  }
+
+  @Test
+  public void testAggregatePrivileges() throws Exception {
+    Privilege read = createPrivilege(Privilege.JCR_READ);
+    Privilege modify = createPrivilege(Privilege.JCR_MODIFY_PROPERTIES);
+    Privilege write = createMock(Privilege.class);
+    expect(write.getName()).andReturn(Privilege.JCR_WRITE).anyTimes();
+    expect(write.isAggregate()).andReturn(true).anyTimes();
+    expect(write.getDeclaredAggregatePrivileges()).andReturn(new Privilege[] { modify })
+        .anyTimes();
+
+    AccessControlManager acm = createMock(AccessControlManager.class);
+    expect(acm.getPrivileges("/files/a")).andReturn(new Privilege[] { read, write });
+    expect(acm.getPrivileges("/files/b")).andThrow(new PathNotFoundException());
+    Session session = createMock(Session.class);
+    expect(session.getAccessControlManager()).andReturn(acm).once();
+    replay(read, modify, write, acm, session);
+
+    FileRenderContext context = new FileRenderContext(session, null);
+    Set<String> names = context.getPrivilegeNames("/files/a");
+    assertTrue(names.contains(Privilege.JCR_READ));
+    assertTrue(names.contains(Privilege.JCR_MODIFY_PROPERTIES));
+    assertFalse(names.contains(Privilege.JCR_REMOVE_NODE));
+    assertTrue(context.getPrivilegeNames("/files/b").isEmpty());
+    verify(acm, session);
+  }
+
+  private Privilege createPrivilege(String name) {
+    Privilege privilege = createMock(Privilege.class);
+    expect(privilege.getName()).andReturn(name).anyTimes();
+    expect(privilege.isAggregate()).andReturn(false).anyTimes();
+    return privilege;
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.search;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.isA;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.commons.iterator.PropertyIteratorAdapter;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.search.RowIteratorImpl;
+import org.sakaiproject.nakamura.api.site.SiteService;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.nodetype.PropertyDefinition;
+import javax.jcr.query.Row;
+import javax.jcr.security.AccessControlManager;
+import javax.jcr.security.Privilege;
+
+/**
+ *
+ */
+public class FileSearchBatchResultProcessorTest {
+
+  private Session session = createMock(Session.class);
+
+  @Test
+  public void testUniqueRows() throws Exception {
+    Node a = createNode("/files/a", "a", JcrConstants.NT_FILE, null);
+    Node aContent = createNode("/files/a/jcr:content", "jcr:content",
+        JcrConstants.NT_RESOURCE, a);
+    Node hidden = createNode("/files/.DS_Store", ".DS_Store", JcrConstants.NT_FILE, null);
+    Node b = createNode("/files/b", "b", JcrConstants.NT_FILE, null);
+    Node c = createNode("/files/c", "c", JcrConstants.NT_FILE, null);
+
+    List<Row> rows = new ArrayList<Row>();
+    Row rowA = createRow(a);
+    rows.add(rowA);
+    rows.add(createRow(aContent));
+    rows.add(createRow(hidden));
+    Row rowB = createRow(b);
+    rows.add(rowB);
+    rows.add(createRow(a));
+    rows.add(createRow(c));
+    replay(session);
+
+    FileSearchBatchResultProcessor processor = new FileSearchBatchResultProcessor();
+    List<Row> unique = processor.getUniqueRows(new RowIteratorImpl(rows), session, 2);
+    assertEquals(2, unique.size());
+    assertSame(rowA, unique.get(0));
+    assertSame(rowB, unique.get(1));
+
+    unique = processor.getUniqueRows(new RowIteratorImpl(rows), session, 25);
+    assertEquals(3, unique.size());
+  }
+
+  @Test
+  public void testRepeatedHitsOnFewFiles() throws Exception {
+    Node a = createNode("/files/a", "a", JcrConstants.NT_FILE, null);
+    Node aContent = createNode("/files/a/jcr:content", "jcr:content",
+        JcrConstants.NT_RESOURCE, a);
+    Node b = createNode("/files/b", "b", JcrConstants.NT_FILE, null);
+    Node bContent = createNode("/files/b/jcr:content", "jcr:content",
+        JcrConstants.NT_RESOURCE, b);
+
+    // each file is hit many times, directly and through its content.
+    List<Row> rows = new ArrayList<Row>();
+    Row first = createRow(aContent);
+    rows.add(first);
+    for (int i = 0; i < 10; i++) {
+      rows.add(createRow(a));
+      rows.add(createRow(aContent));
+    }
+    Row second = createRow(b);
+    rows.add(second);
+    for (int i = 0; i < 10; i++) {
+      rows.add(createRow(bContent));
+      rows.add(createRow(a));
+    }
+    replay(session);
+
+    FileSearchBatchResultProcessor processor = new FileSearchBatchResultProcessor();
+    List<Row> unique = processor.getUniqueRows(new RowIteratorImpl(rows), session, 25);
+    assertEquals(2, unique.size());
+    assertSame(first, unique.get(0));
+    assertSame(second, unique.get(1));
+  }
+
+  @Test
+  public void testWriteNodesLooksUpOncePerFileAndSite() throws Exception {
+    AccessControlManager accessControlManager = createMock(AccessControlManager.class);
+    Privilege read = createMock(Privilege.class);
+    expect(read.getName()).andReturn(Privilege.JCR_READ).anyTimes();
+    expect(read.isAggregate()).andReturn(false).anyTimes();
+    expect(session.getAccessControlManager()).andReturn(accessControlManager).anyTimes();
+    expect(session.itemExists(isA(String.class))).andReturn(false).anyTimes();
+
+    // both files are used in the same site.
+    Node site = createNiceMock(Node.class);
+    expect(site.getPath()).andReturn("/sites/physics").anyTimes();
+    expect(site.getName()).andReturn("physics").anyTimes();
+    expect(site.getProperties()).andReturn(new PropertyIteratorAdapter(
+        new ArrayList<Property>().iterator())).anyTimes();
+    expect(session.getNodeByIdentifier("site-uuid")).andReturn(site).once();
+    SiteService siteService = createMock(SiteService.class);
+    expect(siteService.isSite(site)).andReturn(true).once();
+    expect(siteService.getMemberCount(site)).andReturn(3).once();
+
+    List<Row> rows = new ArrayList<Row>();
+    for (String name : new String[] { "a", "b" }) {
+      Node file = createFileNode("/files/" + name, name, "site-uuid");
+      expect(accessControlManager.getPrivileges("/files/" + name)).andReturn(
+          new Privilege[] { read }).once();
+      rows.add(createRow(file));
+    }
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    ResourceResolver resolver = createMock(ResourceResolver.class);
+    expect(request.getResourceResolver()).andReturn(resolver);
+    expect(resolver.adaptTo(Session.class)).andReturn(session);
+    replay(session, accessControlManager, read, site, siteService, request, resolver);
+
+    StringWriter out = new StringWriter();
+    JSONWriter write = new JSONWriter(out);
+    write.array();
+    FileSearchBatchResultProcessor processor = new FileSearchBatchResultProcessor(
+        siteService);
+    processor.writeNodes(request, write, null, new RowIteratorImpl(rows));
+    write.endArray();
+
+    JSONArray files = new JSONArray(out.toString());
+    assertEquals(2, files.length());
+    for (int i = 0; i < files.length(); i++) {
+      JSONObject file = files.getJSONObject(i);
+      JSONObject permissions = file.getJSONObject("permissions");
+      assertTrue(permissions.getBoolean("read"));
+      assertFalse(permissions.getBoolean("set_property"));
+      assertFalse(permissions.getBoolean("remove"));
+      JSONObject usedIn = file.getJSONObject("usedIn");
+      assertEquals(1, usedIn.getInt("total"));
+      assertEquals("3", usedIn.getJSONArray("sites").getJSONObject(0).getString(
+          "member-count"));
+    }
+    verify(accessControlManager, siteService, session);
+  }
+
+  /**
+   * @return a file node that is used in one site.
+   */
+  private Node createFileNode(String path, String name, String siteUuid) throws Exception {
+    Node node = createNiceMock(Node.class);
+    expect(node.getPath()).andReturn(path).anyTimes();
+    expect(node.getName()).andReturn(name).anyTimes();
+    expect(node.getSession()).andReturn(session).anyTimes();
+    expect(node.getProperties()).andReturn(new PropertyIteratorAdapter(
+        new ArrayList<Property>().iterator())).anyTimes();
+    Value site = createMock(Value.class);
+    expect(site.getString()).andReturn(siteUuid).anyTimes();
+    PropertyDefinition definition = createMock(PropertyDefinition.class);
+    expect(definition.isMultiple()).andReturn(true).anyTimes();
+    Property sites = createMock(Property.class);
+    expect(sites.getDefinition()).andReturn(definition).anyTimes();
+    expect(sites.getValues()).andReturn(new Value[] { site }).anyTimes();
+    expect(node.hasProperty("sakai:sites")).andReturn(true).anyTimes();
+    expect(node.getProperty("sakai:sites")).andReturn(sites).anyTimes();
+    expect(session.getItem(path)).andReturn(node).anyTimes();
+    replay(node, site, definition, sites);
+    return node;
+  }
+
+  private Node createNode(String path, String name, String type, Node parent)
+      throws Exception {
+    Node node = createMock(Node.class);
+    Property primaryType = createMock(Property.class);
+    expect(primaryType.getString()).andReturn(type).anyTimes();
+    expect(node.getProperty(JcrConstants.JCR_PRIMARYTYPE)).andReturn(primaryType)
+        .anyTimes();
+    expect(node.getPath()).andReturn(path).anyTimes();
+    expect(node.getName()).andReturn(name).anyTimes();
+    expect(node.getParent()).andReturn(parent).anyTimes();
+    expect(session.getItem(path)).andReturn(node).anyTimes();
+    replay(node, primaryType);
+    return node;
+  }
+
+  private Row createRow(Node node) throws Exception {
+    Value path = createMock(Value.class);
+    expect(path.getString()).andReturn(node.getPath()).anyTimes();
+    Row row = createMock(Row.class);
+    expect(row.getValue("jcr:path")).andReturn(path).anyTimes();
+    replay(path, row);
+    return row;
+  }
+}
@@ -32,16 +32,27 @@ import org.slf4j.LoggerFactory;
 
 import java.awt.Dimension;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.jcr.Node;
 import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
@@ -52,6 +63,16 @@ public class CropItProcessor {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CropItProcessor.class);
 
+  /**
+   * Crop and scale an image on the calling thread.
+   * 
+   * @see #crop(Session, int, int, int, int, List, String, String, ExecutorService)
+   */
+  public static String[] crop(Session session, int x, int y, int width, int height,
+      List<Dimension> dimensions, String img, String save) throws ImageException {
+    return crop(session, x, y, width, height, dimensions, img, save, null);
+  }
+
   /**
    * 
    * @param session
@@ -73,14 +94,20 @@ public class CropItProcessor {
    *          The location of the image to scale.
    * @param save
    *          The location where to save all the scaled instances.
+   * @param executor
+   *          Scales and encodes the dimensions in parallel, if null they are done one
+   *          after another on the calling thread. The session is only used on the calling
+   *          thread.
    * @return returns an array with all the location of the scaled instances.
    * @throws ImageException
    */
   public static String[] crop(Session session, int x, int y, int width, int height,
-      List<Dimension> dimensions, String img, String save) throws ImageException {
+      List<Dimension> dimensions, String img, String save, ExecutorService executor)
+      throws ImageException {
 
     InputStream in = null;
-    ByteArrayOutputStream out = null;
+    ImageInputStream iis = null;
+    List<Future<ByteArrayOutputStream>> renders = new ArrayList<Future<ByteArrayOutputStream>>();
 
     // The array that will contain all the cropped and resized images.
     String[] arrFiles = new String[dimensions.size()];
@@ -110,59 +137,64 @@ public class CropItProcessor {
         // Read the image
         in = imgNode.getProperty(JCRConstants.JCR_DATA).getBinary().getStream();
         try {
-
-          // NOTE: I'd prefer to use the InputStream, but I don't see a way to get the
-          // ImageInfo _and_ the BufferedImage.
-          // I've tried using a BufferedInputStream which allows you to reset, but for BMP
-          // this doesn't help.
-          byte[] bytes = IOUtils.getInputStreamBytes(in);
-          ImageInfo info = Sanselan.getImageInfo(bytes);
-          BufferedImage imgBuf = getBufferedImage(bytes, info);
-
-          // Set the correct width & height.
-          width = (width <= 0) ? info.getWidth() : width;
-          height = (height <= 0) ? info.getHeight() : height;
-
-          if (x + width > info.getWidth()) {
-            width = info.getWidth() - x;
+          iis = ImageIO.createImageInputStream(in);
+          CroppedImage cropped = null;
+          ImageReader reader = getJpegReader(iis);
+          if (reader != null) {
+            cropped = readJpeg(reader, iis, x, y, width, height, dimensions);
+          } else {
+            // NOTE: I'd prefer to use the InputStream, but I don't see a way to get the
+            // ImageInfo _and_ the BufferedImage.
+            // I've tried using a BufferedInputStream which allows you to reset, but for
+            // BMP this doesn't help.
+            byte[] bytes = (iis == null) ? IOUtils.getInputStreamBytes(in)
+                : getImageInputStreamBytes(iis);
+            cropped = readImage(bytes, x, y, width, height);
           }
-          if (y + height > info.getHeight()) {
-            height = info.getHeight() - y;
-          }
-
-          // Cut the desired piece out of the image.
-          BufferedImage subImage = imgBuf.getSubimage(x, y, width, height);
 
-          // Loop the dimensions and create and save an image for each
-          // one.
+          // Scale and encode each dimension, in parallel if we can.
           for (int i = 0; i < dimensions.size(); i++) {
-
             Dimension d = dimensions.get(i);
 
             // get dimension size
-            int iWidth = d.width;
-            int iHeight = d.height;
-
-            iWidth = (iWidth <= 0) ? info.getWidth() : iWidth;
-            iHeight = (iHeight <= 0) ? info.getHeight() : iHeight;
-
-            // Create the image.
-            out = scaleAndWriteToStream(iWidth, iHeight, subImage, imgName, info);
-
-            String sPath = save + iWidth + "x" + iHeight + "_" + imgName;
-            // Save new image to JCR.
-            saveImageToJCR(sPath, info.getMimeType(), out, imgNode, session);
+            int iWidth = (d.width <= 0) ? cropped.sourceWidth : d.width;
+            int iHeight = (d.height <= 0) ? cropped.sourceHeight : d.height;
+            arrFiles[i] = save + iWidth + "x" + iHeight + "_" + imgName;
+
+            Callable<ByteArrayOutputStream> render = new ScaleTask(iWidth, iHeight,
+                cropped.image, cropped.format);
+            if (executor == null) {
+              FutureTask<ByteArrayOutputStream> task = new FutureTask<ByteArrayOutputStream>(
+                  render);
+              task.run();
+              renders.add(task);
+            } else {
+              renders.add(executor.submit(render));
+            }
+          }
 
-            out.close();
-            arrFiles[i] = sPath;
+          // Save the images to JCR as they are ready, in order, and save once.
+          for (int i = 0; i < renders.size(); i++) {
+            ByteArrayOutputStream out = renders.get(i).get();
+            writeImageToJCR(arrFiles[i], cropped.mimeType, out, session);
+          }
+          if (session.hasPendingChanges()) {
+            session.save();
           }
         } catch (ImageReadException e) {
           // This is not a valid image.
           LOGGER.error("Can't parse this format.", e);
           throw new ImageException(406, "Can't parse this format.");
-        } catch (ImageWriteException e) {
-          LOGGER.error("Can't crop this image.", e);
-          throw new ImageException(406, "Can't crop this image.");
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof ImageWriteException) {
+            LOGGER.error("Can't crop this image.", e.getCause());
+            throw new ImageException(406, "Can't crop this image.");
+          }
+          LOGGER.error("Unable to scale image.", e.getCause());
+          throw new ImageException(500, "Unable to scale image.");
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new ImageException(500, "Interrupted while scaling image.");
         }
       } else {
         throw new ImageException(400, "No image file found.");
@@ -177,25 +209,151 @@ public class CropItProcessor {
       LOGGER.error("Unable to read image in order to crop it.", e);
       throw new ImageException(500, "Unable to read image in order to crop it.");
     } finally {
+      // stop any renders that are no longer wanted.
+      for (Future<ByteArrayOutputStream> render : renders) {
+        render.cancel(true);
+      }
       // close the streams
-      if (in != null) {
+      if (iis != null) {
         try {
-          in.close();
+          iis.close();
         } catch (IOException e) {
-          LOGGER.debug("Exception closing inputstream.");
+          LOGGER.debug("Exception closing image inputstream.");
         }
       }
-      if (out != null) {
+      if (in != null) {
         try {
-          out.close();
+          in.close();
         } catch (IOException e) {
-          LOGGER.debug("Exception closing outputstream.");
+          LOGGER.debug("Exception closing inputstream.");
         }
       }
     }
     return arrFiles;
   }
 
+  /**
+   * @param iis
+   *          the image stream, may be null.
+   * @return a reader for the stream if it holds a JPEG, otherwise null.
+   */
+  private static ImageReader getJpegReader(ImageInputStream iis) {
+    if (iis == null) {
+      return null;
+    }
+    Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+    while (readers.hasNext()) {
+      ImageReader reader = readers.next();
+      try {
+        if ("jpeg".equalsIgnoreCase(reader.getFormatName())) {
+          return reader;
+        }
+      } catch (IOException e) {
+        LOGGER.debug("Unable to get the format of an image reader.");
+      }
+      reader.dispose();
+    }
+    return null;
+  }
+
+  /**
+   * Decode only the part of a JPEG that is being cut out, skipping rows and columns when
+   * the largest dimension is much smaller than the piece cut out, so that large photos are
+   * never decoded at full size.
+   */
+  private static CroppedImage readJpeg(ImageReader reader, ImageInputStream iis, int x,
+      int y, int width, int height, List<Dimension> dimensions) throws IOException {
+    try {
+      reader.setInput(iis, true, true);
+      int sourceWidth = reader.getWidth(0);
+      int sourceHeight = reader.getHeight(0);
+      Rectangle region = getRegion(x, y, width, height, sourceWidth, sourceHeight);
+
+      int maxWidth = 0;
+      int maxHeight = 0;
+      for (Dimension d : dimensions) {
+        maxWidth = Math.max(maxWidth, (d.width <= 0) ? sourceWidth : d.width);
+        maxHeight = Math.max(maxHeight, (d.height <= 0) ? sourceHeight : d.height);
+      }
+
+      ImageReadParam param = reader.getDefaultReadParam();
+      param.setSourceRegion(region);
+      int subsampling = getSubsampling(region.width, region.height, maxWidth, maxHeight);
+      if (subsampling > 1) {
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+      }
+      BufferedImage image = reader.read(0, param);
+      return new CroppedImage(image, sourceWidth, sourceHeight, "image/jpeg",
+          ImageFormat.IMAGE_FORMAT_JPEG);
+    } finally {
+      reader.dispose();
+    }
+  }
+
+  /**
+   * Decode a whole image with Sanselan, for the formats that can not be decoded a piece
+   * at a time.
+   */
+  private static CroppedImage readImage(byte[] bytes, int x, int y, int width, int height)
+      throws ImageReadException, IOException, ImageException {
+    ImageInfo info = Sanselan.getImageInfo(bytes);
+    BufferedImage imgBuf = getBufferedImage(bytes, info);
+    Rectangle region = getRegion(x, y, width, height, info.getWidth(), info.getHeight());
+
+    // Cut the desired piece out of the image.
+    BufferedImage subImage = imgBuf.getSubimage(region.x, region.y, region.width,
+        region.height);
+    return new CroppedImage(subImage, info.getWidth(), info.getHeight(), info
+        .getMimeType(), info.getFormat());
+  }
+
+  /**
+   * @return the piece to cut out, a width or height <=0 means all of it, and the piece is
+   *         clipped to the image.
+   */
+  private static Rectangle getRegion(int x, int y, int width, int height, int imageWidth,
+      int imageHeight) {
+    // Set the correct width & height.
+    width = (width <= 0) ? imageWidth : width;
+    height = (height <= 0) ? imageHeight : height;
+
+    if (x + width > imageWidth) {
+      width = imageWidth - x;
+    }
+    if (y + height > imageHeight) {
+      height = imageHeight - y;
+    }
+    return new Rectangle(x, y, width, height);
+  }
+
+  /**
+   * @return how many pixels can be skipped in each direction when decoding a piece of an
+   *         image that will be scaled down to at most the target size. At least twice the
+   *         target size is kept so the scaling still has enough detail to smooth over.
+   */
+  protected static int getSubsampling(int width, int height, int targetWidth,
+      int targetHeight) {
+    if (targetWidth <= 0 || targetHeight <= 0) {
+      return 1;
+    }
+    return Math.max(1, Math.min(width / (2 * targetWidth), height / (2 * targetHeight)));
+  }
+
+  /**
+   * @return the rest of the bytes in an image stream, from the start.
+   * @throws IOException
+   */
+  private static byte[] getImageInputStreamBytes(ImageInputStream iis) throws IOException {
+    iis.seek(0);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int n;
+    while ((n = iis.read(buffer)) > 0) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
   /**
    * @param bytes
    * @param info
@@ -233,15 +391,38 @@ public class CropItProcessor {
    */
   public static void saveImageToJCR(String path, String mimetype,
       ByteArrayOutputStream out, Node baseNode, Session session) throws ImageException {
+    writeImageToJCR(path, mimetype, out, session);
+    try {
+      if (session.hasPendingChanges()) {
+        session.save();
+      }
+    } catch (RepositoryException e) {
+      LOGGER.warn("Repository exception: " + e.getMessage());
+      throw new ImageException(500, "Unable to save image to JCR.");
+    }
+  }
 
-    // Save image into the jcr
-    ByteArrayInputStream bais = null;
+  /**
+   * Write a stream of an image to the JCR, without saving the session.
+   * 
+   * @param path
+   *          The JCR path to write the image to.
+   * @param mimetype
+   *          The Mime type of the node that will be written.
+   * @param out
+   *          The stream you wish to write.
+   * @throws ImageException
+   */
+  private static void writeImageToJCR(String path, String mimetype,
+      ByteArrayOutputStream out, Session session) throws ImageException {
+    InputStream data = null;
     try {
       path = PathUtils.normalizePath(path);
       Node node = JcrUtils.deepGetOrCreateNode(session, path, "nt:file");
 
-      // convert stream to inputstream
-      bais = new ByteArrayInputStream(out.toByteArray());
+      // read the image straight out of the buffer it was written to.
+      data = (out instanceof ImageBuffer) ? ((ImageBuffer) out).getInputStream()
+          : new ByteArrayInputStream(out.toByteArray());
       Node contentNode = null;
       if (node.hasNode(JCRConstants.JCR_CONTENT)) {
         contentNode = node.getNode(JCRConstants.JCR_CONTENT);
@@ -249,20 +430,16 @@ public class CropItProcessor {
         contentNode = node.addNode(JCRConstants.JCR_CONTENT, JCRConstants.NT_RESOURCE);
       }
       ValueFactory vf = session.getValueFactory();
-      contentNode.setProperty(JCRConstants.JCR_DATA, vf.createBinary(bais));
+      contentNode.setProperty(JCRConstants.JCR_DATA, vf.createBinary(data));
       contentNode.setProperty(JCRConstants.JCR_MIMETYPE, mimetype);
       contentNode.setProperty(JCRConstants.JCR_LASTMODIFIED, Calendar.getInstance());
-
-      if (session.hasPendingChanges()) {
-        session.save();
-      }
     } catch (RepositoryException e) {
       LOGGER.warn("Repository exception: " + e.getMessage());
       throw new ImageException(500, "Unable to save image to JCR.");
     } finally {
-      if (bais != null) {
+      if (data != null) {
         try {
-          bais.close();
+          data.close();
         } catch (IOException e) {
           LOGGER.warn("Unable to close inputstream.");
         }
@@ -293,22 +470,36 @@ public class CropItProcessor {
   public static ByteArrayOutputStream scaleAndWriteToStream(int width, int height,
       BufferedImage img, String imgName, ImageInfo info) throws IOException,
       ImageWriteException {
+    return scaleAndWriteToStream(width, height, img, info.getFormat());
+  }
+
+  /**
+   * Scale an image and encode it in the given format.
+   * 
+   * @see #scaleAndWriteToStream(int, int, BufferedImage, String, ImageInfo)
+   */
+  protected static ByteArrayOutputStream scaleAndWriteToStream(int width, int height,
+      BufferedImage img, ImageFormat format) throws IOException, ImageWriteException {
     ByteArrayOutputStream out = null;
     try {
       // Get a scaled image.
       BufferedImage imgScaled = getScaledInstance(img, width, height);
 
       // Convert image to a stream
-      out = new ByteArrayOutputStream();
+      out = new ImageBuffer();
 
       // Write to stream.
-      if (info.getFormat() == ImageFormat.IMAGE_FORMAT_JPEG) {
+      if (format == ImageFormat.IMAGE_FORMAT_JPEG) {
         ImageIO.write(imgScaled, "jpg", out);
       } else {
-        Sanselan.writeImage(imgScaled, out, info.getFormat(), null);
+        Sanselan.writeImage(imgScaled, out, format, null);
       }
+    } catch (ImageWriteException e) {
+      throw e;
+    } catch (IOException e) {
+      throw e;
     } catch (Exception e) {
-      LOGGER.error("foo", e);
+      LOGGER.error("Unable to scale image.", e);
     }
     finally {
       if (out != null) {
@@ -351,6 +542,12 @@ public class CropItProcessor {
     // until the target size is reached
     int w = img.getWidth();
     int h = img.getHeight();
+    // images with a custom layout can't be created directly.
+    int type = img.getType();
+    if (type == BufferedImage.TYPE_CUSTOM) {
+      type = img.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+          : BufferedImage.TYPE_INT_RGB;
+    }
 
     while (w > targetWidth || h > targetHeight) {
       // Bit shifting by one is faster than dividing by 2.
@@ -365,7 +562,7 @@ public class CropItProcessor {
         h = targetHeight;
       }
 
-      BufferedImage tmp = new BufferedImage(w, h, img.getType());
+      BufferedImage tmp = new BufferedImage(w, h, type);
       Graphics2D g2 = tmp.createGraphics();
       g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
           RenderingHints.VALUE_INTERPOLATION_BILINEAR);
@@ -381,4 +578,55 @@ public class CropItProcessor {
 
     return ret;
   }
+
+  /**
+   * The piece of an image that was cut out, and what is needed to encode it again.
+   */
+  private static class CroppedImage {
+    private final BufferedImage image;
+    private final int sourceWidth;
+    private final int sourceHeight;
+    private final String mimeType;
+    private final ImageFormat format;
+
+    CroppedImage(BufferedImage image, int sourceWidth, int sourceHeight, String mimeType,
+        ImageFormat format) {
+      this.image = image;
+      this.sourceWidth = sourceWidth;
+      this.sourceHeight = sourceHeight;
+      this.mimeType = mimeType;
+      this.format = format;
+    }
+  }
+
+  /**
+   * Scales and encodes one dimension. The source image is only read, so several of these
+   * can share it.
+   */
+  private static class ScaleTask implements Callable<ByteArrayOutputStream> {
+    private final int width;
+    private final int height;
+    private final BufferedImage image;
+    private final ImageFormat format;
+
+    ScaleTask(int width, int height, BufferedImage image, ImageFormat format) {
+      this.width = width;
+      this.height = height;
+      this.image = image;
+      this.format = format;
+    }
+
+    public ByteArrayOutputStream call() throws IOException, ImageWriteException {
+      return scaleAndWriteToStream(width, height, image, format);
+    }
+  }
+
+  /**
+   * An output stream whose contents can be read back without copying them.
+   */
+  private static class ImageBuffer extends ByteArrayOutputStream {
+    InputStream getInputStream() {
+      return new ByteArrayInputStream(buf, 0, count);
+    }
+  }
 }
@@ -18,6 +18,7 @@
 package org.sakaiproject.nakamura.image;
 
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.isA;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
@@ -26,6 +27,9 @@ import org.apache.sanselan.ImageInfo;
 import org.apache.sanselan.ImageReadException;
 import org.apache.sanselan.ImageWriteException;
 import org.apache.sanselan.Sanselan;
+import org.apache.sanselan.util.IOUtils;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
 import org.junit.Before;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.jcr.JCRConstants;
@@ -39,6 +43,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.imageio.ImageIO;
 import javax.jcr.Binary;
@@ -46,6 +52,7 @@ import javax.jcr.Node;
 import javax.jcr.Property;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.ValueFactory;
 import javax.jcr.ValueFormatException;
 
 /**
@@ -156,4 +163,75 @@ public class CropItProcessorTest extends AbstractEasyMockTest {
     assertEquals(scaledImage.getHeight(), 50);
   }
 
+  @Test
+  public void testGetSubsampling() {
+    // twice the target is kept, in the direction that has the least to spare.
+    assertEquals(15, CropItProcessor.getSubsampling(4000, 3000, 100, 100));
+    assertEquals(5, CropItProcessor.getSubsampling(1000, 1000, 100, 50));
+    assertEquals(1, CropItProcessor.getSubsampling(150, 150, 100, 100));
+    assertEquals(1, CropItProcessor.getSubsampling(50, 50, 100, 100));
+    assertEquals(1, CropItProcessor.getSubsampling(4000, 3000, 0, 100));
+  }
+
+  @Test
+  public void testCropWithExecutor() throws Exception {
+    Dimension small = new Dimension();
+    small.setSize(20, 30);
+    dimensions.add(small);
+
+    expect(node.getName()).andReturn("people.png");
+    expect(node.isNodeType("nt:file")).andReturn(true);
+    Node contentNode = createMock(Node.class);
+    expect(node.getNode(JCRConstants.JCR_CONTENT)).andReturn(contentNode);
+    Property data = createMock(Property.class);
+    expect(contentNode.getProperty(JCRConstants.JCR_DATA)).andReturn(data);
+    Binary bin = createMock(Binary.class);
+    expect(data.getBinary()).andReturn(bin);
+    expect(bin.getStream()).andReturn(getClass().getResourceAsStream("people.png"));
+
+    final List<byte[]> written = new ArrayList<byte[]>();
+    ValueFactory valueFactory = createMock(ValueFactory.class);
+    expect(session.getValueFactory()).andReturn(valueFactory).anyTimes();
+    expect(valueFactory.createBinary(isA(InputStream.class))).andAnswer(
+        new IAnswer<Binary>() {
+          public Binary answer() throws Throwable {
+            written.add(IOUtils.getInputStreamBytes((InputStream) EasyMock
+                .getCurrentArguments()[0]));
+            return null;
+          }
+        }).times(2);
+    for (String size : new String[] { "50x50", "20x30" }) {
+      String path = "/save/in/here/" + size + "_people.png";
+      Node file = createMock(Node.class);
+      Node fileContent = createNiceMock(Node.class);
+      expect(session.itemExists(path)).andReturn(true);
+      expect(session.getItem(path)).andReturn(file);
+      expect(file.hasNode(JCRConstants.JCR_CONTENT)).andReturn(true);
+      expect(file.getNode(JCRConstants.JCR_CONTENT)).andReturn(fileContent);
+    }
+    expect(session.hasPendingChanges()).andReturn(true);
+    session.save();
+    replay();
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      String[] files = CropItProcessor.crop(session, x, y, width, height, dimensions, img,
+          save, executor);
+      assertEquals(2, files.length);
+      assertEquals("/save/in/here/50x50_people.png", files[0]);
+      assertEquals("/save/in/here/20x30_people.png", files[1]);
+    } finally {
+      executor.shutdown();
+    }
+    // scaled on the pool, but written in the order asked for.
+    assertEquals(2, written.size());
+    BufferedImage first = ImageIO.read(new ByteArrayInputStream(written.get(0)));
+    assertEquals(50, first.getWidth());
+    assertEquals(50, first.getHeight());
+    BufferedImage second = ImageIO.read(new ByteArrayInputStream(written.get(1)));
+    assertEquals(20, second.getWidth());
+    assertEquals(30, second.getHeight());
+    verify();
+  }
+
 }
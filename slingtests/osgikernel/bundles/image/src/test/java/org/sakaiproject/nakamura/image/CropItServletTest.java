@@ -17,20 +17,26 @@
  */
 package org.sakaiproject.nakamura.image;
 
+import static org.easymock.EasyMock.capture;
 import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.isA;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
 import org.apache.sanselan.util.IOUtils;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
+import org.easymock.Capture;
 import org.easymock.EasyMock;
 import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.jcr.AdminSessionService;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 import org.sakaiproject.nakamura.util.StringUtils;
 
@@ -40,12 +46,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.util.Calendar;
+import java.util.Hashtable;
 
 import javax.jcr.Binary;
 import javax.jcr.Node;
 import javax.jcr.Property;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
 import javax.jcr.ValueFactory;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
@@ -85,6 +93,7 @@ public class CropItServletTest extends AbstractEasyMockTest {
     addStringRequestParameter(request, "width", "70");
     addStringRequestParameter(request, "height", "70");
     addStringRequestParameter(request, "dimensions", StringUtils.join(dimensions, 0, ';'));
+    expect(request.getRequestParameter("async")).andReturn(null);
     expect(request.getRemoteUser()).andReturn("johndoe");
 
     // Session stuff
@@ -139,11 +148,10 @@ public class CropItServletTest extends AbstractEasyMockTest {
       expect(session.itemExists("/my/breadcrumbs/" + s + "_people.png")).andReturn(true);
       expect(session.getItem("/my/breadcrumbs/" + s + "_people.png")).andReturn(
           breadCrumbNode);
-
-      expect(session.hasPendingChanges()).andReturn(true);
-      session.save();
-
     }
+    // all the sizes are saved at once.
+    expect(session.hasPendingChanges()).andReturn(true);
+    session.save();
     expect(session.itemExists("/my/people.png")).andReturn(true);
     expect(session.getItem("/my/people.png")).andReturn(imgNode);
     expect(session.itemExists("/my/breadcrumbs")).andReturn(true);
@@ -182,6 +190,149 @@ public class CropItServletTest extends AbstractEasyMockTest {
     servlet.doPost(request, response);
   }
 
+  @Test
+  public void testNotLoggedIn() throws IOException, ServletException {
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    SlingHttpServletResponse response = createMock(SlingHttpServletResponse.class);
+
+    expect(request.getRemoteUser()).andReturn(null);
+    response.sendError(HttpServletResponse.SC_UNAUTHORIZED,
+        "Anonymous user cannot crop images.");
+    replay();
+    servlet.doPost(request, response);
+    verify();
+  }
+
+  @Test
+  public void testAsyncCrop() throws Exception {
+    ComponentContext context = createMock(ComponentContext.class);
+    expect(context.getProperties()).andReturn(new Hashtable<String, Object>()).anyTimes();
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    SlingHttpServletResponse response = createMock(SlingHttpServletResponse.class);
+    addStringRequestParameter(request, "img", "/my/people.png");
+    addStringRequestParameter(request, "save", "/my/breadcrumbs");
+    addStringRequestParameter(request, "x", "10");
+    addStringRequestParameter(request, "y", "10");
+    addStringRequestParameter(request, "width", "70");
+    addStringRequestParameter(request, "height", "70");
+    addStringRequestParameter(request, "dimensions", "16x16");
+    addStringRequestParameter(request, "async", "true");
+    expect(request.getRemoteUser()).andReturn("johndoe");
+    ResourceResolver resolver = createMock(ResourceResolver.class);
+    expect(request.getResourceResolver()).andReturn(resolver);
+    expect(resolver.adaptTo(Session.class)).andReturn(createMock(Session.class));
+
+    // the job runs with a session of its own, for the same user.
+    AdminSessionService adminSessionService = createMock(AdminSessionService.class);
+    Session adminSession = createMock(Session.class);
+    Session jobSession = createMock(Session.class);
+    expect(adminSessionService.borrowSession()).andReturn(adminSession);
+    Capture<SimpleCredentials> credentials = new Capture<SimpleCredentials>();
+    expect(adminSession.impersonate(capture(credentials))).andReturn(jobSession);
+    adminSessionService.returnSession(adminSession);
+
+    Node imgNode = createMock(Node.class);
+    expect(jobSession.getItem("/my/people.png")).andReturn(imgNode);
+    expect(imgNode.getName()).andReturn("people.png");
+    expect(imgNode.isNodeType("nt:file")).andReturn(true);
+    Node imgContentNode = createMock(Node.class);
+    expect(imgNode.getNode("jcr:content")).andReturn(imgContentNode);
+    Property imgContentData = createMock(Property.class);
+    expect(imgContentNode.getProperty("jcr:data")).andReturn(imgContentData);
+    Binary bin = createMock(Binary.class);
+    expect(imgContentData.getBinary()).andReturn(bin);
+    expect(bin.getStream()).andReturn(
+        getClass().getClassLoader().getResourceAsStream("people.png"));
+    ValueFactory valueFactory = createMock(ValueFactory.class);
+    expect(jobSession.getValueFactory()).andReturn(valueFactory);
+    expect(valueFactory.createBinary(isA(InputStream.class))).andReturn(bin);
+    Node breadCrumbNode = createMock(Node.class);
+    Node breadCrumbContentNode = createNiceMock(Node.class);
+    expect(jobSession.itemExists("/my/breadcrumbs/16x16_people.png")).andReturn(true);
+    expect(jobSession.getItem("/my/breadcrumbs/16x16_people.png")).andReturn(
+        breadCrumbNode);
+    expect(breadCrumbNode.hasNode("jcr:content")).andReturn(true);
+    expect(breadCrumbNode.getNode("jcr:content")).andReturn(breadCrumbContentNode);
+    expect(jobSession.hasPendingChanges()).andReturn(true);
+    jobSession.save();
+    jobSession.logout();
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrintWriter write = new PrintWriter(baos);
+    response.setStatus(HttpServletResponse.SC_ACCEPTED);
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    expect(response.getWriter()).andReturn(write);
+    replay();
+
+    servlet.adminSessionService = adminSessionService;
+    servlet.activate(context);
+    try {
+      servlet.doPost(request, response);
+      write.flush();
+      assertEquals("johndoe", credentials.getValue().getUserID());
+      String job = new JSONObject(baos.toString("UTF-8")).getString("job");
+
+      JSONObject status = getJob(job, "johndoe");
+      for (int i = 0; i < 100 && !"done".equals(status.getString("status")); i++) {
+        assertFalse("failed".equals(status.getString("status")));
+        Thread.sleep(50);
+        status = getJob(job, "johndoe");
+      }
+      assertEquals("done", status.getString("status"));
+      JSONArray files = status.getJSONArray("files");
+      assertEquals(1, files.length());
+      assertEquals("/my/breadcrumbs/16x16_people.png", files.getString(0));
+
+      // only the user who started a job can follow it.
+      SlingHttpServletRequest other = EasyMock.createMock(SlingHttpServletRequest.class);
+      SlingHttpServletResponse notFound = EasyMock
+          .createMock(SlingHttpServletResponse.class);
+      RequestParameter jobParam = EasyMock.createMock(RequestParameter.class);
+      expect(other.getRequestParameter("job")).andReturn(jobParam);
+      expect(jobParam.getString()).andReturn(job);
+      expect(other.getRemoteUser()).andReturn("jane");
+      notFound.sendError(HttpServletResponse.SC_NOT_FOUND, "No such job.");
+      EasyMock.replay(other, notFound, jobParam);
+      servlet.doGet(other, notFound);
+      EasyMock.verify(other, notFound);
+    } finally {
+      servlet.deactivate(context);
+    }
+    verify();
+  }
+
+  /**
+   * @return the state of a job, as the given user sees it.
+   */
+  private JSONObject getJob(String job, String user) throws Exception {
+    SlingHttpServletRequest request = EasyMock.createMock(SlingHttpServletRequest.class);
+    SlingHttpServletResponse response = EasyMock
+        .createNiceMock(SlingHttpServletResponse.class);
+    RequestParameter jobParam = EasyMock.createMock(RequestParameter.class);
+    expect(request.getRequestParameter("job")).andReturn(jobParam);
+    expect(jobParam.getString()).andReturn(job);
+    expect(request.getRemoteUser()).andReturn(user);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrintWriter write = new PrintWriter(baos);
+    expect(response.getWriter()).andReturn(write);
+    EasyMock.replay(request, response, jobParam);
+    servlet.doGet(request, response);
+    write.flush();
+    return new JSONObject(baos.toString("UTF-8"));
+  }
+
+  @Test
+  public void testUnknownJob() throws IOException, ServletException {
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    SlingHttpServletResponse response = createMock(SlingHttpServletResponse.class);
+
+    addStringRequestParameter(request, "job", "foo");
+    response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such job.");
+    replay();
+    servlet.doGet(request, response);
+  }
+
   @Test
   public void testMissingParameters() throws IOException, ServletException {
     SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.sakaiproject.nakamura.api.jcr;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Lends administrative sessions from a bounded pool, so that code that needs to work as
+ * admin for a moment does not pay for a new session, and its item state cache, each time.
+ * A borrowed session belongs to the borrowing thread until it is returned. A second borrow
+ * on the same thread, while the first session is still out, gets a different session: it
+ * does not see the outer session's unsaved changes, and saving or refreshing it does not
+ * commit or discard them. Nested sessions must be returned before the sessions they were
+ * borrowed inside. Callers must return the session in a finally block and must not log it
+ * out:
+ *
+ * <pre>
+ * Session adminSession = adminSessionService.borrowSession();
+ * try {
+ *   ...
+ * } finally {
+ *   adminSessionService.returnSession(adminSession);
+ * }
+ * </pre>
+ *
+ * Unsaved changes are discarded when a session is returned. A session that is held for too
+ * long is reported as leaked, with the stack of the code that borrowed it, and its place in
+ * the pool is given up.
+ */
+public interface AdminSessionService {
+
+  /**
+   * Borrow an administrative session, waiting for one to become free if the pool is at
+   * its limit. A nested borrow does not wait, if the pool is full it gets a session that
+   * is logged out when it is returned.
+   *
+   * @return a live administrative session, confined to the calling thread.
+   * @throws RepositoryException
+   *           if the login fails or no session is free in time.
+   */
+  Session borrowSession() throws RepositoryException;
+
+  /**
+   * Return a session borrowed by the calling thread, the most recently borrowed first.
+   *
+   * @param session
+   *          the session, null is ignored so this can be called when the borrow failed.
+   */
+  void returnSession(Session session);
+
+  /**
+   * @return the number of sessions currently borrowed.
+   */
+  int getActiveSessions();
+
+  /**
+   * @return the number of sessions waiting in the pool.
+   */
+  int getIdleSessions();
+
+  /**
+   * @return the number of sessions created by logging in.
+   */
+  long getSessionsCreated();
+
+  /**
+   * @return the number of times a session has been borrowed, including nested borrows.
+   */
+  long getBorrowCount();
+
+  /**
+   * @return the number of sessions that were not returned in time.
+   */
+  long getLeakedSessions();
+}
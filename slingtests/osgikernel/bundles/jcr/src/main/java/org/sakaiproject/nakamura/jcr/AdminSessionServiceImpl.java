@@ -0,0 +1,362 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.sakaiproject.nakamura.jcr;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.jcr.AdminSessionService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Dictionary;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * A bounded pool of administrative sessions. Sessions are lent to one thread at a time,
+ * refreshed when they come back so the next borrower does not see stale state or unsaved
+ * changes, and logged out once they reach admin.session.maxAge so their caches do not
+ * grow without limit. A nested borrow on a thread gets a session of its own, taken from
+ * the pool if there is a free place and otherwise logged in for that borrow alone.
+ * Borrowed sessions are checked at most once a second for leaks.
+ */
+@Component(label = "AdminSessionService", description = "Pool of administrative sessions", immediate = true, metatype = true)
+@Service
+public class AdminSessionServiceImpl implements AdminSessionService {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(AdminSessionServiceImpl.class);
+
+  @Property(intValue = 20)
+  static final String MAX_SESSIONS = "admin.session.maxSessions";
+
+  @Property(longValue = 30000L)
+  static final String BORROW_TIMEOUT = "admin.session.borrowTimeout";
+
+  @Property(longValue = 300000L)
+  static final String LEAK_TIMEOUT = "admin.session.leakTimeout";
+
+  @Property(longValue = 3600000L)
+  static final String MAX_AGE = "admin.session.maxAge";
+
+  /**
+   * The shortest time between two checks for leaked sessions, in ms.
+   */
+  private static final long LEAK_CHECK_INTERVAL = 1000L;
+
+  @Reference
+  protected SlingRepository slingRepository;
+
+  private long borrowTimeout;
+  private long leakTimeout;
+  private long maxAge;
+  private Semaphore permits;
+  private volatile boolean closed;
+  private volatile long lastLeakCheck;
+
+  private final LinkedList<PooledSession> idle = new LinkedList<PooledSession>();
+  private final Map<Session, PooledSession> active = new ConcurrentHashMap<Session, PooledSession>();
+  private final ThreadLocal<PooledSession> current = new ThreadLocal<PooledSession>();
+  private final AtomicLong sessionsCreated = new AtomicLong();
+  private final AtomicLong borrowCount = new AtomicLong();
+  private final AtomicLong leakedSessions = new AtomicLong();
+
+  protected void activate(ComponentContext context) {
+    Dictionary<?, ?> props = context.getProperties();
+    int maxSessions = (int) getLong(props, MAX_SESSIONS, 20);
+    borrowTimeout = getLong(props, BORROW_TIMEOUT, 30000L);
+    leakTimeout = getLong(props, LEAK_TIMEOUT, 300000L);
+    maxAge = getLong(props, MAX_AGE, 3600000L);
+    permits = new Semaphore(Math.max(1, maxSessions), true);
+    closed = false;
+    LOGGER.info("Pooling up to {} admin sessions", maxSessions);
+  }
+
+  protected void deactivate(ComponentContext context) {
+    closed = true;
+    synchronized (idle) {
+      for (PooledSession pooled : idle) {
+        pooled.session.logout();
+      }
+      idle.clear();
+    }
+    if (active.size() > 0) {
+      LOGGER.warn("{} admin sessions still borrowed, they will be logged out when returned",
+          active.size());
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.jcr.AdminSessionService#borrowSession()
+   */
+  public Session borrowSession() throws RepositoryException {
+    borrowCount.incrementAndGet();
+    if (closed) {
+      throw new RepositoryException("Admin session pool is closed");
+    }
+    checkForLeaks(false);
+    PooledSession outer = current.get();
+    // a borrow whose session was reclaimed as leaked no longer counts, the thread may
+    // still have it but it holds no place in the pool.
+    PooledSession held = outer;
+    while (held != null && !isHeld(held)) {
+      held = held.outer;
+    }
+    int depth = held == null ? 0 : held.depth + 1;
+    boolean acquired;
+    if (depth > 0) {
+      // a nested borrow gets its own session so that a save or refresh on it cannot
+      // commit or discard the outer borrower's changes. It does not wait for the pool,
+      // the outer borrow may be holding the last place.
+      acquired = permits.tryAcquire();
+    } else {
+      try {
+        acquired = permits.tryAcquire();
+        // when the pool is exhausted look for leaks straight away rather than waiting.
+        if (!acquired && checkForLeaks(true)) {
+          acquired = permits.tryAcquire();
+        }
+        if (!acquired && !permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+          throw new RepositoryException("No admin session became free within "
+              + borrowTimeout + " ms, " + active.size() + " are borrowed");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RepositoryException("Interrupted waiting for an admin session", e);
+      }
+    }
+    PooledSession pooled;
+    try {
+      pooled = acquired ? takeIdle() : null;
+      if (pooled == null) {
+        pooled = new PooledSession(slingRepository.loginAdministrative(null));
+        sessionsCreated.incrementAndGet();
+      }
+    } catch (RepositoryException e) {
+      if (acquired) {
+        permits.release();
+      }
+      throw e;
+    } catch (RuntimeException e) {
+      if (acquired) {
+        permits.release();
+      }
+      throw e;
+    }
+    pooled.pooled = acquired;
+    pooled.outer = outer;
+    pooled.depth = depth;
+    pooled.owner = Thread.currentThread();
+    pooled.borrowed = System.currentTimeMillis();
+    pooled.borrowedAt = new Exception("Admin session borrowed here");
+    active.put(pooled.session, pooled);
+    current.set(pooled);
+    return pooled.session;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.jcr.AdminSessionService#returnSession(javax.jcr.Session)
+   */
+  public void returnSession(Session session) {
+    if (session == null) {
+      return;
+    }
+    PooledSession pooled = current.get();
+    if (pooled == null || pooled.session != session) {
+      throw new IllegalStateException("Admin session returned by a thread that did not "
+          + "borrow it, or before a session borrowed inside it was returned");
+    }
+    if (pooled.outer == null) {
+      current.remove();
+    } else {
+      current.set(pooled.outer);
+      pooled.outer = null;
+    }
+    pooled.owner = null;
+    pooled.borrowedAt = null;
+    if (active.remove(session) == null) {
+      // already counted as leaked and its permit given up.
+      LOGGER.warn("Leaked admin session returned after {} ms", System.currentTimeMillis()
+          - pooled.borrowed);
+      logout(session);
+      return;
+    }
+    if (!pooled.pooled) {
+      // a nested borrow made while the pool was full, it has no place to go back to.
+      logout(session);
+      return;
+    }
+    try {
+      if (!closed && session.isLive()
+          && System.currentTimeMillis() - pooled.created < maxAge) {
+        if (session.hasPendingChanges()) {
+          LOGGER.warn("Admin session returned with unsaved changes, discarding them");
+        }
+        session.refresh(false);
+        synchronized (idle) {
+          idle.addFirst(pooled);
+        }
+      } else {
+        logout(session);
+      }
+    } catch (RepositoryException e) {
+      LOGGER.warn("Unable to refresh admin session, discarding it: {}", e.getMessage());
+      logout(session);
+    } finally {
+      permits.release();
+    }
+  }
+
+  /**
+   * @param pooled
+   *          a borrow made on this thread.
+   * @return true if the borrow has not been returned or reclaimed as leaked.
+   */
+  private boolean isHeld(PooledSession pooled) {
+    return pooled.owner == Thread.currentThread() && active.get(pooled.session) == pooled;
+  }
+
+  /**
+   * @return a live idle session, or null if there are none.
+   */
+  private PooledSession takeIdle() {
+    while (true) {
+      PooledSession pooled;
+      synchronized (idle) {
+        pooled = idle.poll();
+      }
+      if (pooled == null || pooled.session.isLive()) {
+        return pooled;
+      }
+    }
+  }
+
+  /**
+   * Give up the places of sessions that have been borrowed for longer than the leak
+   * timeout, so that a leak cannot starve the pool.
+   *
+   * @param force
+   *          check even if there was a check less than a second ago.
+   * @return true if any places were given up.
+   */
+  private boolean checkForLeaks(boolean force) {
+    long now = System.currentTimeMillis();
+    if (!force && now - lastLeakCheck < LEAK_CHECK_INTERVAL) {
+      return false;
+    }
+    lastLeakCheck = now;
+    boolean reclaimed = false;
+    for (Map.Entry<Session, PooledSession> e : active.entrySet()) {
+      PooledSession pooled = e.getValue();
+      if (now - pooled.borrowed > leakTimeout && active.remove(e.getKey(), pooled)) {
+        leakedSessions.incrementAndGet();
+        if (pooled.pooled) {
+          permits.release();
+          reclaimed = true;
+        }
+        Thread owner = pooled.owner;
+        LOGGER.warn("Admin session held by " + (owner == null ? "unknown" : owner.getName())
+            + " for " + (now - pooled.borrowed) + " ms without being returned, "
+            + pooled.depth + " borrows deep", pooled.borrowedAt);
+      }
+    }
+    return reclaimed;
+  }
+
+  private void logout(Session session) {
+    try {
+      session.logout();
+    } catch (RuntimeException e) {
+      LOGGER.debug("Failed to logout admin session: {}", e.getMessage());
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private long getLong(Dictionary props, String name, long defaultValue) {
+    Object value = props == null ? null : props.get(name);
+    if (value instanceof Number) {
+      return ((Number) value).longValue();
+    } else if (value != null) {
+      try {
+        return Long.parseLong(String.valueOf(value));
+      } catch (NumberFormatException e) {
+        LOGGER.warn("Invalid value {} for {}, using {}", new Object[] { value, name,
+            defaultValue });
+      }
+    }
+    return defaultValue;
+  }
+
+  public int getActiveSessions() {
+    return active.size();
+  }
+
+  public int getIdleSessions() {
+    synchronized (idle) {
+      return idle.size();
+    }
+  }
+
+  public long getSessionsCreated() {
+    return sessionsCreated.get();
+  }
+
+  public long getBorrowCount() {
+    return borrowCount.get();
+  }
+
+  public long getLeakedSessions() {
+    return leakedSessions.get();
+  }
+
+  /**
+   * A pooled session and who has it. The depth is the number of borrows still held on the
+   * owning thread when it was borrowed, 0 for a borrow that waited for the pool.
+   */
+  private static class PooledSession {
+    private final Session session;
+    private final long created;
+    private boolean pooled;
+    private PooledSession outer;
+    private int depth;
+    private volatile Thread owner;
+    private volatile long borrowed;
+    private volatile Exception borrowedAt;
+
+    PooledSession(Session session) {
+      this.session = session;
+      this.created = System.currentTimeMillis();
+    }
+  }
+}
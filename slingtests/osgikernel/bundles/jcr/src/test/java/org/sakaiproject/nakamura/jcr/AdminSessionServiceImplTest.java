@@ -0,0 +1,261 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.jcr;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.apache.sling.jcr.api.SlingRepository;
+import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ *
+ */
+public class AdminSessionServiceImplTest {
+
+  private AdminSessionServiceImpl createService(SlingRepository repository,
+      int maxSessions, long borrowTimeout, long leakTimeout) {
+    Dictionary<String, Object> props = new Hashtable<String, Object>();
+    props.put(AdminSessionServiceImpl.MAX_SESSIONS, maxSessions);
+    props.put(AdminSessionServiceImpl.BORROW_TIMEOUT, borrowTimeout);
+    props.put(AdminSessionServiceImpl.LEAK_TIMEOUT, leakTimeout);
+    ComponentContext context = createMock(ComponentContext.class);
+    expect(context.getProperties()).andReturn(props).anyTimes();
+    replay(context);
+    AdminSessionServiceImpl service = new AdminSessionServiceImpl();
+    service.slingRepository = repository;
+    service.activate(context);
+    return service;
+  }
+
+  private Session createPooledSession() throws RepositoryException {
+    Session session = createMock(Session.class);
+    expect(session.isLive()).andReturn(true).anyTimes();
+    expect(session.hasPendingChanges()).andReturn(false).anyTimes();
+    session.refresh(false);
+    expectLastCall().anyTimes();
+    return session;
+  }
+
+  @Test
+  public void testSessionReused() throws Exception {
+    Session session = createPooledSession();
+    session.logout();
+    SlingRepository repository = createMock(SlingRepository.class);
+    expect(repository.loginAdministrative(null)).andReturn(session).once();
+    replay(session, repository);
+
+    AdminSessionServiceImpl service = createService(repository, 5, 1000L, 60000L);
+    for (int i = 0; i < 10; i++) {
+      Session borrowed = service.borrowSession();
+      assertSame(session, borrowed);
+      assertEquals(1, service.getActiveSessions());
+      service.returnSession(borrowed);
+    }
+    assertEquals(1, service.getSessionsCreated());
+    assertEquals(10, service.getBorrowCount());
+    assertEquals(0, service.getActiveSessions());
+    assertEquals(1, service.getIdleSessions());
+
+    service.deactivate(null);
+    assertEquals(0, service.getIdleSessions());
+    verify(session, repository);
+  }
+
+  @Test
+  public void testNestedBorrow() throws Exception {
+    Session session = createPooledSession();
+    Session extra = createPooledSession();
+    extra.logout();
+    SlingRepository repository = createMock(SlingRepository.class);
+    expect(repository.loginAdministrative(null)).andReturn(session);
+    expect(repository.loginAdministrative(null)).andReturn(extra);
+    replay(session, extra, repository);
+
+    AdminSessionServiceImpl service = createService(repository, 1, 100L, 60000L);
+    Session outer = service.borrowSession();
+    // the pool only has one session, a nested borrow must not wait for it and must not
+    // share it, so that saving or refreshing the inner session leaves the outer alone.
+    Session inner = service.borrowSession();
+    assertSame(extra, inner);
+    assertEquals(2, service.getActiveSessions());
+    try {
+      service.returnSession(outer);
+      fail("The outer session cannot be returned before the inner one");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    service.returnSession(inner);
+    assertEquals(1, service.getActiveSessions());
+    service.returnSession(outer);
+    assertEquals(0, service.getActiveSessions());
+    assertEquals(1, service.getIdleSessions());
+    assertSame(session, service.borrowSession());
+    verify(session, extra, repository);
+  }
+
+  @Test
+  public void testNestedBorrowPooled() throws Exception {
+    Session first = createPooledSession();
+    Session second = createPooledSession();
+    SlingRepository repository = createMock(SlingRepository.class);
+    expect(repository.loginAdministrative(null)).andReturn(first);
+    expect(repository.loginAdministrative(null)).andReturn(second);
+    replay(first, second, repository);
+
+    AdminSessionServiceImpl service = createService(repository, 2, 100L, 60000L);
+    Session outer = service.borrowSession();
+    Session inner = service.borrowSession();
+    assertSame(first, outer);
+    assertSame(second, inner);
+    service.returnSession(inner);
+    service.returnSession(outer);
+    assertEquals(0, service.getActiveSessions());
+    assertEquals(2, service.getIdleSessions());
+    verify(first, second, repository);
+  }
+
+  @Test
+  public void testPoolLimit() throws Exception {
+    Session session = createPooledSession();
+    SlingRepository repository = createMock(SlingRepository.class);
+    expect(repository.loginAdministrative(null)).andReturn(session).once();
+    replay(session, repository);
+
+    final AdminSessionServiceImpl service = createService(repository, 1, 100L, 60000L);
+    service.borrowSession();
+    final RepositoryException[] failure = new RepositoryException[1];
+    Thread other = new Thread() {
+      @Override
+      public void run() {
+        try {
+          service.borrowSession();
+        } catch (RepositoryException e) {
+          failure[0] = e;
+        }
+      }
+    };
+    other.start();
+    other.join();
+    if (failure[0] == null) {
+      fail("The pool is exhausted, the borrow should time out");
+    }
+    verify(session, repository);
+  }
+
+  @Test
+  public void testLeakedSessionReclaimed() throws Exception {
+    Session leaked = createPooledSession();
+    Session session = createPooledSession();
+    SlingRepository repository = createMock(SlingRepository.class);
+    expect(repository.loginAdministrative(null)).andReturn(leaked);
+    expect(repository.loginAdministrative(null)).andReturn(session);
+    replay(leaked, session, repository);
+
+    final AdminSessionServiceImpl service = createService(repository, 1, 5000L, 10L);
+    Thread leaker = new Thread() {
+      @Override
+      public void run() {
+        try {
+          service.borrowSession();
+        } catch (RepositoryException e) {
+        }
+      }
+    };
+    leaker.start();
+    leaker.join();
+    Thread.sleep(50);
+
+    Session borrowed = service.borrowSession();
+    assertSame(session, borrowed);
+    assertEquals(1, service.getLeakedSessions());
+    service.returnSession(borrowed);
+    verify(repository);
+  }
+
+  @Test
+  public void testBorrowAfterOwnSessionReclaimed() throws Exception {
+    Session leaked = createPooledSession();
+    leaked.logout();
+    Session session = createPooledSession();
+    SlingRepository repository = createMock(SlingRepository.class);
+    expect(repository.loginAdministrative(null)).andReturn(leaked);
+    expect(repository.loginAdministrative(null)).andReturn(session);
+    replay(leaked, session, repository);
+
+    AdminSessionServiceImpl service = createService(repository, 1, 5000L, 10L);
+    assertSame(leaked, service.borrowSession());
+    // wait for the next leak check.
+    Thread.sleep(1100L);
+
+    // the leaked borrow no longer counts, so this is not a nested borrow outside the pool.
+    Session borrowed = service.borrowSession();
+    assertSame(session, borrowed);
+    assertEquals(1, service.getLeakedSessions());
+    assertEquals(1, service.getActiveSessions());
+    service.returnSession(borrowed);
+    assertEquals(1, service.getIdleSessions());
+    // returned late, it is logged out rather than pooled.
+    service.returnSession(leaked);
+    assertEquals(1, service.getIdleSessions());
+    assertEquals(0, service.getActiveSessions());
+    verify(leaked, session, repository);
+  }
+
+  @Test
+  public void testDeadSessionDiscarded() throws Exception {
+    Session dead = createMock(Session.class);
+    expect(dead.isLive()).andReturn(false).anyTimes();
+    dead.logout();
+    Session session = createPooledSession();
+    SlingRepository repository = createMock(SlingRepository.class);
+    expect(repository.loginAdministrative(null)).andReturn(dead);
+    expect(repository.loginAdministrative(null)).andReturn(session);
+    replay(dead, session, repository);
+
+    AdminSessionServiceImpl service = createService(repository, 1, 1000L, 60000L);
+    Session borrowed = service.borrowSession();
+    // logged out by mistake, the pool must not lend it again.
+    service.returnSession(borrowed);
+    assertEquals(0, service.getIdleSessions());
+    assertSame(session, service.borrowSession());
+    verify(dead, repository);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testReturnUnborrowed() throws Exception {
+    SlingRepository repository = createMock(SlingRepository.class);
+    Session session = createMock(Session.class);
+    replay(repository, session);
+    AdminSessionServiceImpl service = createService(repository, 1, 1000L, 60000L);
+    service.returnSession(session);
+  }
+}
@@ -54,4 +54,23 @@ public interface Lock extends Serializable {
    * @return the id of the lock.
    */
   long getLockId();
+
+  /**
+   * @return a token that increases each time the object is locked, writers can record it
+   *         and refuse writes carrying an older token.
+   */
+  long getFencingToken();
+
+  /**
+   * @return when the lease on the lock runs out, after which the lock may be taken by
+   *         another owner, in ms.
+   */
+  long getLeaseExpires();
+
+  /**
+   * Extend the lease on the lock, only if it is still held by the current thread.
+   *
+   * @return true if the lease was extended.
+   */
+  boolean renew();
 }
@@ -54,6 +54,18 @@ public class LockImpl implements Lock, ThreadBound {
    * The ID of the lock instance.
    */
   private long lockId;
+  /**
+   * When the lock was taken, in ms.
+   */
+  private long lockedAt;
+  /**
+   * When the lease on the lock runs out, in ms.
+   */
+  private long leaseExpires;
+  /**
+   * The fencing token of the lock.
+   */
+  private long fencingToken;
 
   /**
    * Create a new lock on the item id, with owner ownerId for the lockmanage instanceId
@@ -64,13 +76,21 @@ public class LockImpl implements Lock, ThreadBound {
    *          the owner of the lock.
    * @param instanceId
    *          the instance of the lock manager creating the lock.
+   * @param fencingToken
+   *          the fencing token of the lock.
+   * @param lease
+   *          the length of the lease, in ms.
    */
-  public LockImpl(String id, long lockId, long ownerId, long instanceId) {
+  public LockImpl(String id, long lockId, long ownerId, long instanceId,
+      long fencingToken, long lease) {
     this.locked = true;
     this.id = id;
     this.ownerId = ownerId;
     this.instanceId = instanceId;
     this.lockId = lockId;
+    this.fencingToken = fencingToken;
+    this.lockedAt = System.currentTimeMillis();
+    this.leaseExpires = lockedAt + lease;
   }
 
   /**
@@ -137,9 +157,16 @@ public class LockImpl implements Lock, ThreadBound {
   }
 
   /**
-   * @return the locked state.
+   * @return the locked state, a lock whose lease has run out is not locked.
    */
   public boolean isLocked() {
+    return locked && System.currentTimeMillis() < leaseExpires;
+  }
+
+  /**
+   * @return true if the lock has not been unlocked, whether or not the lease has run out.
+   */
+  protected boolean isHeld() {
     return locked;
   }
 
@@ -159,4 +186,42 @@ public class LockImpl implements Lock, ThreadBound {
   public long getLockId() {
     return lockId;
   }
+
+  /**
+   * @return when the lock was taken, in ms.
+   */
+  public long getLockedAt() {
+    return lockedAt;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.locking.Lock#getFencingToken()
+   */
+  public long getFencingToken() {
+    return fencingToken;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.locking.Lock#getLeaseExpires()
+   */
+  public long getLeaseExpires() {
+    return leaseExpires;
+  }
+
+  /**
+   * @param leaseExpires when the lease now runs out, in ms.
+   */
+  protected void setLeaseExpires(long leaseExpires) {
+    this.leaseExpires = leaseExpires;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.locking.Lock#renew()
+   */
+  public boolean renew() {
+    return currentLockManger.renew(this);
+  }
 }
@@ -20,6 +20,7 @@ package org.sakaiproject.nakamura.locking;
 
 import edu.umd.cs.findbugs.annotations.SuppressWarnings;
 
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
 import org.sakaiproject.nakamura.api.locking.Lock;
 import org.sakaiproject.nakamura.api.locking.LockManager;
 import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
@@ -31,9 +32,22 @@ import org.slf4j.LoggerFactory;
 
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * A lock manager that uses a cluster replicated cache to manage the locks
+ * A lock manager that uses a cluster replicated cache to manage the locks. The lock table
+ * is striped by id, callers waiting for a lock park on its stripe in arrival order and are
+ * woken when a lock on that stripe is released. Locks are leases, a lock that is not
+ * unlocked or renewed before its lease runs out may be taken by another owner, so a lock
+ * left behind by a dead or leaked owner does not block the object for longer than the
+ * lease. Taking a lock the thread already holds renews it. Each lock carries a fencing
+ * token that increases every time the object is locked. Locks are released at the end of
+ * the request by clearLocks.
+ *
+ * When more than one app server is active a new lock is only granted once it has survived
+ * cache replication, with a single server the lock is granted immediately. Locks are only
+ * seen by other app servers if the lockmanager.lockmap cache is configured to replicate
+ * in the cache manager configuration, otherwise each app server locks on its own.
  *
  * @scr.component immediate="true" metatype="no"
  * @scr.property name="service.description" value="In JVM Lock Manager"
@@ -42,6 +56,10 @@ import java.security.SecureRandom;
  * @scr.reference name="cacheManagerService"
  *                interface="org.sakaiproject.nakamura.api.memory.CacheManagerService"
  *                bind="bindCacheManagerService" unbind="unbindCacheManagerService"
+ * @scr.reference name="clusterTrackingService"
+ *                interface="org.sakaiproject.nakamura.api.cluster.ClusterTrackingService"
+ *                cardinality="0..1" policy="dynamic"
+ *                bind="bindClusterTrackingService" unbind="unbindClusterTrackingService"
  */
 @SuppressWarnings(justification="Circular dependency noted ", value={"CD_CIRCULAR_DEPENDENCY"})
 public class LockManagerImpl implements LockManager {
@@ -94,7 +112,51 @@ public class LockManagerImpl implements LockManager {
       return random.nextLong();
     }
   };
-  private Object monitor = new Object();
+  /**
+   * The lock table is striped, each id hashes to a stripe which guards it and which
+   * waiters for it park on.
+   */
+  private static final int STRIPES = 64;
+  /**
+   * How long a waiter waits for a lock, in ms.
+   */
+  private static final long LOCK_TIMEOUT = 30000;
+  /**
+   * The longest a waiter parks before checking the lock again, in ms. Local releases wake
+   * waiters immediately, this only bounds the delay in seeing a lock released by another
+   * node or expired from the cache.
+   */
+  private static final long RECHECK_INTERVAL = 500;
+  /**
+   * Waits longer than this are logged, in ms.
+   */
+  private static final long SLOW_WAIT = 10000;
+
+  /**
+   * The length of a lease on a lock, in ms.
+   */
+  private static final long LEASE = 60000;
+  /**
+   * How long a new lock must survive in the replicated cache before it is granted, when
+   * there is more than one app server, in ms.
+   */
+  private static final long CLAIM_SETTLE = 100;
+  /**
+   * How often to check the number of active app servers, in ms.
+   */
+  private static final long SERVER_CHECK_INTERVAL = 10000;
+
+  private final LockStripe[] stripes = new LockStripe[STRIPES];
+  /**
+   * Optional service dependency, used to tell if this is the only active app server.
+   */
+  private volatile ClusterTrackingService clusterTrackingService;
+  private volatile boolean singleServer = true;
+  private volatile long nextServerCheck;
+  /**
+   * The last fencing token issued by this instance.
+   */
+  private final AtomicLong lastFencingToken = new AtomicLong();
 
   /**
    * @throws NoSuchAlgorithmException
@@ -104,6 +166,9 @@ public class LockManagerImpl implements LockManager {
       throws NoSuchAlgorithmException {
     random = SecureRandom.getInstance("SHA1PRNG");
     instanceId = random.nextLong();
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new LockStripe();
+    }
   }
 
   public Lock getLock(String id) {
@@ -115,26 +180,131 @@ public class LockManagerImpl implements LockManager {
    * @return
    */
   public Lock getLock(String id, boolean create) {
-    LockImpl lock = lockMap.get(id);
-    if (create) {
-      if (lock == null || !lock.isLocked()) {
-        synchronized (monitor) {
-          lock = lockMap.get(id);
-          if (lock == null || !lock.isLocked()) {
-            Cache<LockImpl> requestLocks = getRequestLocks();
-            lock = new LockImpl(id, random.nextLong(), threadId.get(), instanceId);
-            lockMap.put(id, lock);
-            requestLocks.put(id, lock);
-          }
+    LockStripe stripe = getStripe(id);
+    LockImpl lock;
+    boolean created = false;
+    synchronized (stripe) {
+      lock = lockMap.get(id);
+      if (create && (lock == null || !lock.isLocked())) {
+        Cache<LockImpl> requestLocks = getRequestLocks();
+        long fencingToken = nextFencingToken(lock == null ? 0 : lock.getFencingToken());
+        lock = new LockImpl(id, random.nextLong(), threadId.get(), instanceId,
+            fencingToken, LEASE);
+        lockMap.put(id, lock);
+        requestLocks.put(id, lock);
+        created = true;
+      }
+      if (lock != null) {
+        lock.bind(this);
+        if (!created && lock.isOwner()) {
+          renew(lock);
         }
       }
     }
-    if (lock != null) {
-      lock.bind(this);
+    if (created && !isSingleServer()) {
+      lock = confirmClaim(stripe, lock);
+    }
+    return lock;
+  }
+
+  /**
+   * With more than one app server two servers may both create a lock for the same id
+   * before either sees the other in the replicated cache. Wait for replication to settle
+   * and only keep the lock if it is still the one in the cache.
+   *
+   * @param stripe
+   * @param lock
+   *          the lock just created.
+   * @return the lock, or the lock that replaced it in which case this thread is not the
+   *         owner.
+   */
+  private LockImpl confirmClaim(LockStripe stripe, LockImpl lock) {
+    synchronized (stripe) {
+      // wait rather than sleep, so the stripe is not held while replication settles.
+      long settled = System.currentTimeMillis() + CLAIM_SETTLE;
+      long remaining = CLAIM_SETTLE;
+      while (remaining > 0) {
+        try {
+          stripe.wait(remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+        remaining = settled - System.currentTimeMillis();
+      }
+      LockImpl current = lockMap.get(lock.getLocked());
+      if (current == null) {
+        lockMap.put(lock.getLocked(), lock);
+      } else if (current.getLockId() != lock.getLockId()) {
+        if (debug) {
+          LOGGER.debug(Thread.currentThread() + " lost claim on " + lock.getLocked());
+        }
+        lock.setLocked(false);
+        getRequestLocks().remove(lock.getLocked());
+        current.bind(this);
+        return current;
+      }
     }
     return lock;
   }
 
+  /**
+   * @param previous
+   *          the fencing token of the previous lock on the object, if known.
+   * @return a fencing token greater than the previous token and any token issued by this
+   *         instance. Tokens are based on the clock, so that tokens from different app
+   *         servers also increase over time.
+   */
+  private long nextFencingToken(long previous) {
+    while (true) {
+      long last = lastFencingToken.get();
+      long next = Math.max(System.currentTimeMillis() * 1000, Math.max(last, previous) + 1);
+      if (lastFencingToken.compareAndSet(last, next)) {
+        return next;
+      }
+    }
+  }
+
+  /**
+   * @return true if no other app server is known to be active.
+   */
+  private boolean isSingleServer() {
+    ClusterTrackingService cts = clusterTrackingService;
+    if (cts == null) {
+      return true;
+    }
+    long now = System.currentTimeMillis();
+    if (now > nextServerCheck) {
+      try {
+        singleServer = cts.getAllServers().size() <= 1;
+      } catch (RuntimeException e) {
+        LOGGER.warn("Unable to list app servers, assuming a cluster {} ", e.getMessage());
+        singleServer = false;
+      }
+      nextServerCheck = now + SERVER_CHECK_INTERVAL;
+    }
+    return singleServer;
+  }
+
+  /**
+   * @param id
+   * @return the stripe guarding the id.
+   */
+  private LockStripe getStripe(String id) {
+    int h = id.hashCode();
+    // spread the hash so that ids differing only in the high bits use different stripes.
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return stripes[h & (STRIPES - 1)];
+  }
+
+  /**
+   * @return the stripes of the lock table, for contention statistics.
+   */
+  public LockStripe[] getStripes() {
+    return stripes.clone();
+  }
+
   /**
    * @return
    */
@@ -148,15 +318,49 @@ public class LockManagerImpl implements LockManager {
    * @param lock
    */
   protected void unlock(LockImpl lock) {
-    if (lock.isOwner() && lock.isLocked()) {
+    if (lock.isOwner() && lock.isHeld()) {
       if (debug) {
         LOGGER.debug(Thread.currentThread() + " unlocked " + lock.getLocked());
       }
+      if (!lock.isLocked()) {
+        LOGGER.warn(Thread.currentThread() + " held the lock on " + lock.getLocked()
+            + " for " + (System.currentTimeMillis() - lock.getLockedAt())
+            + " ms, past the end of its lease");
+      }
       lock.setLocked(false);
-      synchronized (monitor) {
-        lockMap.remove(lock.getLocked());
+      LockStripe stripe = getStripe(lock.getLocked());
+      synchronized (stripe) {
+        // once the lease has run out the lock may belong to someone else.
+        LockImpl current = lockMap.get(lock.getLocked());
+        if (current != null && current.getLockId() == lock.getLockId()) {
+          lockMap.remove(lock.getLocked());
+        }
+        stripe.released(System.currentTimeMillis() - lock.getLockedAt());
+        stripe.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Extend the lease on a lock, only if the current thread is the owner and the lease has
+   * not already run out.
+   *
+   * @param lock
+   * @return true if the lease was extended.
+   */
+  protected boolean renew(LockImpl lock) {
+    if (lock.isOwner() && lock.isLocked()) {
+      synchronized (getStripe(lock.getLocked())) {
+        LockImpl current = lockMap.get(lock.getLocked());
+        if (current != null && current.getLockId() == lock.getLockId()) {
+          lock.setLeaseExpires(System.currentTimeMillis() + LEASE);
+          // put again so that the new lease is replicated.
+          lockMap.put(lock.getLocked(), lock);
+          return true;
+        }
       }
     }
+    return false;
   }
 
   /**
@@ -179,36 +383,60 @@ public class LockManagerImpl implements LockManager {
    * @see org.sakaiproject.nakamura.api.locking.LockManager#lock(java.lang.String)
    */
   public Lock waitForLock(String id) throws LockTimeoutException {
-    long sleepTime = 100;
-    int tries = 0;
     if (debug) {
       LOGGER.debug(Thread.currentThread() + " locking " + id);
     }
-    while (tries++ < 300) {
-      Lock lock = getLock(id);
-      if (lock != null && lock.isOwner()) {
-        if (debug) {
-          LOGGER.debug(Thread.currentThread() + " lock Granted " + lock.getLocked());
+    LockStripe stripe = getStripe(id);
+    long start = System.currentTimeMillis();
+    long deadline = start + LOCK_TIMEOUT;
+    Object waiter = new Object();
+    synchronized (stripe) {
+      LockImpl held = lockMap.get(id);
+      if (held != null && held.isLocked()) {
+        held.bind(this);
+        if (held.isOwner()) {
+          // already held by this thread, don't queue behind waiters for it.
+          renew(held);
+          return held;
         }
-        return lock;
-      }
-      if (sleepTime < 500) {
-        sleepTime = sleepTime + 10;
       }
+      stripe.enqueue(id, waiter);
       try {
-       
-        if (debug && tries % 5 == 0) {
-          LOGGER.debug(Thread.currentThread() + " locking " + id);
-        }
-        if (tries % 100 == 0) {
-          LOGGER.warn(Thread.currentThread() + " Waiting for " + sleepTime
-              + " ms " + tries);
+        while (true) {
+          if (stripe.isNext(id, waiter)) {
+            Lock lock = getLock(id);
+            if (lock != null && lock.isOwner()) {
+              long waitTime = System.currentTimeMillis() - start;
+              stripe.acquired(waitTime);
+              if (waitTime > SLOW_WAIT) {
+                LOGGER.warn(Thread.currentThread() + " waited " + waitTime + " ms for "
+                    + id);
+              }
+              if (debug) {
+                LOGGER.debug(Thread.currentThread() + " lock Granted "
+                    + lock.getLocked());
+              }
+              return lock;
+            }
+          }
+          long remaining = deadline - System.currentTimeMillis();
+          if (remaining <= 0) {
+            stripe.timedOut();
+            throw new LockTimeoutException("Failed to lock node " + id);
+          }
+          try {
+            stripe.wait(Math.min(remaining, RECHECK_INTERVAL));
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LockTimeoutException("Interrupted waiting to lock node " + id, e);
+          }
         }
-        Thread.sleep(sleepTime);
-      } catch (InterruptedException e) {
+      } finally {
+        stripe.dequeue(id, waiter);
+        // the next waiter for this id may now be at the head of the queue.
+        stripe.notifyAll();
       }
     }
-    throw new LockTimeoutException("Failed to lock node " + id);
   }
 
   /**
@@ -220,6 +448,8 @@ public class LockManagerImpl implements LockManager {
     Cache<LockImpl> requestLocks = getRequestLocks();
     // clearing the requestLocks will invoke unbind which will unlock.
     requestLocks.clear();
+    // threads are pooled, the next request on this thread is a different owner.
+    threadId.remove();
   }
 
  
@@ -237,6 +467,24 @@ public class LockManagerImpl implements LockManager {
     this.cacheManagerService = null;
     lockMap = null;
   }
+
+  /**
+   * @param clusterTrackingService
+   */
+  protected void bindClusterTrackingService(ClusterTrackingService clusterTrackingService) {
+    this.clusterTrackingService = clusterTrackingService;
+    nextServerCheck = 0;
+  }
+
+  /**
+   * @param clusterTrackingService
+   */
+  protected void unbindClusterTrackingService(
+      ClusterTrackingService clusterTrackingService) {
+    if (this.clusterTrackingService == clusterTrackingService) {
+      this.clusterTrackingService = null;
+    }
+  }
  
  
 }
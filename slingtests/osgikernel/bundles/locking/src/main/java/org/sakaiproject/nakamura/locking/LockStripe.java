@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import java.text.MessageFormat;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * One stripe of the lock table. Every lock id hashes to a stripe, the stripe is the
+ * monitor that guards creating and removing locks for those ids, and the monitor that
+ * waiters park on. Waiters for an id queue in arrival order, only the head of the queue
+ * may take the lock when it is released. All access must hold the stripe monitor.
+ */
+public class LockStripe {
+
+  /**
+   * Waiters by lock id, in arrival order.
+   */
+  private final Map<String, LinkedList<Object>> queues = new HashMap<String, LinkedList<Object>>();
+  private int waiting;
+  private int maxWaiting;
+  private long acquisitions;
+  private long timeouts;
+  private long totalWaitTime;
+  private long maxWaitTime;
+  private long releases;
+  private long totalHoldTime;
+  private long maxHoldTime;
+
+  /**
+   * Join the back of the queue for an id.
+   *
+   * @param id
+   * @param waiter
+   *          an object unique to the waiting call.
+   */
+  void enqueue(String id, Object waiter) {
+    LinkedList<Object> queue = queues.get(id);
+    if (queue == null) {
+      queue = new LinkedList<Object>();
+      queues.put(id, queue);
+    }
+    queue.add(waiter);
+    waiting++;
+    if (waiting > maxWaiting) {
+      maxWaiting = waiting;
+    }
+  }
+
+  /**
+   * @param id
+   * @param waiter
+   * @return true if the waiter is at the head of the queue for the id.
+   */
+  boolean isNext(String id, Object waiter) {
+    LinkedList<Object> queue = queues.get(id);
+    return queue != null && queue.getFirst() == waiter;
+  }
+
+  /**
+   * Leave the queue for an id, whether or not the lock was taken.
+   *
+   * @param id
+   * @param waiter
+   */
+  void dequeue(String id, Object waiter) {
+    LinkedList<Object> queue = queues.get(id);
+    if (queue != null && queue.remove(waiter)) {
+      waiting--;
+      if (queue.isEmpty()) {
+        queues.remove(id);
+      }
+    }
+  }
+
+  /**
+   * @param waitTime
+   *          the time taken to acquire, in ms.
+   */
+  void acquired(long waitTime) {
+    acquisitions++;
+    totalWaitTime += waitTime;
+    if (waitTime > maxWaitTime) {
+      maxWaitTime = waitTime;
+    }
+  }
+
+  void timedOut() {
+    timeouts++;
+  }
+
+  /**
+   * @param holdTime
+   *          the time the lock was held, in ms.
+   */
+  void released(long holdTime) {
+    releases++;
+    totalHoldTime += holdTime;
+    if (holdTime > maxHoldTime) {
+      maxHoldTime = holdTime;
+    }
+  }
+
+  /**
+   * @return the number of callers currently waiting on this stripe.
+   */
+  public synchronized int getWaiting() {
+    return waiting;
+  }
+
+  /**
+   * @return the largest number of callers that have waited on this stripe at once.
+   */
+  public synchronized int getMaxWaiting() {
+    return maxWaiting;
+  }
+
+  /**
+   * @return the number of locks acquired by waiting callers.
+   */
+  public synchronized long getAcquisitions() {
+    return acquisitions;
+  }
+
+  /**
+   * @return the number of waits that timed out.
+   */
+  public synchronized long getTimeouts() {
+    return timeouts;
+  }
+
+  /**
+   * @return the total time spent waiting for locks, in ms.
+   */
+  public synchronized long getTotalWaitTime() {
+    return totalWaitTime;
+  }
+
+  /**
+   * @return the longest wait for a lock, in ms.
+   */
+  public synchronized long getMaxWaitTime() {
+    return maxWaitTime;
+  }
+
+  /**
+   * @return the total time locks have been held, in ms.
+   */
+  public synchronized long getTotalHoldTime() {
+    return totalHoldTime;
+  }
+
+  /**
+   * @return the longest time a lock has been held, in ms.
+   */
+  public synchronized long getMaxHoldTime() {
+    return maxHoldTime;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public synchronized String toString() {
+    return MessageFormat.format(
+        "waiting {0} (max {1}), acquired {2}, timeouts {3}, wait {4} ms (max {5}), "
+            + "released {6}, held {7} ms (max {8})", waiting, maxWaiting, acquisitions,
+        timeouts, totalWaitTime, maxWaitTime, releases, totalHoldTime, maxHoldTime);
+  }
+}
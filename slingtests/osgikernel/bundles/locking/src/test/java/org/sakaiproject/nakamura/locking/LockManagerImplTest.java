@@ -22,16 +22,29 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.sakaiproject.nakamura.api.cluster.ClusterServer;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
 import org.sakaiproject.nakamura.api.locking.Lock;
+import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
 /**
  *
  */
@@ -97,4 +110,176 @@ public class LockManagerImplTest {
     assertEquals(null, lock);
   }
 
+  @Test
+  public void testWaitForLockReentrant() throws Exception {
+    Lock l = lockManager.getLock("foo");
+    assertSame(l, lockManager.waitForLock("foo"));
+  }
+
+  @Test
+  public void testWaitForLockWokenOnUnlock() throws Exception {
+    final LockImpl held = (LockImpl) lockManager.waitForLock("foo");
+    final CountDownLatch waiting = new CountDownLatch(1);
+    final Lock[] granted = new Lock[1];
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          waiting.countDown();
+          granted[0] = lockManager.waitForLock("foo");
+        } catch (LockTimeoutException e) {
+          // granted stays null.
+        }
+      }
+    };
+    t.start();
+    waiting.await();
+    Thread.sleep(50);
+    assertNull(granted[0]);
+    lockManager.unlock(held);
+    t.join(5000);
+    assertNotNull(granted[0]);
+    assertEquals("foo", granted[0].getLocked());
+
+    long acquisitions = 0;
+    for (LockStripe stripe : lockManager.getStripes()) {
+      acquisitions += stripe.getAcquisitions();
+      assertEquals(0, stripe.getWaiting());
+    }
+    assertEquals(2, acquisitions);
+  }
+
+  @Test
+  public void testExpiredLeaseTakenOver() {
+    LockImpl expired = new LockImpl("foo", 1L, 2L, 3L, 5L, -1L);
+    lockCache.put("foo", expired);
+    assertFalse(expired.isLocked());
+    LockImpl l = (LockImpl) lockManager.getLock("foo");
+    assertNotSame(expired, l);
+    assertTrue(l.isOwner());
+    assertTrue(l.getFencingToken() > expired.getFencingToken());
+    assertTrue(l.getLeaseExpires() > System.currentTimeMillis());
+  }
+
+  @Test
+  public void testLockOfDeadOwnerTakenOverWhenLeaseRunsOut() throws Exception {
+    final LockImpl[] held = new LockImpl[1];
+    Thread owner = new Thread() {
+      @Override
+      public void run() {
+        try {
+          // the owner goes away without unlocking or clearing its locks.
+          held[0] = (LockImpl) lockManager.waitForLock("foo");
+        } catch (LockTimeoutException e) {
+          // held stays null.
+        }
+      }
+    };
+    owner.start();
+    owner.join(5000);
+    assertNotNull(held[0]);
+    held[0].setLeaseExpires(System.currentTimeMillis() + 200);
+
+    Lock l = lockManager.waitForLock("foo");
+    assertNotSame(held[0], l);
+    assertTrue(l.isOwner());
+    assertTrue(l.getFencingToken() > held[0].getFencingToken());
+    assertSame(l, lockCache.get("foo"));
+  }
+
+  @Test
+  public void testLockingAgainRenews() throws Exception {
+    LockImpl l = (LockImpl) lockManager.waitForLock("foo");
+    l.setLeaseExpires(System.currentTimeMillis() + 10);
+    assertSame(l, lockManager.waitForLock("foo"));
+    assertTrue(l.getLeaseExpires() > System.currentTimeMillis() + 1000);
+    l.setLeaseExpires(System.currentTimeMillis() + 10);
+    assertSame(l, lockManager.getLock("foo"));
+    assertTrue(l.getLeaseExpires() > System.currentTimeMillis() + 1000);
+  }
+
+  @Test
+  public void testFencingTokenIncreases() {
+    Lock first = lockManager.getLock("foo");
+    first.unlock();
+    Lock second = lockManager.getLock("foo");
+    assertTrue(second.getFencingToken() > first.getFencingToken());
+  }
+
+  @Test
+  public void testRenew() {
+    LockImpl l = (LockImpl) lockManager.getLock("foo");
+    l.setLeaseExpires(System.currentTimeMillis() + 10);
+    assertTrue(l.renew());
+    assertTrue(l.getLeaseExpires() > System.currentTimeMillis() + 1000);
+    l.unlock();
+    assertFalse(l.renew());
+  }
+
+  @Test
+  public void testUnlockAfterLeaseKeepsNewOwner() {
+    LockImpl l = (LockImpl) lockManager.getLock("foo");
+    l.setLeaseExpires(System.currentTimeMillis() - 1);
+    LockImpl replacement = new LockImpl("foo", 7L, 8L, 9L, l.getFencingToken() + 1, 60000);
+    lockCache.put("foo", replacement);
+    l.unlock();
+    assertSame(replacement, lockCache.get("foo"));
+  }
+
+  @Test
+  public void testClaimConfirmedInCluster() {
+    ClusterTrackingService clusterTrackingService = createMock(ClusterTrackingService.class);
+    List<ClusterServer> servers = new ArrayList<ClusterServer>();
+    servers.add(createMock(ClusterServer.class));
+    servers.add(createMock(ClusterServer.class));
+    expect(clusterTrackingService.getAllServers()).andReturn(servers);
+    replay(clusterTrackingService);
+    lockManager.bindClusterTrackingService(clusterTrackingService);
+
+    Lock l = lockManager.getLock("foo");
+    assertTrue(l.isOwner());
+    assertSame(l, lockCache.get("foo"));
+    lockManager.unbindClusterTrackingService(clusterTrackingService);
+    verify(clusterTrackingService);
+  }
+
+  @Test
+  public void testClaimLostInCluster() {
+    // another app server's lock on the same object arrives by replication after ours.
+    final LockImpl other = new LockImpl("foo", 7L, 8L, 9L, 1L, 60000);
+    Cache<Object> replicatedCache = new MapCacheImpl<Object>() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      public Object put(String key, Object payload) {
+        Object previous = super.put(key, payload);
+        if (payload != other) {
+          super.put(key, other);
+        }
+        return previous;
+      }
+    };
+    CacheManagerService clusteredCacheManager = createMock(CacheManagerService.class);
+    expect(
+        clusteredCacheManager.getCache("lockmanager.lockmap", CacheScope.CLUSTERREPLICATED))
+        .andReturn(replicatedCache).anyTimes();
+    expect(clusteredCacheManager.getCache("lockmanager.requestmap", CacheScope.REQUEST))
+        .andReturn(requestCache).anyTimes();
+    ClusterTrackingService clusterTrackingService = createMock(ClusterTrackingService.class);
+    List<ClusterServer> servers = new ArrayList<ClusterServer>();
+    servers.add(createMock(ClusterServer.class));
+    servers.add(createMock(ClusterServer.class));
+    expect(clusterTrackingService.getAllServers()).andReturn(servers);
+    replay(clusteredCacheManager, clusterTrackingService);
+    LockManagerImpl clusteredLockManager = new LockManagerImpl();
+    clusteredLockManager.bindCacheManagerService(clusteredCacheManager);
+    clusteredLockManager.bindClusterTrackingService(clusterTrackingService);
+
+    Lock l = clusteredLockManager.getLock("foo");
+    assertSame(other, l);
+    assertFalse(l.isOwner());
+    assertNull(requestCache.get("foo"));
+    verify(clusteredCacheManager, clusterTrackingService);
+  }
+
 }
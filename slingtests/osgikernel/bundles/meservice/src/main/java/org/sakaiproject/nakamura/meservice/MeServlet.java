@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.meservice;
 
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.jackrabbit.api.security.principal.PrincipalIterator;
 import org.apache.jackrabbit.api.security.principal.PrincipalManager;
@@ -29,16 +30,23 @@ import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.personal.PersonalUtils;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.PathUtils;
+import org.sakaiproject.nakamura.util.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -55,6 +63,11 @@ import javax.jcr.Value;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
+/**
+ * Describes the current user and their profile. The response of each user is kept until
+ * their profile, properties or groups change, and is sent with an entity tag so that a
+ * client that has it already is answered with 304 Not Modified.
+ */
 @SlingServlet(paths = { "/system/me" }, generateComponent = true, generateService = true, methods = { "GET" })
 public class MeServlet extends SlingSafeMethodsServlet {
 
@@ -62,6 +75,41 @@ public class MeServlet extends SlingSafeMethodsServlet {
   private static final Logger LOG = LoggerFactory.getLogger(MeServlet.class);
   private static final String LOCALE_FIELD = "locale";
   private static final String TIMEZONE_FIELD = "timezone";
+  static final String SNAPSHOT_CACHE = MeServlet.class.getName() + ".snapshots";
+
+  @Reference
+  protected transient CacheManagerService cacheManagerService;
+
+  @Reference
+  protected transient SlingRepository slingRepository;
+
+  transient MeSnapshotCache snapshots;
+  private transient Session observationSession;
+
+  protected void activate(ComponentContext context) {
+    MeSnapshotCache snapshotCache = new MeSnapshotCache(cacheManagerService
+        .<MeSnapshotCache.Snapshot> getCache(SNAPSHOT_CACHE, CacheScope.INSTANCE));
+    try {
+      observationSession = slingRepository.loginAdministrative(null);
+      snapshotCache.start(observationSession);
+      snapshots = snapshotCache;
+    } catch (RepositoryException e) {
+      // without the events a snapshot could be served after it changed.
+      LOG.warn("Unable to follow profile changes, /system/me will not be cached", e);
+      deactivate(context);
+    }
+  }
+
+  protected void deactivate(ComponentContext context) {
+    if (snapshots != null) {
+      snapshots.stop();
+      snapshots = null;
+    }
+    if (observationSession != null) {
+      observationSession.logout();
+      observationSession = null;
+    }
+  }
 
   /**
    * {@inheritDoc}
@@ -76,22 +124,34 @@ public class MeServlet extends SlingSafeMethodsServlet {
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
       Session session = request.getResourceResolver().adaptTo(Session.class);
-      UserManager um = AccessControlUtil.getUserManager(session);
-      Authorizable au = um.getAuthorizable(session.getUserID());
-      PrintWriter w = response.getWriter();
-      ExtendedJSONWriter writer = new ExtendedJSONWriter(w);
-      writer.object();
-      // User info
-      writer.key("user");
-      writeUserJSON(writer, session, au);
-
-      // Dump this user his info
-      writer.key("profile");
-      String profilePath = PersonalUtils.getProfilePath(au);
-      Node profileNode = (Node) session.getItem(profilePath);
-      ExtendedJSONWriter.writeNodeTreeToWriter(writer, profileNode);
-
-      writer.endObject();
+      MeSnapshotCache snapshots = this.snapshots;
+      if (snapshots == null) {
+        writeMe(response.getWriter(), session, new HashSet<String>());
+        return;
+      }
+
+      String userId = session.getUserID();
+      MeSnapshotCache.Snapshot snapshot = snapshots.get(userId);
+      if (snapshot == null) {
+        long generation = snapshots.getGeneration();
+        StringWriter w = new StringWriter();
+        Set<String> principals = new HashSet<String>();
+        String profilePath = writeMe(w, session, principals);
+        String json = w.toString();
+        snapshot = new MeSnapshotCache.Snapshot(profilePath, json, "\""
+            + StringUtils.sha1Hash(json) + "\"");
+        snapshots.put(userId, snapshot, principals, generation);
+      }
+
+      response.setHeader("ETag", snapshot.etag);
+      response.setHeader("Cache-Control", "private, no-cache");
+      if (matches(request.getHeader("If-None-Match"), snapshot.etag)) {
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return;
+      }
+      response.getWriter().write(snapshot.json);
+    } catch (NoSuchAlgorithmException e) {
+      throw new ServletException("Unable to tag the /system/me response", e);
     } catch (JSONException e) {
       LOG.error("Failed to create proper JSON response in /system/me", e);
       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
@@ -104,15 +164,71 @@ public class MeServlet extends SlingSafeMethodsServlet {
 
   }
 
+  /**
+   * Write the user and their profile.
+   *
+   * @param w
+   * @param session
+   * @param principals
+   *          Filled with the names of the principals the user was written from.
+   * @return The path of the profile that was written.
+   * @throws RepositoryException
+   * @throws JSONException
+   */
+  protected String writeMe(Writer w, Session session, Set<String> principals)
+      throws RepositoryException, JSONException {
+    UserManager um = AccessControlUtil.getUserManager(session);
+    Authorizable au = um.getAuthorizable(session.getUserID());
+    ExtendedJSONWriter writer = new ExtendedJSONWriter(w);
+    writer.object();
+    // User info
+    writer.key("user");
+    principals.addAll(writeUserJSON(writer, session, au));
+
+    // Dump this user his info
+    writer.key("profile");
+    String profilePath = PersonalUtils.getProfilePath(au);
+    Node profileNode = (Node) session.getItem(profilePath);
+    ExtendedJSONWriter.writeNodeTreeToWriter(writer, profileNode);
+
+    writer.endObject();
+    return profilePath;
+  }
+
+  /**
+   * @param ifNoneMatch
+   *          The If-None-Match header of the request, may be null.
+   * @param etag
+   * @return true if the header names the entity tag or is *.
+   */
+  static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      // If-None-Match compares weakly.
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if ("*".equals(tag) || etag.equals(tag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /**
    * 
    * @param write
    * @param session
    * @param authorizable
+   * @return The names of the user's principal and of the groups written as subjects,
+   *         empty for anonymous.
    * @throws RepositoryException
    * @throws JSONException
    */
-  protected void writeUserJSON(ExtendedJSONWriter write, Session session,
+  protected Set<String> writeUserJSON(ExtendedJSONWriter write, Session session,
       Authorizable authorizable) throws RepositoryException, JSONException {
 
     String user = session.getUserID();
@@ -127,6 +243,7 @@ public class MeServlet extends SlingSafeMethodsServlet {
       write.key("superUser");
       write.value(false);
       write.endObject();
+      return new HashSet<String>();
     } else {
       PrincipalManager principalManager = AccessControlUtil.getPrincipalManager(session);
       Set<String> subjects = getSubjects(authorizable, principalManager);
@@ -136,8 +253,13 @@ public class MeServlet extends SlingSafeMethodsServlet {
       writeGeneralInfo(write, authorizable, subjects, properties);
       writeLocale(write, properties);
       write.endObject();
-    }
 
+      Set<String> principals = new HashSet<String>(subjects);
+      if (authorizable != null && authorizable.getPrincipal() != null) {
+        principals.add(authorizable.getPrincipal().getName());
+      }
+      return principals;
+    }
   }
 
   /**
@@ -0,0 +1,359 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+
+/**
+ * Holds the rendered /system/me response of each user until something it was built from
+ * changes. A snapshot is dropped when anything under the user's profile changes. Under
+ * /rep:security, where the properties and group membership of every user live, a change
+ * drops the snapshots that list the principal of the user or group changed, and for a
+ * group those of its members, so that a user just added to it is dropped too. When a
+ * user or group is removed it is not known which it was, and every snapshot is dropped.
+ * Events arrive after the save, so a snapshot may be out of date for a moment after a
+ * change.
+ */
+class MeSnapshotCache implements EventListener {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MeSnapshotCache.class);
+
+  private static final int EVENT_TYPES = Event.NODE_ADDED | Event.NODE_REMOVED
+      | Event.NODE_MOVED | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED
+      | Event.PROPERTY_REMOVED;
+
+  static final String SECURITY_PATH = "/rep:security";
+  static final String AUTHORIZABLE_TYPE = "rep:Authorizable";
+  static final String PRINCIPAL_NAME = "rep:principalName";
+  static final String MEMBERS = "rep:members";
+
+  private final Cache<Snapshot> cache;
+  /**
+   * The user each cached profile path belongs to.
+   */
+  private final ConcurrentMap<String, String> profiles =
+      new ConcurrentHashMap<String, String>();
+  /**
+   * The users whose snapshot lists each principal, their own or a group they are in.
+   */
+  private final Map<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+  /**
+   * The principals each user's snapshot lists, guarded by dependents.
+   */
+  private final Map<String, Set<String>> listed = new HashMap<String, Set<String>>();
+  /**
+   * Moved on by every invalidation, so a snapshot built while one happened is not kept.
+   */
+  private final AtomicLong generation = new AtomicLong();
+  private Session session;
+
+  /**
+   * @param cache
+   *          The cache to hold the snapshots in, keyed by user id.
+   */
+  MeSnapshotCache(Cache<Snapshot> cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Start following the repository.
+   *
+   * @param session
+   *          An administrative session, used for the events only. It stays open until
+   *          stop is called.
+   * @throws RepositoryException
+   */
+  void start(Session session) throws RepositoryException {
+    this.session = session;
+    ObservationManager observationManager = session.getWorkspace()
+        .getObservationManager();
+    observationManager.addEventListener(this, EVENT_TYPES, "/", true, null, null, false);
+  }
+
+  /**
+   * Stop following the repository and drop every snapshot. The session passed to start is
+   * not logged out.
+   */
+  void stop() {
+    if (session != null) {
+      try {
+        session.getWorkspace().getObservationManager().removeEventListener(this);
+      } catch (RepositoryException e) {
+        LOG.warn("Unable to remove /system/me cache listener: {}", e.getMessage());
+      }
+      session = null;
+    }
+    clear();
+  }
+
+  /**
+   * @param userId
+   * @return The snapshot of the user, or null if there is none.
+   */
+  Snapshot get(String userId) {
+    return cache.get(userId);
+  }
+
+  /**
+   * @return The generation to pass to put, taken before reading what a snapshot is built
+   *         from.
+   */
+  long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * Keep a snapshot, unless something was invalidated since the generation was taken.
+   *
+   * @param userId
+   * @param snapshot
+   * @param principals
+   *          The names of the principals the snapshot was built from, the user's own and
+   *          those of the groups listed.
+   * @param generation
+   *          The value of {@link #getGeneration()} before the snapshot was built.
+   */
+  void put(String userId, Snapshot snapshot, Set<String> principals, long generation) {
+    profiles.put(snapshot.profilePath, userId);
+    synchronized (dependents) {
+      forget(userId);
+      Set<String> names = new HashSet<String>(principals);
+      listed.put(userId, names);
+      for (String name : names) {
+        Set<String> users = dependents.get(name);
+        if (users == null) {
+          users = new HashSet<String>();
+          dependents.put(name, users);
+        }
+        users.add(userId);
+      }
+    }
+    cache.put(userId, snapshot);
+    // checked after the put, so an invalidation either sees the entry or moves this on.
+    if (this.generation.get() != generation) {
+      cache.remove(userId);
+    }
+  }
+
+  private void clear() {
+    generation.incrementAndGet();
+    cache.clear();
+    profiles.clear();
+    synchronized (dependents) {
+      dependents.clear();
+      listed.clear();
+    }
+  }
+
+  private void remove(String userId) {
+    generation.incrementAndGet();
+    cache.remove(userId);
+    synchronized (dependents) {
+      forget(userId);
+    }
+  }
+
+  /**
+   * Drop what a user's snapshot lists, the caller holds the lock on dependents.
+   */
+  private void forget(String userId) {
+    Set<String> names = listed.remove(userId);
+    if (names != null) {
+      for (String name : names) {
+        Set<String> users = dependents.get(name);
+        if (users != null && users.remove(userId) && users.isEmpty()) {
+          dependents.remove(name);
+        }
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jcr.observation.EventListener#onEvent(javax.jcr.observation.EventIterator)
+   */
+  public void onEvent(EventIterator events) {
+    while (events.hasNext()) {
+      Event event = events.nextEvent();
+      String path;
+      try {
+        path = event.getPath();
+      } catch (RepositoryException e) {
+        LOG.warn("Unable to read /system/me cache event, dropping all snapshots: {}", e
+            .getMessage());
+        clear();
+        continue;
+      }
+      if (path.startsWith(SECURITY_PATH)) {
+        try {
+          onSecurityEvent(path, event.getType());
+        } catch (RepositoryException e) {
+          LOG.warn("Unable to read the user or group changed at {}, dropping all "
+              + "snapshots: {}", path, e.getMessage());
+          clear();
+        }
+        continue;
+      }
+      // the event may be for the profile node or anything below it.
+      String p = path;
+      int i = p.length();
+      while (i > 0) {
+        p = p.substring(0, i);
+        String userId = profiles.get(p);
+        if (userId != null) {
+          remove(userId);
+          profiles.remove(p, userId);
+        }
+        i = p.lastIndexOf('/');
+      }
+    }
+  }
+
+  /**
+   * Drop the snapshots that a change under /rep:security may have made out of date.
+   *
+   * @param path
+   *          The path of the item changed.
+   * @param type
+   *          The type of the event.
+   * @throws RepositoryException
+   */
+  private void onSecurityEvent(String path, int type) throws RepositoryException {
+    Session session = this.session;
+    if (session == null) {
+      clear();
+      return;
+    }
+    Node authorizable = findAuthorizable(session, path);
+    if (authorizable == null) {
+      // a folder added, or a user or group removed.
+      if (type == Event.NODE_REMOVED) {
+        clear();
+      }
+      return;
+    }
+    Set<String> names = new HashSet<String>();
+    addPrincipals(session, authorizable, names, new HashSet<String>());
+    Set<String> users = new HashSet<String>();
+    synchronized (dependents) {
+      for (String name : names) {
+        Set<String> dependent = dependents.get(name);
+        if (dependent != null) {
+          users.addAll(dependent);
+        }
+      }
+    }
+    // moved on even if no snapshot lists them, one may be being built.
+    generation.incrementAndGet();
+    for (String userId : users) {
+      remove(userId);
+    }
+  }
+
+  /**
+   * @param session
+   * @param path
+   *          The path of an item under /rep:security, which may be gone.
+   * @return The user or group node at or above the path, or null if there is none.
+   * @throws RepositoryException
+   */
+  private Node findAuthorizable(Session session, String path) throws RepositoryException {
+    String p = path;
+    while (p.length() > SECURITY_PATH.length()) {
+      if (session.nodeExists(p)) {
+        Node node = session.getNode(p);
+        if (node.isNodeType(AUTHORIZABLE_TYPE)) {
+          return node;
+        }
+      }
+      p = p.substring(0, p.lastIndexOf('/'));
+    }
+    return null;
+  }
+
+  /**
+   * Add the principal name of a user or group, and for a group those of its members and
+   * theirs.
+   *
+   * @param session
+   * @param authorizable
+   * @param names
+   *          The principal names found so far.
+   * @param visited
+   *          The identifiers of the nodes looked at so far.
+   * @throws RepositoryException
+   */
+  private void addPrincipals(Session session, Node authorizable, Set<String> names,
+      Set<String> visited) throws RepositoryException {
+    if (!visited.add(authorizable.getIdentifier())) {
+      return;
+    }
+    if (authorizable.hasProperty(PRINCIPAL_NAME)) {
+      names.add(authorizable.getProperty(PRINCIPAL_NAME).getString());
+    }
+    if (authorizable.hasProperty(MEMBERS)) {
+      for (Value member : authorizable.getProperty(MEMBERS).getValues()) {
+        try {
+          addPrincipals(session, session.getNodeByIdentifier(member.getString()), names,
+              visited);
+        } catch (ItemNotFoundException e) {
+          // a weak reference to a member that has been removed.
+          LOG.debug("Group member {} is gone", member.getString());
+        }
+      }
+    }
+  }
+
+  /**
+   * A rendered response and its entity tag.
+   */
+  static class Snapshot implements Serializable {
+    private static final long serialVersionUID = -2357091713486128430L;
+    final String profilePath;
+    final String json;
+    final String etag;
+
+    Snapshot(String profilePath, String json, String etag) {
+      this.profilePath = profilePath;
+      this.json = json;
+      this.etag = etag;
+    }
+  }
+}
@@ -19,6 +19,9 @@ package org.sakaiproject.nakamura.meservice;
 
 import static org.easymock.EasyMock.expect;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import org.apache.jackrabbit.api.JackrabbitSession;
 import org.apache.jackrabbit.api.security.user.Authorizable;
@@ -28,7 +31,9 @@ import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
+import org.easymock.EasyMock;
 import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.personal.PersonalUtils;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
@@ -38,17 +43,26 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.PathNotFoundException;
+import javax.jcr.Property;
 import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.Workspace;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.ObservationManager;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
@@ -194,4 +208,266 @@ public class MeServletTest extends AbstractEasyMockTest {
 
     servlet.doGet(request, response);
   }
+
+  /**
+   * Repeated requests are answered from the snapshot without reading the repository, so
+   * the profile is read once however many requests there are.
+   */
+  @Test
+  public void testRepeatedRequests() throws Exception {
+    JackrabbitSession session = createAnonSession(1);
+    replay();
+
+    MeServlet servlet = new MeServlet();
+    servlet.snapshots = new MeSnapshotCache(new MapCache<MeSnapshotCache.Snapshot>());
+    String first = doGet(servlet, session, null);
+    assertTrue(new JSONObject(first).getJSONObject("user").getBoolean("anon"));
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(first, doGet(servlet, session, null));
+    }
+    EasyMock.verify(session);
+  }
+
+  @Test
+  public void testNotModified() throws Exception {
+    JackrabbitSession session = createAnonSession(1);
+    replay();
+
+    MeServlet servlet = new MeServlet();
+    servlet.snapshots = new MeSnapshotCache(new MapCache<MeSnapshotCache.Snapshot>());
+    doGet(servlet, session, null);
+    String etag = servlet.snapshots.get(UserConstants.ANON_USERID).etag;
+    assertEquals("", doGet(servlet, session, "\"other\", " + etag));
+    assertFalse("".equals(doGet(servlet, session, "\"other\"")));
+
+    assertTrue(MeServlet.matches("*", etag));
+    assertTrue(MeServlet.matches("W/" + etag, etag));
+    assertFalse(MeServlet.matches(null, etag));
+    EasyMock.verify(session);
+  }
+
+  @Test
+  public void testProfileChange() throws Exception {
+    Authorizable au = createAuthorizable(UserConstants.ANON_USERID, false, true);
+    String profilePath = PersonalUtils.getProfilePath(au);
+    JackrabbitSession session = createAnonSession(4);
+    replay();
+
+    MeServlet servlet = new MeServlet();
+    servlet.snapshots = new MeSnapshotCache(new MapCache<MeSnapshotCache.Snapshot>());
+    doGet(servlet, session, null);
+    servlet.snapshots.onEvent(createEvents("/some/other/node"));
+    doGet(servlet, session, null);
+    // a change to the profile or below it.
+    servlet.snapshots.onEvent(createEvents(profilePath + "/firstName"));
+    doGet(servlet, session, null);
+    servlet.snapshots.onEvent(createEvents(profilePath));
+    doGet(servlet, session, null);
+    // without a session to read it with, a change to any user or group.
+    servlet.snapshots.onEvent(createEvents("/rep:security/rep:authorizables/rep:groups/g"));
+    doGet(servlet, session, null);
+    EasyMock.verify(session);
+  }
+
+  @Test
+  public void testSecurityChange() throws Exception {
+    String users = MeSnapshotCache.SECURITY_PATH + "/rep:authorizables/rep:users";
+    String groups = MeSnapshotCache.SECURITY_PATH + "/rep:authorizables/rep:groups";
+    Session session = createMock(Session.class);
+    Workspace workspace = createMock(Workspace.class);
+    ObservationManager observationManager = createMock(ObservationManager.class);
+    expect(session.getWorkspace()).andReturn(workspace).anyTimes();
+    expect(workspace.getObservationManager()).andReturn(observationManager).anyTimes();
+    observationManager.addEventListener(EasyMock.isA(MeSnapshotCache.class), EasyMock
+        .anyInt(), EasyMock.eq("/"), EasyMock.eq(true), (String[]) EasyMock.isNull(),
+        (String[]) EasyMock.isNull(), EasyMock.eq(false));
+    createAuthorizableNode(session, users + "/b/bob", "bob");
+    createAuthorizableNode(session, groups + "/g/group", "group", "bob");
+    expect(session.nodeExists(EasyMock.isA(String.class))).andReturn(false).anyTimes();
+    replay();
+
+    Map<String, MeSnapshotCache.Snapshot> map = new HashMap<String, MeSnapshotCache.Snapshot>();
+    MeSnapshotCache snapshots = new MeSnapshotCache(new MapCache<MeSnapshotCache.Snapshot>());
+    snapshots.start(session);
+    map.put("alice", putSnapshot(snapshots, "alice", "alice", "group"));
+    map.put("bob", putSnapshot(snapshots, "bob", "bob"));
+    map.put("carol", putSnapshot(snapshots, "carol", "carol", "other"));
+
+    // a property of bob.
+    snapshots.onEvent(createEvents(Event.PROPERTY_CHANGED, users + "/b/bob/email"));
+    assertNull(snapshots.get("bob"));
+    assertEquals(map.get("alice"), snapshots.get("alice"));
+    map.put("bob", putSnapshot(snapshots, "bob", "bob"));
+
+    // bob added to the group alice is in, both are dropped.
+    snapshots.onEvent(createEvents(Event.PROPERTY_CHANGED, groups + "/g/group/"
+        + MeSnapshotCache.MEMBERS));
+    assertNull(snapshots.get("alice"));
+    assertNull(snapshots.get("bob"));
+    assertEquals(map.get("carol"), snapshots.get("carol"));
+
+    // a new folder is no user or group.
+    snapshots.onEvent(createEvents(Event.NODE_ADDED, users + "/d"));
+    assertEquals(map.get("carol"), snapshots.get("carol"));
+
+    // it is not known who was removed.
+    snapshots.onEvent(createEvents(Event.NODE_REMOVED, users + "/d/dave"));
+    assertNull(snapshots.get("carol"));
+    EasyMock.verify(session);
+  }
+
+  private MeSnapshotCache.Snapshot putSnapshot(MeSnapshotCache snapshots, String userId,
+      String... principals) {
+    MeSnapshotCache.Snapshot snapshot = new MeSnapshotCache.Snapshot("/_user/" + userId
+        + "/public/authprofile", "{}", "\"" + userId + "\"");
+    snapshots.put(userId, snapshot, new HashSet<String>(Arrays.asList(principals)),
+        snapshots.getGeneration());
+    assertEquals(snapshot, snapshots.get(userId));
+    return snapshot;
+  }
+
+  /**
+   * A user or group node, reachable by path and identifier.
+   *
+   * @param members
+   *          The principal names of the members of a group.
+   */
+  private void createAuthorizableNode(Session session, String path, String principalName,
+      String... members) throws RepositoryException {
+    Node node = createMock(Node.class);
+    expect(node.getIdentifier()).andReturn(principalName + "-id").anyTimes();
+    expect(node.isNodeType(MeSnapshotCache.AUTHORIZABLE_TYPE)).andReturn(true).anyTimes();
+    Property principal = createMock(Property.class);
+    expect(principal.getString()).andReturn(principalName).anyTimes();
+    expect(node.hasProperty(MeSnapshotCache.PRINCIPAL_NAME)).andReturn(true).anyTimes();
+    expect(node.getProperty(MeSnapshotCache.PRINCIPAL_NAME)).andReturn(principal)
+        .anyTimes();
+    expect(node.hasProperty(MeSnapshotCache.MEMBERS)).andReturn(members.length > 0)
+        .anyTimes();
+    if (members.length > 0) {
+      Value[] values = new Value[members.length];
+      for (int i = 0; i < members.length; i++) {
+        values[i] = createMock(Value.class);
+        expect(values[i].getString()).andReturn(members[i] + "-id").anyTimes();
+      }
+      Property property = createMock(Property.class);
+      expect(property.getValues()).andReturn(values).anyTimes();
+      expect(node.getProperty(MeSnapshotCache.MEMBERS)).andReturn(property).anyTimes();
+    }
+    expect(session.nodeExists(path)).andReturn(true).anyTimes();
+    expect(session.getNode(path)).andReturn(node).anyTimes();
+    expect(session.getNodeByIdentifier(principalName + "-id")).andReturn(node).anyTimes();
+  }
+
+  /**
+   * @param reads
+   *          The number of times the profile is expected to be read.
+   */
+  private JackrabbitSession createAnonSession(int reads) throws RepositoryException {
+    Authorizable au = createAuthorizable(UserConstants.ANON_USERID, false, true);
+    UserManager um = createUserManager(null, true, au);
+    String profilePath = PersonalUtils.getProfilePath(au);
+    Node profileNode = createMock(Node.class);
+    PropertyIterator propIterator = createMock(PropertyIterator.class);
+    NodeIterator nodeIterator = createMock(NodeIterator.class);
+    expect(propIterator.hasNext()).andReturn(false).anyTimes();
+    expect(nodeIterator.hasNext()).andReturn(false).anyTimes();
+    expect(profileNode.getNodes()).andReturn(nodeIterator).anyTimes();
+    expect(profileNode.getProperties()).andReturn(propIterator).anyTimes();
+    expect(profileNode.getName()).andReturn("authprofile").anyTimes();
+    expect(profileNode.getPath()).andReturn(profilePath).anyTimes();
+
+    JackrabbitSession session = createMock(JackrabbitSession.class);
+    expect(session.getUserID()).andReturn(UserConstants.ANON_USERID).anyTimes();
+    expect(session.getUserManager()).andReturn(um).times(reads);
+    expect(session.getItem(profilePath)).andReturn(profileNode).times(reads);
+    return session;
+  }
+
+  /**
+   * @return What was written, empty for a 304.
+   */
+  private String doGet(MeServlet servlet, Session session, String ifNoneMatch)
+      throws Exception {
+    ResourceResolver resolver = EasyMock.createMock(ResourceResolver.class);
+    expect(resolver.adaptTo(Session.class)).andReturn(session);
+    SlingHttpServletRequest request = EasyMock.createMock(SlingHttpServletRequest.class);
+    expect(request.getResourceResolver()).andReturn(resolver);
+    expect(request.getHeader("If-None-Match")).andReturn(ifNoneMatch);
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrintWriter w = new PrintWriter(baos);
+    SlingHttpServletResponse response = EasyMock
+        .createNiceMock(SlingHttpServletResponse.class);
+    expect(response.getWriter()).andReturn(w).anyTimes();
+    if (ifNoneMatch != null && MeServlet.matches(ifNoneMatch, servlet.snapshots.get(
+        UserConstants.ANON_USERID).etag)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      EasyMock.expectLastCall().once();
+    }
+    EasyMock.replay(resolver, request, response);
+
+    servlet.doGet(request, response);
+    EasyMock.verify(response);
+    w.flush();
+    return baos.toString("UTF-8");
+  }
+
+  private EventIterator createEvents(String... paths) throws RepositoryException {
+    return createEvents(Event.PROPERTY_CHANGED, paths);
+  }
+
+  private EventIterator createEvents(int type, String... paths) throws RepositoryException {
+    List<Event> events = new ArrayList<Event>();
+    for (String path : paths) {
+      Event event = EasyMock.createMock(Event.class);
+      expect(event.getPath()).andReturn(path).anyTimes();
+      expect(event.getType()).andReturn(type).anyTimes();
+      EasyMock.replay(event);
+      events.add(event);
+    }
+    EventIterator iterator = EasyMock.createMock(EventIterator.class);
+    for (Event event : events) {
+      expect(iterator.hasNext()).andReturn(true);
+      expect(iterator.nextEvent()).andReturn(event);
+    }
+    expect(iterator.hasNext()).andReturn(false);
+    EasyMock.replay(iterator);
+    return iterator;
+  }
+
+  /**
+   * A cache in a map.
+   */
+  private static class MapCache<V> implements Cache<V> {
+    private Map<String, V> map = new HashMap<String, V>();
+
+    public V put(String key, V payload) {
+      return map.put(key, payload);
+    }
+
+    public boolean containsKey(String key) {
+      return map.containsKey(key);
+    }
+
+    public V get(String key) {
+      return map.get(key);
+    }
+
+    public void clear() {
+      map.clear();
+    }
+
+    public void remove(String key) {
+      map.remove(key);
+    }
+
+    public void removeChildren(String key) {
+      map.remove(key);
+    }
+
+    public List<V> list() {
+      return new ArrayList<V>(map.values());
+    }
+  }
 }
@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.api.message;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -116,6 +117,18 @@ public interface MessagingService {
    */
   public void copyMessageNode(Node sourceMessage, String targetMessageStore) throws PathNotFoundException, RepositoryException;
 
+  /**
+   * Copies a message into several message stores, creating any missing parents. The
+   * copies are made in the session of the source message and saved together, once.
+   *
+   * @param sourceMessage
+   * @param targetMessageStores
+   * @throws RepositoryException
+   * @throws PathNotFoundException
+   */
+  public void copyMessageNodes(Node sourceMessage, Collection<String> targetMessageStores)
+      throws PathNotFoundException, RepositoryException;
+
   /**
    * Checks if the provided node is a message store node.
    * 
@@ -28,6 +28,7 @@ import org.osgi.framework.BundleContext;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.message.MessageProfileWriter;
 import org.sakaiproject.nakamura.api.message.MessagingService;
+import org.sakaiproject.nakamura.api.personal.CompactUserInfoResolver;
 import org.sakaiproject.nakamura.api.search.Aggregator;
 import org.sakaiproject.nakamura.api.search.SearchException;
 import org.sakaiproject.nakamura.api.search.SearchResultProcessor;
@@ -114,29 +115,50 @@ public class MessageSearchResultProcessor implements SearchResultProcessor {
     write.value(resultNode.getName());
 
     Session session = resultNode.getSession();
+    // The users are kept for the request, as a listing names the same people often.
+    CompactUserInfoResolver userInfo = CompactUserInfoResolver.getResolver(request,
+        session);
+    String[] rcpts = null;
+    MessageProfileWriter[] writers = null;
+    if (resultNode.hasProperty(PROP_SAKAI_TO)) {
+      String toVal = resultNode.getProperty(PROP_SAKAI_TO).getString();
+      String[] values = StringUtils.split(toVal, ',');
+      rcpts = new String[values.length];
+      writers = new MessageProfileWriter[values.length];
+      for (int i = 0; i < values.length; i++) {
+        String[] rcpt = StringUtils.split(values[i], ':');
+        // usually it should be type:user. But in case the handler changed this..
+        rcpts[i] = rcpt[0];
+        if (rcpt.length == 2) {
+          rcpts[i] = rcpt[1];
+          writers[i] = tracker.getMessageProfileWriterByType(rcpt[0]);
+        }
+        // the default writer writes the compact user info.
+        if (writers[i] == null || writers[i] instanceof InternalMessageHandler) {
+          writers[i] = null;
+          userInfo.register(rcpts[i]);
+        }
+      }
+    }
+    String[] senders = null;
+    if (resultNode.hasProperty(PROP_SAKAI_FROM)) {
+      String fromVal = resultNode.getProperty(PROP_SAKAI_FROM).getString();
+      senders = StringUtils.split(fromVal, ',');
+      userInfo.register(senders);
+    }
+    userInfo.resolve();
 
     // Write out all the recipients their information on this message.
     // We always return this as an array, even if it is only 1 recipient.
-    MessageProfileWriter defaultProfileWriter = new InternalMessageHandler();
-    if (resultNode.hasProperty(PROP_SAKAI_TO)) {
-      String toVal = resultNode.getProperty(PROP_SAKAI_TO).getString();
-      String[] rcpts = StringUtils.split(toVal, ',');
+    if (rcpts != null) {
       write.key("userTo");
       write.array();
-      for (String rcpt : rcpts) {
-        String[] values = StringUtils.split(rcpt, ':');
-        MessageProfileWriter writer = null;
-        // usually it should be type:user. But in case the handler changed this..
-        String user = values[0];
-        if (values.length == 2) {
-          user = values[1];
-          String type = values[0];
-          writer = tracker.getMessageProfileWriterByType(type);
-        }
-        if (writer == null) {
-          writer = defaultProfileWriter;
+      for (int i = 0; i < rcpts.length; i++) {
+        if (writers[i] == null) {
+          userInfo.write(rcpts[i], write);
+        } else {
+          writers[i].writeProfileInformation(session, rcpts[i], write);
         }
-        writer.writeProfileInformation(session, user, write);
       }
       write.endArray();
     }
@@ -144,13 +166,11 @@ public class MessageSearchResultProcessor implements SearchResultProcessor {
     // Although in most cases the sakai:from field will only contain 1 value.
     // We add in the option to support multiple cases.
     // For now we expect it to always be the user who sends the message.
-    if (resultNode.hasProperty(PROP_SAKAI_FROM)) {
-      String fromVal = resultNode.getProperty(PROP_SAKAI_FROM).getString();
-      String[] senders = StringUtils.split(fromVal, ',');
+    if (senders != null) {
       write.key("userFrom");
       write.array();
       for (String sender : senders) {
-        defaultProfileWriter.writeProfileInformation(session, sender, write);
+        userInfo.write(sender, write);
       }
       write.endArray();
     }
@@ -36,6 +36,7 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -43,10 +44,15 @@ import java.util.Map.Entry;
 import javax.jcr.AccessDeniedException;
 import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
+import javax.jcr.NodeIterator;
 import javax.jcr.PathNotFoundException;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.ValueFormatException;
+import javax.jcr.nodetype.NodeType;
+import javax.jcr.nodetype.PropertyDefinition;
 
 /**
  * Service for doing operations with messages.
@@ -201,6 +207,62 @@ public class MessagingServiceImpl implements MessagingService {
     session.getWorkspace().copy(sourceMessage.getPath(), targetNodePath);
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.message.MessagingService#copyMessageNodes(javax.jcr.Node,
+   *      java.util.Collection)
+   */
+  public void copyMessageNodes(Node sourceMessage, Collection<String> targetStores)
+      throws PathNotFoundException, RepositoryException {
+    Session session = sourceMessage.getSession();
+    String messageId = sourceMessage.getName();
+    for (String targetStore : targetStores) {
+      String targetNodePath = PathUtils.toSimpleShardPath(targetStore, messageId, "");
+      int slash = targetNodePath.lastIndexOf('/');
+      Node parent = JcrUtils.deepGetOrCreateNode(session, targetNodePath.substring(0, slash));
+      copyNode(sourceMessage, parent, targetNodePath.substring(slash + 1));
+    }
+    // the parents and all the copies are written in one save.
+    if (session.hasPendingChanges()) {
+      session.save();
+    }
+  }
+
+  /**
+   * Copy a node and everything below it in the transient space of the session. Protected
+   * properties are left for the repository to set on the copy.
+   *
+   * @param source
+   * @param parent
+   *          the node to add the copy to.
+   * @param name
+   *          the name of the copy.
+   * @throws RepositoryException
+   */
+  private void copyNode(Node source, Node parent, String name) throws RepositoryException {
+    Node copy = parent.addNode(name, source.getPrimaryNodeType().getName());
+    for (NodeType mixin : source.getMixinNodeTypes()) {
+      copy.addMixin(mixin.getName());
+    }
+    for (PropertyIterator pi = source.getProperties(); pi.hasNext();) {
+      Property property = pi.nextProperty();
+      PropertyDefinition definition = property.getDefinition();
+      if (definition.isProtected()) {
+        continue;
+      }
+      if (definition.isMultiple()) {
+        copy.setProperty(property.getName(), property.getValues());
+      } else {
+        copy.setProperty(property.getName(), property.getValue());
+      }
+    }
+    for (NodeIterator ni = source.getNodes(); ni.hasNext();) {
+      Node child = ni.nextNode();
+      copyNode(child, copy, child.getName());
+    }
+  }
+
 
   /**
    * 
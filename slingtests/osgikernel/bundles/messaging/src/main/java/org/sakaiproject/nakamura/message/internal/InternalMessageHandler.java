@@ -19,8 +19,8 @@
 package org.sakaiproject.nakamura.message.internal;
 
 import org.apache.sling.commons.json.io.JSONWriter;
-import org.apache.sling.jcr.api.SlingRepository;
 import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.jcr.AdminSessionService;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.message.MessageProfileWriter;
 import org.sakaiproject.nakamura.api.message.MessageRoute;
@@ -46,8 +46,8 @@ import javax.jcr.Session;
  * @scr.property name="service.vendor" value="The Sakai Foundation"
  * @scr.service interface="org.sakaiproject.nakamura.api.message.MessageTransport"
  * @scr.service interface="org.sakaiproject.nakamura.api.message.MessageProfileWriter"
- * @scr.reference interface="org.apache.sling.jcr.api.SlingRepository"
- *                name="SlingRepository"
+ * @scr.reference interface="org.sakaiproject.nakamura.api.jcr.AdminSessionService"
+ *                name="AdminSessionService"
  * @scr.reference interface="org.sakaiproject.nakamura.api.message.MessagingService"
  *                name="MessagingService"
  */
@@ -56,25 +56,25 @@ public class InternalMessageHandler implements MessageTransport, MessageProfileW
   private static final String TYPE = MessageConstants.TYPE_INTERNAL;
 
   /**
-   * The JCR Repository we access.
+   * Lends the admin sessions messages are delivered with.
    * 
    */
-  private SlingRepository slingRepository;
+  private AdminSessionService adminSessionService;
 
   /**
-   * @param slingRepository
-   *          the slingRepository to set
+   * @param adminSessionService
+   *          the adminSessionService to set
    */
-  protected void bindSlingRepository(SlingRepository slingRepository) {
-    this.slingRepository = slingRepository;
+  protected void bindAdminSessionService(AdminSessionService adminSessionService) {
+    this.adminSessionService = adminSessionService;
   }
 
   /**
-   * @param slingRepository
-   *          the slingRepository to unset
+   * @param adminSessionService
+   *          the adminSessionService to unset
    */
-  protected void unbindSlingRepository(SlingRepository slingRepository) {
-    this.slingRepository = null;
+  protected void unbindAdminSessionService(AdminSessionService adminSessionService) {
+    this.adminSessionService = null;
   }
 
   private MessagingService messagingService;
@@ -100,9 +100,10 @@ public class InternalMessageHandler implements MessageTransport, MessageProfileW
    *      org.osgi.service.event.Event, javax.jcr.Node)
    */
   public void send(MessageRoutes routes, Event event, Node originalMessage) {
+    Session session = null;
     try {
 
-      Session session = slingRepository.loginAdministrative(null);
+      session = adminSessionService.borrowSession();
 
       for (MessageRoute route : routes) {
         if (MessageTransport.INTERNAL_TRANSPORT.equals(route.getTransport())) {
@@ -132,6 +133,8 @@ public class InternalMessageHandler implements MessageTransport, MessageProfileW
       }
     } catch (RepositoryException e) {
       LOG.error(e.getMessage(), e);
+    } finally {
+      adminSessionService.returnSession(session);
     }
   }
 
@@ -19,14 +19,16 @@ package org.sakaiproject.nakamura.message.internal;
 
 import static org.junit.Assert.assertEquals;
 
+import static org.mockito.Mockito.verify;
+
 import static org.mockito.Mockito.when;
 
 import static org.mockito.Mockito.mock;
 
 import org.apache.sling.commons.testing.jcr.MockNode;
-import org.apache.sling.jcr.api.SlingRepository;
 import org.junit.Before;
 import org.junit.Test;
+import org.sakaiproject.nakamura.api.jcr.AdminSessionService;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.message.MessageRoutes;
 import org.sakaiproject.nakamura.api.message.MessagingService;
@@ -48,17 +50,17 @@ public class InternalMessageHandlerTest {
 
   private InternalMessageHandler handler;
   private MessagingService messagingService;
-  private SlingRepository slingRepository;
+  private AdminSessionService adminSessionService;
   private Session session;
 
   @Before
   public void setUp() throws Exception {
     messagingService = mock(MessagingService.class);
-    slingRepository = mock(SlingRepository.class);
+    adminSessionService = mock(AdminSessionService.class);
     session = mock(Session.class);
     handler = new InternalMessageHandler();
     handler.bindMessagingService(messagingService);
-    handler.bindSlingRepository(slingRepository);
+    handler.bindAdminSessionService(adminSessionService);
   }
 
   @Test
@@ -82,7 +84,7 @@ public class InternalMessageHandlerTest {
     when(session.itemExists(newPath)).thenReturn(true);
     when(session.getItem(newPath)).thenReturn(newNode);
 
-    when(slingRepository.loginAdministrative(null)).thenReturn(session);
+    when(adminSessionService.borrowSession()).thenReturn(session);
 
     when(messagingService.getFullPathToMessage("admin", "foo", session)).thenReturn(
         newPath);
@@ -97,6 +99,7 @@ public class InternalMessageHandlerTest {
         MessageConstants.PROP_SAKAI_MESSAGEBOX).getString());
     assertEquals(MessageConstants.STATE_NOTIFIED, newNode.getProperty(
         MessageConstants.PROP_SAKAI_SENDSTATE).getString());
+    verify(adminSessionService).returnSession(session);
 
   }
 }
@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.personal;
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.servlet.ServletRequest;
+
+/**
+ * Writes the compact information of users, as
+ * {@link PersonalUtils#writeCompactUserInfo(Session, String, JSONWriter)} does, looking
+ * each user up only once. A listing can register the ids it is going to write, resolve
+ * them in one pass and then write each of them as often as it appears. What is looked up
+ * is kept for the life of the resolver, so a resolver should not outlive a request and
+ * must not be shared between threads.
+ */
+public class CompactUserInfoResolver {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(CompactUserInfoResolver.class);
+
+  static final String REQUEST_ATTRIBUTE = CompactUserInfoResolver.class.getName();
+
+  private static final String[] PROFILE_PROPERTIES = { "firstName", "lastName",
+      "picture" };
+
+  private final Session session;
+  private UserManager userManager;
+  /**
+   * The information of each user looked up, null for ids that are not a user.
+   */
+  private final Map<String, UserInfo> users = new HashMap<String, UserInfo>();
+  private final Set<String> registered = new LinkedHashSet<String>();
+
+  /**
+   * @param session
+   *          The session to look users up with.
+   */
+  public CompactUserInfoResolver(Session session) {
+    this.session = session;
+  }
+
+  /**
+   * Get the resolver of a request, so that users are looked up once for all the rows of a
+   * listing.
+   *
+   * @param request
+   * @param session
+   *          The session the users are looked up with, a new resolver is made if the
+   *          resolver of the request is for a different one.
+   * @return The resolver kept on the request.
+   */
+  public static CompactUserInfoResolver getResolver(ServletRequest request,
+      Session session) {
+    Object resolver = request.getAttribute(REQUEST_ATTRIBUTE);
+    if (resolver instanceof CompactUserInfoResolver
+        && ((CompactUserInfoResolver) resolver).session == session) {
+      return (CompactUserInfoResolver) resolver;
+    }
+    CompactUserInfoResolver newResolver = new CompactUserInfoResolver(session);
+    request.setAttribute(REQUEST_ATTRIBUTE, newResolver);
+    return newResolver;
+  }
+
+  /**
+   * Register users that are going to be written, they are looked up by the next call to
+   * {@link #resolve()}.
+   *
+   * @param userIds
+   */
+  public void register(String... userIds) {
+    for (String userId : userIds) {
+      if (!users.containsKey(userId)) {
+        registered.add(userId);
+      }
+    }
+  }
+
+  /**
+   * Look up every registered user that has not been looked up yet.
+   */
+  public void resolve() {
+    for (String userId : registered) {
+      if (!users.containsKey(userId)) {
+        users.put(userId, lookUp(userId));
+      }
+    }
+    registered.clear();
+  }
+
+  /**
+   * Write the compact information of a user, looking the user up if that has not been
+   * done yet. Nothing is written for an id that is not a user.
+   *
+   * @param userId
+   * @param write
+   * @throws JSONException
+   */
+  public void write(String userId, JSONWriter write) throws JSONException {
+    UserInfo info = users.get(userId);
+    if (info == null) {
+      if (users.containsKey(userId)) {
+        return;
+      }
+      info = lookUp(userId);
+      users.put(userId, info);
+      if (info == null) {
+        return;
+      }
+    }
+    write.object();
+    write.key("userid");
+    write.value(userId);
+    write.key("hash");
+    write.value(info.hash);
+    if (info.profile != null) {
+      for (int i = 0; i < PROFILE_PROPERTIES.length; i++) {
+        write.key(PROFILE_PROPERTIES[i]);
+        write.value(info.profile[i]);
+      }
+    }
+    write.endObject();
+  }
+
+  /**
+   * @param userId
+   * @return The information of the user, or null if it is not a user.
+   */
+  private UserInfo lookUp(String userId) {
+    try {
+      if (userManager == null) {
+        userManager = AccessControlUtil.getUserManager(session);
+      }
+      Authorizable au = userManager.getAuthorizable(userId);
+      if (au == null) {
+        LOGGER.warn("Unable to write the information of {}, it is not a user", userId);
+        return null;
+      }
+      UserInfo info = new UserInfo(PersonalUtils.getUserHashedPath(au));
+      try {
+        Node profileNode = (Node) session.getItem(PersonalUtils.getProfilePath(au));
+        Object[] profile = new Object[PROFILE_PROPERTIES.length];
+        for (int i = 0; i < PROFILE_PROPERTIES.length; i++) {
+          String name = PROFILE_PROPERTIES[i];
+          // a property that isn't there is written as false.
+          profile[i] = profileNode.hasProperty(name) ? profileNode.getProperty(name)
+              .getString() : Boolean.FALSE;
+        }
+        info.profile = profile;
+      } catch (RepositoryException e) {
+        // The provided user-string is probably not a user id.
+        LOGGER.error(e.getMessage(), e);
+      }
+      return info;
+    } catch (RepositoryException e) {
+      LOGGER.error(e.getMessage(), e);
+      return null;
+    }
+  }
+
+  /**
+   * What is written for a user.
+   */
+  private static class UserInfo {
+    private final String hash;
+    /**
+     * The values of the profile properties, null if the profile can't be read.
+     */
+    private Object[] profile;
+
+    private UserInfo(String hash) {
+      this.hash = hash;
+    }
+  }
+}
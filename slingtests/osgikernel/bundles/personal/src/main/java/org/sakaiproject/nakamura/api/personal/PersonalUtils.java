@@ -109,7 +109,8 @@ public class PersonalUtils {
 
   /**
    * Write a small bit of information from an authprofile. userid, firstName, lastName,
-   * picture.
+   * picture. Listings that write many users should use a {@link CompactUserInfoResolver},
+   * which looks each user up once.
    * 
    * @param session
    *          The {@link Session session} to access the authprofile.
@@ -120,47 +121,9 @@ public class PersonalUtils {
    */
   public static void writeCompactUserInfo(Session session, String user, JSONWriter write) {
     try {
-      Authorizable au = getAuthorizable(session, user);
-      String profilePath = PersonalUtils.getProfilePath(au);
-      String hash = getUserHashedPath(au);
-      write.object();
-      write.key("userid");
-      write.value(user);
-      write.key("hash");
-      write.value(hash);
-      try {
-        Node profileNode = (Node) session.getItem(profilePath);
-        writeValue("firstName", profileNode, write);
-        writeValue("lastName", profileNode, write);
-        writeValue("picture", profileNode, write);
-      } catch (RepositoryException e) {
-        // The provided user-string is probably not a user id.
-        LOGGER.error(e.getMessage(), e);
-      }
-      write.endObject();
+      new CompactUserInfoResolver(session).write(user, write);
     } catch (JSONException e) {
       LOGGER.error(e.getMessage(), e);
-    } catch (RepositoryException e) {
-      LOGGER.error(e.getMessage(), e);
-    }
-  }
-
-  /**
-   * Write the value of a property form the profileNode. If the property doesn't exist it
-   * outputs "name": false.
-   * 
-   * @param string
-   * @param profileNode
-   * @throws RepositoryException
-   * @throws JSONException
-   */
-  private static void writeValue(String name, Node profileNode, JSONWriter write)
-      throws RepositoryException, JSONException {
-    write.key(name);
-    if (profileNode.hasProperty(name)) {
-      write.value(profileNode.getProperty(name).getString());
-    } else {
-      write.value(false);
     }
   }
 
@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.personal;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.assertEquals;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.easymock.EasyMock;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.personal.CompactUserInfoResolver;
+import org.sakaiproject.nakamura.api.personal.PersonalUtils;
+import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
+
+import java.io.StringWriter;
+
+import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+
+/**
+ *
+ */
+public class CompactUserInfoResolverTest extends AbstractEasyMockTest {
+
+  /**
+   * The authors of a 50 row listing, three people and an id that is not a user.
+   */
+  private static final String[] AUTHORS = new String[50];
+  static {
+    String[] ids = { "admin", "alice", "bob", "alice", "nobody" };
+    for (int i = 0; i < AUTHORS.length; i++) {
+      AUTHORS[i] = ids[i % ids.length];
+    }
+  }
+
+  /**
+   * Writing a listing a user at a time looks each author up for every row, the resolver
+   * looks each author up once and writes the same.
+   */
+  @Test
+  public void testRepeatedAuthors() throws Exception {
+    // 10 rows each for admin, bob and nobody, 20 for alice.
+    JackrabbitSession perRowSession = createSession(AUTHORS.length, 10, 20, 10, 10);
+    JackrabbitSession resolverSession = createSession(1, 1, 1, 1, 1);
+    replay();
+
+    StringWriter perRow = new StringWriter();
+    JSONWriter write = new JSONWriter(perRow);
+    write.array();
+    for (String author : AUTHORS) {
+      PersonalUtils.writeCompactUserInfo(perRowSession, author, write);
+    }
+    write.endArray();
+
+    StringWriter resolved = new StringWriter();
+    write = new JSONWriter(resolved);
+    CompactUserInfoResolver userInfo = new CompactUserInfoResolver(resolverSession);
+    userInfo.register(AUTHORS);
+    userInfo.resolve();
+    write.array();
+    for (String author : AUTHORS) {
+      userInfo.write(author, write);
+    }
+    write.endArray();
+
+    assertEquals(perRow.toString(), resolved.toString());
+    verify();
+
+    JSONArray users = new JSONArray(resolved.toString());
+    assertEquals(40, users.length());
+    JSONObject admin = users.getJSONObject(0);
+    assertEquals("admin", admin.getString("userid"));
+    assertEquals("Ad", admin.getString("firstName"));
+    assertEquals(false, admin.getBoolean("picture"));
+    // bob has no profile.
+    JSONObject bob = users.getJSONObject(2);
+    assertEquals("bob", bob.getString("userid"));
+    assertEquals(2, bob.length());
+  }
+
+  /**
+   * Users that are not registered are looked up when they are written.
+   */
+  @Test
+  public void testUnregistered() throws Exception {
+    JackrabbitSession session = createSession(1, 1, 1, 1, 1);
+    replay();
+
+    CompactUserInfoResolver userInfo = new CompactUserInfoResolver(session);
+    userInfo.register("admin");
+    userInfo.resolve();
+    StringWriter writer = new StringWriter();
+    JSONWriter write = new JSONWriter(writer);
+    write.array();
+    for (String author : AUTHORS) {
+      userInfo.write(author, write);
+    }
+    write.endArray();
+    assertEquals(40, new JSONArray(writer.toString()).length());
+    verify();
+  }
+
+  /**
+   * @param userManagers
+   *          The number of times the user manager is expected to be fetched.
+   * @return A session for admin, alice, bob and nobody, that expects the number of
+   *         lookups given for each.
+   */
+  private JackrabbitSession createSession(int userManagers, int admin, int alice, int bob,
+      int nobody) throws RepositoryException {
+    JackrabbitSession session = createMock(JackrabbitSession.class);
+    UserManager um = createMock(UserManager.class);
+    expect(session.getUserManager()).andReturn(um).times(userManagers);
+    addUser(session, um, "admin", "Ad", admin, true);
+    addUser(session, um, "alice", "Alice", alice, true);
+    addUser(session, um, "bob", "Bob", bob, false);
+    expect(um.getAuthorizable("nobody")).andReturn(null).times(nobody);
+    return session;
+  }
+
+  private void addUser(JackrabbitSession session, UserManager um, String id,
+      String firstName, int lookups, boolean hasProfile) throws RepositoryException {
+    Authorizable au = createAuthorizable(id, false, true);
+    expect(um.getAuthorizable(id)).andReturn(au).times(lookups);
+    String profilePath = PersonalUtils.getProfilePath(au);
+    if (!hasProfile) {
+      expect(session.getItem(profilePath)).andThrow(new PathNotFoundException())
+          .times(lookups);
+      return;
+    }
+    Node profile = EasyMock.createMock(Node.class);
+    Property name = EasyMock.createMock(Property.class);
+    expect(name.getString()).andReturn(firstName).anyTimes();
+    expect(profile.hasProperty("firstName")).andReturn(true).anyTimes();
+    expect(profile.getProperty("firstName")).andReturn(name).anyTimes();
+    expect(profile.hasProperty("lastName")).andReturn(false).anyTimes();
+    expect(profile.hasProperty("picture")).andReturn(false).anyTimes();
+    EasyMock.replay(profile, name);
+    expect(session.getItem(profilePath)).andReturn(profile).times(lookups);
+  }
+}
@@ -35,31 +35,39 @@ import org.apache.commons.httpclient.methods.PutMethod;
 import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.commons.httpclient.params.HttpMethodParams;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
-import org.apache.velocity.Template;
+import org.apache.sling.api.SlingConstants;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.VelocityEngine;
 import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.proxy.ProxyClientException;
 import org.sakaiproject.nakamura.api.proxy.ProxyClientService;
 import org.sakaiproject.nakamura.api.proxy.ProxyMethod;
 import org.sakaiproject.nakamura.api.proxy.ProxyNodeSource;
 import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+import org.sakaiproject.nakamura.proxy.velocity.CachedTemplate;
 import org.sakaiproject.nakamura.proxy.velocity.JcrResourceLoader;
+import org.sakaiproject.nakamura.proxy.velocity.TemplateCache;
 import org.sakaiproject.nakamura.proxy.velocity.VelocityLogger;
 import org.sakaiproject.nakamura.util.JcrUtils;
 import org.sakaiproject.nakamura.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.InputStream;
-import java.io.Reader;
-import java.io.StringReader;
 import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
 import java.util.Map;
 import java.util.Map.Entry;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Value;
+import javax.management.ObjectName;
 import javax.servlet.http.HttpServletResponse;
 
 /**
@@ -67,7 +75,32 @@ import javax.servlet.http.HttpServletResponse;
  */
 @Service
 @Component(immediate = true)
-public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSource {
+public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSource,
+    EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(ProxyClientServiceImpl.class);
+
+  /**
+   * Changes to proxy nodes invalidate the templates parsed from them.
+   */
+  @Property(value = { SlingConstants.TOPIC_RESOURCE_CHANGED,
+      SlingConstants.TOPIC_RESOURCE_REMOVED }, propertyPrivate = true)
+  static final String EVENT_TOPICS = EventConstants.EVENT_TOPIC;
+
+  /**
+   * Proxy nodes may only be stored under /var/proxy, events for other paths are not
+   * delivered.
+   */
+  @Property(value = "(" + SlingConstants.PROPERTY_PATH + "="
+      + ResourceProxyServlet.PROXY_PATH_PREFIX + "*)", propertyPrivate = true)
+  static final String EVENT_FILTER = EventConstants.EVENT_FILTER;
+
+  /**
+   * The name the template cache statistics are registered under with JMX.
+   */
+  private static final String TEMPLATE_CACHE_MBEAN =
+      "org.sakaiproject.nakamura.proxy:type=TemplateCache";
 
   /**
    * 
@@ -91,11 +124,16 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
 
 
   /**
-   * The shared velocity engine, which should cache all the templates. (need to sort out
-   * how to invalidate).
+   * The shared velocity engine, used to parse templates on a cache miss.
    */
   private VelocityEngine velocityEngine;
 
+  /**
+   * The parsed url and body templates, keyed by proxy node path, invalidated when the
+   * node changes.
+   */
+  private TemplateCache templateCache;
+
   /**
    * A multi threaded connection manager to provide http connections with pooling.
    */
@@ -130,6 +168,14 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
         + ProxyNodeSource.JCR_RESOURCE_LOADER_RESOURCE_SOURCE, this);
     velocityEngine.setExtendedProperties(configuration);
     velocityEngine.init();
+    templateCache = new TemplateCache(velocityEngine);
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(templateCache,
+          new ObjectName(TEMPLATE_CACHE_MBEAN));
+    } catch (Exception e) {
+      LOGGER.warn("Unable to register the proxy template cache with JMX: {}", e
+          .getMessage());
+    }
 
     httpClientConnectionManager = new MultiThreadedHttpConnectionManager();
     HttpConnectionManagerParams params = new HttpConnectionManagerParams();
@@ -147,6 +193,43 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
    */
   protected void deactivate(ComponentContext ctx) throws Exception {
     httpClientConnectionManager.shutdown();
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+          new ObjectName(TEMPLATE_CACHE_MBEAN));
+    } catch (Exception e) {
+      LOGGER.debug("Unable to unregister the proxy template cache: {}", e.getMessage());
+    }
+    if (LOGGER.isDebugEnabled()) {
+      for (CachedTemplate template : templateCache.getTemplates()) {
+        LOGGER.debug("Template {} ", template);
+      }
+    }
+    templateCache.clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (path == null) {
+      return;
+    }
+    if (SlingConstants.TOPIC_RESOURCE_REMOVED.equals(event.getTopic())) {
+      // a removed node takes the proxy nodes under it with it.
+      templateCache.invalidateTree(path);
+    } else {
+      templateCache.invalidate(path);
+    }
+  }
+
+  /**
+   * @return the cache of parsed templates, with the render time of each template.
+   */
+  public TemplateCache getTemplateCache() {
+    return templateCache;
   }
 
   /**
@@ -199,12 +282,9 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
         VelocityContext context = new VelocityContext(input);
 
         // setup the post request
-        String endpointURL = JcrUtils.getMultiValueString(node
-            .getProperty(SAKAI_REQUEST_PROXY_ENDPOINT));
-        Reader urlTemplateReader = new StringReader(endpointURL);
         StringWriter urlWriter = new StringWriter();
-        velocityEngine.evaluate(context, urlWriter, "urlprocessing", urlTemplateReader);
-        endpointURL = urlWriter.toString();
+        templateCache.getUrlTemplate(node.getPath()).merge(context, urlWriter);
+        String endpointURL = urlWriter.toString();
 
         ProxyMethod proxyMethod = ProxyMethod.GET;
         if (node.hasProperty(SAKAI_REQUEST_PROXY_METHOD)) {
@@ -312,9 +392,8 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
                   requestContentLength, contentType));
             } else {
               // build the request
-              Template template = velocityEngine.getTemplate(node.getPath());
               StringWriter body = new StringWriter();
-              template.merge(context, body);
+              templateCache.getRequestTemplate(node.getPath()).merge(context, body);
               byte[] soapBodyContent = body.toString().getBytes("UTF-8");
               eemethod.setRequestEntity(new ByteArrayRequestEntity(soapBodyContent,
                   contentType));
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy.velocity;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.context.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A parsed velocity template together with the time spent rendering it. Velocity
+ * templates are safe to merge concurrently once parsed, so a single instance is shared
+ * by all threads calling the same proxy end point.
+ */
+public class CachedTemplate {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CachedTemplate.class);
+
+  private final String name;
+  private final Template template;
+  private final AtomicLong renderCount = new AtomicLong();
+  private final AtomicLong totalRenderTime = new AtomicLong();
+  private final AtomicLong maxRenderTime = new AtomicLong();
+
+  /**
+   * @param name
+   *          the name the template was loaded with.
+   * @param template
+   *          the parsed template.
+   */
+  public CachedTemplate(String name, Template template) {
+    this.name = name;
+    this.template = template;
+  }
+
+  /**
+   * Merge the template with the context, recording the time taken.
+   *
+   * @param context
+   * @param writer
+   * @throws IOException
+   */
+  public void merge(Context context, Writer writer) throws IOException {
+    long start = System.nanoTime();
+    try {
+      template.merge(context, writer);
+    } finally {
+      long elapsed = System.nanoTime() - start;
+      renderCount.incrementAndGet();
+      totalRenderTime.addAndGet(elapsed);
+      long max = maxRenderTime.get();
+      while (elapsed > max && !maxRenderTime.compareAndSet(max, elapsed)) {
+        max = maxRenderTime.get();
+      }
+      LOGGER.debug("Rendered {} in {} ns", name, elapsed);
+    }
+  }
+
+  /**
+   * @return the name the template was loaded with.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return the number of times this template has been rendered.
+   */
+  public long getRenderCount() {
+    return renderCount.get();
+  }
+
+  /**
+   * @return the total time spent rendering this template, in nanoseconds.
+   */
+  public long getTotalRenderTime() {
+    return totalRenderTime.get();
+  }
+
+  /**
+   * @return the longest single render of this template, in nanoseconds.
+   */
+  public long getMaxRenderTime() {
+    return maxRenderTime.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    long count = renderCount.get();
+    long mean = count == 0 ? 0 : totalRenderTime.get() / count;
+    return name + " renders=" + count + " mean=" + mean + "ns max=" + maxRenderTime.get()
+        + "ns";
+  }
+}
@@ -24,11 +24,14 @@ import org.apache.velocity.runtime.resource.Resource;
 import org.apache.velocity.runtime.resource.loader.ResourceLoader;
 import org.sakaiproject.nakamura.api.proxy.ProxyClientService;
 import org.sakaiproject.nakamura.api.proxy.ProxyNodeSource;
+import org.sakaiproject.nakamura.util.JcrUtils;
 import org.sakaiproject.nakamura.util.MultiValueInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 
 import javax.jcr.Node;
 import javax.jcr.PathNotFoundException;
@@ -40,6 +43,13 @@ import javax.jcr.RepositoryException;
  */
 public class JcrResourceLoader extends ResourceLoader {
 
+  /**
+   * Appended to the path of a proxy node to name its end point url template, rather than
+   * its request body template. The '|' character can't appear in a JCR name so this can't
+   * clash with a real node path.
+   */
+  public static final String URL_TEMPLATE_SUFFIX = "|url";
+
   private static final Logger LOGGER = LoggerFactory.getLogger(JcrResourceLoader.class);
   private ProxyNodeSource nodeSource;
 
@@ -87,12 +97,19 @@ public class JcrResourceLoader extends ResourceLoader {
   public InputStream getResourceStream(String source) throws ResourceNotFoundException {
     try {
       Node node = getNode(source);
+      if (node != null && source.endsWith(URL_TEMPLATE_SUFFIX)) {
+        String endpoint = JcrUtils.getMultiValueString(node
+            .getProperty(ProxyClientService.SAKAI_REQUEST_PROXY_ENDPOINT));
+        return new ByteArrayInputStream(endpoint.getBytes("UTF-8"));
+      }
       if (node != null && node.hasProperty(ProxyClientService.SAKAI_PROXY_REQUEST_TEMPLATE)) {
         Property template = node.getProperty(ProxyClientService.SAKAI_PROXY_REQUEST_TEMPLATE);
         return new MultiValueInputStream(template);
       }
     } catch (RepositoryException e) {
       LOGGER.warn(e.getMessage());
+    } catch (UnsupportedEncodingException e) {
+      LOGGER.warn(e.getMessage());
     }
     return null;
   }
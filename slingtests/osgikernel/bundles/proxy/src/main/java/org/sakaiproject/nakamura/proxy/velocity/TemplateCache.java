@@ -0,0 +1,190 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy.velocity;
+
+import org.apache.velocity.app.VelocityEngine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the parsed url and request body templates of proxy nodes, keyed by the path of
+ * the proxy node. Templates are loaded through the {@link JcrResourceLoader} from the
+ * node bound to the current thread, so a miss must happen while the node is bound.
+ * Entries are held until the node they came from is invalidated. The cache and the render
+ * times of its templates can be read over JMX through {@link TemplateCacheMBean}.
+ */
+public class TemplateCache implements TemplateCacheMBean {
+
+  private static final String UTF_8 = "UTF-8";
+
+  private final VelocityEngine velocityEngine;
+
+  private final ConcurrentMap<String, CachedTemplate> templates = new ConcurrentHashMap<String, CachedTemplate>();
+
+  /**
+   * Incremented on every invalidation so that a template loaded while the node was
+   * changing is not put back into the cache.
+   */
+  private final AtomicLong generation = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param velocityEngine
+   *          the engine used to parse templates on a cache miss.
+   */
+  public TemplateCache(VelocityEngine velocityEngine) {
+    this.velocityEngine = velocityEngine;
+  }
+
+  /**
+   * @param path
+   *          the path of the proxy node.
+   * @return the parsed end point url template of the proxy node.
+   * @throws Exception
+   *           if the template could not be loaded or parsed.
+   */
+  public CachedTemplate getUrlTemplate(String path) throws Exception {
+    return getTemplate(path + JcrResourceLoader.URL_TEMPLATE_SUFFIX, UTF_8);
+  }
+
+  /**
+   * @param path
+   *          the path of the proxy node.
+   * @return the parsed request body template of the proxy node.
+   * @throws Exception
+   *           if the template could not be loaded or parsed.
+   */
+  public CachedTemplate getRequestTemplate(String path) throws Exception {
+    return getTemplate(path, null);
+  }
+
+  private CachedTemplate getTemplate(String name, String encoding) throws Exception {
+    CachedTemplate template = templates.get(name);
+    if (template != null) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+      long loadGeneration = generation.get();
+      if (encoding == null) {
+        template = new CachedTemplate(name, velocityEngine.getTemplate(name));
+      } else {
+        template = new CachedTemplate(name, velocityEngine.getTemplate(name, encoding));
+      }
+      if (loadGeneration == generation.get()) {
+        CachedTemplate existing = templates.putIfAbsent(name, template);
+        if (existing != null) {
+          template = existing;
+        }
+      }
+    }
+    return template;
+  }
+
+  /**
+   * Remove the templates loaded from the node at path.
+   *
+   * @param path
+   *          the path of the node that changed.
+   */
+  public void invalidate(String path) {
+    generation.incrementAndGet();
+    templates.remove(path);
+    templates.remove(path + JcrResourceLoader.URL_TEMPLATE_SUFFIX);
+  }
+
+  /**
+   * Remove all the templates loaded from the node at path, or from any node below it.
+   *
+   * @param path
+   *          the path of the node that was removed.
+   */
+  public void invalidateTree(String path) {
+    generation.incrementAndGet();
+    String childPrefix = path + "/";
+    for (String name : templates.keySet()) {
+      String nodePath = name;
+      if (name.endsWith(JcrResourceLoader.URL_TEMPLATE_SUFFIX)) {
+        nodePath = name.substring(0, name.length()
+            - JcrResourceLoader.URL_TEMPLATE_SUFFIX.length());
+      }
+      if (nodePath.equals(path) || nodePath.startsWith(childPrefix)) {
+        templates.remove(name);
+      }
+    }
+  }
+
+  /**
+   * Remove all templates.
+   */
+  public void clear() {
+    generation.incrementAndGet();
+    templates.clear();
+  }
+
+  /**
+   * @return the templates currently held, with their render statistics.
+   */
+  public List<CachedTemplate> getTemplates() {
+    return new ArrayList<CachedTemplate>(templates.values());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.proxy.velocity.TemplateCacheMBean#getTemplateCount()
+   */
+  public int getTemplateCount() {
+    return templates.size();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.proxy.velocity.TemplateCacheMBean#getHits()
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.proxy.velocity.TemplateCacheMBean#getMisses()
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.proxy.velocity.TemplateCacheMBean#getRenderTimes()
+   */
+  public String[] getRenderTimes() {
+    List<String> renderTimes = new ArrayList<String>();
+    for (CachedTemplate template : templates.values()) {
+      renderTimes.add(template.toString());
+    }
+    return renderTimes.toArray(new String[renderTimes.size()]);
+  }
+}
@@ -15,37 +15,30 @@
  * KIND, either express or implied. See the License for the
  * specific language governing permissions and limitations under the License.
  */
-package org.sakaiproject.nakamura.site;
-
-import java.util.Map;
+package org.sakaiproject.nakamura.proxy.velocity;
 
 /**
- * 
+ * The statistics of the proxy template cache, as they are shown over JMX.
  */
-public class MembershipTree {
-
-  private Map<GroupKey, Membership> groups;
-  private Map<UserKey, Membership> users;
+public interface TemplateCacheMBean {
 
   /**
-   * @param groups
-   * @param users
+   * @return the number of parsed templates held.
    */
-  public MembershipTree(Map<GroupKey, Membership> groups, Map<UserKey, Membership> users) {
-    this.groups = groups;
-    this.users = users;
-  }
+  int getTemplateCount();
+
   /**
-   * @return the groups
+   * @return the number of times a template was found in the cache.
    */
-  public Map<GroupKey, Membership> getGroups() {
-    return groups;
-  }
+  long getHits();
+
   /**
-   * @return the users
+   * @return the number of times a template had to be loaded and parsed.
    */
-  public Map<UserKey, Membership> getUsers() {
-    return users;
-  }
+  long getMisses();
 
+  /**
+   * @return the name, render count, mean and longest render time of each template held.
+   */
+  String[] getRenderTimes();
 }
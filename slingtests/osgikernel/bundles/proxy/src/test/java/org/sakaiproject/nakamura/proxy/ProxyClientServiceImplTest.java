@@ -24,11 +24,13 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.SlingConstants;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.proxy.ProxyClientException;
 import org.sakaiproject.nakamura.api.proxy.ProxyClientService;
 import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
@@ -40,6 +42,7 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.Hashtable;
 import java.util.Map;
 
 import javax.jcr.Binary;
@@ -253,6 +256,7 @@ public class ProxyClientServiceImplTest extends AbstractEasyMockTest {
 
     expect(node.hasProperty(ProxyClientService.SAKAI_PROXY_HEADER)).andReturn(
         false).atLeastOnce();
+    expect(node.hasProperty(JcrConstants.JCR_LASTMODIFIED)).andReturn(false).anyTimes();
  
     expect(node.hasProperty(ProxyClientService.SAKAI_REQUEST_PROXY_METHOD)).andReturn(
         true);
@@ -323,6 +327,75 @@ public class ProxyClientServiceImplTest extends AbstractEasyMockTest {
     testRequest(null, "GET", RESPONSE_BODY, -1);
   }
 
+  @Test
+  public void testUrlTemplateCachedUntilNodeChanges() throws ProxyClientException,
+      RepositoryException, IOException {
+    Node node = createMock(Node.class);
+
+    expect(node.getPath()).andReturn("/testing").anyTimes();
+
+    Property endpointProperty = createMock(Property.class);
+    Property requestMethodProperty = createMock(Property.class);
+    PropertyDefinition propertyDefinition = createMock(PropertyDefinition.class);
+    Value value = createMock(Value.class);
+
+    expect(node.hasProperty(ProxyClientService.SAKAI_PROXY_REQUEST_TEMPLATE)).andReturn(
+        false).anyTimes();
+    expect(node.hasProperty(ProxyClientService.SAKAI_REQUEST_PROXY_ENDPOINT)).andReturn(
+        true).times(3);
+    expect(node.hasProperty(ProxyClientService.SAKAI_PROXY_HEADER)).andReturn(
+        false).anyTimes();
+    expect(node.hasProperty(ProxyClientService.SAKAI_LIMIT_GET_SIZE)).andReturn(
+        false).anyTimes();
+    expect(node.hasProperty(JcrConstants.JCR_LASTMODIFIED)).andReturn(false).anyTimes();
+    expect(node.hasProperty(ProxyClientService.SAKAI_REQUEST_PROXY_METHOD)).andReturn(
+        true).anyTimes();
+    expect(node.getProperty(ProxyClientService.SAKAI_REQUEST_PROXY_METHOD)).andReturn(
+        requestMethodProperty).anyTimes();
+    expect(requestMethodProperty.getString()).andReturn("GET").anyTimes();
+
+    // the end point is only read when the template is parsed, once before and once
+    // after the node changes.
+    expect(node.getProperty(ProxyClientService.SAKAI_REQUEST_PROXY_ENDPOINT)).andReturn(
+        endpointProperty).times(2);
+    expect(endpointProperty.getDefinition()).andReturn(propertyDefinition).times(2);
+    expect(propertyDefinition.isMultiple()).andReturn(false).times(2);
+    expect(endpointProperty.getValue()).andReturn(value).times(2);
+    expect(value.getString()).andReturn(dummyServer.getUrl()).times(2);
+
+    dummyServer.setContentType(APPLICATION_SOAP_XML_CHARSET_UTF_8);
+    dummyServer.setResponseBody(RESPONSE_BODY);
+
+    replay();
+    Map<String, Object> input = new HashMap<String, Object>();
+    Map<String, String> headers = new HashMap<String, String>();
+    for (int i = 0; i < 3; i++) {
+      if (i == 1) {
+        // a change to another node, even one below this, leaves the template alone.
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put(SlingConstants.PROPERTY_PATH, "/testing/child");
+        proxyClientServiceImpl.handleEvent(new Event(
+            SlingConstants.TOPIC_RESOURCE_CHANGED, properties));
+      }
+      if (i == 2) {
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put(SlingConstants.PROPERTY_PATH, "/testing");
+        proxyClientServiceImpl.handleEvent(new Event(
+            SlingConstants.TOPIC_RESOURCE_CHANGED, properties));
+      }
+      ProxyResponse response = proxyClientServiceImpl.executeCall(node, headers, input,
+          null, 0, null);
+      assertEquals("GET", dummyServer.getRequest().getMethod());
+      assertEquals(RESPONSE_BODY, response.getResponseBodyAsString());
+      response.close();
+    }
+    assertEquals(2, proxyClientServiceImpl.getTemplateCache().getMisses());
+    assertEquals(1, proxyClientServiceImpl.getTemplateCache().getHits());
+    assertEquals(1, proxyClientServiceImpl.getTemplateCache().getRenderTimes().length);
+
+    verify();
+  }
+
   private void testRequest(String type, String expectedMethod, String body, long limit)
       throws ProxyClientException, RepositoryException, IOException {
     Node node = createMock(Node.class);
@@ -343,6 +416,7 @@ public class ProxyClientServiceImplTest extends AbstractEasyMockTest {
         endpointProperty);
     expect(node.hasProperty(ProxyClientService.SAKAI_PROXY_HEADER)).andReturn(
         false).atLeastOnce();
+    expect(node.hasProperty(JcrConstants.JCR_LASTMODIFIED)).andReturn(false).anyTimes();
 
     if ( limit == -1 ) {
       expect(node.hasProperty(ProxyClientService.SAKAI_LIMIT_GET_SIZE)).andReturn(
@@ -18,44 +18,70 @@
 
 package org.sakaiproject.nakamura.api.search;
 
+import java.util.Comparator;
 import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 
+import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
+import javax.jcr.Value;
 import javax.jcr.query.Row;
 import javax.jcr.query.RowIterator;
 
+/**
+ * Merges several row iterators, each already sorted on the same column, into one. The
+ * next row of every iterator is kept in a heap so a row costs a log of the number of
+ * iterators. Rows with the same value come from the first iterator first. Without a sort
+ * column the iterators are read one after the other.
+ */
 public class MergedRowIterator implements RowIterator {
 
-  private RowIterator iteratorA;
-  private RowIterator iteratorB;
-
-  private Row rowA = null;
-  private Row rowB = null;
-
-  private int pos;
+  /**
+   * The column rows are sorted on by default, highest first.
+   */
+  public static final String JCR_SCORE = "jcr:score";
+
+  private RowIterator[] iterators;
+  private String sortColumn;
+  private boolean descending;
+  /**
+   * The next row of every iterator that has one, once started.
+   */
+  private PriorityQueue<Head> heads;
+
+  private long pos;
+
+  /**
+   * Merge iterators sorted on score, highest first.
+   * 
+   * @param iterators
+   */
+  public MergedRowIterator(RowIterator... iterators) {
+    this(JCR_SCORE, true, iterators);
+  }
 
-  public MergedRowIterator(RowIterator iteratorA, RowIterator iteratorB) {
-    this.iteratorA = iteratorA;
-    this.iteratorB = iteratorB;
+  /**
+   * @param sortColumn
+   *          the column the iterators are sorted on, or null to read them one after the
+   *          other.
+   * @param descending
+   *          true if the iterators are sorted highest first.
+   * @param iterators
+   */
+  public MergedRowIterator(String sortColumn, boolean descending, RowIterator... iterators) {
+    this.iterators = iterators;
+    this.sortColumn = sortColumn;
+    this.descending = descending;
   }
 
   public Row nextRow() {
-    Row rowA = getRowA();
-    Row rowB = getRowB();
-
-    Row r = null;
-
-    if (compare(rowA, rowB)) {
-      r = rowA;
-      this.rowA = null;
-    } else {
-      r = rowB;
-      this.rowB = null;
-    }
-    pos++;
-    if (r == null) {
+    Head head = getHeads().poll();
+    if (head == null) {
       throw new IllegalStateException();
     }
+    Row r = head.row;
+    advance(head);
+    pos++;
     return r;
   }
 
@@ -63,26 +89,56 @@ public class MergedRowIterator implements RowIterator {
     return pos;
   }
 
+  /**
+   * @return the sum of the sizes of the iterators, or -1 if any of them is unknown.
+   */
   public long getSize() {
-    // We could do something like: iteratorA.getSize() + iteratorB.getSize()
-    // But this is terribly slow and should not be attempted.
-    return -1;
+    long size = 0;
+    for (RowIterator iterator : iterators) {
+      long s = iterator.getSize();
+      if (s < 0) {
+        return -1;
+      }
+      size += s;
+    }
+    return size;
   }
 
+  /**
+   * Skip rows. Rows are read and dropped while they have to be compared, once the rows
+   * left to skip all come from one iterator of a known size the skip is handed to it.
+   * 
+   * @see javax.jcr.RangeIterator#skip(long)
+   */
   public void skip(long skipNum) {
-    // TODO Find a better performing mechanism for this.
+    PriorityQueue<Head> heads = getHeads();
     while (skipNum > 0) {
-      try {
-        nextRow();
-      } catch (IllegalStateException e) {
+      Head head = heads.poll();
+      if (head == null) {
         throw new NoSuchElementException();
       }
       skipNum--;
+      pos++;
+      // the rows after the head of the iterator come next if it is the only one left, or
+      // if the iterators are read one after the other.
+      if (skipNum > 0 && (sortColumn == null || heads.isEmpty())) {
+        long size = head.iterator.getSize();
+        if (size >= 0) {
+          long n = Math.min(skipNum, size - head.read);
+          if (n > 0) {
+            head.iterator.skip(n);
+            head.read += n;
+            skipNum -= n;
+            pos += n;
+          }
+        }
+      }
+      advance(head);
     }
   }
 
   public boolean hasNext() {
-    return iteratorA.hasNext() || iteratorB.hasNext();
+    return !getHeads().isEmpty();
   }
 
   public Object next() {
@@ -93,37 +149,90 @@ public class MergedRowIterator implements RowIterator {
     throw new UnsupportedOperationException();
   }
 
-  private long getScore(Row row) {
-    try {
-      if (row == null) {
-        return Long.MIN_VALUE;
+  private PriorityQueue<Head> getHeads() {
+    if (heads == null) {
+      heads = new PriorityQueue<Head>(Math.max(1, iterators.length), new Comparator<Head>() {
+        public int compare(Head o1, Head o2) {
+          int c = compareKeys(o1.key, o2.key);
+          return (c == 0) ? o1.index - o2.index : c;
+        }
+      });
+      for (int i = 0; i < iterators.length; i++) {
+        advance(new Head(iterators[i], i));
       }
-      return row.getValue("jcr:score").getLong();
-    } catch (RepositoryException e) {
-      return 0;
     }
+    return heads;
   }
 
-  private boolean compare(Row rowA, Row rowB) {
-    long l1 = getScore(rowA);
-    long l2 = getScore(rowB);
-    return (l1 >= l2);
+  /**
+   * Read the next row of the iterator of a head, and queue the head if there is one.
+   */
+  private void advance(Head head) {
+    if (head.iterator.hasNext()) {
+      head.row = head.iterator.nextRow();
+      head.read++;
+      head.key = getKey(head.row);
+      heads.add(head);
+    }
   }
 
-  private Row getRowA() {
-    if (rowA == null && iteratorA.hasNext()) {
-      this.rowA = iteratorA.nextRow();
+  @SuppressWarnings("unchecked")
+  private int compareKeys(Comparable k1, Comparable k2) {
+    if (sortColumn == null) {
+      return 0;
     }
-
-    return rowA;
+    // rows without a value go last.
+    if (k1 == null || k2 == null) {
+      return (k1 == null) ? ((k2 == null) ? 0 : 1) : -1;
+    }
+    int c = k1.compareTo(k2);
+    return descending ? -c : c;
   }
 
-  private Row getRowB() {
-    if (rowB == null && iteratorB.hasNext()) {
-      this.rowB = iteratorB.nextRow();
+  private Comparable<?> getKey(Row row) {
+    if (sortColumn == null) {
+      return null;
+    }
+    try {
+      Value value = row.getValue(sortColumn);
+      if (value == null) {
+        return null;
+      }
+      if (JCR_SCORE.equals(sortColumn)) {
+        return value.getLong();
+      }
+      switch (value.getType()) {
+      case PropertyType.LONG:
+        return value.getLong();
+      case PropertyType.DOUBLE:
+        return value.getDouble();
+      case PropertyType.DECIMAL:
+        return value.getDecimal();
+      case PropertyType.DATE:
+        return value.getDate().getTimeInMillis();
+      case PropertyType.BOOLEAN:
+        return value.getBoolean();
+      default:
+        return value.getString();
+      }
+    } catch (RepositoryException e) {
+      return null;
     }
-
-    return rowB;
   }
 
+  /**
+   * The next row of an iterator and its sort key.
+   */
+  private static class Head {
+    private final RowIterator iterator;
+    private final int index;
+    private long read;
+    private Row row;
+    private Comparable<?> key;
+
+    private Head(RowIterator iterator, int index) {
+      this.iterator = iterator;
+      this.index = index;
+    }
+  }
 }
@@ -97,6 +97,11 @@ public interface SearchConstants {
    * child nodes of the result set will be inspected during the aggregation process.
    */
   public static final String SAKAI_AGGREGATE_CHILDREN = "sakai:aggregate-search-results-children";
+  /**
+   * A property of the search template where there are properties to aggregate, the most
+   * values to return for each property. All values are returned if it is not set.
+   */
+  public static final String SAKAI_AGGREGATE_LIMIT = "sakai:aggregate-search-results-limit";
   /**
    * The default amount of items in a page.
    */
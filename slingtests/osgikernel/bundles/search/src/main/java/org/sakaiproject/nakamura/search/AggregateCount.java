@@ -20,9 +20,15 @@ package org.sakaiproject.nakamura.search;
 import org.sakaiproject.nakamura.api.search.Aggregator;
 import org.sakaiproject.nakamura.util.JcrUtils;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 
 import javax.jcr.Node;
@@ -55,6 +61,10 @@ public class AggregateCount implements Aggregator {
    * A set of node paths that have already been inspected.
    */
   private Set<String> checked;
+  /**
+   * The most values to return for each field, 0 for all of them.
+   */
+  private int limit;
 
   /**
    * Create an aggregate count over a set of fields, optionally collecting all child properties.
@@ -62,6 +72,17 @@ public class AggregateCount implements Aggregator {
    * @param children if true child nodes will be considered.
    */
   public AggregateCount(String[] fields, boolean children) {
+    this(fields, children, 0);
+  }
+
+  /**
+   * Create an aggregate count over a set of fields, returning the most frequent values.
+   * @param fields the set of fields to collect.
+   * @param children if true child nodes will be considered.
+   * @param limit the most values to return for each field, 0 for all of them.
+   */
+  public AggregateCount(String[] fields, boolean children, int limit) {
+    this.limit = limit;
     for (String f : fields) {
       agregateMap.put(f, new HashMap<String, Integer>());
     }
@@ -107,7 +128,42 @@ public class AggregateCount implements Aggregator {
    * @return the aggregated set.
    */
   public Map<String, Map<String, Integer>> getAggregate() {
+    if (limit > 0) {
+      Map<String, Map<String, Integer>> top = new HashMap<String, Map<String, Integer>>();
+      for (Entry<String, Map<String, Integer>> e : agregateMap.entrySet()) {
+        top.put(e.getKey(), getTop(e.getValue(), limit));
+      }
+      return top;
+    }
     return agregateMap;
   }
 
+  /**
+   * Pick the most frequent values of a count.
+   * 
+   * @param counts
+   *          the count of each value.
+   * @param limit
+   *          the most values to return, 0 for all of them.
+   * @return the values in order of frequency, then by value.
+   */
+  public static Map<String, Integer> getTop(Map<String, Integer> counts, int limit) {
+    List<Entry<String, Integer>> entries = new ArrayList<Entry<String, Integer>>(counts
+        .entrySet());
+    Collections.sort(entries, new Comparator<Entry<String, Integer>>() {
+      public int compare(Entry<String, Integer> o1, Entry<String, Integer> o2) {
+        int d = o2.getValue() - o1.getValue();
+        return (d == 0) ? o1.getKey().compareTo(o2.getKey()) : d;
+      }
+    });
+    if (limit > 0 && entries.size() > limit) {
+      entries = entries.subList(0, limit);
+    }
+    Map<String, Integer> top = new LinkedHashMap<String, Integer>();
+    for (Entry<String, Integer> e : entries) {
+      top.put(e.getKey(), e.getValue());
+    }
+    return top;
+  }
+
 }
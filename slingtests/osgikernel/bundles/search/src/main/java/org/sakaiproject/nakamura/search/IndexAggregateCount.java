@@ -0,0 +1,215 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import org.apache.sling.jcr.jackrabbit.server.index.FacetExtractor;
+import org.sakaiproject.nakamura.api.search.Aggregator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Map.Entry;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Generates the same aggregate count as {@link AggregateCount}, but reads the property
+ * values from the search index rather than from each node. Nodes presented via add are
+ * only remembered by identifier, the counting is done when the aggregate is asked for.
+ * Nodes that are not in the index yet, such as ones saved a moment ago, are counted from
+ * the repository. The index does not record the type of a value, so the type of each
+ * field is read from the first node added that has it, and a field of a type that can't be
+ * counted from the index, such as a date, is counted from the nodes.
+ */
+public class IndexAggregateCount implements Aggregator {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(IndexAggregateCount.class);
+
+  private Session session;
+  /**
+   * The list of property names to aggregate.
+   */
+  private String[] fields;
+  /**
+   * If true, child nodes will be aggregated.
+   */
+  private boolean children;
+  /**
+   * The most values to return for each field, 0 for all of them.
+   */
+  private int limit;
+  /**
+   * The identifiers of the nodes added, in the order they were added.
+   */
+  private Set<String> identifiers = new LinkedHashSet<String>();
+  /**
+   * The type of each field, from the first node that has it.
+   */
+  private Map<String, Integer> types = new HashMap<String, Integer>();
+  private Map<String, Map<String, Integer>> aggregate;
+
+  /**
+   * Create an aggregate count over a set of fields.
+   * 
+   * @param session
+   *          the session the nodes are read with.
+   * @param fields
+   *          the set of fields to collect.
+   * @param children
+   *          if true child nodes will be considered.
+   * @param limit
+   *          the most values to return for each field, 0 for all of them.
+   */
+  public IndexAggregateCount(Session session, String[] fields, boolean children, int limit) {
+    this.session = session;
+    this.fields = new String[fields.length];
+    System.arraycopy(fields, 0, this.fields, 0, fields.length);
+    this.children = children;
+    this.limit = limit;
+  }
+
+  /**
+   * Add a node to the aggregated set.
+   * 
+   * @param node
+   *          the node to add.
+   * @throws RepositoryException
+   */
+  public void add(Node node) throws RepositoryException {
+    if (types.size() < fields.length) {
+      for (String field : fields) {
+        if (!types.containsKey(field) && node.hasProperty(field)) {
+          types.put(field, node.getProperty(field).getType());
+        }
+      }
+    }
+    // children are walked through the session so only readable nodes are counted.
+    if (identifiers.add(node.getIdentifier()) && children) {
+      for (NodeIterator ni = node.getNodes(); ni.hasNext();) {
+        add(ni.nextNode());
+      }
+    }
+    aggregate = null;
+  }
+
+  /**
+   * @return the aggregated set.
+   */
+  public Map<String, Map<String, Integer>> getAggregate() {
+    if (aggregate == null) {
+      try {
+        aggregate = count();
+      } catch (RepositoryException e) {
+        LOGGER.warn("Failed to aggregate: {}", e.getMessage());
+        aggregate = new HashMap<String, Map<String, Integer>>();
+      }
+    }
+    return aggregate;
+  }
+
+  private Map<String, Map<String, Integer>> count() throws RepositoryException {
+    FacetExtractor extractor = null;
+    try {
+      extractor = createExtractor();
+    } catch (IllegalArgumentException e) {
+      LOGGER.info("Unable to count from the index, counting from the nodes: {}", e
+          .getMessage());
+    }
+    List<String> indexFields = new ArrayList<String>();
+    List<String> nodeFields = new ArrayList<String>();
+    for (String field : fields) {
+      if (extractor != null && FacetExtractor.canCount(getType(field))) {
+        indexFields.add(field);
+      } else {
+        nodeFields.add(field);
+      }
+    }
+    // children were added already, these only look at the node itself.
+    AggregateCount missing = new AggregateCount(indexFields.toArray(new String[indexFields
+        .size()]), false);
+    AggregateCount walked = new AggregateCount(nodeFields.toArray(new String[nodeFields
+        .size()]), false);
+    try {
+      for (String identifier : identifiers) {
+        boolean indexed = extractor != null && !indexFields.isEmpty()
+            && extractor.add(identifier);
+        if (!indexed || !nodeFields.isEmpty()) {
+          try {
+            Node node = session.getNodeByIdentifier(identifier);
+            if (!indexed) {
+              missing.add(node);
+            }
+            walked.add(node);
+          } catch (ItemNotFoundException e) {
+            LOGGER.debug("Node {} is gone, not counting it", identifier);
+          }
+        }
+      }
+      Map<String, Map<String, Integer>> result = new HashMap<String, Map<String, Integer>>();
+      Map<String, Map<String, Integer>> missingCounts = missing.getAggregate();
+      for (String field : indexFields) {
+        Map<String, Integer> counts = extractor.count(field, getType(field));
+        for (Entry<String, Integer> e : missingCounts.get(field).entrySet()) {
+          Integer count = counts.get(e.getKey());
+          counts.put(e.getKey(), (count == null) ? e.getValue() : count + e.getValue());
+        }
+        result.put(field, (limit > 0) ? AggregateCount.getTop(counts, limit) : counts);
+      }
+      Map<String, Map<String, Integer>> walkedCounts = walked.getAggregate();
+      for (String field : nodeFields) {
+        Map<String, Integer> counts = walkedCounts.get(field);
+        result.put(field, (limit > 0) ? AggregateCount.getTop(counts, limit) : counts);
+      }
+      return result;
+    } finally {
+      if (extractor != null) {
+        extractor.close();
+      }
+    }
+  }
+
+  /**
+   * @param field
+   * @return the type of the field, string if no node added has it.
+   */
+  private int getType(String field) {
+    Integer type = types.get(field);
+    return (type == null) ? PropertyType.STRING : type;
+  }
+
+  /**
+   * @return an extractor on the index of the session's workspace.
+   * @throws RepositoryException
+   * @throws IllegalArgumentException
+   *           if the repository does not have a search index to count from.
+   */
+  protected FacetExtractor createExtractor() throws RepositoryException {
+    return new FacetExtractor(session);
+  }
+
+}
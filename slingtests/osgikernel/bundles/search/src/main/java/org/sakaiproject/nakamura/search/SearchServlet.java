@@ -29,6 +29,7 @@ import static org.sakaiproject.nakamura.api.search.SearchConstants.REG_PROCESSOR
 import static org.sakaiproject.nakamura.api.search.SearchConstants.REG_PROVIDER_NAMES;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_AGGREGATE;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_AGGREGATE_CHILDREN;
+import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_AGGREGATE_LIMIT;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_LIMIT_RESULTS;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_PROPERTY_PROVIDER;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_QUERY_LANGUAGE;
@@ -250,7 +251,12 @@ public class SearchServlet extends SlingSafeMethodsServlet {
             withChildren = "true".equals(node.getProperty(SAKAI_AGGREGATE_CHILDREN)
                 .getString());
           }
-          aggregator = new AggregateCount(aggregateProperties, withChildren);
+          int aggregateLimit = 0;
+          if (node.hasProperty(SAKAI_AGGREGATE_LIMIT)) {
+            aggregateLimit = (int) node.getProperty(SAKAI_AGGREGATE_LIMIT).getLong();
+          }
+          aggregator = new IndexAggregateCount(node.getSession(), aggregateProperties,
+              withChildren, aggregateLimit);
         }
 
         // Check if the users wants results who are too far in the resultset to get.
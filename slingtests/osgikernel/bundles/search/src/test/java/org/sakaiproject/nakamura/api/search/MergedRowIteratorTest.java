@@ -21,12 +21,22 @@ import static org.junit.Assert.fail;
 
 import static org.easymock.EasyMock.expect;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 
 import org.easymock.EasyMock;
 import org.junit.Before;
 import org.junit.Test;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
 import javax.jcr.RepositoryException;
 import javax.jcr.Value;
 import javax.jcr.ValueFormatException;
@@ -76,9 +86,105 @@ public class MergedRowIteratorTest extends AbstractEasyMockTest {
   @Test
   public void testSize() throws RepositoryException {
     MergedRowIterator iterator = createMergedRowIterator();
+    assertEquals(6, iterator.getSize());
+    iterator = new MergedRowIterator(new ListRowIterator(new ArrayList<Row>(), true),
+        new ListRowIterator(new ArrayList<Row>(), false));
     assertEquals(-1, iterator.getSize());
   }
 
+  /**
+   * Merges random sorted iterators, reading and skipping at random, and checks every row
+   * against the iterators concatenated and then sorted.
+   */
+  @Test
+  public void testAgainstSortedReference() throws RepositoryException {
+    Random random = new Random(42);
+    for (int trial = 0; trial < 200; trial++) {
+      final boolean descending = random.nextBoolean();
+      boolean sorted = random.nextInt(4) > 0;
+      boolean sizeKnown = random.nextBoolean();
+      int k = random.nextInt(5);
+      RowIterator[] iterators = new RowIterator[k];
+      final List<Row> expected = new ArrayList<Row>();
+      final List<Long> scores = new ArrayList<Long>();
+      for (int i = 0; i < k; i++) {
+        long[] values = new long[random.nextInt(8)];
+        for (int j = 0; j < values.length; j++) {
+          values[j] = random.nextInt(6);
+        }
+        Arrays.sort(values);
+        List<Row> rows = new ArrayList<Row>();
+        for (int j = 0; j < values.length; j++) {
+          long score = (descending && sorted) ? values[values.length - 1 - j] : values[j];
+          Row row = createRow(score, CUSTOM_PROP, String.valueOf(i));
+          rows.add(row);
+          expected.add(row);
+          scores.add(score);
+        }
+        iterators[i] = new ListRowIterator(rows, sizeKnown);
+      }
+      if (sorted) {
+        // a stable sort keeps rows with the same score in the order of the iterators.
+        final List<Row> unsorted = new ArrayList<Row>(expected);
+        Collections.sort(expected, new Comparator<Row>() {
+          public int compare(Row o1, Row o2) {
+            int c = scores.get(unsorted.indexOf(o1)).compareTo(
+                scores.get(unsorted.indexOf(o2)));
+            return descending ? -c : c;
+          }
+        });
+      }
+
+      MergedRowIterator iterator = sorted ? new MergedRowIterator(
+          MergedRowIterator.JCR_SCORE, descending, iterators) : new MergedRowIterator(
+          null, descending, iterators);
+      assertEquals((sizeKnown || k == 0) ? expected.size() : -1, iterator.getSize());
+      int position = 0;
+      while (true) {
+        if (random.nextBoolean()) {
+          int skip = random.nextInt(4);
+          if (position + skip > expected.size()) {
+            try {
+              iterator.skip(skip);
+              fail("Skipping past the end should have thrown a NoSuchElementException.");
+            } catch (NoSuchElementException e) {
+              break;
+            }
+          }
+          iterator.skip(skip);
+          position += skip;
+          assertEquals(position, iterator.getPosition());
+        }
+        if (position == expected.size()) {
+          assertFalse(iterator.hasNext());
+          break;
+        }
+        assertSame(expected.get(position), iterator.nextRow());
+        position++;
+      }
+    }
+  }
+
+  @Test
+  public void testSkipDelegates() throws RepositoryException {
+    List<Row> rowsA = new ArrayList<Row>();
+    List<Row> rowsB = new ArrayList<Row>();
+    for (int i = 0; i < 10; i++) {
+      rowsA.add(createRow(0, CUSTOM_PROP, "A"));
+    }
+    for (int i = 0; i < 1000; i++) {
+      rowsB.add(createRow(0, CUSTOM_PROP, "B"));
+    }
+    ListRowIterator iteratorA = new ListRowIterator(rowsA, true);
+    ListRowIterator iteratorB = new ListRowIterator(rowsB, true);
+    MergedRowIterator iterator = new MergedRowIterator(null, true, iteratorA, iteratorB);
+    iterator.skip(500);
+    assertEquals(500, iterator.getPosition());
+    assertEquals(1, iteratorA.skips);
+    assertEquals(1, iteratorB.skips);
+    assertSame(rowsB.get(490), iterator.nextRow());
+  }
+
   private String getStringValueFromRow(Row row, String prop)
       throws RepositoryException {
     return row.getValue(prop).getString();
@@ -145,4 +251,54 @@ public class MergedRowIteratorTest extends AbstractEasyMockTest {
     EasyMock.replay(row);
     return row;
   }
+
+  /**
+   * Iterates a list of rows, counting the calls to skip.
+   */
+  private static class ListRowIterator implements RowIterator {
+    private List<Row> rows;
+    private boolean sizeKnown;
+    private int position;
+    private int skips;
+
+    private ListRowIterator(List<Row> rows, boolean sizeKnown) {
+      this.rows = rows;
+      this.sizeKnown = sizeKnown;
+    }
+
+    public Row nextRow() {
+      if (position >= rows.size()) {
+        throw new NoSuchElementException();
+      }
+      return rows.get(position++);
+    }
+
+    public long getPosition() {
+      return position;
+    }
+
+    public long getSize() {
+      return sizeKnown ? rows.size() : -1;
+    }
+
+    public void skip(long skipNum) {
+      skips++;
+      if (position + skipNum > rows.size()) {
+        throw new NoSuchElementException();
+      }
+      position += skipNum;
+    }
+
+    public boolean hasNext() {
+      return position < rows.size();
+    }
+
+    public Object next() {
+      return nextRow();
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
 }
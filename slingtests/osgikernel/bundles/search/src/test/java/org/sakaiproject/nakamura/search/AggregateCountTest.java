@@ -19,6 +19,16 @@ package org.sakaiproject.nakamura.search;
 
 import junit.framework.Assert;
 
+import org.apache.jackrabbit.core.query.lucene.DateField;
+import org.apache.jackrabbit.core.query.lucene.FieldNames;
+import org.apache.jackrabbit.core.query.lucene.LongField;
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.sling.jcr.jackrabbit.server.index.FacetExtractor;
 import org.easymock.EasyMock;
 import org.junit.Before;
 import org.junit.Test;
@@ -26,8 +36,12 @@ import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 
 import static org.easymock.EasyMock.expect;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Map.Entry;
 
 import javax.jcr.Node;
@@ -35,6 +49,7 @@ import javax.jcr.NodeIterator;
 import javax.jcr.Property;
 import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 import javax.jcr.Value;
 import javax.jcr.nodetype.PropertyDefinition;
 
@@ -76,6 +91,225 @@ public class AggregateCountTest extends AbstractEasyMockTest {
 
   }
 
+  @Test
+  public void testIndexMatchesNodes() throws Exception {
+    String[] checkFields = new String[] { "sakai:tag", "sakai:type" };
+    Random random = new Random(42);
+    RAMDirectory directory = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(directory, new WhitespaceAnalyzer(), true,
+        IndexWriter.MaxFieldLength.UNLIMITED);
+    List<Node> nodes = new ArrayList<Node>();
+    for (int i = 0; i < 500; i++) {
+      Document doc = new Document();
+      doc.add(new Field(FieldNames.UUID, "id" + i, Field.Store.YES,
+          Field.Index.NOT_ANALYZED));
+      Map<String, String[]> properties = new HashMap<String, String[]>();
+      // a few common tags and a long tail, some nodes have none.
+      List<String> tags = new ArrayList<String>();
+      for (int j = random.nextInt(5); j > 0; j--) {
+        String tag = "tag" + (int) (100 * Math.pow(random.nextDouble(), 2));
+        if (!tags.contains(tag)) {
+          tags.add(tag);
+        }
+      }
+      if (tags.size() > 0) {
+        properties.put("sakai:tag", tags.toArray(new String[tags.size()]));
+      }
+      properties.put("sakai:type", new String[] { "type" + (i % 3) });
+      for (Entry<String, String[]> e : properties.entrySet()) {
+        for (String v : e.getValue()) {
+          doc.add(new Field(FieldNames.PROPERTIES, FieldNames.createNamedValue(e.getKey(),
+              v), Field.Store.NO, Field.Index.NOT_ANALYZED));
+        }
+      }
+      writer.addDocument(doc);
+      nodes.add(createMultiValueNode("id" + i, "/foo/bar/" + i, properties,
+          new HashMap<String, Integer>()));
+    }
+    writer.close();
+    final IndexReader reader = IndexReader.open(directory);
+
+    Session session = EasyMock.createMock(Session.class);
+    EasyMock.replay(session);
+    AggregateCount walked = new AggregateCount(checkFields, false);
+    IndexAggregateCount indexed = new IndexAggregateCount(session, checkFields, false, 0) {
+      @Override
+      protected FacetExtractor createExtractor() {
+        return new FacetExtractor(reader) {
+        };
+      }
+    };
+    IndexAggregateCount top = new IndexAggregateCount(session, checkFields, false, 5) {
+      @Override
+      protected FacetExtractor createExtractor() {
+        return new FacetExtractor(reader) {
+        };
+      }
+    };
+    // the hits, some twice.
+    for (int i = 0; i < 400; i++) {
+      Node node = nodes.get(random.nextInt(nodes.size()));
+      walked.add(node);
+      indexed.add(node);
+      top.add(node);
+    }
+
+    Map<String, Map<String, Integer>> expected = walked.getAggregate();
+    Assert.assertEquals(expected, indexed.getAggregate());
+    Assert.assertEquals(3, indexed.getAggregate().get("sakai:type").size());
+
+    Map<String, Integer> topTags = top.getAggregate().get("sakai:tag");
+    Assert.assertEquals(5, topTags.size());
+    Iterator<Entry<String, Integer>> expectedTags = AggregateCount.getTop(
+        expected.get("sakai:tag"), 0).entrySet().iterator();
+    for (Entry<String, Integer> e : topTags.entrySet()) {
+      Assert.assertEquals(expectedTags.next(), e);
+    }
+    reader.close();
+  }
+
+  @Test
+  public void testIndexDecodesTypedValues() throws Exception {
+    String[] checkFields = new String[] { "sakai:size", "sakai:created" };
+    Map<String, Integer> types = new HashMap<String, Integer>();
+    types.put("sakai:size", PropertyType.LONG);
+    types.put("sakai:created", PropertyType.DATE);
+    RAMDirectory directory = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(directory, new WhitespaceAnalyzer(), true,
+        IndexWriter.MaxFieldLength.UNLIMITED);
+    Session session = EasyMock.createMock(Session.class);
+    List<Node> nodes = new ArrayList<Node>();
+    for (int i = 0; i < 20; i++) {
+      long size = 1000L * (i % 4);
+      long created = 1267401600000L + 86400000L * (i % 2);
+      Document doc = new Document();
+      doc.add(new Field(FieldNames.UUID, "id" + i, Field.Store.YES,
+          Field.Index.NOT_ANALYZED));
+      // as Jackrabbit indexes them, not as their strings.
+      doc.add(new Field(FieldNames.PROPERTIES, FieldNames.createNamedValue("sakai:size",
+          LongField.longToString(size)), Field.Store.NO, Field.Index.NOT_ANALYZED));
+      doc.add(new Field(FieldNames.PROPERTIES, FieldNames.createNamedValue(
+          "sakai:created", DateField.timeToString(created)), Field.Store.NO,
+          Field.Index.NOT_ANALYZED));
+      writer.addDocument(doc);
+      Map<String, String[]> properties = new HashMap<String, String[]>();
+      properties.put("sakai:size", new String[] { String.valueOf(size) });
+      properties.put("sakai:created", new String[] { (i % 2 == 0) ? "2010-03-01T00:00:00.000Z"
+          : "2010-03-02T00:00:00.000Z" });
+      Node node = createMultiValueNode("id" + i, "/foo/bar/" + i, properties, types);
+      expect(session.getNodeByIdentifier("id" + i)).andReturn(node).anyTimes();
+      nodes.add(node);
+    }
+    writer.close();
+    EasyMock.replay(session);
+    final IndexReader reader = IndexReader.open(directory);
+
+    AggregateCount walked = new AggregateCount(checkFields, false);
+    IndexAggregateCount indexed = new IndexAggregateCount(session, checkFields, false, 0) {
+      @Override
+      protected FacetExtractor createExtractor() {
+        return new FacetExtractor(reader) {
+        };
+      }
+    };
+    for (Node node : nodes) {
+      walked.add(node);
+      indexed.add(node);
+    }
+
+    Map<String, Map<String, Integer>> aggregate = indexed.getAggregate();
+    Assert.assertEquals(walked.getAggregate(), aggregate);
+    Assert.assertEquals(Integer.valueOf(5), aggregate.get("sakai:size").get("3000"));
+    Assert.assertEquals(Integer.valueOf(10), aggregate.get("sakai:created").get(
+        "2010-03-02T00:00:00.000Z"));
+    reader.close();
+  }
+
+  @Test
+  public void testIndexCountsRepeatedValues() throws Exception {
+    String[] checkFields = new String[] { "sakai:tag" };
+    String[][] tags = { { "a", "a", "b" }, { "a" }, { "b", "b" } };
+    RAMDirectory directory = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(directory, new WhitespaceAnalyzer(), true,
+        IndexWriter.MaxFieldLength.UNLIMITED);
+    List<Node> nodes = new ArrayList<Node>();
+    for (int i = 0; i < tags.length; i++) {
+      Document doc = new Document();
+      doc.add(new Field(FieldNames.UUID, "id" + i, Field.Store.YES,
+          Field.Index.NOT_ANALYZED));
+      for (String tag : tags[i]) {
+        doc.add(new Field(FieldNames.PROPERTIES, FieldNames.createNamedValue("sakai:tag",
+            tag), Field.Store.NO, Field.Index.NOT_ANALYZED));
+      }
+      writer.addDocument(doc);
+      Map<String, String[]> properties = new HashMap<String, String[]>();
+      properties.put("sakai:tag", tags[i]);
+      nodes.add(createMultiValueNode("id" + i, "/foo/bar/" + i, properties,
+          new HashMap<String, Integer>()));
+    }
+    writer.close();
+    final IndexReader reader = IndexReader.open(directory);
+
+    Session session = EasyMock.createMock(Session.class);
+    EasyMock.replay(session);
+    AggregateCount walked = new AggregateCount(checkFields, false);
+    IndexAggregateCount indexed = new IndexAggregateCount(session, checkFields, false, 0) {
+      @Override
+      protected FacetExtractor createExtractor() {
+        return new FacetExtractor(reader) {
+        };
+      }
+    };
+    for (Node node : nodes) {
+      walked.add(node);
+      indexed.add(node);
+    }
+
+    // a value held twice by one node counts twice, from the nodes and from the index.
+    Map<String, Integer> counts = walked.getAggregate().get("sakai:tag");
+    Assert.assertEquals(Integer.valueOf(3), counts.get("a"));
+    Assert.assertEquals(Integer.valueOf(3), counts.get("b"));
+    Assert.assertEquals(walked.getAggregate(), indexed.getAggregate());
+    reader.close();
+  }
+
+  /**
+   * Create a node with multi-valued properties and no children.
+   *
+   * @param types
+   *          the type of each property, string if it is not there.
+   */
+  private Node createMultiValueNode(String identifier, String path,
+      Map<String, String[]> properties, Map<String, Integer> types)
+      throws RepositoryException {
+    Node node = EasyMock.createMock(Node.class);
+    expect(node.getIdentifier()).andReturn(identifier).anyTimes();
+    expect(node.getPath()).andReturn(path).anyTimes();
+    for (Entry<String, String[]> e : properties.entrySet()) {
+      Value[] values = new Value[e.getValue().length];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = EasyMock.createMock(Value.class);
+        expect(values[i].getString()).andReturn(e.getValue()[i]).anyTimes();
+        EasyMock.replay(values[i]);
+      }
+      PropertyDefinition propDef = EasyMock.createMock(PropertyDefinition.class);
+      expect(propDef.isMultiple()).andReturn(true).anyTimes();
+      Integer type = types.get(e.getKey());
+      Property prop = EasyMock.createMock(Property.class);
+      expect(prop.getType()).andReturn((type == null) ? PropertyType.STRING : type)
+          .anyTimes();
+      expect(prop.getDefinition()).andReturn(propDef).anyTimes();
+      expect(prop.getValues()).andReturn(values).anyTimes();
+      EasyMock.replay(propDef, prop);
+      expect(node.hasProperty(e.getKey())).andReturn(true).anyTimes();
+      expect(node.getProperty(e.getKey())).andReturn(prop).anyTimes();
+    }
+    // after the properties it has, so those are matched first.
+    expect(node.hasProperty(EasyMock.isA(String.class))).andReturn(false).anyTimes();
+    EasyMock.replay(node);
+    return node;
+  }
+
   /**
    * Create a node with a couple of string properties.
    */
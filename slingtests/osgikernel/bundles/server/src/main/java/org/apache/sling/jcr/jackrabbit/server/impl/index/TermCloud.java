@@ -20,39 +20,64 @@ package org.apache.sling.jcr.jackrabbit.server.impl.index;
 import org.apache.sling.jcr.jackrabbit.server.index.CloudTerm;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * A term cloud is a store of {@link Term}s which accepts the addition of new
- * terms and provides an iterator to list {@link Term}s in order of occurrence.
- * The term cloud is constructed with a maximum size, and if there are more
- * terms in the cloud than this size, the least significant terms will be
- * evicted. Callers should ensure that the size of the cloud allows frequent but
- * low counted terms to influence the cloud by making the max size greater than
- * the number of terms required, ie 1.5 times the number of requried terms in
- * the cloud.
+ * A term cloud is a store of {@link CloudTerm}s which accepts the addition of new
+ * terms and provides an iterator to list {@link CloudTerm}s in order of occurrence.
+ * The count of every term added is kept in a concurrent map, so adds from several
+ * threads only contend when they hash to the same segment. The cloud is constructed
+ * with a maximum size, only the most significant terms up to that size are listed.
+ * They are picked with a min heap when the cloud is listed and the list is reused
+ * until the next add. An add only writes shared state the first time after a listing,
+ * to mark the list stale.
+ * <p>
+ * At most ten times the maximum size of terms, and no fewer than 1000, are counted.
+ * When a new term goes over that the least significant half are dropped, so the count
+ * of a rare term that is seen again later starts over. The counts of the listed terms
+ * are exact unless a term only became significant after it was dropped.
+ * </p>
  */
 public class TermCloud {
 
     /**
-     * 
+     * The fewest terms counted before any are dropped.
+     */
+    private static final int MIN_COUNTED = 1000;
+    /**
+     * The terms counted for each term listed.
      */
-    private static final long serialVersionUID = 3363155684386506288L;
+    private static final int COUNTED_PER_LISTED = 10;
     /**
-     * Internal store of terms.
+     * The count of every term added, or at least of the most significant.
      */
-    private List<CloudTermImpl> termList;
+    private ConcurrentMap<String, AtomicInteger> counts = new ConcurrentHashMap<String, AtomicInteger>();
     private int maxSize;
-    private boolean sorted = false;
+    private int maxCounted;
+    /**
+     * The number of terms in counts, kept apart as the size of the map is not cheap.
+     */
+    private AtomicInteger counted = new AtomicInteger();
+    private AtomicBoolean pruning = new AtomicBoolean();
+    private volatile Snapshot snapshot;
 
     /**
      * Create a TermCloud
      */
     public TermCloud(int maxSize) {
-        termList = new ArrayList<CloudTermImpl>(maxSize + 1);
         this.maxSize = maxSize;
+        maxCounted = Math.max(MIN_COUNTED, maxSize * COUNTED_PER_LISTED);
     }
 
     /**
@@ -62,52 +87,142 @@ public class TermCloud {
      * @param term
      *            the terms to add or merge.
      */
-    public synchronized void add(CloudTermImpl term) {
-        for (CloudTermImpl t : termList) {
-            if (term.isSameTerm(t)) {
-                t.merge(term);
-                sorted = false;
+    public void add(CloudTermImpl term) {
+        AtomicInteger count = counts.get(term.getName());
+        if (count == null) {
+            count = new AtomicInteger();
+            AtomicInteger existing = counts.putIfAbsent(term.getName(), count);
+            if (existing != null) {
+                count = existing;
+            } else if (counted.incrementAndGet() > maxCounted) {
+                prune();
+            }
+        }
+        count.addAndGet(term.getCount());
+        Snapshot current = snapshot;
+        if (current != null && !current.stale) {
+            current.stale = true;
+        }
+    }
+
+    /**
+     * Drop the least significant half of the counted terms. Only one thread prunes at a
+     * time, others carry on adding while it does.
+     */
+    private void prune() {
+        if (!pruning.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            // the counts are read once, they may change while the terms are dropped.
+            List<Map.Entry<String, AtomicInteger>> entries = new ArrayList<Map.Entry<String, AtomicInteger>>(
+                    counts.entrySet());
+            int[] values = new int[entries.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = entries.get(i).getValue().get();
+            }
+            int drop = values.length - maxCounted / 2;
+            if (drop <= 0) {
                 return;
             }
+            int[] sorted = values.clone();
+            Arrays.sort(sorted);
+            int threshold = sorted[drop - 1];
+            // terms counted as many times as the threshold are dropped until enough are.
+            int ties = 0;
+            for (int i = drop - 1; i >= 0 && sorted[i] == threshold; i--) {
+                ties++;
+            }
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] < threshold || (values[i] == threshold && ties-- > 0)) {
+                    Map.Entry<String, AtomicInteger> e = entries.get(i);
+                    if (counts.remove(e.getKey(), e.getValue())) {
+                        counted.decrementAndGet();
+                    }
+                }
+            }
+        } finally {
+            pruning.set(false);
+        }
+    }
+
+    /**
+     * @return the most significant terms, up to the max size, in order of
+     *         occurrence. The list can't be modified.
+     */
+    public List<CloudTerm> getTerms() {
+        Snapshot current = snapshot;
+        List<CloudTerm> terms = current == null ? null : current.terms;
+        if (terms == null || current.stale) {
+            // published before the terms are picked, so an add made meanwhile marks it stale.
+            current = new Snapshot();
+            snapshot = current;
+            terms = selectTerms();
+            current.terms = terms;
         }
-        sorted = false;
-        termList.add(term);
-        if (termList.size() > maxSize) {
-            Collections.sort(termList);
-            termList.remove(termList.size() - 1);
-            sorted = true;
+        return terms;
+    }
+
+    /**
+     * Pick the top terms with a heap holding the least significant of them at its head.
+     */
+    private List<CloudTerm> selectTerms() {
+        PriorityQueue<CloudTermImpl> heap = new PriorityQueue<CloudTermImpl>(
+                Math.max(1, maxSize), Collections.reverseOrder());
+        for (Map.Entry<String, AtomicInteger> e : counts.entrySet()) {
+            int count = e.getValue().get();
+            if (heap.size() < maxSize) {
+                heap.add(new CloudTermImpl(e.getKey(), count));
+            } else if (maxSize > 0 && count >= heap.peek().getCount()) {
+                CloudTermImpl term = new CloudTermImpl(e.getKey(), count);
+                if (term.compareTo(heap.peek()) < 0) {
+                    heap.poll();
+                    heap.add(term);
+                }
+            }
         }
+        List<CloudTerm> terms = new ArrayList<CloudTerm>(heap);
+        Collections.sort(terms, new Comparator<CloudTerm>() {
+            public int compare(CloudTerm o1, CloudTerm o2) {
+                return ((CloudTermImpl) o1).compareTo(o2);
+            }
+        });
+        return Collections.unmodifiableList(terms);
     }
 
     /**
-     * A list of terms, limited by the number of
+     * A list of terms, limited to those with a count of at least limit.
      * 
      * @param limit
      * @return
      */
-    public synchronized Iterator<CloudTerm> iterator(final int limit) {
-        if (!sorted) {
-            Collections.sort(termList);
-            sorted = true;
-        }
-        final Iterator<CloudTermImpl> iTermList = termList.iterator();
+    public Iterator<CloudTerm> iterator(final int limit) {
+        final Iterator<CloudTerm> iTermList = getTerms().iterator();
         return new Iterator<CloudTerm>() {
 
-            private CloudTermImpl current;
+            private CloudTerm current = advance();
 
-            public boolean hasNext() {
+            private CloudTerm advance() {
                 if (iTermList.hasNext()) {
-                    current = iTermList.next();
-                    if (current.getCount() >= limit) {
-                        return true;
+                    CloudTerm next = iTermList.next();
+                    if (next.getCount() >= limit) {
+                        return next;
                     }
                 }
-                current = null;
-                return false;
+                return null;
+            }
+
+            public boolean hasNext() {
+                return current != null;
             }
 
             public CloudTerm next() {
-                return current;
+                if (current == null) {
+                    throw new NoSuchElementException();
+                }
+                CloudTerm next = current;
+                current = advance();
+                return next;
             }
 
             public void remove() {
@@ -117,4 +232,12 @@ public class TermCloud {
         };
     }
 
+    /**
+     * The listed terms, stale once a term is added after they were picked.
+     */
+    private static class Snapshot {
+        private volatile boolean stale;
+        private volatile List<CloudTerm> terms;
+    }
+
 }
@@ -60,7 +60,7 @@ public class TermCloudVectorMapper extends TermVectorMapper {
     public void setExpectations(String field, int numTerms, boolean storeOffsets,
             boolean storePositions) {
         if ( numTerms > maxSize*2 ) {
-            LOGGER.warn("There are many more terms than there is space for in the cloud, this could loose critical terms.");
+            LOGGER.debug("There are many more terms than there is space for in the cloud, only the top {} will be listed.", maxSize);
         }
     }
 
@@ -0,0 +1,261 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.sling.jcr.jackrabbit.server.index;
+
+import org.apache.jackrabbit.core.query.lucene.DoubleField;
+import org.apache.jackrabbit.core.query.lucene.FieldNames;
+import org.apache.jackrabbit.core.query.lucene.LongField;
+import org.apache.jackrabbit.core.query.lucene.NamespaceMappings;
+import org.apache.jackrabbit.core.query.lucene.SearchIndex;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Counts the values of properties over a set of nodes from the search index, without
+ * loading the nodes. Nodes are added by identifier, which marks their document in a bit
+ * set of hits, and each property is counted by enumerating its terms and the documents
+ * that hold them. A value a multi-valued property holds more than once is counted each
+ * time, from the frequency of its term in the document. The index does not record the type of a value, so the caller says what type the
+ * property holds. Only types whose indexed form can be turned back into the string of the
+ * value can be counted, see {@link #canCount(int)}. Dates are indexed without their time
+ * zone and names and paths with the prefixes of the index, they have to be counted from
+ * the nodes.
+ */
+public class FacetExtractor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FacetExtractor.class);
+    private IndexReader indexReader;
+    private boolean closeReader;
+    private Session session;
+    private NamespaceMappings namespaceMappings;
+    private BitSet hits;
+
+    /**
+     * Create an extractor on the index of the workspace of a session. The index reader is
+     * opened here and must be released with {@link #close()}.
+     * 
+     * @param session
+     *            the session property names are resolved against.
+     * @throws RepositoryException
+     */
+    public FacetExtractor(Session session) throws RepositoryException {
+        SearchIndex searchIndex = SearchIndexes.getSearchIndex(session.getWorkspace()
+                .getQueryManager());
+        try {
+            init(searchIndex.getIndexReader());
+            closeReader = true;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to open the index reader: "
+                    + e.getMessage(), e);
+        }
+        this.session = session;
+        this.namespaceMappings = searchIndex.getNamespaceMappings();
+    }
+
+    /**
+     * Create an extractor on an index reader the caller will close. Property names are
+     * used as they are indexed.
+     * 
+     * @param indexReader
+     */
+    protected FacetExtractor(IndexReader indexReader) {
+        init(indexReader);
+    }
+
+    private void init(IndexReader indexReader) {
+        this.indexReader = indexReader;
+        hits = new BitSet(indexReader.maxDoc());
+    }
+
+    /**
+     * Add a node to the hits.
+     * 
+     * @param identifier
+     *            the identifier of the node.
+     * @return true if the node is in the index, false if it has to be counted some other
+     *         way.
+     */
+    public boolean add(String identifier) {
+        try {
+            TermDocs tDocs = indexReader.termDocs(new Term(FieldNames.UUID, identifier));
+            try {
+                if (tDocs.next()) {
+                    hits.set(tDocs.doc());
+                    return true;
+                }
+            } finally {
+                tDocs.close();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to find node " + identifier + " in the index " + e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of nodes added that were found in the index.
+     */
+    public int size() {
+        return hits.cardinality();
+    }
+
+    /**
+     * @param type
+     *            a property type from {@link PropertyType}.
+     * @return true if values of the type can be counted from the index.
+     */
+    public static boolean canCount(int type) {
+        switch (type) {
+        case PropertyType.STRING:
+        case PropertyType.BOOLEAN:
+        case PropertyType.REFERENCE:
+        case PropertyType.WEAKREFERENCE:
+        case PropertyType.LONG:
+        case PropertyType.DOUBLE:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Count the values of a string property over the hits.
+     * 
+     * @param property
+     *            the name of the property.
+     * @return the number of times the hits hold each value, values no hit holds are left
+     *         out.
+     * @throws RepositoryException
+     */
+    public Map<String, Integer> count(String property) throws RepositoryException {
+        return count(property, PropertyType.STRING);
+    }
+
+    /**
+     * Count the values of a property over the hits.
+     * 
+     * @param property
+     *            the name of the property.
+     * @param type
+     *            the type of the values of the property, from {@link PropertyType}.
+     * @return the number of times the hits hold each value, keyed by the string of the
+     *         value. Values no hit holds are left out.
+     * @throws RepositoryException
+     * @throws IllegalArgumentException
+     *             if values of the type can't be counted from the index.
+     */
+    public Map<String, Integer> count(String property, int type) throws RepositoryException {
+        if (!canCount(type)) {
+            throw new IllegalArgumentException("Unable to count "
+                    + PropertyType.nameFromValue(type) + " values from the index");
+        }
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        if (hits.isEmpty()) {
+            return counts;
+        }
+        String prefix = FieldNames.createNamedValue(getIndexName(property), "");
+        try {
+            TermEnum terms = indexReader.terms(new Term(FieldNames.PROPERTIES, prefix));
+            TermDocs tDocs = indexReader.termDocs();
+            try {
+                do {
+                    Term term = terms.term();
+                    if (term == null || !FieldNames.PROPERTIES.equals(term.field())
+                            || !term.text().startsWith(prefix)) {
+                        break;
+                    }
+                    tDocs.seek(terms);
+                    int count = 0;
+                    while (tDocs.next()) {
+                        if (hits.get(tDocs.doc())) {
+                            count += tDocs.freq();
+                        }
+                    }
+                    if (count > 0) {
+                        counts.put(decode(term.text().substring(prefix.length()), type),
+                                count);
+                    }
+                } while (terms.next());
+            } finally {
+                tDocs.close();
+                terms.close();
+            }
+        } catch (IOException e) {
+            throw new RepositoryException("Failed to count " + property + " from the index", e);
+        }
+        return counts;
+    }
+
+    /**
+     * @param value
+     *            a value as it is indexed.
+     * @param type
+     * @return the value as {@link javax.jcr.Value#getString()} gives it.
+     */
+    private String decode(String value, int type) {
+        switch (type) {
+        case PropertyType.LONG:
+            return String.valueOf(LongField.stringToLong(value));
+        case PropertyType.DOUBLE:
+            return String.valueOf(DoubleField.stringToDouble(value));
+        default:
+            return value;
+        }
+    }
+
+    /**
+     * Translate a property name into the name it is indexed under, where namespaces are
+     * replaced by the prefixes of the index.
+     */
+    private String getIndexName(String property) throws RepositoryException {
+        if (namespaceMappings == null) {
+            return property;
+        }
+        int i = property.indexOf(':');
+        String uri = (i < 0) ? "" : session.getNamespaceURI(property.substring(0, i));
+        String prefix = namespaceMappings.getPrefix(uri);
+        String localName = property.substring(i + 1);
+        return (prefix.length() == 0) ? localName : prefix + ":" + localName;
+    }
+
+    /**
+     * Release the index reader, if it was opened by this extractor.
+     */
+    public void close() {
+        if (closeReader) {
+            closeReader = false;
+            try {
+                indexReader.close();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to close the index reader " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.sling.jcr.jackrabbit.server.index;
+
+import org.apache.jackrabbit.core.query.lucene.SearchIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.jcr.query.QueryManager;
+
+/**
+ * Reaches the Jackrabbit search index behind a query manager. The fields on the way are
+ * private, they are found by reflection once per class.
+ */
+final class SearchIndexes {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SearchIndexes.class);
+    /**
+     * The fields found by reflection, by class and field name.
+     */
+    private static final ConcurrentMap<String, Field> FIELDS = new ConcurrentHashMap<String, Field>();
+
+    private SearchIndexes() {
+    }
+
+    /**
+     * @param queryManager
+     * @return the search index of the workspace of the query manager.
+     * @throws IllegalArgumentException
+     *             if the query manager is not backed by a Jackrabbit search index.
+     */
+    static SearchIndex getSearchIndex(QueryManager queryManager) {
+        Object handler = adaptTo(queryManager, "searchMgr", "handler");
+        if (!(handler instanceof SearchIndex)) {
+            throw new IllegalArgumentException(
+                    "Failed to get index Reader from Query Manager, which should have been a QueryManagerImpl, but was "
+                            + queryManager.getClass());
+        }
+        return (SearchIndex) handler;
+    }
+
+    /**
+     * Follow a path of private fields from an object.
+     * 
+     * @param startObject
+     * @param fieldPath
+     * @return the value of the last field, or null if the path could not be followed.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T adaptTo(Object startObject, String... fieldPath) {
+        Object currentObject = startObject;
+        try {
+            for (String field : fieldPath) {
+                currentObject = getField(currentObject.getClass(), field).get(currentObject);
+            }
+            return (T) currentObject;
+        } catch (Exception e) {
+            LOGGER.error(e.getMessage(), e);
+        }
+        return null;
+    }
+
+    private static Field getField(Class<?> c, String name) throws NoSuchFieldException {
+        String key = c.getName() + "#" + name;
+        Field field = FIELDS.get(key);
+        if (field == null) {
+            field = c.getDeclaredField(name);
+            field.setAccessible(true);
+            FIELDS.put(key, field);
+        }
+        return field;
+    }
+}
@@ -18,6 +18,7 @@
 package org.apache.sling.jcr.jackrabbit.server.index;
 
 import org.apache.jackrabbit.core.query.lucene.FieldNames;
+import org.apache.jackrabbit.core.query.lucene.SearchIndex;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermDocs;
@@ -26,7 +27,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.lang.reflect.Field;
 import java.util.Iterator;
 
 import javax.jcr.Node;
@@ -34,21 +34,38 @@ import javax.jcr.RepositoryException;
 import javax.jcr.query.QueryManager;
 
 /**
- *
+ * Builds a term cloud from the full text index of the nodes added to it. The nodes are
+ * the results of a query run by the requesting session, so a cloud is only good for that
+ * session and is not kept once it has been listed.
  */
 public class TermCloudExtractor {
     private static final Logger LOGGER = LoggerFactory.getLogger(TermCloudExtractor.class);
+
+    private SearchIndex searchIndex;
     private IndexReader indexReader;
     private TermCloudVectorMapper cloudTermVectorMapper;
 
+    /**
+     * Create an extractor on the index behind a query manager. A reader is opened and
+     * closed for each node added.
+     * 
+     * @param queryManager
+     * @param maxSize
+     */
     public TermCloudExtractor(QueryManager queryManager, int maxSize) {
-        indexReader = adaptTo(queryManager, "searchMgr", "handler", "index");
-        if (indexReader == null) {
-            throw new IllegalArgumentException(
-                    "Failed to get index Reader from Query Manager, which should have been a QueryManagerImpl, but was "
-                            + queryManager.getClass());
-        }
-        cloudTermVectorMapper = new TermCloudVectorMapper(maxSize);
+        searchIndex = SearchIndexes.getSearchIndex(queryManager);
+        init(maxSize);
+    }
+
+    /**
+     * Create an extractor on an index reader the caller will close.
+     * 
+     * @param indexReader
+     * @param maxSize
+     */
+    protected TermCloudExtractor(IndexReader indexReader, int maxSize) {
+        this.indexReader = indexReader;
+        init(maxSize);
     }
 
     /**
@@ -57,40 +74,40 @@ public class TermCloudExtractor {
     protected TermCloudExtractor() {
     }
 
+    private void init(int maxSize) {
+        cloudTermVectorMapper = new TermCloudVectorMapper(maxSize);
+    }
+
     /**
      * Adapts a QueryManager into the underlying Lucene Index Reader
      * 
      * @param queryManager
      * @return
      */
-    @SuppressWarnings("unchecked")
     protected <T> T adaptTo(Object startObject, String... fieldPath) {
-        Object currentObject = startObject;
-        try {
-            for (String field : fieldPath) {
-                Field nextField = currentObject.getClass().getDeclaredField(field);
-                nextField.setAccessible(true);
-                currentObject = nextField.get(currentObject);
-            }
-            return (T) currentObject;
-        } catch (Exception e) {
-            LOGGER.error(e.getMessage(), e);
-        }
-        return null;
+        return SearchIndexes.<T> adaptTo(startObject, fieldPath);
     }
 
     public void add(Node node) throws RepositoryException {
         try {
-            Term idTerm = new Term(FieldNames.UUID, node.getIdentifier().toString());
-            TermDocs tDocs = indexReader.termDocs(idTerm);
+            IndexReader reader = indexReader == null ? searchIndex.getIndexReader()
+                    : indexReader;
             try {
-                if (tDocs.next()) {
-                    int docNumber = tDocs.doc();
-                    indexReader.getTermFreqVector(docNumber, FieldNames.FULLTEXT,
-                            cloudTermVectorMapper);
+                Term idTerm = new Term(FieldNames.UUID, node.getIdentifier().toString());
+                TermDocs tDocs = reader.termDocs(idTerm);
+                try {
+                    if (tDocs.next()) {
+                        int docNumber = tDocs.doc();
+                        reader.getTermFreqVector(docNumber, FieldNames.FULLTEXT,
+                                cloudTermVectorMapper);
+                    }
+                } finally {
+                    tDocs.close();
                 }
             } finally {
-                tDocs.close();
+                if (reader != indexReader) {
+                    reader.close();
+                }
             }
         } catch (IOException e) {
             LOGGER.warn("Failed to add Node " + node + " to the term cloud " + e.getMessage());
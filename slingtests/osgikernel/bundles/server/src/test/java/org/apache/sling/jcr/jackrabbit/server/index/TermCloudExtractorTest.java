@@ -17,10 +17,27 @@
  */
 package org.apache.sling.jcr.jackrabbit.server.index;
 
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
 import static org.junit.Assert.assertEquals;
 
+import org.apache.jackrabbit.core.query.lucene.FieldNames;
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import javax.jcr.Node;
 
 /**
  *
@@ -55,4 +72,49 @@ public class TermCloudExtractorTest {
     String e = termCloudExtractor.adaptTo(obj, "a","b","c","d" );
     assertEquals("hello",e);
   }
+
+  @Test
+  public void testAddReadsTermVectors() throws Exception {
+    Directory directory = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(directory, new WhitespaceAnalyzer(), true,
+        IndexWriter.MaxFieldLength.UNLIMITED);
+    addDocument(writer, "a", "cloud term term");
+    addDocument(writer, "b", "term rain");
+    addDocument(writer, "c", "snow");
+    writer.close();
+
+    IndexReader reader = IndexReader.open(directory);
+    TermCloudExtractor extractor = new TermCloudExtractor(reader, 10);
+    extractor.add(createNode("a"));
+    extractor.add(createNode("b"));
+    // not in the index.
+    extractor.add(createNode("d"));
+    Iterator<CloudTerm> terms = extractor.termIteator(0);
+    CloudTerm term = terms.next();
+    assertEquals("term", term.getName());
+    assertEquals(3, term.getCount());
+    Set<String> names = new HashSet<String>();
+    while (terms.hasNext()) {
+      term = terms.next();
+      assertEquals(1, term.getCount());
+      names.add(term.getName());
+    }
+    assertEquals(new HashSet<String>(Arrays.asList("cloud", "rain")), names);
+    reader.close();
+  }
+
+  private void addDocument(IndexWriter writer, String id, String text) throws Exception {
+    Document doc = new Document();
+    doc.add(new Field(FieldNames.UUID, id, Field.Store.YES, Field.Index.NOT_ANALYZED));
+    doc.add(new Field(FieldNames.FULLTEXT, text, Field.Store.NO, Field.Index.ANALYZED,
+        Field.TermVector.YES));
+    writer.addDocument(doc);
+  }
+
+  private Node createNode(String id) throws Exception {
+    Node node = createMock(Node.class);
+    expect(node.getIdentifier()).andReturn(id).anyTimes();
+    replay(node);
+    return node;
+  }
 }
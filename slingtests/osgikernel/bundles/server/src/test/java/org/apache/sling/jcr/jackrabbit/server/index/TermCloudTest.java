@@ -19,6 +19,8 @@ package org.apache.sling.jcr.jackrabbit.server.index;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -27,6 +29,7 @@ import org.apache.sling.jcr.jackrabbit.server.impl.index.TermCloud;
 import org.junit.Test;
 
 import java.util.Iterator;
+import java.util.List;
 
 /**
  *
@@ -104,7 +107,41 @@ public class TermCloudTest {
 
         }
     }
-    
-    
+
+    @Test
+    public void testTermsReused() {
+        TermCloud tc = new TermCloud(10);
+        tc.add(new CloudTermImpl("a", 1));
+        List<CloudTerm> terms = tc.getTerms();
+        assertSame(terms, tc.getTerms());
+        tc.add(new CloudTermImpl("a", 1));
+        assertNotSame(terms, tc.getTerms());
+        assertEquals(2, tc.getTerms().get(0).getCount());
+    }
+
+    @Test
+    public void testRareTermsDropped() {
+        TermCloud tc = new TermCloud(10);
+        // a long tail of terms seen once, well over the terms counted, and a few
+        // common ones.
+        for (int i = 0; i < 5000; i++) {
+            tc.add(new CloudTermImpl("rare" + i, 1));
+            if (i % 100 == 0) {
+                for (int j = 0; j < 5; j++) {
+                    tc.add(new CloudTermImpl("common" + j, 2));
+                }
+            }
+        }
+        List<CloudTerm> terms = tc.getTerms();
+        assertEquals(10, terms.size());
+        for (int i = 0; i < 5; i++) {
+            assertTrue(terms.get(i).getName().startsWith("common"));
+            assertEquals(100, terms.get(i).getCount());
+        }
+        for (int i = 5; i < 10; i++) {
+            assertTrue(terms.get(i).getName().startsWith("rare"));
+            assertEquals(1, terms.get(i).getCount());
+        }
+    }
 
 }
@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.site;
+
+import org.sakaiproject.nakamura.api.site.SortField;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A member of a site, detached from any session, with the sort keys extracted when the
+ * member was added. The member is referenced by the set of site groups that declare it,
+ * so that it is only removed when the last of those memberships goes.
+ */
+public class SiteMember {
+
+  private final String id;
+  private String firstName;
+  private String lastName;
+  private volatile boolean sortKeysLoaded;
+  private final Set<String> parents = new HashSet<String>();
+
+  /**
+   * @param id
+   *          the id of the authorizable.
+   */
+  public SiteMember(String id) {
+    this.id = id;
+  }
+
+  /**
+   * @return the id of the authorizable.
+   */
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * @param firstName
+   * @param lastName
+   */
+  public void setSortKeys(String firstName, String lastName) {
+    this.firstName = firstName;
+    this.lastName = lastName;
+    this.sortKeysLoaded = true;
+  }
+
+  /**
+   * The profile of the member changed, the names are read again when next needed.
+   */
+  public void clearSortKeys() {
+    this.sortKeysLoaded = false;
+  }
+
+  /**
+   * @return true if the names have been read from the profile of the member.
+   */
+  public boolean isSortKeysLoaded() {
+    return sortKeysLoaded;
+  }
+
+  /**
+   * @param field
+   * @return the sort key for the field, never null.
+   */
+  public String getSortKey(SortField field) {
+    String key = null;
+    switch (field) {
+    case firstName:
+      key = firstName;
+      break;
+    case lastName:
+      key = lastName;
+      break;
+    case id:
+      key = id;
+      break;
+    }
+    return key == null ? "" : key;
+  }
+
+  /**
+   * @param parent
+   *          the id of the group declaring this member, null if declared by the site.
+   * @return true if this is a new membership.
+   */
+  boolean addParent(String parent) {
+    return parents.add(parent);
+  }
+
+  /**
+   * @param parent
+   *          the id of the group that no longer declares this member.
+   * @return true if the member is no longer declared by any group in the site.
+   */
+  boolean removeParent(String parent) {
+    parents.remove(parent);
+    return parents.isEmpty();
+  }
+
+}
@@ -0,0 +1,241 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.site;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The computed membership of a site: every group reachable from the authorizables
+ * declared on the site, and every user in those groups. Held by the
+ * {@link SiteMembershipCache} and shared between requests, so it contains ids and sort
+ * keys only, never session bound objects. The number of members each recent caller can
+ * see is remembered until the users change, so counting the members of a site only looks
+ * up every member once per caller.
+ */
+public class SiteMembership {
+
+  /**
+   * The number of callers to remember visible member counts for.
+   */
+  private static final int MAX_VISIBLE_COUNTS = 100;
+
+  private final String sitePath;
+  private final String[] authorizables;
+  private final Map<String, SiteMember> groups = new LinkedHashMap<String, SiteMember>();
+  private final Map<String, SiteMember> users = new LinkedHashMap<String, SiteMember>();
+  /**
+   * The number of users each caller can see, keyed by the caller's user id, valid while
+   * the users are unchanged.
+   */
+  private final Map<String, Integer> visibleCounts = new LinkedHashMap<String, Integer>(16,
+      0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+      return size() > MAX_VISIBLE_COUNTS;
+    }
+  };
+  /**
+   * Moved on whenever a user is added or removed.
+   */
+  private long version;
+
+  /**
+   * @param sitePath
+   *          the path of the site.
+   * @param authorizables
+   *          the authorizable ids declared on the site when the membership was built.
+   */
+  public SiteMembership(String sitePath, String[] authorizables) {
+    this.sitePath = sitePath;
+    this.authorizables = authorizables;
+  }
+
+  /**
+   * @return the path of the site.
+   */
+  public String getSitePath() {
+    return sitePath;
+  }
+
+  /**
+   * @param declared
+   *          the authorizable ids currently declared on the site.
+   * @return true if this membership was built from the same declared authorizables.
+   */
+  public boolean isBuiltFrom(String[] declared) {
+    return Arrays.equals(authorizables, declared);
+  }
+
+  /**
+   * @param parent
+   *          the declaring group id, or null if declared on the site.
+   * @param groupId
+   * @return true if the group was not already part of the site.
+   */
+  public synchronized boolean addGroup(String parent, String groupId) {
+    SiteMember group = groups.get(groupId);
+    if (group == null) {
+      group = new SiteMember(groupId);
+      groups.put(groupId, group);
+      group.addParent(parent);
+      return true;
+    }
+    group.addParent(parent);
+    return false;
+  }
+
+  /**
+   * @param groupId
+   * @return true if the group is somewhere in the membership of the site.
+   */
+  public synchronized boolean containsGroup(String groupId) {
+    return groups.containsKey(groupId);
+  }
+
+  /**
+   * Add a user declared by a group in the site, or by the site itself.
+   *
+   * @param parent
+   *          the declaring group id, or null if declared on the site.
+   * @param userId
+   * @return the member, new or existing, so that sort keys can be set.
+   */
+  public synchronized SiteMember addUser(String parent, String userId) {
+    SiteMember user = users.get(userId);
+    if (user == null) {
+      user = new SiteMember(userId);
+      users.put(userId, user);
+      changed();
+    }
+    user.addParent(parent);
+    return user;
+  }
+
+  /**
+   * Remove one declaration of a user, the user stays a member while it is declared by
+   * another group in the site.
+   *
+   * @param parent
+   * @param userId
+   */
+  public synchronized void removeUser(String parent, String userId) {
+    SiteMember user = users.get(userId);
+    if (user != null && user.removeParent(parent)) {
+      users.remove(userId);
+      changed();
+    }
+  }
+
+  /**
+   * The profile of a user changed, its sort keys are read again when next needed.
+   *
+   * @param userId
+   */
+  public synchronized void clearSortKeys(String userId) {
+    SiteMember user = users.get(userId);
+    if (user != null) {
+      user.clearSortKeys();
+    }
+  }
+
+  /**
+   * @return the number of users in the site, maintained as users join and leave.
+   */
+  public synchronized int getMemberCount() {
+    return users.size();
+  }
+
+  /**
+   * @return the version of the users, taken before they are read to count the members a
+   *         caller can see.
+   */
+  public synchronized long getVersion() {
+    return version;
+  }
+
+  /**
+   * @param caller
+   *          the user id of the caller.
+   * @return the number of users the caller can see, or null if that is not known.
+   */
+  public synchronized Integer getVisibleCount(String caller) {
+    return visibleCounts.get(caller);
+  }
+
+  /**
+   * Remember the number of users the caller can see, unless the users changed since the
+   * version was taken.
+   *
+   * @param caller
+   *          the user id of the caller.
+   * @param version
+   *          the value of {@link #getVersion()} before the users were read.
+   * @param count
+   */
+  public synchronized void setVisibleCount(String caller, long version, int count) {
+    if (this.version == version) {
+      visibleCounts.put(caller, count);
+    }
+  }
+
+  /**
+   * Access to the users may have changed, forget what every caller could see.
+   */
+  public synchronized void clearVisibleCounts() {
+    visibleCounts.clear();
+  }
+
+  /**
+   * @return the number of groups in the site.
+   */
+  public synchronized int getGroupCount() {
+    return groups.size();
+  }
+
+  /**
+   * @return a copy of the users in the order they were added.
+   */
+  public synchronized List<SiteMember> getUsers() {
+    return new ArrayList<SiteMember>(users.values());
+  }
+
+  /**
+   * @return a copy of the groups in the order they were added.
+   */
+  public synchronized List<SiteMember> getGroups() {
+    return new ArrayList<SiteMember>(groups.values());
+  }
+
+  /**
+   * @return a copy of the ids of the groups in the site.
+   */
+  public synchronized List<String> getGroupIds() {
+    return new ArrayList<String>(groups.keySet());
+  }
+
+  private void changed() {
+    version++;
+    visibleCounts.clear();
+  }
+}
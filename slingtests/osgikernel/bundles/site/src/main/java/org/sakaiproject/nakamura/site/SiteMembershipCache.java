@@ -0,0 +1,247 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.site;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.Map.Entry;
+
+/**
+ * A bounded, least recently used cache of site memberships keyed by site path, with a
+ * reverse index from group id to the sites that group is part of. Users joining and
+ * leaving a group are applied to every cached site containing the group, structural
+ * changes to a group drop those sites so they are rebuilt on next use. The profiles the
+ * sort keys were read from are remembered, so that an edit to a profile makes the names
+ * of that user be read again. Every change moves a generation on, so that a membership
+ * built while a change was being applied is not kept.
+ */
+public class SiteMembershipCache {
+
+  private final Map<String, SiteMembership> sites;
+  private final Map<String, Set<String>> groupSites = new HashMap<String, Set<String>>();
+  /**
+   * The user id of each profile that sort keys were read from, keyed by profile path.
+   */
+  private final Map<String, String> profiles = new HashMap<String, String>();
+  /**
+   * Moved on by every change, see {@link #getGeneration()}.
+   */
+  private long generation;
+
+  /**
+   * @param maxSites
+   *          the maximum number of sites to hold membership for.
+   */
+  public SiteMembershipCache(final int maxSites) {
+    sites = new LinkedHashMap<String, SiteMembership>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, SiteMembership> eldest) {
+        if (size() > maxSites) {
+          unindex(eldest.getValue());
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * @param sitePath
+   * @param declared
+   *          the authorizables currently declared on the site.
+   * @return the cached membership, or null if there is none or it was built from a
+   *         different set of declared authorizables.
+   */
+  public synchronized SiteMembership get(String sitePath, String[] declared) {
+    SiteMembership membership = sites.get(sitePath);
+    if (membership != null && !membership.isBuiltFrom(declared)) {
+      remove(sitePath);
+      return null;
+    }
+    return membership;
+  }
+
+  /**
+   * @return the generation to pass to put, taken before the groups a membership is built
+   *         from are read.
+   */
+  public synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Keep a membership, unless something changed since the generation was taken, as the
+   * change may not have been applied to it.
+   *
+   * @param membership
+   *          a fully built membership.
+   * @param generation
+   *          the value of {@link #getGeneration()} before the membership was built.
+   * @return true if the membership was kept.
+   */
+  public synchronized boolean put(SiteMembership membership, long generation) {
+    if (this.generation != generation) {
+      return false;
+    }
+    unindex(membership.getSitePath());
+    sites.put(membership.getSitePath(), membership);
+    for (String groupId : membership.getGroupIds()) {
+      Set<String> paths = groupSites.get(groupId);
+      if (paths == null) {
+        paths = new HashSet<String>();
+        groupSites.put(groupId, paths);
+      }
+      paths.add(membership.getSitePath());
+    }
+    return true;
+  }
+
+  /**
+   * @param sitePath
+   */
+  public synchronized void remove(String sitePath) {
+    if (sites.containsKey(sitePath)) {
+      generation++;
+      unindex(sitePath);
+    }
+  }
+
+  /**
+   * A user joined a group, add it to every cached site containing the group.
+   *
+   * @param groupId
+   * @param userId
+   */
+  public synchronized void join(String groupId, String userId) {
+    generation++;
+    Set<String> paths = groupSites.get(groupId);
+    if (paths != null) {
+      for (String path : paths) {
+        sites.get(path).addUser(groupId, userId);
+      }
+    }
+  }
+
+  /**
+   * A user left a group, remove it from every cached site containing the group.
+   *
+   * @param groupId
+   * @param userId
+   */
+  public synchronized void part(String groupId, String userId) {
+    generation++;
+    Set<String> paths = groupSites.get(groupId);
+    if (paths != null) {
+      for (String path : paths) {
+        sites.get(path).removeUser(groupId, userId);
+      }
+    }
+  }
+
+  /**
+   * The group changed in a way that can't be applied incrementally, drop every site
+   * containing it.
+   *
+   * @param groupId
+   */
+  public synchronized void invalidateGroup(String groupId) {
+    generation++;
+    Set<String> paths = groupSites.get(groupId);
+    if (paths != null) {
+      for (String path : paths.toArray(new String[paths.size()])) {
+        remove(path);
+      }
+    }
+  }
+
+  /**
+   * Remember which user the sort keys read from a profile belong to.
+   *
+   * @param profilePath
+   * @param userId
+   */
+  public synchronized void addProfile(String profilePath, String userId) {
+    profiles.put(profilePath, userId);
+  }
+
+  /**
+   * A profile changed, the sort keys of its user are read again in every cached site.
+   *
+   * @param profilePath
+   */
+  public synchronized void invalidateProfile(String profilePath) {
+    String userId = profiles.remove(profilePath);
+    if (userId != null) {
+      generation++;
+      for (SiteMembership membership : sites.values()) {
+        membership.clearSortKeys(userId);
+      }
+    }
+  }
+
+  /**
+   * Access control changed somewhere in the authorizables, forget which members each
+   * caller could see.
+   */
+  public synchronized void clearVisibleCounts() {
+    for (SiteMembership membership : sites.values()) {
+      membership.clearVisibleCounts();
+    }
+  }
+
+  /**
+   * Drop everything.
+   */
+  public synchronized void clear() {
+    generation++;
+    sites.clear();
+    groupSites.clear();
+    profiles.clear();
+  }
+
+  /**
+   * @return the number of sites held.
+   */
+  public synchronized int size() {
+    return sites.size();
+  }
+
+  private void unindex(String sitePath) {
+    SiteMembership membership = sites.remove(sitePath);
+    if (membership != null) {
+      unindex(membership);
+    }
+  }
+
+  private void unindex(SiteMembership membership) {
+    for (String groupId : membership.getGroupIds()) {
+      Set<String> paths = groupSites.get(groupId);
+      if (paths != null) {
+        paths.remove(membership.getSitePath());
+        if (paths.isEmpty()) {
+          groupSites.remove(groupId);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.site;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.Map.Entry;
+
+/**
+ * An in memory index of site name to site path. Entries are added when a site is created
+ * or found, and removed when the site, or a node above it, is moved or deleted. Callers
+ * must still check that the path they get back is a site with that name, the index is a
+ * hint and is never the only record of a site. When full the least recently used name is
+ * dropped. The names are also held sorted by path, so that removing a path only touches
+ * the sites at or below it.
+ */
+public class SiteNameIndex {
+
+  private final Map<String, String> paths;
+  private final TreeMap<String, String> names = new TreeMap<String, String>();
+
+  /**
+   * @param maxSites
+   *          the number of names to hold.
+   */
+  public SiteNameIndex(final int maxSites) {
+    paths = new LinkedHashMap<String, String>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, String> eldest) {
+        if (size() > maxSites) {
+          names.remove(eldest.getValue());
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * @param siteName
+   * @return the path of the site with that name, or null if not known.
+   */
+  public synchronized String get(String siteName) {
+    return paths.get(siteName);
+  }
+
+  /**
+   * @param sitePath
+   *          the path of a site, the name of the site is the last element of the path.
+   */
+  public synchronized void put(String sitePath) {
+    String siteName = getSiteName(sitePath);
+    String previous = paths.put(siteName, sitePath);
+    if (previous != null && !previous.equals(sitePath)) {
+      names.remove(previous);
+    }
+    String previousName = names.put(sitePath, siteName);
+    if (previousName != null && !previousName.equals(siteName)) {
+      paths.remove(previousName);
+    }
+  }
+
+  /**
+   * Remove the name of a site, if it still maps to the path.
+   *
+   * @param siteName
+   * @param sitePath
+   */
+  public synchronized void remove(String siteName, String sitePath) {
+    if (sitePath.equals(paths.get(siteName))) {
+      paths.remove(siteName);
+      names.remove(sitePath);
+    }
+  }
+
+  /**
+   * Remove every site at or below the path.
+   *
+   * @param path
+   *          a path that has been moved or deleted.
+   */
+  public synchronized void removePath(String path) {
+    String siteName = names.remove(path);
+    if (siteName != null) {
+      paths.remove(siteName);
+    }
+    String childPrefix = path.endsWith("/") ? path : path + "/";
+    // every path starting with the prefix sorts before the prefix with its last
+    // character moved on by one.
+    String childEnd = childPrefix.substring(0, childPrefix.length() - 1)
+        + (char) (childPrefix.charAt(childPrefix.length() - 1) + 1);
+    SortedMap<String, String> children = names.subMap(childPrefix, childEnd);
+    for (String name : children.values()) {
+      paths.remove(name);
+    }
+    children.clear();
+  }
+
+  /**
+   * @return the number of names held.
+   */
+  public synchronized int size() {
+    return paths.size();
+  }
+
+  /**
+   * @param sitePath
+   * @return the name of the site at the path.
+   */
+  public static String getSiteName(String sitePath) {
+    return sitePath.substring(sitePath.lastIndexOf('/') + 1);
+  }
+}
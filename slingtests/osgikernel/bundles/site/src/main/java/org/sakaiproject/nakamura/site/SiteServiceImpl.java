@@ -17,7 +17,6 @@
  */
 package org.sakaiproject.nakamura.site;
 
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
@@ -25,21 +24,27 @@ import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.Group;
 import org.apache.jackrabbit.api.security.user.User;
 import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.jackrabbit.util.ISO9075;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.personal.PersonalConstants;
 import org.sakaiproject.nakamura.api.personal.PersonalUtils;
 import org.sakaiproject.nakamura.api.site.SiteException;
 import org.sakaiproject.nakamura.api.site.SiteService;
 import org.sakaiproject.nakamura.api.site.Sort;
+import org.sakaiproject.nakamura.api.site.SortField;
 import org.sakaiproject.nakamura.util.JcrUtils;
 import org.sakaiproject.nakamura.util.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.AbstractCollection;
-import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -64,12 +69,21 @@ import javax.servlet.http.HttpServletResponse;
  * @scr.component immediate="true" label="SiteService"
  *                description="Sakai Site Service implementation"
  * @scr.service interface="org.sakaiproject.nakamura.api.site.SiteService"
+ * @scr.service interface="org.osgi.service.event.EventHandler"
  * @scr.property name="service.description"
  *               value="Provides a site service to manage sites."
  * @scr.property name="service.vendor" value="The Sakai Foundation"
+ * @scr.property name="event.topics" values.0="org/apache/sling/jackrabbit/usermanager/event/delete"
+ *                                   values.1="org/apache/sling/jackrabbit/usermanager/event/update"
+ *                                   values.2="org/apache/sling/jackrabbit/usermanager/event/join"
+ *                                   values.3="org/apache/sling/jackrabbit/usermanager/event/part"
+ *                                   values.4="org/apache/sling/api/resource/Resource/ADDED"
+ *                                   values.5="org/apache/sling/api/resource/Resource/REMOVED"
+ *                                   values.6="org/apache/sling/api/resource/Resource/CHANGED"
+ * @scr.property name="event.filter" value="(|(!(path=*))(event.topics=org/apache/sling/api/resource/Resource/REMOVED)(resourceType=sakai/site)(path=/_user/*)(path=/rep:security/*rep:policy*))"
  * @scr.reference name="eventAdmin" interface="org.osgi.service.event.EventAdmin"
  */
-public class SiteServiceImpl implements SiteService {
+public class SiteServiceImpl implements SiteService, EventHandler {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SiteServiceImpl.class);
 
@@ -88,6 +102,52 @@ public class SiteServiceImpl implements SiteService {
    */
   private static final int MAXLISTSIZE = 10000;
 
+  /**
+   * The maximum number of sites to hold computed membership for.
+   */
+  private static final int MAX_CACHED_SITES = 1000;
+
+  /**
+   * Properties and topic suffixes of the authorizable events sent by the user manager.
+   */
+  private static final String EVENT_PRINCIPAL_NAME = "principal_name";
+  private static final String EVENT_USER = "user";
+  private static final String EVENT_JOIN = "/join";
+  private static final String EVENT_PART = "/part";
+  private static final String EVENT_DELETE = "/delete";
+
+  /**
+   * Computed site memberships, keyed by site path.
+   */
+  private final SiteMembershipCache membershipCache = new SiteMembershipCache(
+      MAX_CACHED_SITES);
+
+  /**
+   * The maximum number of site names to hold paths for.
+   */
+  private static final int MAX_INDEXED_SITE_NAMES = 50000;
+
+  /**
+   * Prefix of the topics of resource events posted by Sling.
+   */
+  private static final String RESOURCE_TOPIC_PREFIX = "org/apache/sling/api/resource/Resource/";
+
+  /**
+   * The name of the profile node, anything at or below it is part of the profile.
+   */
+  private static final String PROFILE_SEGMENT = "/" + PersonalConstants.AUTH_PROFILE;
+
+  /**
+   * The name of an access control policy node, a change to one below /rep:security may
+   * change which members a caller can see.
+   */
+  private static final String POLICY_SEGMENT = "/rep:policy";
+
+  /**
+   * Site paths keyed by site name, maintained from resource added and removed events.
+   */
+  private final SiteNameIndex siteNameIndex = new SiteNameIndex(MAX_INDEXED_SITE_NAMES);
+
   /**
    * The OSGi Event Admin Service.
    */
@@ -143,6 +203,7 @@ public class SiteServiceImpl implements SiteService {
    */
   public void joinSite(Node site, String requestedGroup) throws SiteException {
     Session session = null;
+    boolean joined = false;
     try {
        session = slingRepository.loginAdministrative(null);
       String user = site.getSession().getUserID();
@@ -191,6 +252,7 @@ public class SiteServiceImpl implements SiteService {
       if (Joinable.yes.equals(groupJoin) && Joinable.yes.equals(siteJoin)) {
         targetGroup.addMember(userAuthorizable);
         postEvent(SiteEvent.joinedSite, site, targetGroup);
+        joined = true;
 
       } else {
         startJoinWorkflow(site, targetGroup);
@@ -198,6 +260,9 @@ public class SiteServiceImpl implements SiteService {
       if ( session.hasPendingChanges()) {
         session.save();
       }
+      if (joined) {
+        membershipCache.join(requestedGroup, user);
+      }
     } catch (RepositoryException e) {
       LOGGER.warn(e.getMessage(), e);
       throw new SiteException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
@@ -248,6 +313,7 @@ public class SiteServiceImpl implements SiteService {
         throw new SiteException(HttpServletResponse.SC_CONFLICT, "User " + user
             + " was not a member of " + requestedGroup);
       }
+      membershipCache.part(requestedGroup, user);
       postEvent(SiteEvent.unjoinedSite, site, targetGroup);
 
     } catch (RepositoryException e) {
@@ -449,36 +515,23 @@ public class SiteServiceImpl implements SiteService {
    */
   public Iterator<Group> getGroups(Node site, int start, int nitems, Sort[] sort)
       throws SiteException {
-    MembershipTree membership = getMembershipTree(site);
-    if (sort != null && sort.length > 0) {
-      Comparator<GroupKey> comparitor = buildCompoundComparitor(sort);
-      List<GroupKey> sortedList = Lists.sortedCopy(membership.getGroups().keySet(), comparitor);
-      Iterator<GroupKey> sortedIterator = sortedList.listIterator(start);
-      return unwrapGroups(Iterators.limit(sortedIterator, nitems));
-    }
-
-    // no sort requested.
-
-    List<GroupKey> finalList = Lists.immutableList(membership.getGroups().keySet());
-    Iterator<GroupKey> unsortedIterator = finalList.listIterator(start);
-    return unwrapGroups(Iterators.limit(unsortedIterator, nitems));
-  }
-
-  public Iterator<Group> unwrapGroups(final Iterator<GroupKey> underlying) {
-    return new Iterator<Group>() {
-
-      public boolean hasNext() {
-        return underlying.hasNext();
-      }
-
-      public Group next() {
-        return underlying.next().getGroup();
-      }
-
-      public void remove() {
-        underlying.remove();
+    try {
+      UserManager userManager = AccessControlUtil.getUserManager(site.getSession());
+      Map<String, Authorizable> resolved = new HashMap<String, Authorizable>();
+      List<SiteMember> groups = visible(getSiteMembership(site).getGroups(), userManager,
+          resolved);
+      List<Group> page = Lists.newArrayList();
+      for (SiteMember member : page(groups, start, nitems, sort)) {
+        Authorizable a = resolved.get(member.getId());
+        if (a instanceof Group) {
+          page.add((Group) a);
+        }
       }
-    };
+      return page.iterator();
+    } catch (RepositoryException e) {
+      LOGGER.warn(e.getMessage(), e);
+      throw new SiteException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+    }
   }
 
   /**
@@ -488,26 +541,54 @@ public class SiteServiceImpl implements SiteService {
    *      int, org.sakaiproject.nakamura.api.site.Sort[])
    */
   public AbstractCollection<User> getMembers(Node site, int start, int nitems, Sort[] sort) {
-    MembershipTree membership = getMembershipTree(site);
-    if (sort != null && sort.length > 0) {
-      Comparator<UserKey> comparitor = buildCompoundComparitor(sort);
-      List<UserKey> sortedList = Lists.sortedCopy(membership.getUsers().keySet(), comparitor);
-      Iterator<UserKey> sortedIterator = sortedList.listIterator(start);
-      return returnCollection(sortedIterator, nitems, sortedList.size());
+    final List<User> page = Lists.newArrayList();
+    int total = 0;
+    try {
+      Session session = site.getSession();
+      UserManager userManager = AccessControlUtil.getUserManager(session);
+      Map<String, Authorizable> resolved = new HashMap<String, Authorizable>();
+      SiteMembership membership = getSiteMembership(site);
+      List<SiteMember> users = membership.getUsers();
+      total = countVisible(membership, session, userManager, resolved);
+      if (sort != null && sort.length > 0) {
+        loadSortKeys(users, sort);
+      }
+      if (total == users.size()) {
+        // the caller can see every member, only look up the members on the page.
+        for (SiteMember member : page(users, start, nitems, sort)) {
+          Authorizable a = resolve(member, userManager, resolved);
+          if (a instanceof User) {
+            page.add((User) a);
+          }
+        }
+      } else {
+        // some members are hidden from the caller, walk the members in order until the
+        // page is full, skipping the ones the caller can't see.
+        int skip = start;
+        for (SiteMember member : page(users, 0, users.size(), sort)) {
+          if (page.size() >= nitems) {
+            break;
+          }
+          Authorizable a = resolve(member, userManager, resolved);
+          if (a instanceof User) {
+            if (skip > 0) {
+              skip--;
+            } else {
+              page.add((User) a);
+            }
+          }
+        }
+      }
+    } catch (RepositoryException ex) {
+      // dont change this warn into {} form, doing so will prevent the exception being displayed.
+      LOGGER.warn("Failed to list members of site ["+site+"] ", ex);
     }
-
-    // no sort requested.
-    List<UserKey> finalList = Lists.immutableList(membership.getUsers().keySet());
-    Iterator<UserKey> unsortedIterator = finalList.listIterator(start);
-    return returnCollection(unsortedIterator, nitems, finalList.size());
-  }
-
-  private AbstractCollection<User> returnCollection(final Iterator<UserKey> iterator, final int nitems, final int totalSize) {
+    final int totalSize = total;
     return new AbstractCollection<User>() {
 
       @Override
       public Iterator<User> iterator() {
-        return unwrapUsers(Iterators.limit(iterator, nitems));
+        return page.iterator();
       }
 
       @Override
@@ -517,70 +598,128 @@ public class SiteServiceImpl implements SiteService {
     };
   }
 
-  public Iterator<User> unwrapUsers(final Iterator<UserKey> underlying) {
-    return new Iterator<User>() {
-
-      public boolean hasNext() {
-        return underlying.hasNext();
-      }
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.site.SiteService#getMemberCount(javax.jcr.Node)
+   */
+  public int getMemberCount(Node site) {
+    try {
+      Session session = site.getSession();
+      return countVisible(getSiteMembership(site), session, AccessControlUtil
+          .getUserManager(session), new HashMap<String, Authorizable>());
+    } catch (RepositoryException ex) {
+      LOGGER.warn("Failed to count members of site ["+site+"] ", ex);
+    }
+    return 0;
+  }
 
-      public User next() {
-        return underlying.next().getUser();
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String topic = event.getTopic();
+    if (topic.startsWith(RESOURCE_TOPIC_PREFIX)) {
+      String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+      if (path != null) {
+        if (path.indexOf(POLICY_SEGMENT) >= 0) {
+          membershipCache.clearVisibleCounts();
+        }
+        int profile = path.indexOf(PROFILE_SEGMENT);
+        if (profile >= 0) {
+          // names are sort keys, an edit anywhere in a profile reloads them.
+          membershipCache.invalidateProfile(path.substring(0, profile
+              + PROFILE_SEGMENT.length()));
+        }
+        if (SlingConstants.TOPIC_RESOURCE_REMOVED.equals(topic)) {
+          siteNameIndex.removePath(path);
+          membershipCache.remove(path);
+        } else if (SlingConstants.TOPIC_RESOURCE_ADDED.equals(topic)
+            && SiteService.SITE_RESOURCE_TYPE.equals(event
+                .getProperty(SlingConstants.PROPERTY_RESOURCE_TYPE))) {
+          siteNameIndex.put(path);
+        }
       }
-
-      public void remove() {
-        underlying.remove();
+      return;
+    }
+    Object principalName = event.getProperty(EVENT_PRINCIPAL_NAME);
+    if (principalName == null) {
+      return;
+    }
+    String groupId = String.valueOf(principalName);
+    Object user = event.getProperty(EVENT_USER);
+    if (topic.endsWith(EVENT_DELETE)) {
+      // a deleted user might be in any site, deletes are rare so start again.
+      membershipCache.clear();
+      return;
+    }
+    if (user instanceof User
+        && (topic.endsWith(EVENT_JOIN) || topic.endsWith(EVENT_PART))) {
+      try {
+        String userId = ((User) user).getID();
+        if (topic.endsWith(EVENT_JOIN)) {
+          membershipCache.join(groupId, userId);
+        } else {
+          membershipCache.part(groupId, userId);
+        }
+        return;
+      } catch (RepositoryException e) {
+        LOGGER.warn("Unable to apply {} to site memberships, {} ", topic, e.getMessage());
       }
-    };
-  }
-
-  public int getMemberCount(Node site) {
-    return getMembershipTree(site).getUsers().size();
+    }
+    membershipCache.invalidateGroup(groupId);
   }
 
   /**
-   * Builds a membership tree of users and groups for the site, because of the tree like
-   * nature of membership we may want to think of a more efficient way of performing this
-   * operation, however, there are no queries to perform this and it may be better to have
-   * this in memory. We are taking a google like approach to this operation, limiting the
-   * set to a practical size. If this become a real problem, then we might want to put the
-   * members of a site into a JPA mapped table, although that will require a tree cache
-   * invalidation scheme to keep upto date. Membership is derived not always declared.
+   * Gets the membership of users and groups for the site, because of the tree like
+   * nature of membership this is expensive to build, so it is cached per site and kept
+   * up to date by group events. The cached membership is discarded if the authorizables
+   * declared on the site change. We are taking a google like approach to this operation,
+   * limiting the set to a practical size. If this become a real problem, then we might
+   * want to put the members of a site into a JPA mapped table. Membership is derived not
+   * always declared.
    * 
+   * The membership is shared by every user of the site, so it is built with an
+   * administrative session and callers filter it with their own session, see
+   * {@link #visible(List, UserManager, Map)}.
    * 
    * @param site
    *          the site
-   * @return a membership tree
+   * @return the membership of the site
+   * @throws RepositoryException
    */
-  private MembershipTree getMembershipTree(Node site) {
-    Map<GroupKey, Membership> groups = Maps.newLinkedHashMap();
-    Map<UserKey, Membership> users = Maps.newLinkedHashMap();
-    try {
-      Session session = site.getSession();
-      UserManager userManager = AccessControlUtil.getUserManager(site.getSession());
-      if (site.hasProperty(SiteService.AUTHORIZABLE)) {
-        Value[] values = getPropertyValues(site, SiteService.AUTHORIZABLE);
-        for (Value v : values) {
-          String id = v.getString();
+  private SiteMembership getSiteMembership(Node site) throws RepositoryException {
+    String[] declared = new String[0];
+    if (site.hasProperty(SiteService.AUTHORIZABLE)) {
+      Value[] values = getPropertyValues(site, SiteService.AUTHORIZABLE);
+      declared = new String[values.length];
+      for (int i = 0; i < values.length; i++) {
+        declared[i] = values[i].getString();
+      }
+    } else {
+      LOGGER.info(
+          "Site ({}) does not have Authorizable property ({}) and thus has no memberships", site
+              .getPath(), SiteService.AUTHORIZABLE);
+    }
+    String sitePath = site.getPath();
+    SiteMembership membership = membershipCache.get(sitePath, declared);
+    if (membership == null) {
+      // a join or part applied while the groups are read might be missing from this.
+      long generation = membershipCache.getGeneration();
+      membership = new SiteMembership(sitePath, declared);
+      Session session = slingRepository.loginAdministrative(null);
+      try {
+        UserManager userManager = AccessControlUtil.getUserManager(session);
+        for (String id : declared) {
           Authorizable a = userManager.getAuthorizable(id);
           if (a instanceof Group) {
-            // FIXME: a is never a Group Key (bug?)
-            if (!groups.containsKey(a)) {
-              groups.put(new GroupKey((Group) a), new Membership(null, a));
-              populateMembers((Group) a, groups, users, session);
+            if (membership.addGroup(null, id)) {
+              populateMembers((Group) a, membership, session);
             }
           } else if (a instanceof User) {
-            // FIXME: a is never a User Key (bug?)
-            if (!users.containsKey(a)) {
-              String profilePath = PersonalUtils.getProfilePath(a);
-              Node profileNode = null;
-              try {
-                profileNode = (Node) session.getItem(profilePath);
-              } catch ( PathNotFoundException e ) {
-                LOGGER.warn("User {} does not have a profile at {} ", a.getID(), profilePath);
-              }
-              users.put(new UserKey((User) a, profileNode), new Membership(null, a));
-            }
+            readSortKeys(membership.addUser(null, id), a, session);
           } else if (a == null) {
             // if a is null
             LOGGER.warn("Authorizable could not be resolved from id: {}", id);
@@ -590,99 +729,168 @@ public class SiteServiceImpl implements SiteService {
                 .getClass());
           }
         }
+      } finally {
+        session.logout();
+      }
+      membershipCache.put(membership, generation);
+    }
+    return membership;
+  }
 
-        // might want to cache the unsorted lists at this point, although they are already
-        // cached by JCR.
-      } else {
-        LOGGER.info(
-            "Site ({}) does not have Authorizable property ({}) and thus has no memberships", site
-                .getPath(), SiteService.AUTHORIZABLE);
+  /**
+   * Count the members the caller can see. The count is kept on the membership until its
+   * users or access control change, so the members are only looked up the first time.
+   * 
+   * @param membership
+   *          the cached membership.
+   * @param session
+   *          the caller's session.
+   * @param userManager
+   *          the user manager of the caller's session.
+   * @param resolved
+   *          filled with the authorizable of each member the caller can see, if they had
+   *          to be looked up.
+   * @return the number of members the caller can see.
+   * @throws RepositoryException
+   */
+  private int countVisible(SiteMembership membership, Session session,
+      UserManager userManager, Map<String, Authorizable> resolved)
+      throws RepositoryException {
+    String caller = session.getUserID();
+    Integer count = membership.getVisibleCount(caller);
+    if (count == null) {
+      long version = membership.getVersion();
+      count = visible(membership.getUsers(), userManager, resolved).size();
+      membership.setVisibleCount(caller, version, count);
+    }
+    return count;
+  }
+
+  /**
+   * @param members
+   *          members of the cached membership.
+   * @param userManager
+   *          the user manager of the caller's session.
+   * @param resolved
+   *          filled with the authorizable of each member the caller can see.
+   * @return the members the caller can see, in the same order.
+   * @throws RepositoryException
+   */
+  private List<SiteMember> visible(List<SiteMember> members, UserManager userManager,
+      Map<String, Authorizable> resolved) throws RepositoryException {
+    List<SiteMember> visible = Lists.newArrayList();
+    for (SiteMember member : members) {
+      Authorizable a = userManager.getAuthorizable(member.getId());
+      if (a != null) {
+        resolved.put(member.getId(), a);
+        visible.add(member);
       }
-    } catch (RepositoryException ex) {
-      // dont change this warn into {} form, doing so will prevent the exception being displayed.
-      LOGGER.warn("Failed to build membership Tree for  site ["+site+"] ", ex);
     }
-    return new MembershipTree(groups, users);
+    return visible;
   }
 
   /**
-   * Build a compound set of comparators for performing sorts.
+   * @return the authorizable of the member as the caller sees it, or null if the caller
+   *         can't see it.
+   */
+  private Authorizable resolve(SiteMember member, UserManager userManager,
+      Map<String, Authorizable> resolved) throws RepositoryException {
+    Authorizable a = resolved.get(member.getId());
+    return a == null ? userManager.getAuthorizable(member.getId()) : a;
+  }
+
+  /**
+   * Read the first and last name of a member from its profile, or from the authorizable
+   * if it has no profile.
    * 
-   * @param sort
-   *          the sort array to base the compound set
-   * @return the first comparator in the set.
+   * @param member
+   *          the member to set the sort keys on.
+   * @param a
+   *          the authorizable of the member.
+   * @param session
+   *          an administrative session to grab the profile node with.
+   * @throws RepositoryException
    */
-  @SuppressWarnings("unchecked")
-  private <T extends AuthorizableKey> Comparator<T> buildCompoundComparitor(Sort[] sort) {
-    if (sort.length == 0) {
-      return null;
+  private void readSortKeys(SiteMember member, Authorizable a, Session session)
+      throws RepositoryException {
+    if (member.isSortKeysLoaded()) {
+      return;
     }
-    final Comparator<T>[] comparitors = new Comparator[sort.length];
-    int i = 0;
-    for (final Sort s : sort) {
-
-      final int next = i + 1;
-      comparitors[i++] = new Comparator<T>() {
-
-        /**
-         * Compare the objects
-         */
-        public int compare(T o1, T o2) {
-          try {
-            String c1 = o1.getAuthorizable().getID();
-            String c2 = o2.getAuthorizable().getID();
-            switch (s.getField()) {
-            case firstName:
-              c1 = o1.getFirstName();
-              c2 = o2.getFirstName();
-              break;
-            case id:
-              c1 = o1.getAuthorizable().getID();
-              c2 = o2.getAuthorizable().getID();
-              break;
-            case lastName:
-              c1 = o1.getLastName();
-              c2 = o2.getLastName();
-              break;
-            }
-            switch (s.getOrder()) {
-            case asc:
-              int i = c1.compareTo(c2);
-              if (i == 0) {
-                i = compareNext(o1, o2);
-              }
-              return i;
-            case desc:
-              i = c2.compareTo(c1);
-              if (i == 0) {
-                i = compareNext(o1, o2);
-              }
-              return i;
-            }
-          } catch (RepositoryException e) {
-          }
-          return 0;
-        }
+    String firstName = null;
+    String lastName = null;
+    String profilePath = PersonalUtils.getProfilePath(a);
+    membershipCache.addProfile(profilePath, a.getID());
+    Node profileNode = null;
+    try {
+      profileNode = (Node) session.getItem(profilePath);
+    } catch ( PathNotFoundException e ) {
+      LOGGER.warn("User {} does not have a profile at {} ", a.getID(), profilePath);
+    }
+    if ( profileNode == null ) {
+      if (a.hasProperty(SortField.firstName.toString())) {
+        firstName = a.getProperty(SortField.firstName.toString())[0].getString();
+      }
+      if (a.hasProperty(SortField.lastName.toString())) {
+        lastName = a.getProperty(SortField.lastName.toString())[0].getString();
+      }
+    } else {
+      if (profileNode.hasProperty(SortField.firstName.toString())) {
+        firstName = profileNode.getProperty(SortField.firstName.toString()).getString();
+      }
+      if (profileNode.hasProperty(SortField.lastName.toString())) {
+        lastName = profileNode.getProperty(SortField.lastName.toString()).getString();
+      }
+    }
+    member.setSortKeys(firstName, lastName);
+  }
 
-        /**
-         * Chain to the next comparator in the ordering list.
-         * 
-         * @param o1
-         *          the first object to compare.
-         * @param o2
-         *          the second object to compare.
-         * @return the result of the next comparator in the chain or 0 if this is the last
-         *         one.
-         */
-        private int compareNext(T o1, T o2) {
-          if (next < comparitors.length) {
-            return comparitors[next].compare(o1, o2);
+  /**
+   * Members that joined after the membership was built, or whose profile changed, don't
+   * have sort keys, load them if the sort needs names.
+   */
+  private void loadSortKeys(List<SiteMember> members, Sort[] sort)
+      throws RepositoryException {
+    boolean needsNames = false;
+    for (Sort s : sort) {
+      needsNames = needsNames || !SortField.id.equals(s.getField());
+    }
+    if (!needsNames) {
+      return;
+    }
+    Session session = null;
+    try {
+      UserManager userManager = null;
+      for (SiteMember member : members) {
+        if (!member.isSortKeysLoaded()) {
+          if (session == null) {
+            session = slingRepository.loginAdministrative(null);
+            userManager = AccessControlUtil.getUserManager(session);
+          }
+          Authorizable a = userManager.getAuthorizable(member.getId());
+          if (a != null) {
+            readSortKeys(member, a, session);
           }
-          return 0;
         }
-      };
+      }
+    } finally {
+      if (session != null) {
+        session.logout();
+      }
     }
-    return comparitors[0];
+  }
+
+  /**
+   * @return the members on the page, sorted if a sort was requested, empty if start is
+   *         past the end.
+   */
+  private List<SiteMember> page(List<SiteMember> members, int start, int nitems,
+      Sort[] sort) {
+    if (sort != null && sort.length > 0) {
+      return SortedMemberPage.select(members, sort, start, nitems);
+    }
+    int from = Math.max(0, Math.min(start, members.size()));
+    int to = (int) Math.min((long) from + Math.max(0, nitems), members.size());
+    return members.subList(from, to);
   }
 
   /**
@@ -691,39 +899,29 @@ public class SiteServiceImpl implements SiteService {
    * 
    * @param group
    *          the group for which we want to know all members.
-   * @param groups
-   *          the groups associated with the site.
-   * @param users
-   *          the users associated with the sites, extracted from groups
+   * @param membership
+   *          the membership of the site being built.
    * @param session
-   *          the session to grab the profile node for users.
+   *          an administrative session to grab the profile node for users.
    * @throws RepositoryException
    */
-  private void populateMembers(Group group, Map<GroupKey, Membership> groups,
-      Map<UserKey, Membership> users, Session session) throws RepositoryException {
+  private void populateMembers(Group group, SiteMembership membership, Session session)
+      throws RepositoryException {
+    String groupId = group.getID();
     for (Iterator<Authorizable> igm = group.getDeclaredMembers(); igm.hasNext();) {
       Authorizable a = igm.next();
-      // FIXME: a is not a GroupKey, so this can never be true (Bug?)
-      if (!groups.containsKey(a)) {
-        if (a instanceof Group) {
-          groups.put(new GroupKey((Group) a), new Membership(group, a));
-          populateMembers((Group) a, groups, users, session);
-        } else {
-          String profilePath = PersonalUtils.getProfilePath(a);
-          Node profileNode = null;
-          try {
-            profileNode = (Node) session.getItem(profilePath);
-          } catch ( PathNotFoundException e ) {
-            LOGGER.warn("User {} does not have a profile at {} ", a.getID(), profilePath);
-          }
-          LOGGER.info("Populate Members adding profile {} {} ",profileNode,profilePath);
-          users.put(new UserKey((User) a, profileNode), new Membership(group, a));
+      if (a instanceof Group) {
+        if (membership.addGroup(groupId, a.getID())) {
+          populateMembers((Group) a, membership, session);
         }
+      } else {
+        readSortKeys(membership.addUser(groupId, a.getID()), a, session);
       }
-      if (users.size() > MAXLISTSIZE || groups.size() > MAXLISTSIZE) {
+      if (membership.getMemberCount() > MAXLISTSIZE
+          || membership.getGroupCount() > MAXLISTSIZE) {
         LOGGER
             .warn("Large site listing, please consider using dynamic membership rather than explicit members groups parent Group {} "
-                + group.getID());
+                + groupId);
         return;
       }
     }
@@ -814,21 +1012,35 @@ public class SiteServiceImpl implements SiteService {
    * @see org.sakaiproject.nakamura.api.site.SiteService#findSiteByName(javax.jcr.Session, java.lang.String)
    */
   public Node findSiteByName(Session session, String siteName) throws SiteException {
+    if (siteName == null || siteName.length() == 0 || siteName.indexOf('/') >= 0) {
+      LOGGER.info("No site found for {}", siteName);
+      return null;
+    }
     try {
+      // the index is only a hint, check the path is still a site with that name.
+      String sitePath = siteNameIndex.get(siteName);
+      if (sitePath != null) {
+        if (session.itemExists(sitePath)) {
+          Item item = session.getItem(sitePath);
+          if (isSite(item) && siteName.equals(item.getName())) {
+            return (Node) item;
+          }
+        }
+        siteNameIndex.remove(siteName, sitePath);
+      }
+
+      // match the node name exactly, rather than a full text search over the content.
       QueryManager queryManager = session.getWorkspace().getQueryManager();
-      String queryString = "//*[@sling:resourceType=\"" + SiteService.SITE_RESOURCE_TYPE
-          + "\" and jcr:contains(.,\"" + siteName + "\")]";
+      String queryString = "//" + ISO9075.encode(siteName) + "[@sling:resourceType=\""
+          + SiteService.SITE_RESOURCE_TYPE + "\"]";
       Query query = queryManager.createQuery(queryString, Query.XPATH);
       QueryResult result = query.execute();
 
       NodeIterator nodeIterator = result.getNodes();
-      if (nodeIterator.getSize() == 0) {
-        return null;
-      }
-
       while (nodeIterator.hasNext()) {
         Node siteNode = nodeIterator.nextNode();
         if (isSite(siteNode)) {
+          siteNameIndex.put(siteNode.getPath());
           return siteNode;
         }
       }
@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.site;
+
+import org.sakaiproject.nakamura.api.site.Sort;
+import org.sakaiproject.nakamura.api.site.SortOrder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Selects one page of a sorted member list without sorting the whole list. The sort keys
+ * are copied out of the members into arrays once, and the first start + nitems members
+ * are kept in a bounded heap of member indexes, so listing the first page of a large
+ * site costs O(n log k) rather than a full sort. Members with equal keys keep the order
+ * they had in the list, as a stable sort would.
+ */
+public class SortedMemberPage {
+
+  private final String[][] keys;
+  private final int[] signs;
+
+  private SortedMemberPage(List<SiteMember> members, Sort[] sort) {
+    int n = members.size();
+    keys = new String[sort.length][n];
+    signs = new int[sort.length];
+    for (int f = 0; f < sort.length; f++) {
+      signs[f] = SortOrder.desc.equals(sort[f].getOrder()) ? -1 : 1;
+      String[] fieldKeys = keys[f];
+      for (int i = 0; i < n; i++) {
+        fieldKeys[i] = members.get(i).getSortKey(sort[f].getField());
+      }
+    }
+  }
+
+  /**
+   * @param members
+   *          the members to select from, in their natural order.
+   * @param sort
+   *          the sort to apply, at least one.
+   * @param start
+   *          the index of the first member of the page in the sorted list.
+   * @param nitems
+   *          the maximum number of members on the page.
+   * @return the members on the page, in sorted order.
+   */
+  public static List<SiteMember> select(List<SiteMember> members, Sort[] sort, int start,
+      int nitems) {
+    int n = members.size();
+    int from = Math.max(0, Math.min(start, n));
+    int to = (int) Math.min((long) from + Math.max(0, nitems), n);
+    List<SiteMember> page = new ArrayList<SiteMember>(to - from);
+    if (from == to) {
+      return page;
+    }
+    int[] ordered = new SortedMemberPage(members, sort).smallest(n, to);
+    for (int i = from; i < to; i++) {
+      page.add(members.get(ordered[i]));
+    }
+    return page;
+  }
+
+  /**
+   * @param n
+   *          the number of members.
+   * @param k
+   *          the number of members wanted.
+   * @return the indexes of the k smallest members, in order.
+   */
+  private int[] smallest(int n, int k) {
+    // a max heap, the root is the largest of the k smallest seen so far.
+    int[] heap = new int[k];
+    int size = 0;
+    for (int i = 0; i < n; i++) {
+      if (size < k) {
+        heap[size] = i;
+        siftUp(heap, size++);
+      } else if (compare(i, heap[0]) < 0) {
+        heap[0] = i;
+        siftDown(heap, 0, size);
+      }
+    }
+    int[] ordered = new int[size];
+    for (int j = size - 1; j >= 0; j--) {
+      ordered[j] = heap[0];
+      heap[0] = heap[--size];
+      siftDown(heap, 0, size);
+    }
+    return ordered;
+  }
+
+  private void siftUp(int[] heap, int pos) {
+    int item = heap[pos];
+    while (pos > 0) {
+      int parent = (pos - 1) >>> 1;
+      if (compare(item, heap[parent]) <= 0) {
+        break;
+      }
+      heap[pos] = heap[parent];
+      pos = parent;
+    }
+    heap[pos] = item;
+  }
+
+  private void siftDown(int[] heap, int pos, int size) {
+    int item = heap[pos];
+    int half = size >>> 1;
+    while (pos < half) {
+      int child = (pos << 1) + 1;
+      int right = child + 1;
+      if (right < size && compare(heap[right], heap[child]) > 0) {
+        child = right;
+      }
+      if (compare(item, heap[child]) >= 0) {
+        break;
+      }
+      heap[pos] = heap[child];
+      pos = child;
+    }
+    heap[pos] = item;
+  }
+
+  /**
+   * Compare two members by index, falling back to list order so that the ordering is
+   * total and matches a stable sort.
+   */
+  private int compare(int a, int b) {
+    for (int f = 0; f < keys.length; f++) {
+      int c = keys[f][a].compareTo(keys[f][b]);
+      if (c != 0) {
+        return signs[f] * c;
+      }
+    }
+    return a < b ? -1 : (a == b ? 0 : 1);
+  }
+}
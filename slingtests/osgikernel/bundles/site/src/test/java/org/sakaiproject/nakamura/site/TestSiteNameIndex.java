@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.site;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Checks removal below a path and eviction of the least recently used name.
+ */
+public class TestSiteNameIndex {
+
+  @Test
+  public void testRemovePathOnlyRemovesSitesBelow() {
+    SiteNameIndex index = new SiteNameIndex(10);
+    index.put("/sites/a/physics101");
+    index.put("/sites/a/physics102");
+    index.put("/sites/ab/chem101");
+    index.put("/sites/b/maths101");
+
+    index.removePath("/sites/a");
+    assertNull(index.get("physics101"));
+    assertNull(index.get("physics102"));
+    assertEquals("/sites/ab/chem101", index.get("chem101"));
+    assertEquals("/sites/b/maths101", index.get("maths101"));
+
+    index.removePath("/sites/b/maths101");
+    assertNull(index.get("maths101"));
+    assertEquals(1, index.size());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEvicted() {
+    SiteNameIndex index = new SiteNameIndex(2);
+    index.put("/sites/physics101");
+    index.put("/sites/chem101");
+    index.get("physics101");
+    index.put("/sites/maths101");
+    assertEquals(2, index.size());
+    assertEquals("/sites/physics101", index.get("physics101"));
+    assertNull(index.get("chem101"));
+    assertEquals("/sites/maths101", index.get("maths101"));
+
+    // a moved site replaces its old path.
+    index.put("/sites/moved/maths101");
+    index.removePath("/sites/maths101");
+    assertEquals("/sites/moved/maths101", index.get("maths101"));
+  }
+}
@@ -2,6 +2,7 @@ package org.sakaiproject.nakamura.site;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
 import static org.easymock.EasyMock.expect;
 
 import org.apache.jackrabbit.api.JackrabbitSession;
@@ -10,40 +11,61 @@ import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.Group;
 import org.apache.jackrabbit.api.security.user.User;
 import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.commons.testing.jcr.MockValue;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.easymock.EasyMock;
+import org.easymock.IAnswer;
 import org.junit.Test;
+import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.site.SiteService;
+import org.sakaiproject.nakamura.api.site.Sort;
 import org.sakaiproject.nakamura.api.site.SortField;
+import org.sakaiproject.nakamura.api.site.SortOrder;
 import org.sakaiproject.nakamura.site.SiteServiceImpl;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 import org.sakaiproject.nakamura.util.PathUtils;
 
 import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Dictionary;
 import java.util.HashSet;
+import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PathNotFoundException;
 import javax.jcr.Property;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 import javax.jcr.Value;
+import javax.jcr.Workspace;
+import javax.jcr.nodetype.PropertyDefinition;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
 
 public class TestSiteService extends AbstractEasyMockTest {
 
   @Test
   public void testNoDuplicateMembers() throws RepositoryException {
     UserManager userManager = createMock(UserManager.class);
-    SlingRepository slingRepository = createMock(SlingRepository.class);
+    UserManager adminUserManager = createMock(UserManager.class);
     SiteServiceImpl siteService = new SiteServiceImpl();
-    siteService.bindSlingRepository(slingRepository);
+    JackrabbitSession adminSession = createAdminSession(siteService, adminUserManager);
     Node siteNode = createMock(Node.class);
     JackrabbitSession session = createMock(JackrabbitSession.class);
     expect(siteNode.getSession()).andReturn(session).anyTimes();
+    expect(siteNode.getPath()).andReturn("/sites/physics101").anyTimes();
     expect(session.getUserManager()).andReturn(userManager);
+    expect(session.getUserID()).andReturn("admin").anyTimes();
     Node profileNode = createMock(Node.class);
-    expect(session.getItem("/_user/a/ad/admin/public/authprofile")).andReturn(profileNode).anyTimes();
+    expect(adminSession.getItem("/_user/a/ad/admin/public/authprofile")).andReturn(
+        profileNode).anyTimes();
     expect(profileNode.hasProperty(SortField.firstName.toString())).andReturn(true).anyTimes();
     expect(profileNode.hasProperty(SortField.lastName.toString())).andReturn(true).anyTimes();
     Property prop = createMock(Property.class);
@@ -55,11 +77,14 @@ public class TestSiteService extends AbstractEasyMockTest {
 
     Group group1 = createMock(Group.class);
     Group group2 = createMock(Group.class);
-    expect(userManager.getAuthorizable("group1")).andReturn(group1);
-    expect(userManager.getAuthorizable("group2")).andReturn(group2);
-    expect(group1.getDeclaredMembers()).andReturn(createUserIterator("admin"));
+    expect(adminUserManager.getAuthorizable("group1")).andReturn(group1);
+    expect(adminUserManager.getAuthorizable("group2")).andReturn(group2);
+    User admin = createUser("admin");
+    // the caller's user manager only resolves the members it can see.
+    expect(userManager.getAuthorizable("admin")).andReturn(admin);
+    expect(group1.getDeclaredMembers()).andReturn(createUserIterator(admin));
     expect(group1.getID()).andReturn("group1").anyTimes();
-    expect(group2.getDeclaredMembers()).andReturn(createUserIterator("admin"));
+    expect(group2.getDeclaredMembers()).andReturn(createUserIterator(admin));
     expect(group2.getID()).andReturn("group2").anyTimes();
 
     replay();
@@ -76,7 +101,307 @@ public class TestSiteService extends AbstractEasyMockTest {
     verify();
   }
 
-  private Iterator<Authorizable> createUserIterator(String userName) throws RepositoryException {
+  @Test
+  public void testMembershipCachedAndMaintained() throws RepositoryException {
+    UserManager userManager = createMock(UserManager.class);
+    UserManager adminUserManager = createMock(UserManager.class);
+    SiteServiceImpl siteService = new SiteServiceImpl();
+    JackrabbitSession adminSession = createAdminSession(siteService, adminUserManager);
+    Node siteNode = createMock(Node.class);
+    JackrabbitSession session = createMock(JackrabbitSession.class);
+    expect(siteNode.getSession()).andReturn(session).anyTimes();
+    expect(siteNode.getPath()).andReturn("/sites/physics101").anyTimes();
+    expect(session.getUserManager()).andReturn(userManager).anyTimes();
+    expect(session.getUserID()).andReturn("alice").anyTimes();
+    expect(adminSession.getItem("/_user/a/ad/admin/public/authprofile")).andThrow(
+        new PathNotFoundException()).anyTimes();
+    addAuthorizables(siteNode, "group1");
+
+    Group group1 = createMock(Group.class);
+    expect(adminUserManager.getAuthorizable("group1")).andReturn(group1);
+    expect(group1.getID()).andReturn("group1").anyTimes();
+    User admin = createUser("admin");
+    expect(admin.hasProperty(SortField.firstName.toString())).andReturn(false).anyTimes();
+    expect(admin.hasProperty(SortField.lastName.toString())).andReturn(false).anyTimes();
+    // the group is only walked once, after that the cached membership is used.
+    expect(group1.getDeclaredMembers()).andReturn(createUserIterator(admin));
+    User bob = createMock(User.class);
+    expect(bob.getID()).andReturn("bob").anyTimes();
+    // the members are only looked up again when the users of the site change.
+    expect(userManager.getAuthorizable("admin")).andReturn(admin).times(3);
+    expect(userManager.getAuthorizable("bob")).andReturn(bob);
+
+    replay();
+    assertEquals(1, siteService.getMemberCount(siteNode));
+    assertEquals(1, siteService.getMemberCount(siteNode));
+
+    siteService.handleEvent(createGroupEvent("join", "group1", bob));
+    assertEquals(2, siteService.getMemberCount(siteNode));
+    siteService.handleEvent(createGroupEvent("join", "group2", bob));
+    assertEquals(2, siteService.getMemberCount(siteNode));
+    siteService.handleEvent(createGroupEvent("part", "group1", bob));
+    assertEquals(1, siteService.getMemberCount(siteNode));
+    verify();
+  }
+
+  @Test
+  public void testMembershipBuiltDuringChangeNotKept() throws RepositoryException {
+    UserManager userManager = createMock(UserManager.class);
+    UserManager adminUserManager = createMock(UserManager.class);
+    final SiteServiceImpl siteService = new SiteServiceImpl();
+    JackrabbitSession adminSession = createAdminSession(siteService, adminUserManager);
+    Node siteNode = createMock(Node.class);
+    JackrabbitSession session = createMock(JackrabbitSession.class);
+    expect(siteNode.getSession()).andReturn(session).anyTimes();
+    expect(siteNode.getPath()).andReturn("/sites/physics101").anyTimes();
+    expect(session.getUserManager()).andReturn(userManager).anyTimes();
+    expect(session.getUserID()).andReturn("alice").anyTimes();
+    expect(adminSession.getItem("/_user/a/ad/admin/public/authprofile")).andThrow(
+        new PathNotFoundException()).anyTimes();
+    addAuthorizables(siteNode, "group1");
+
+    Group group1 = createMock(Group.class);
+    expect(adminUserManager.getAuthorizable("group1")).andReturn(group1).times(2);
+    expect(group1.getID()).andReturn("group1").anyTimes();
+    User admin = createUser("admin");
+    expect(admin.hasProperty(SortField.firstName.toString())).andReturn(false).anyTimes();
+    expect(admin.hasProperty(SortField.lastName.toString())).andReturn(false).anyTimes();
+    final User bob = createMock(User.class);
+    expect(bob.getID()).andReturn("bob").anyTimes();
+    // bob joins while the group is being read the first time, so that membership is not
+    // kept and the group is read again.
+    expect(group1.getDeclaredMembers()).andAnswer(new IAnswer<Iterator<Authorizable>>() {
+      public Iterator<Authorizable> answer() throws Throwable {
+        siteService.handleEvent(createGroupEvent("join", "group1", bob));
+        return new ArrayList<Authorizable>().iterator();
+      }
+    });
+    expect(group1.getDeclaredMembers()).andReturn(createUserIterator(admin));
+    expect(userManager.getAuthorizable("admin")).andReturn(admin).anyTimes();
+
+    replay();
+    assertEquals(0, siteService.getMemberCount(siteNode));
+    assertEquals(1, siteService.getMemberCount(siteNode));
+    assertEquals(1, siteService.getMemberCount(siteNode));
+    verify();
+  }
+
+  @Test
+  public void testCallerViewAndProfileChange() throws RepositoryException {
+    UserManager adminUserManager = createMock(UserManager.class);
+    SiteServiceImpl siteService = new SiteServiceImpl();
+    JackrabbitSession adminSession = createAdminSession(siteService, adminUserManager);
+    Node siteNode = createMock(Node.class);
+    expect(siteNode.getPath()).andReturn("/sites/physics101").anyTimes();
+    addAuthorizables(siteNode, "group1");
+
+    Group group1 = createMock(Group.class);
+    expect(adminUserManager.getAuthorizable("group1")).andReturn(group1);
+    expect(group1.getID()).andReturn("group1").anyTimes();
+    User alice = createUser("alice");
+    User bob = createUser("bob");
+    expect(group1.getDeclaredMembers()).andReturn(
+        Arrays.asList(new Authorizable[] { alice, bob }).iterator());
+    // the names are read once when the membership is built, and alice's again after
+    // her profile was edited.
+    String aliceProfile = "/_user/a/al/alice/public/authprofile";
+    expect(adminSession.getItem(aliceProfile)).andReturn(createProfile("Zoe"));
+    expect(adminSession.getItem("/_user/b/bo/bob/public/authprofile")).andReturn(
+        createProfile("Bob"));
+    expect(adminUserManager.getAuthorizable("alice")).andReturn(alice);
+    expect(adminSession.getItem(aliceProfile)).andReturn(createProfile("Alice"));
+
+    // the membership is shared, but bob can't be seen by the second caller.
+    UserManager userManager = createMock(UserManager.class);
+    expect(userManager.getAuthorizable("alice")).andReturn(alice).anyTimes();
+    expect(userManager.getAuthorizable("bob")).andReturn(bob).anyTimes();
+    JackrabbitSession session = createMock(JackrabbitSession.class);
+    expect(session.getUserManager()).andReturn(userManager).anyTimes();
+    expect(session.getUserID()).andReturn("alice").anyTimes();
+    UserManager otherUserManager = createMock(UserManager.class);
+    expect(otherUserManager.getAuthorizable("alice")).andReturn(alice).anyTimes();
+    expect(otherUserManager.getAuthorizable("bob")).andReturn(null).anyTimes();
+    JackrabbitSession otherSession = createMock(JackrabbitSession.class);
+    expect(otherSession.getUserManager()).andReturn(otherUserManager).anyTimes();
+    expect(otherSession.getUserID()).andReturn("carol").anyTimes();
+    expect(siteNode.getSession()).andReturn(session).times(2);
+    expect(siteNode.getSession()).andReturn(otherSession);
+    expect(siteNode.getSession()).andReturn(session);
+
+    replay();
+    Sort[] byFirstName = new Sort[] { new Sort(SortField.firstName, SortOrder.asc) };
+    assertEquals("[bob, alice]", getMemberIds(siteService, siteNode, byFirstName));
+    assertEquals(2, siteService.getMemberCount(siteNode));
+    assertEquals(1, siteService.getMemberCount(siteNode));
+
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(SlingConstants.PROPERTY_PATH, aliceProfile);
+    siteService.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_CHANGED, properties));
+    assertEquals("[alice, bob]", getMemberIds(siteService, siteNode, byFirstName));
+    verify();
+  }
+
+  @Test
+  public void testOnlyMembersOnPageLookedUp() throws RepositoryException {
+    UserManager adminUserManager = createMock(UserManager.class);
+    SiteServiceImpl siteService = new SiteServiceImpl();
+    JackrabbitSession adminSession = createAdminSession(siteService, adminUserManager);
+    Node siteNode = createMock(Node.class);
+    expect(siteNode.getPath()).andReturn("/sites/physics101").anyTimes();
+    addAuthorizables(siteNode, "group1");
+
+    Group group1 = createMock(Group.class);
+    expect(adminUserManager.getAuthorizable("group1")).andReturn(group1);
+    expect(group1.getID()).andReturn("group1").anyTimes();
+    User carol = createUserWithoutProfile(adminSession, "carol");
+    User alice = createUserWithoutProfile(adminSession, "alice");
+    User bob = createUserWithoutProfile(adminSession, "bob");
+    expect(group1.getDeclaredMembers()).andReturn(
+        Arrays.asList(new Authorizable[] { carol, alice, bob }).iterator());
+
+    // counting looks every member up once, after that the first page only needs alice.
+    UserManager userManager = createMock(UserManager.class);
+    expect(userManager.getAuthorizable("alice")).andReturn(alice).times(2);
+    expect(userManager.getAuthorizable("bob")).andReturn(bob);
+    expect(userManager.getAuthorizable("carol")).andReturn(carol);
+    JackrabbitSession session = createMock(JackrabbitSession.class);
+    expect(session.getUserManager()).andReturn(userManager).anyTimes();
+    expect(session.getUserID()).andReturn("alice").anyTimes();
+    // bob is hidden from the other caller, so the second visible member is carol.
+    UserManager otherUserManager = createMock(UserManager.class);
+    expect(otherUserManager.getAuthorizable("alice")).andReturn(alice).anyTimes();
+    expect(otherUserManager.getAuthorizable("bob")).andReturn(null).anyTimes();
+    expect(otherUserManager.getAuthorizable("carol")).andReturn(carol).anyTimes();
+    JackrabbitSession otherSession = createMock(JackrabbitSession.class);
+    expect(otherSession.getUserManager()).andReturn(otherUserManager).anyTimes();
+    expect(otherSession.getUserID()).andReturn("dave").anyTimes();
+    expect(siteNode.getSession()).andReturn(session).times(2);
+    expect(siteNode.getSession()).andReturn(otherSession);
+
+    replay();
+    Sort[] byId = new Sort[] { new Sort(SortField.id, SortOrder.asc) };
+    assertEquals(3, siteService.getMemberCount(siteNode));
+    assertEquals("[alice]", getMemberIds(siteService.getMembers(siteNode, 0, 1, byId)));
+    AbstractCollection<User> members = siteService.getMembers(siteNode, 1, 1, byId);
+    assertEquals(2, members.size());
+    assertEquals("[carol]", getMemberIds(members));
+    verify();
+  }
+
+  @Test
+  public void testFindSiteByNameUsesIndex() throws Exception {
+    SiteServiceImpl siteService = new SiteServiceImpl();
+    Session session = createMock(Session.class);
+    Workspace workspace = createMock(Workspace.class);
+    QueryManager queryManager = createMock(QueryManager.class);
+    Query query = createMock(Query.class);
+    QueryResult result = createMock(QueryResult.class);
+    NodeIterator nodes = createMock(NodeIterator.class);
+    Node siteNode = createMock(Node.class);
+    Property resourceType = createMock(Property.class);
+
+    expect(siteNode.getPath()).andReturn("/sites/physics101").anyTimes();
+    expect(siteNode.getName()).andReturn("physics101").anyTimes();
+    expect(siteNode.hasProperty("sling:resourceType")).andReturn(true).anyTimes();
+    expect(siteNode.getProperty("sling:resourceType")).andReturn(resourceType).anyTimes();
+    expect(resourceType.getString()).andReturn(SiteService.SITE_RESOURCE_TYPE).anyTimes();
+
+    // the exact name query runs once, the second lookup is served from the index, and
+    // the third after the site is removed.
+    expect(session.getWorkspace()).andReturn(workspace).times(2);
+    expect(workspace.getQueryManager()).andReturn(queryManager).times(2);
+    expect(queryManager.createQuery(
+        "//physics101[@sling:resourceType=\"" + SiteService.SITE_RESOURCE_TYPE + "\"]",
+        Query.XPATH)).andReturn(query).times(2);
+    expect(query.execute()).andReturn(result).times(2);
+    expect(result.getNodes()).andReturn(nodes).times(2);
+    expect(nodes.hasNext()).andReturn(true).once();
+    expect(nodes.nextNode()).andReturn(siteNode).once();
+    expect(nodes.hasNext()).andReturn(false).once();
+    expect(session.itemExists("/sites/physics101")).andReturn(true);
+    expect(session.getItem("/sites/physics101")).andReturn(siteNode);
+
+    replay();
+    assertEquals(siteNode, siteService.findSiteByName(session, "physics101"));
+    assertEquals(siteNode, siteService.findSiteByName(session, "physics101"));
+
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(SlingConstants.PROPERTY_PATH, "/sites");
+    siteService.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_REMOVED, properties));
+    assertNull(siteService.findSiteByName(session, "physics101"));
+    verify();
+  }
+
+  private JackrabbitSession createAdminSession(SiteServiceImpl siteService,
+      UserManager userManager) throws RepositoryException {
+    SlingRepository slingRepository = createMock(SlingRepository.class);
+    JackrabbitSession adminSession = createMock(JackrabbitSession.class);
+    expect(slingRepository.loginAdministrative(null)).andReturn(adminSession).anyTimes();
+    expect(adminSession.getUserManager()).andReturn(userManager).anyTimes();
+    adminSession.logout();
+    EasyMock.expectLastCall().anyTimes();
+    siteService.bindSlingRepository(slingRepository);
+    return adminSession;
+  }
+
+  private void addAuthorizables(Node siteNode, String... ids) throws RepositoryException {
+    Value[] values = new Value[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      values[i] = new MockValue(ids[i]);
+    }
+    Property authorizables = createMock(Property.class);
+    PropertyDefinition definition = createMock(PropertyDefinition.class);
+    expect(authorizables.getDefinition()).andReturn(definition).anyTimes();
+    expect(definition.isMultiple()).andReturn(true).anyTimes();
+    expect(authorizables.getValues()).andReturn(values).anyTimes();
+    expect(siteNode.hasProperty(SiteService.AUTHORIZABLE)).andReturn(true).anyTimes();
+    expect(siteNode.getProperty(SiteService.AUTHORIZABLE)).andReturn(authorizables)
+        .anyTimes();
+  }
+
+  private Node createProfile(String firstName) throws RepositoryException {
+    Node profileNode = createMock(Node.class);
+    Property prop = createMock(Property.class);
+    expect(prop.getString()).andReturn(firstName).anyTimes();
+    expect(profileNode.hasProperty(SortField.firstName.toString())).andReturn(true);
+    expect(profileNode.getProperty(SortField.firstName.toString())).andReturn(prop);
+    expect(profileNode.hasProperty(SortField.lastName.toString())).andReturn(false);
+    return profileNode;
+  }
+
+  private String getMemberIds(SiteServiceImpl siteService, Node siteNode, Sort[] sort) {
+    return getMemberIds(siteService.getMembers(siteNode, 0, 10, sort));
+  }
+
+  private String getMemberIds(AbstractCollection<User> members) {
+    List<String> ids = new ArrayList<String>();
+    for (User user : members) {
+      ids.add(user.getID());
+    }
+    return ids.toString();
+  }
+
+  private User createUserWithoutProfile(JackrabbitSession adminSession, String userName)
+      throws RepositoryException {
+    User user = createUser(userName);
+    expect(user.hasProperty(SortField.firstName.toString())).andReturn(false).anyTimes();
+    expect(user.hasProperty(SortField.lastName.toString())).andReturn(false).anyTimes();
+    expect(
+        adminSession.getItem("/_user/" + userName.substring(0, 1) + "/"
+            + userName.substring(0, 2) + "/" + userName + "/public/authprofile")).andThrow(
+        new PathNotFoundException()).anyTimes();
+    return user;
+  }
+
+  private Event createGroupEvent(String operation, String group, User user) {
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("principal_name", group);
+    properties.put("user", user);
+    return new Event("org/apache/sling/jackrabbit/usermanager/event/" + operation,
+        properties);
+  }
+
+  private User createUser(String userName) throws RepositoryException {
     final User mockUser = createMock(User.class);
     expect(mockUser.getID()).andReturn(userName).anyTimes();
     expect(mockUser.isGroup()).andReturn(false).anyTimes();
@@ -90,6 +415,10 @@ public class TestSiteService extends AbstractEasyMockTest {
     expect(mockUser.getProperty("path")).andReturn(new Value[] { v }).anyTimes();
     EasyMock.replay(p);
     EasyMock.replay(v);
+    return mockUser;
+  }
+
+  private Iterator<Authorizable> createUserIterator(final User mockUser) {
     return new Iterator<Authorizable>() {
 
       boolean had = false;
@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.site;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.site.Sort;
+import org.sakaiproject.nakamura.api.site.SortField;
+import org.sakaiproject.nakamura.api.site.SortOrder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that selecting a page agrees with sorting the whole list and slicing it.
+ */
+public class TestSortedMemberPage {
+
+  private static final String[] NAMES = { "Ann", "bob", "Carol", "Dave", "eve", "Zoe" };
+
+  @Test
+  public void testPagesMatchFullSort() {
+    Random random = new Random(42);
+    List<SiteMember> members = new ArrayList<SiteMember>();
+    for (int i = 0; i < 500; i++) {
+      SiteMember member = new SiteMember("user" + random.nextInt(1000));
+      // leave some names unset to check they sort as empty strings.
+      if (i % 7 != 0) {
+        member.setSortKeys(NAMES[random.nextInt(NAMES.length)], NAMES[random
+            .nextInt(NAMES.length)]);
+      }
+      members.add(member);
+    }
+    Sort[][] sorts = {
+        { new Sort(SortField.id, SortOrder.asc) },
+        { new Sort(SortField.lastName, SortOrder.desc) },
+        { new Sort(SortField.lastName, SortOrder.asc),
+            new Sort(SortField.firstName, SortOrder.desc) } };
+    int[][] pages = { { 0, 25 }, { 25, 25 }, { 480, 25 }, { 0, 500 }, { 0, 1000 },
+        { 499, 1 }, { 500, 10 }, { 1000, 10 }, { 10, 0 } };
+    for (Sort[] sort : sorts) {
+      List<SiteMember> sorted = new ArrayList<SiteMember>(members);
+      Collections.sort(sorted, comparator(sort));
+      for (int[] page : pages) {
+        int from = Math.min(page[0], sorted.size());
+        int to = Math.min(from + page[1], sorted.size());
+        assertEquals(sorted.subList(from, to), SortedMemberPage.select(members, sort,
+            page[0], page[1]));
+      }
+    }
+  }
+
+  @Test
+  public void testEmpty() {
+    assertTrue(SortedMemberPage.select(new ArrayList<SiteMember>(),
+        new Sort[] { new Sort(SortField.id, SortOrder.asc) }, 0, 25).isEmpty());
+  }
+
+  /**
+   * The reference ordering, a stable sort with a compound comparator.
+   */
+  private Comparator<SiteMember> comparator(final Sort[] sort) {
+    return new Comparator<SiteMember>() {
+      public int compare(SiteMember o1, SiteMember o2) {
+        for (Sort s : sort) {
+          int i = o1.getSortKey(s.getField()).compareTo(o2.getSortKey(s.getField()));
+          if (i != 0) {
+            return SortOrder.desc.equals(s.getOrder()) ? -i : i;
+          }
+        }
+        return 0;
+      }
+    };
+  }
+}
@@ -5,13 +5,18 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.message.MessagingService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.MessageHandlerFactory;
+import org.subethamail.smtp.RejectException;
 import org.subethamail.smtp.TooMuchDataException;
 import org.subethamail.smtp.helper.SimpleMessageListener;
-import org.subethamail.smtp.helper.SimpleMessageListenerAdapter;
 import org.subethamail.smtp.server.SMTPServer;
 
 import java.io.IOException;
@@ -21,9 +26,12 @@ import java.util.Calendar;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -39,11 +47,33 @@ import javax.mail.internet.MimeMultipart;
  *                description="Receives incoming mail." name
  *                ="org.sakaiproject.nakamura.smtp.SmptServer"
  * @scr.property name="service.vendor" value="The Sakai Foundation"
+ * @scr.service interface="org.osgi.service.event.EventHandler"
+ * @scr.property name="event.topics" values.0="org/apache/sling/jackrabbit/usermanager/event/create"
+ *                                   values.1="org/apache/sling/jackrabbit/usermanager/event/update"
+ *                                   values.2="org/apache/sling/jackrabbit/usermanager/event/delete"
  */
-public class SakaiSmtpServer implements SimpleMessageListener {
+public class SakaiSmtpServer implements SimpleMessageListener, MessageHandlerFactory,
+    EventHandler {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SakaiSmtpServer.class);
   private static final int MAX_PROPERTY_SIZE = 32 * 1024;
+  /**
+   * How long the store paths of a recipient are cached, in ms.
+   */
+  private static final long RECIPIENT_CACHE_TTL = 5L * 60L * 1000L;
+  /**
+   * How long a recipient with no store is cached, in ms. Kept short in case the event
+   * for a newly created user is missed.
+   */
+  private static final long UNKNOWN_RECIPIENT_CACHE_TTL = 10L * 1000L;
+  /**
+   * The most recipients cached, the cache is emptied when it grows past this.
+   */
+  private static final int RECIPIENT_CACHE_SIZE = 10000;
+  /**
+   * The event property holding the id of the user or group that changed.
+   */
+  private static final String EVENT_PRINCIPAL_NAME = "principal_name";
 
   private SMTPServer server;
 
@@ -58,11 +88,16 @@ public class SakaiSmtpServer implements SimpleMessageListener {
 
   private Set<String> domains = new HashSet<String>();
 
+  /**
+   * Store paths by local recipient.
+   */
+  private final ConcurrentMap<String, CachedPaths> recipientCache = new ConcurrentHashMap<String, CachedPaths>();
+
   public void activate(ComponentContext context) throws Exception {
     final String port = System.getProperty("org.sakaiproject.nakamura.SMTPServerPort",
         "8025");
     LOGGER.info("Starting SMTP server on port {}", port);
-    server = new SMTPServer(new SimpleMessageListenerAdapter(this));
+    server = new SMTPServer(this);
     server.setPort(Integer.parseInt(port));
     server.start();
     String localDomains = (String) context.getProperties().get(LOCAL_DOMAINS);
@@ -73,6 +108,7 @@ public class SakaiSmtpServer implements SimpleMessageListener {
     for (String domain : StringUtils.split(localDomains, ';')) {
       domains.add(domain);
     }
+    recipientCache.clear();
   }
 
   public void deactivate(ComponentContext context) throws Exception {
@@ -80,6 +116,31 @@ public class SakaiSmtpServer implements SimpleMessageListener {
     server.stop();
   }
 
+  /**
+   * {@inheritDoc} Drops the cached stores of a user or group that has been created,
+   * changed or deleted, so that mail to them is not refused or sent to a store that is
+   * gone until the cache entry runs out.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    Object principal = event.getProperty(EVENT_PRINCIPAL_NAME);
+    if (principal == null) {
+      recipientCache.clear();
+    } else {
+      recipientCache.remove(String.valueOf(principal));
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.subethamail.smtp.MessageHandlerFactory#create(org.subethamail.smtp.MessageContext)
+   */
+  public MessageHandler create(MessageContext ctx) {
+    return new SmtpTransaction();
+  }
+
   /**
    * 
    * {@inheritDoc}
@@ -88,30 +149,35 @@ public class SakaiSmtpServer implements SimpleMessageListener {
    *      java.lang.String)
    */
   public boolean accept(String from, String recipient) {
-    Session session = null;
+    SmtpTransaction transaction = new SmtpTransaction();
     try {
-      session = slingRepository.loginAdministrative(null);
-      List<String> paths = getLocalPath(session, recipient);
-      return paths.size() > 0;
+      return getLocalPath(transaction, recipient).size() > 0;
     } catch (Exception e) {
       LOGGER.error("Develier message with this handler ", e);
     } finally {
-      if (session != null) {
-        session.logout();
-      }
+      transaction.done();
     }
     return false;
   }
 
   /**
+   * @param transaction
+   *          the transaction, which provides a session if the recipient is not cached.
    * @param recipient
-   * @return
+   * @return the store paths of the local users the recipient expands to.
+   * @throws RepositoryException
    */
-  private List<String> getLocalPath(Session session, String recipient) {
+  private List<String> getLocalPath(SmtpTransaction transaction, String recipient)
+      throws RepositoryException {
     // assume recipient is a fully qualified email address of the form xxx@foo.com
     String[] parts = StringUtils.split(recipient, '@');
     List<String> localPaths = new ArrayList<String>();
-    if (domains.contains(parts[1])) {
+    if (parts.length == 2 && domains.contains(parts[1])) {
+      CachedPaths cached = recipientCache.get(parts[0]);
+      if (cached != null && cached.expires > System.currentTimeMillis()) {
+        return cached.paths;
+      }
+      Session session = transaction.getSession();
       List<String> recipients = messagingService.expandAliases(parts[0]);
       for (String localRecipient : recipients) {
         try {
@@ -123,6 +189,12 @@ public class SakaiSmtpServer implements SimpleMessageListener {
           LOGGER.warn("Failed to expand recipient {} ", localRecipient, ex);
         }
       }
+      if (recipientCache.size() >= RECIPIENT_CACHE_SIZE) {
+        recipientCache.clear();
+      }
+      long ttl = localPaths.isEmpty() ? UNKNOWN_RECIPIENT_CACHE_TTL : RECIPIENT_CACHE_TTL;
+      recipientCache.put(parts[0], new CachedPaths(localPaths, System.currentTimeMillis()
+          + ttl));
     }
     return localPaths;
   }
@@ -130,35 +202,51 @@ public class SakaiSmtpServer implements SimpleMessageListener {
   public void deliver(String from, String recipient, InputStream data)
       throws TooMuchDataException, IOException {
     LOGGER.info("Got message FROM: " + from + " TO: " + recipient);
-    Session session = null;
+    SmtpTransaction transaction = new SmtpTransaction();
     try {
-      session = slingRepository.loginAdministrative(null);
+      transaction.from(from);
+      transaction.addRecipient(recipient);
+      transaction.data(data);
+    } catch (RepositoryException e) {
+      LOGGER.error("Unable to write message", e);
+      throw new IOException("Message can not be written to repository");
+    } finally {
+      transaction.done();
+    }
+  }
 
-      List<String> paths = getLocalPath(session, recipient);
-      if (paths.size() > 0) {
-        Map<String, Object> mapProperties = new HashMap<String, Object>();
-        mapProperties.put(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
-            MessageConstants.SAKAI_MESSAGE_RT);
-        mapProperties.put(MessageConstants.PROP_SAKAI_READ, false);
-        mapProperties.put(MessageConstants.PROP_SAKAI_FROM, from);
-        mapProperties.put(MessageConstants.PROP_SAKAI_MESSAGEBOX,
-            MessageConstants.BOX_INBOX);
-        Node createdMessage = writeMessage(session, mapProperties, data, paths.get(0));
-        if (createdMessage != null) {
-          String messagePath = createdMessage.getPath();
-          String messageId = createdMessage.getProperty("message-id").getString();
-          LOGGER.info("Created message {} at: {} ", messageId, messagePath);
-
-          // we might want alias expansion
-          for (int i = 1; i < paths.size(); i++) {
-            String targetPath = paths.get(i);
-            messagingService.copyMessageNode(createdMessage, targetPath);
-          }
-        }
-        if (session.hasPendingChanges()) {
-          session.save();
+  /**
+   * Write a message once, to the first store, and copy it to the other stores.
+   *
+   * @param session
+   * @param from
+   * @param paths
+   *          the stores to deliver to, in recipient order.
+   * @param data
+   * @throws IOException
+   */
+  private void deliver(Session session, String from, List<String> paths, InputStream data)
+      throws IOException {
+    try {
+      Map<String, Object> mapProperties = new HashMap<String, Object>();
+      mapProperties.put(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
+          MessageConstants.SAKAI_MESSAGE_RT);
+      mapProperties.put(MessageConstants.PROP_SAKAI_READ, false);
+      mapProperties.put(MessageConstants.PROP_SAKAI_FROM, from);
+      mapProperties.put(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
+      Node createdMessage = writeMessage(session, mapProperties, data, paths.get(0));
+      if (createdMessage != null) {
+        String messagePath = createdMessage.getPath();
+        String messageId = createdMessage.getProperty("message-id").getString();
+        LOGGER.info("Created message {} at: {} ", messageId, messagePath);
+
+        // we might want alias expansion
+        if (paths.size() > 1) {
+          messagingService.copyMessageNodes(createdMessage, paths.subList(1, paths.size()));
         }
-        
+      }
+      if (session.hasPendingChanges()) {
+        session.save();
       }
     } catch (RepositoryException e) {
       LOGGER.error("Unable to write message", e);
@@ -166,13 +254,91 @@ public class SakaiSmtpServer implements SimpleMessageListener {
     } catch (MessagingException e) {
       LOGGER.error("Unable to write message", e);
       throw new IOException("Message can not be written to repository");
-    } finally {
+    }
+  }
+
+  /**
+   * One SMTP transaction. The recipients are resolved as they arrive, against the cache
+   * where possible, and the message is written once for all of them when the data
+   * arrives. At most one admin session is used for the whole transaction.
+   */
+  private class SmtpTransaction implements MessageHandler {
+    private String from;
+    private Set<String> paths = new LinkedHashSet<String>();
+    private Session session;
+
+    /**
+     * @return the admin session for the transaction, logging in on first use.
+     * @throws RepositoryException
+     */
+    private Session getSession() throws RepositoryException {
+      if (session == null) {
+        session = slingRepository.loginAdministrative(null);
+      }
+      return session;
+    }
+
+    public void from(String from) {
+      this.from = from;
+    }
+
+    public void recipient(String recipient) throws RejectException {
+      List<String> recipientPaths;
+      try {
+        recipientPaths = addRecipient(recipient);
+      } catch (RepositoryException e) {
+        LOGGER.error("Unable to resolve recipient " + recipient, e);
+        throw new RejectException(451, "Unable to resolve " + recipient
+            + ", try again later");
+      }
+      if (recipientPaths.isEmpty()) {
+        throw new RejectException(553, "<" + recipient + "> No such user here");
+      }
+    }
+
+    /**
+     * @param recipient
+     * @return the paths the recipient resolved to.
+     * @throws RepositoryException
+     */
+    private List<String> addRecipient(String recipient) throws RepositoryException {
+      List<String> recipientPaths = getLocalPath(this, recipient);
+      paths.addAll(recipientPaths);
+      return recipientPaths;
+    }
+
+    public void data(InputStream data) throws TooMuchDataException, IOException {
+      if (paths.size() > 0) {
+        try {
+          deliver(getSession(), from, new ArrayList<String>(paths), data);
+        } catch (RepositoryException e) {
+          LOGGER.error("Unable to write message", e);
+          throw new IOException("Message can not be written to repository");
+        }
+      }
+    }
+
+    public void done() {
       if (session != null) {
         session.logout();
+        session = null;
       }
     }
   }
 
+  /**
+   * The store paths of a recipient and when they should be looked up again.
+   */
+  private static class CachedPaths {
+    private final List<String> paths;
+    private final long expires;
+
+    CachedPaths(List<String> paths, long expires) {
+      this.paths = paths;
+      this.expires = expires;
+    }
+  }
+
   @SuppressWarnings("unchecked")
   private Node writeMessage(Session session, Map<String, Object> mapProperties,
       InputStream data, String storePath) throws MessagingException, RepositoryException, IOException {
@@ -26,11 +26,15 @@ import org.easymock.Capture;
 import org.easymock.EasyMock;
 import org.junit.Test;
 import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.message.MessagingService;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.RejectException;
 
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Dictionary;
 import java.util.Hashtable;
 import java.util.List;
@@ -421,4 +425,135 @@ public class SakaiSmtpServerTest extends AbstractEasyMockTest {
     verify();
   }
 
+  @Test
+  public void testTransactionWritesOnceForAllRecipients() throws Exception {
+
+    ComponentContext componentContext = createNiceMock(ComponentContext.class);
+    SlingRepository slingRepository = createMock(SlingRepository.class);
+    JackrabbitSession session = createMock(JackrabbitSession.class);
+    MessagingService messagingService = createMock(MessagingService.class);
+    Node myMessageNode = createMock(Node.class);
+    Property property = createMock(Property.class);
+
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    EasyMock.expect(componentContext.getProperties()).andReturn(properties).anyTimes();
+
+    // one session for the whole transaction
+    EasyMock.expect(slingRepository.loginAdministrative(null)).andReturn(session);
+    session.logout();
+    EasyMock.expectLastCall();
+
+    List<String> alice = new ArrayList<String>();
+    alice.add("alice");
+    EasyMock.expect(messagingService.expandAliases("alice")).andReturn(alice);
+    EasyMock.expect(messagingService.getFullPathToStore("alice", session)).andReturn(
+        "/messagestore/alice");
+    List<String> team = new ArrayList<String>();
+    team.add("carol");
+    team.add("dave");
+    EasyMock.expect(messagingService.expandAliases("team")).andReturn(team);
+    EasyMock.expect(messagingService.getFullPathToStore("carol", session)).andReturn(
+        "/messagestore/carol");
+    EasyMock.expect(messagingService.getFullPathToStore("dave", session)).andReturn(
+        "/messagestore/dave");
+    EasyMock.expect(messagingService.expandAliases("nobody")).andReturn(
+        new ArrayList<String>());
+    System.setProperty("org.sakaiproject.nakamura.SMTPServerPort", "9025");
+    InputStream dataStream = new ByteArrayInputStream(TESTMESSAGE.getBytes("UTF-8"));
+
+    EasyMock.expect(
+        messagingService.create(EasyMock.eq(session), EasyMock
+            .isA(Map.class))).andReturn(myMessageNode);
+    EasyMock.expect(myMessageNode.setProperty("sakai:body", dataStream)).andReturn(null);
+    myMessageNode.save();
+    EasyMock.expectLastCall();
+    EasyMock.expect(myMessageNode.getPath()).andReturn("/messagestore/alice/messagenode");
+    EasyMock.expect(myMessageNode.getProperty("message-id")).andReturn(property);
+    EasyMock.expect(property.getString()).andReturn("messageid");
+    Capture<Collection<String>> copies = new Capture<Collection<String>>();
+    messagingService.copyMessageNodes(EasyMock.eq(myMessageNode), EasyMock.capture(copies));
+    EasyMock.expectLastCall();
+    EasyMock.expect(session.hasPendingChanges()).andReturn(true);
+    session.save();
+    EasyMock.expectLastCall();
+
+    replay();
+    SakaiSmtpServer sakaiSmtpServer = new SakaiSmtpServer();
+    sakaiSmtpServer.slingRepository = slingRepository;
+    sakaiSmtpServer.messagingService = messagingService;
+
+    sakaiSmtpServer.activate(componentContext);
+
+    MessageHandler handler = sakaiSmtpServer.create(null);
+    handler.from("bob@localhost");
+    handler.recipient("alice@localhost");
+    handler.recipient("team@localhost");
+    // alice is cached, and only gets the message once.
+    handler.recipient("alice@localhost");
+    try {
+      handler.recipient("nobody@localhost");
+      Assert.fail("Unknown recipients should be rejected");
+    } catch (RejectException e) {
+      Assert.assertEquals(553, e.getCode());
+    }
+    handler.data(dataStream);
+    handler.done();
+
+    Assert.assertEquals(2, copies.getValue().size());
+    Assert.assertTrue(copies.getValue().contains("/messagestore/carol"));
+    Assert.assertTrue(copies.getValue().contains("/messagestore/dave"));
+
+    sakaiSmtpServer.deactivate(componentContext);
+
+    verify();
+  }
+
+  @Test
+  public void testRecipientLookedUpAgainAfterUserChange() throws Exception {
+    ComponentContext componentContext = createNiceMock(ComponentContext.class);
+    SlingRepository slingRepository = createMock(SlingRepository.class);
+    JackrabbitSession session = createMock(JackrabbitSession.class);
+    MessagingService messagingService = createMock(MessagingService.class);
+
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    EasyMock.expect(componentContext.getProperties()).andReturn(properties).anyTimes();
+    EasyMock.expect(slingRepository.loginAdministrative(null)).andReturn(session).times(2);
+    session.logout();
+    EasyMock.expectLastCall().times(2);
+
+    // unknown until created, then cached until deleted.
+    List<String> alice = new ArrayList<String>();
+    alice.add("alice");
+    EasyMock.expect(messagingService.expandAliases("alice")).andReturn(alice).times(2);
+    EasyMock.expect(messagingService.getFullPathToStore("alice", session)).andReturn(null);
+    EasyMock.expect(messagingService.getFullPathToStore("alice", session)).andReturn(
+        "/messagestore/alice");
+    System.setProperty("org.sakaiproject.nakamura.SMTPServerPort", "9026");
+
+    replay();
+    SakaiSmtpServer sakaiSmtpServer = new SakaiSmtpServer();
+    sakaiSmtpServer.slingRepository = slingRepository;
+    sakaiSmtpServer.messagingService = messagingService;
+    sakaiSmtpServer.activate(componentContext);
+
+    Assert.assertFalse(sakaiSmtpServer.accept("bob@localhost", "alice@localhost"));
+    Assert.assertFalse(sakaiSmtpServer.accept("bob@localhost", "alice@localhost"));
+    sakaiSmtpServer.handleEvent(createEvent("create", "alice"));
+    Assert.assertTrue(sakaiSmtpServer.accept("bob@localhost", "alice@localhost"));
+    Assert.assertTrue(sakaiSmtpServer.accept("bob@localhost", "alice@localhost"));
+    // a change to someone else keeps alice cached.
+    sakaiSmtpServer.handleEvent(createEvent("update", "carol"));
+    Assert.assertTrue(sakaiSmtpServer.accept("bob@localhost", "alice@localhost"));
+
+    sakaiSmtpServer.deactivate(componentContext);
+    verify();
+  }
+
+  private Event createEvent(String operation, String principal) {
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("principal_name", principal);
+    return new Event("org/apache/sling/jackrabbit/usermanager/event/" + operation,
+        properties);
+  }
+
 }
@@ -21,7 +21,9 @@ import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 
+import java.io.IOException;
 import java.io.Writer;
+import java.util.Set;
 import java.util.Map.Entry;
 
 import javax.jcr.Node;
@@ -34,9 +36,13 @@ import javax.jcr.Value;
 import javax.jcr.ValueFormatException;
 
 public class ExtendedJSONWriter extends JSONWriter {
-  
+
+  private Writer out;
+  private StreamingNodeWriter nodeWriter;
+
   public ExtendedJSONWriter(Writer w) {
     super(w);
+    out = w;
   }
 
   public void valueMap(ValueMap valueMap) throws JSONException {
@@ -71,16 +77,55 @@ public class ExtendedJSONWriter extends JSONWriter {
   }
 
   public static void writeNodeContentsToWriter(JSONWriter write, Node node) throws RepositoryException, JSONException {
+    writeNodeBody(write, node, 0, null);
+  }
+
+  /**
+   * Write the properties of a node into an open object.
+   * @param write the writer, an object must be open on it.
+   * @param node the node to write.
+   * @param properties the names of the properties to write, or null for all of them.
+   *          jcr:path and jcr:name are always written.
+   * @throws RepositoryException
+   * @throws JSONException
+   */
+  public static void writeNodeContentsToWriter(JSONWriter write, Node node,
+      Set<String> properties) throws RepositoryException, JSONException {
+    writeNodeBody(write, node, 0, properties);
+  }
+
+  private static void writeNodeBody(JSONWriter write, Node node, int depth,
+      Set<String> properties) throws RepositoryException, JSONException {
     // Since removal of bigstore we add in jcr:path and jcr:name
     write.key("jcr:path");
     write.value(node.getPath());
+
+    // Once the writer has put out the first member the rest can go straight to the
+    // stream, as nothing the writer tracks changes until the object ends.
+    if (write instanceof ExtendedJSONWriter && !write.isTidy()) {
+      StreamingNodeWriter streamingWriter = ((ExtendedJSONWriter) write)
+          .getNodeWriter(properties);
+      try {
+        streamingWriter.writeNodeBody(node, depth, true);
+        streamingWriter.flush();
+      } catch (IOException e) {
+        throw new JSONException("Unable to write node " + node.getPath() + ": "
+            + e.getMessage());
+      }
+      return;
+    }
+
     write.key("jcr:name");
     write.value(node.getName());
     
-    PropertyIterator properties = node.getProperties();
-    while (properties.hasNext()) {
-      Property prop = properties.nextProperty();
-      write.key(prop.getName());
+    PropertyIterator iterator = node.getProperties();
+    while (iterator.hasNext()) {
+      Property prop = iterator.nextProperty();
+      String name = prop.getName();
+      if (properties != null && !properties.contains(name)) {
+        continue;
+      }
+      write.key(name);
       if (prop.getDefinition().isMultiple()) {
         Value[] values = prop.getValues();
         write.array();
@@ -92,6 +137,25 @@ public class ExtendedJSONWriter extends JSONWriter {
         write.value(stringValue(prop.getValue()));
       }
     }
+
+    if (depth != 0) {
+      NodeIterator children = node.getNodes();
+      while (children.hasNext()) {
+        Node childNode = children.nextNode();
+        write.key(childNode.getName());
+        write.object();
+        writeNodeBody(write, childNode, depth - 1, properties);
+        write.endObject();
+      }
+    }
+  }
+
+  private StreamingNodeWriter getNodeWriter(Set<String> properties) {
+    if (nodeWriter == null) {
+      nodeWriter = new StreamingNodeWriter(out);
+    }
+    nodeWriter.setProperties(properties);
+    return nodeWriter;
   }
   
   public static void writeNodeToWriter(JSONWriter write, Node node) throws JSONException, RepositoryException {
@@ -138,17 +202,28 @@ public class ExtendedJSONWriter extends JSONWriter {
    */
   public static void writeNodeTreeToWriter(JSONWriter write, Node node)
       throws RepositoryException, JSONException {
-    // Write this node's properties.
-    write.object();
-    writeNodeContentsToWriter(write, node);
+    writeNodeTreeToWriter(write, node, StreamingNodeWriter.UNLIMITED, null);
+  }
 
-    // Write all the child nodes.
-    NodeIterator iterator = node.getNodes();
-    while (iterator.hasNext()) {
-      Node childNode = iterator.nextNode();
-      write.key(childNode.getName());
-      writeNodeTreeToWriter(write, childNode);
-    }
+  /**
+   * Represent part of a JCR tree in JSON format.
+   * 
+   * @param write
+   *          The {@link JSONWriter writer} to send the data to.
+   * @param node
+   *          The node and it's subtree to output.
+   * @param maxDepth
+   *          The levels of child nodes to output, 0 for none and
+   *          {@link StreamingNodeWriter#UNLIMITED} for all.
+   * @param properties
+   *          The names of the properties to output, or null for all of them.
+   * @throws RepositoryException
+   * @throws JSONException
+   */
+  public static void writeNodeTreeToWriter(JSONWriter write, Node node, int maxDepth,
+      Set<String> properties) throws RepositoryException, JSONException {
+    write.object();
+    writeNodeBody(write, node, maxDepth, properties);
     write.endObject();
   }
 
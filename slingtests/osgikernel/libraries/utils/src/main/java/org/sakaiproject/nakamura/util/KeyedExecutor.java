@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed pool of worker threads that runs tasks in parallel while keeping the order of
+ * tasks with the same key. Each key hashes to one worker, and each worker runs its tasks
+ * one at a time in the order they were submitted. The queue for each worker is bounded,
+ * so a caller that submits faster than the workers can run blocks until there is space,
+ * which pushes back on the producer rather than buffering without limit.
+ */
+public class KeyedExecutor {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeyedExecutor.class);
+
+  /**
+   * Queued to stop a worker once the tasks ahead of it are done.
+   */
+  private static final Runnable STOP = new Runnable() {
+    public void run() {
+    }
+  };
+
+  private final Worker[] workers;
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private volatile boolean shutdown;
+
+  /**
+   * Create and start the workers.
+   *
+   * @param name
+   *          the name of the pool, used to name the worker threads.
+   * @param threads
+   *          the number of workers, at least 1.
+   * @param queueSize
+   *          the number of tasks that may wait for each worker, at least 1.
+   */
+  public KeyedExecutor(String name, int threads, int queueSize) {
+    workers = new Worker[Math.max(1, threads)];
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = new Worker(name + "-" + i, Math.max(1, queueSize));
+      workers[i].start();
+    }
+  }
+
+  /**
+   * Queue a task to run after any other tasks with the same key, blocking while the queue
+   * for the key is full.
+   *
+   * @param key
+   *          the key to order by, tasks with a null key all run on the same worker.
+   * @param task
+   *          the task to run.
+   * @throws InterruptedException
+   *           if interrupted while waiting for space in the queue.
+   * @throws RejectedExecutionException
+   *           if the executor has been shut down.
+   */
+  public void execute(Object key, Runnable task) throws InterruptedException {
+    if (shutdown) {
+      throw new RejectedExecutionException("Executor has been shut down");
+    }
+    workers[indexFor(key)].queue.put(task);
+  }
+
+  /**
+   * Stop accepting tasks and wait for the tasks already queued to finish.
+   *
+   * @param timeout
+   *          the longest time to wait, in ms.
+   * @return true if all the workers finished within the timeout.
+   */
+  public synchronized boolean shutdown(long timeout) {
+    shutdown = true;
+    long deadline = System.currentTimeMillis() + timeout;
+    try {
+      for (Worker worker : workers) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (!worker.stopQueued) {
+          if (remaining <= 0
+              || !worker.queue.offer(STOP, remaining, TimeUnit.MILLISECONDS)) {
+            return false;
+          }
+          worker.stopQueued = true;
+        }
+      }
+      for (Worker worker : workers) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining > 0) {
+          worker.join(remaining);
+        }
+        if (worker.isAlive()) {
+          return false;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return the number of tasks waiting to run.
+   */
+  public int getQueueLength() {
+    int length = 0;
+    for (Worker worker : workers) {
+      length += worker.queue.size();
+    }
+    return length;
+  }
+
+  /**
+   * @return the number of tasks that have run, including those that failed.
+   */
+  public long getCompleted() {
+    return completed.get();
+  }
+
+  /**
+   * @return the number of tasks that threw an exception.
+   */
+  public long getFailed() {
+    return failed.get();
+  }
+
+  private int indexFor(Object key) {
+    if (key == null) {
+      return 0;
+    }
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return (h & 0x7fffffff) % workers.length;
+  }
+
+  /**
+   * A thread that runs the tasks on its queue in order.
+   */
+  private class Worker extends Thread {
+    private final BlockingQueue<Runnable> queue;
+    private boolean stopQueued;
+
+    Worker(String name, int queueSize) {
+      super(name);
+      setDaemon(true);
+      queue = new ArrayBlockingQueue<Runnable>(queueSize);
+    }
+
+    @Override
+    public void run() {
+      try {
+        for (Runnable task = queue.take(); task != STOP; task = queue.take()) {
+          try {
+            task.run();
+          } catch (RuntimeException e) {
+            failed.incrementAndGet();
+            LOGGER.error(e.getMessage(), e);
+          } finally {
+            completed.incrementAndGet();
+          }
+        }
+      } catch (InterruptedException e) {
+        LOGGER.warn("{} interrupted with {} tasks queued", getName(), queue.size());
+      }
+    }
+  }
+}
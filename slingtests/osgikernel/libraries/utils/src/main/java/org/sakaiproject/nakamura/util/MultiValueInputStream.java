@@ -19,6 +19,9 @@ package org.sakaiproject.nakamura.util;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
 
 import javax.jcr.Property;
 import javax.jcr.RepositoryException;
@@ -31,6 +34,11 @@ import javax.jcr.nodetype.PropertyDefinition;
  */
 public class MultiValueInputStream extends InputStream {
 
+  /**
+   * The size of the copy used when a channel reads into a direct buffer.
+   */
+  private static final int TRANSFER_SIZE = 8192;
+
   private Value[] values;
   private int nextStream;
   private int nvalues;
@@ -62,21 +70,133 @@ public class MultiValueInputStream extends InputStream {
   @Override
   public int read() throws IOException {
     int c = currentInputStream.read();
-    while ( c < 0 && nextStream < nvalues ) {
-      currentInputStream.close();
-      try {
-        currentInputStream = values[nextStream].getBinary().getStream();
-      } catch (IllegalStateException e) {
-        throw new IOException("Failed to open property value no "+nextStream+" as stream:"+e.getMessage());
-      } catch (RepositoryException e) {
-        throw new IOException("Failed to open property value no "+nextStream+" as stream:"+e.getMessage());
-      }
-      nextStream++;
+    while ( c < 0 && openNextStream() ) {
       c = currentInputStream.read();
     }
     return c;
   }
-  
+
+  /**
+   * {@inheritDoc}
+   * Reads from one value at a time, so a read at the end of a value may return fewer
+   * bytes than asked for.
+   * @see java.io.InputStream#read(byte[], int, int)
+   */
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if ( off < 0 || len < 0 || len > b.length - off ) {
+      throw new IndexOutOfBoundsException();
+    }
+    if ( len == 0 ) {
+      return 0;
+    }
+    int n = currentInputStream.read(b, off, len);
+    while ( n < 0 && openNextStream() ) {
+      n = currentInputStream.read(b, off, len);
+    }
+    return n;
+  }
+
+  /**
+   * {@inheritDoc}
+   * Only the value being read is counted, the values after it are not opened.
+   * @see java.io.InputStream#available()
+   */
+  @Override
+  public int available() throws IOException {
+    return currentInputStream.available();
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see java.io.InputStream#skip(long)
+   */
+  @Override
+  public long skip(long n) throws IOException {
+    long skipped = 0;
+    while ( skipped < n ) {
+      long s = currentInputStream.skip(n - skipped);
+      if ( s > 0 ) {
+        skipped += s;
+      } else if ( currentInputStream.read() >= 0 ) {
+        // skip may stop short without being at the end, only a read can tell.
+        skipped++;
+      } else if ( !openNextStream() ) {
+        break;
+      }
+    }
+    return skipped;
+  }
+
+  /**
+   * Moves on to the next value.
+   * @return false if there are no more values.
+   * @throws IOException
+   */
+  private boolean openNextStream() throws IOException {
+    if ( nextStream >= nvalues ) {
+      return false;
+    }
+    currentInputStream.close();
+    try {
+      currentInputStream = values[nextStream].getBinary().getStream();
+    } catch (IllegalStateException e) {
+      throw new IOException("Failed to open property value no "+nextStream+" as stream:"+e.getMessage());
+    } catch (RepositoryException e) {
+      throw new IOException("Failed to open property value no "+nextStream+" as stream:"+e.getMessage());
+    }
+    nextStream++;
+    return true;
+  }
+
+  /**
+   * Get a channel over this stream. Reads into heap buffers go straight into the buffer's
+   * array. The channel shares the position of the stream, and closing one closes the
+   * other.
+   * @return a channel reading the values in order.
+   */
+  public ReadableByteChannel getChannel() {
+    return new ReadableByteChannel() {
+      private boolean open = true;
+      private byte[] transfer;
+
+      public int read(ByteBuffer dst) throws IOException {
+        if ( !open ) {
+          throw new ClosedChannelException();
+        }
+        int len = dst.remaining();
+        if ( len == 0 ) {
+          return 0;
+        }
+        int n;
+        if ( dst.hasArray() ) {
+          n = MultiValueInputStream.this.read(dst.array(), dst.arrayOffset() + dst.position(), len);
+          if ( n > 0 ) {
+            dst.position(dst.position() + n);
+          }
+        } else {
+          if ( transfer == null ) {
+            transfer = new byte[TRANSFER_SIZE];
+          }
+          n = MultiValueInputStream.this.read(transfer, 0, Math.min(len, transfer.length));
+          if ( n > 0 ) {
+            dst.put(transfer, 0, n);
+          }
+        }
+        return n;
+      }
+
+      public boolean isOpen() {
+        return open;
+      }
+
+      public void close() throws IOException {
+        open = false;
+        MultiValueInputStream.this.close();
+      }
+    };
+  }
+
   /**
    * {@inheritDoc}
    * @see java.io.InputStream#close()
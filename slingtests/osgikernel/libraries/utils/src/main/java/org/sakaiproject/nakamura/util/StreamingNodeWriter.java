@@ -0,0 +1,327 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+/**
+ * Writes nodes as JSON straight to a character stream. The output is the same as the
+ * {@link ExtendedJSONWriter} methods produce through a JSONWriter, character for
+ * character, but each value is written by the type of the property without being boxed
+ * or quoted into an intermediate string. Output is gathered in a buffer that is reused
+ * for the life of the writer, so a writer must not be shared between threads.
+ */
+public class StreamingNodeWriter {
+
+  /**
+   * A depth that writes the whole tree.
+   */
+  public static final int UNLIMITED = -1;
+
+  private static final int BUFFER_SIZE = 2048;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final Writer writer;
+  private final char[] buffer = new char[BUFFER_SIZE];
+  private int count;
+  private int maxDepth = UNLIMITED;
+  private Set<String> properties;
+  private boolean binaryLength;
+
+  /**
+   * @param writer
+   *          the stream to write to.
+   */
+  public StreamingNodeWriter(Writer writer) {
+    this.writer = writer;
+  }
+
+  /**
+   * @param maxDepth
+   *          how many levels of child nodes {@link #writeNodeTree(Node)} writes, 0 for
+   *          none and {@link #UNLIMITED} for all.
+   */
+  public void setMaxDepth(int maxDepth) {
+    this.maxDepth = maxDepth;
+  }
+
+  /**
+   * @param properties
+   *          the names of the properties to write, or null for all. jcr:path and jcr:name
+   *          are always written.
+   */
+  public void setProperties(Set<String> properties) {
+    this.properties = properties;
+  }
+
+  /**
+   * @param binaryLength
+   *          if true binary values are written as their length, rather than as the
+   *          string the repository gives the value.
+   */
+  public void setBinaryLength(boolean binaryLength) {
+    this.binaryLength = binaryLength;
+  }
+
+  /**
+   * Write a node and its properties as an object.
+   * 
+   * @param node
+   * @throws IOException
+   * @throws RepositoryException
+   * @throws JSONException
+   *           if a double property is not a finite number.
+   */
+  public void writeNode(Node node) throws IOException, RepositoryException, JSONException {
+    write('{');
+    writeNodeBody(node, 0, false);
+    write('}');
+    flush();
+  }
+
+  /**
+   * Write a node, its properties and its child nodes down to the max depth as an object.
+   * 
+   * @param node
+   * @throws IOException
+   * @throws RepositoryException
+   * @throws JSONException
+   *           if a double property is not a finite number.
+   */
+  public void writeNodeTree(Node node) throws IOException, RepositoryException,
+      JSONException {
+    write('{');
+    writeNodeBody(node, maxDepth, false);
+    write('}');
+    flush();
+  }
+
+  /**
+   * Write the members of a node object without the braces.
+   * 
+   * @param node
+   * @param depth
+   *          the levels of child nodes to write, 0 for none and less than 0 for all.
+   * @param pathWritten
+   *          true if jcr:path has been written already, the rest then starts with a
+   *          comma.
+   */
+  void writeNodeBody(Node node, int depth, boolean pathWritten) throws IOException,
+      RepositoryException, JSONException {
+    if (!pathWritten) {
+      writeString("jcr:path");
+      write(':');
+      writeString(node.getPath());
+    }
+    write(',');
+    writeString("jcr:name");
+    write(':');
+    writeString(node.getName());
+
+    PropertyIterator iterator = node.getProperties();
+    while (iterator.hasNext()) {
+      Property prop = iterator.nextProperty();
+      String name = prop.getName();
+      if (properties != null && !properties.contains(name)) {
+        continue;
+      }
+      write(',');
+      writeString(name);
+      write(':');
+      if (prop.getDefinition().isMultiple()) {
+        Value[] values = prop.getValues();
+        write('[');
+        for (int i = 0; i < values.length; i++) {
+          if (i > 0) {
+            write(',');
+          }
+          writeValue(prop, values[i], i);
+        }
+        write(']');
+      } else {
+        writeValue(prop, prop.getValue(), -1);
+      }
+    }
+
+    if (depth != 0) {
+      NodeIterator children = node.getNodes();
+      while (children.hasNext()) {
+        Node child = children.nextNode();
+        write(',');
+        writeString(child.getName());
+        write(':');
+        write('{');
+        writeNodeBody(child, depth - 1, false);
+        write('}');
+      }
+    }
+  }
+
+  /**
+   * @param index
+   *          the index of a value of a multi valued property, -1 for a single value.
+   */
+  private void writeValue(Property prop, Value value, int index) throws IOException,
+      RepositoryException, JSONException {
+    switch (value.getType()) {
+    case PropertyType.STRING:
+    case PropertyType.NAME:
+    case PropertyType.REFERENCE:
+    case PropertyType.PATH:
+      writeString(value.getString());
+      break;
+    case PropertyType.BOOLEAN:
+      writeRaw(value.getBoolean() ? "true" : "false");
+      break;
+    case PropertyType.LONG:
+      writeRaw(Long.toString(value.getLong()));
+      break;
+    case PropertyType.DOUBLE:
+      writeRaw(JSONObject.numberToString(value.getDouble()));
+      break;
+    case PropertyType.DATE:
+      writeString(DateUtils.iso8601(value.getDate()));
+      break;
+    case PropertyType.BINARY:
+      if (binaryLength) {
+        writeRaw(Long.toString((index < 0) ? prop.getLength() : prop.getLengths()[index]));
+        break;
+      }
+      writeString(value.toString());
+      break;
+    default:
+      writeString(value.toString());
+    }
+  }
+
+  /**
+   * Write a string quoted and escaped the way JSONObject.quote does. Strings with
+   * characters that versions of quote escape differently are handed to quote.
+   */
+  private void writeString(String s) throws IOException {
+    int len = s.length();
+    for (int i = 0; i < len; i++) {
+      char c = s.charAt(i);
+      if ((c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+        writeRaw(JSONObject.quote(s));
+        return;
+      }
+    }
+    if (len == 0) {
+      writeRaw("\"\"");
+      return;
+    }
+    write('"');
+    char b;
+    char c = 0;
+    for (int i = 0; i < len; i++) {
+      b = c;
+      c = s.charAt(i);
+      switch (c) {
+      case '\\':
+      case '"':
+        write('\\');
+        write(c);
+        break;
+      case '/':
+        if (b == '<') {
+          write('\\');
+        }
+        write(c);
+        break;
+      case '\b':
+        write('\\');
+        write('b');
+        break;
+      case '\t':
+        write('\\');
+        write('t');
+        break;
+      case '\n':
+        write('\\');
+        write('n');
+        break;
+      case '\f':
+        write('\\');
+        write('f');
+        break;
+      case '\r':
+        write('\\');
+        write('r');
+        break;
+      default:
+        if (c < ' ') {
+          write('\\');
+          write('u');
+          write('0');
+          write('0');
+          write(HEX[c >> 4]);
+          write(HEX[c & 0xf]);
+        } else {
+          write(c);
+        }
+      }
+    }
+    write('"');
+  }
+
+  private void writeRaw(String s) throws IOException {
+    int len = s.length();
+    if (count + len > buffer.length) {
+      flush();
+      if (len > buffer.length) {
+        writer.write(s);
+        return;
+      }
+    }
+    s.getChars(0, len, buffer, count);
+    count += len;
+  }
+
+  private void write(char c) throws IOException {
+    if (count == buffer.length) {
+      flush();
+    }
+    buffer[count++] = c;
+  }
+
+  /**
+   * Hand what is buffered to the stream. The stream itself is not flushed.
+   * 
+   * @throws IOException
+   */
+  public void flush() throws IOException {
+    if (count > 0) {
+      writer.write(buffer, 0, count);
+      count = 0;
+    }
+  }
+}
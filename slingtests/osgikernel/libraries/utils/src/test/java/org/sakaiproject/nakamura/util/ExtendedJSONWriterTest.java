@@ -19,21 +19,32 @@ package org.sakaiproject.nakamura.util;
 
 import static org.easymock.EasyMock.expect;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.fail;
 
 import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.easymock.IAnswer;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
 
 import javax.jcr.Node;
+import javax.jcr.NodeIterator;
 import javax.jcr.Property;
 import javax.jcr.PropertyIterator;
 import javax.jcr.PropertyType;
@@ -142,6 +153,190 @@ public class ExtendedJSONWriterTest {
     }
   }
 
+  @Test
+  public void testStreamingMatchesWriter() throws Exception {
+    Node tree = createTree();
+    Set<String> whitelist = new HashSet<String>(Arrays.asList("string", "long", "multi"));
+
+    StringWriter expected = new StringWriter();
+    StringWriter actual = new StringWriter();
+    JSONWriter plain = new JSONWriter(expected);
+    ExtendedJSONWriter streaming = new ExtendedJSONWriter(actual);
+    for (JSONWriter write : new JSONWriter[] { plain, streaming }) {
+      write.array();
+      ExtendedJSONWriter.writeNodeTreeToWriter(write, tree);
+      ExtendedJSONWriter.writeNodeTreeToWriter(write, tree, 1, null);
+      ExtendedJSONWriter.writeNodeTreeToWriter(write, tree, StreamingNodeWriter.UNLIMITED,
+          whitelist);
+      ExtendedJSONWriter.writeNodeToWriter(write, tree);
+      // members written after the node must still be separated.
+      write.object();
+      write.key("before").value(1);
+      ExtendedJSONWriter.writeNodeContentsToWriter(write, tree, whitelist);
+      write.key("after").value(2);
+      write.endObject();
+      write.endArray();
+    }
+    assertEquals(expected.toString(), actual.toString());
+    new JSONArray(actual.toString());
+
+    StringWriter direct = new StringWriter();
+    new StreamingNodeWriter(direct).writeNodeTree(tree);
+    StringWriter written = new StringWriter();
+    ExtendedJSONWriter.writeNodeTreeToWriter(new JSONWriter(written), tree);
+    assertEquals(written.toString(), direct.toString());
+  }
+
+  @Test
+  public void testDepthAndWhitelist() throws Exception {
+    Node tree = createTree();
+    StringWriter writer = new StringWriter();
+    StreamingNodeWriter streamingWriter = new StreamingNodeWriter(writer);
+    streamingWriter.setMaxDepth(1);
+    streamingWriter.setProperties(new HashSet<String>(Arrays.asList("long")));
+    streamingWriter.writeNodeTree(tree);
+    JSONObject o = new JSONObject(writer.toString());
+    assertEquals(42, o.getLong("long"));
+    assertFalse(o.has("string"));
+    JSONObject child = o.getJSONObject("child");
+    assertEquals("/a/child", child.getString("jcr:path"));
+    assertFalse(child.has("grandchild"));
+  }
+
+  /**
+   * A node with a property of every type, a child and a grandchild.
+   */
+  private Node createTree() throws RepositoryException {
+    Calendar date = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+    date.setTimeInMillis(1262304000000L);
+    List<Property> properties = new ArrayList<Property>();
+    properties.add(createProperty("string", PropertyType.STRING, "plain /path"));
+    properties.add(createProperty("escaped", PropertyType.STRING,
+        "q\"b\\t\tn\nc\u0001</script>\u00e9\u0085\u2028"));
+    properties.add(createProperty("empty", PropertyType.STRING, ""));
+    properties.add(createProperty("name", PropertyType.NAME, "sakai:tag"));
+    properties.add(createProperty("long", PropertyType.LONG, 42L));
+    properties.add(createProperty("double", PropertyType.DOUBLE, 1.0));
+    properties.add(createProperty("fraction", PropertyType.DOUBLE, 1.5));
+    properties.add(createProperty("large", PropertyType.DOUBLE, 1.0E20));
+    properties.add(createProperty("boolean", PropertyType.BOOLEAN, true));
+    properties.add(createProperty("date", PropertyType.DATE, date));
+    properties.add(createProperty("binary", PropertyType.BINARY, (Object) null));
+    properties.add(createProperty("multi", PropertyType.STRING, "x", "y"));
+    properties.add(createProperty("longs", PropertyType.LONG, 1L, 2L));
+
+    Node grandchild = createNode("/a/child/grandchild", "grandchild",
+        new ArrayList<Property>(), new ArrayList<Node>());
+    Node child = createNode("/a/child", "child", Arrays.asList(createProperty("long",
+        PropertyType.LONG, 7L)), Arrays.asList(grandchild));
+    Node node = createNode("/a", "a", properties, Arrays.asList(child));
+    replay();
+    return node;
+  }
+
+  private Node createNode(String path, String name, final List<Property> properties,
+      final List<Node> children) throws RepositoryException {
+    Node node = createMock(Node.class);
+    expect(node.getPath()).andReturn(path).anyTimes();
+    expect(node.getName()).andReturn(name).anyTimes();
+    expect(node.getProperties()).andAnswer(new IAnswer<PropertyIterator>() {
+      public PropertyIterator answer() {
+        return new ListRangeIterator<Property>(properties);
+      }
+    }).anyTimes();
+    expect(node.getNodes()).andAnswer(new IAnswer<NodeIterator>() {
+      public NodeIterator answer() {
+        return new ListRangeIterator<Node>(children);
+      }
+    }).anyTimes();
+    return node;
+  }
+
+  private Property createProperty(String name, int type, Object... values)
+      throws RepositoryException {
+    Value[] jcrValues = new Value[values.length];
+    for (int i = 0; i < values.length; i++) {
+      Value value = createMock(Value.class);
+      expect(value.getType()).andReturn(type).anyTimes();
+      switch (type) {
+      case PropertyType.LONG:
+        expect(value.getLong()).andReturn((Long) values[i]).anyTimes();
+        break;
+      case PropertyType.DOUBLE:
+        expect(value.getDouble()).andReturn((Double) values[i]).anyTimes();
+        break;
+      case PropertyType.BOOLEAN:
+        expect(value.getBoolean()).andReturn((Boolean) values[i]).anyTimes();
+        break;
+      case PropertyType.DATE:
+        expect(value.getDate()).andReturn((Calendar) values[i]).anyTimes();
+        break;
+      case PropertyType.BINARY:
+        break;
+      default:
+        expect(value.getString()).andReturn((String) values[i]).anyTimes();
+      }
+      jcrValues[i] = value;
+    }
+    PropertyDefinition definition = createMock(PropertyDefinition.class);
+    expect(definition.isMultiple()).andReturn(values.length > 1).anyTimes();
+    Property property = createMock(Property.class);
+    expect(property.getName()).andReturn(name).anyTimes();
+    expect(property.getDefinition()).andReturn(definition).anyTimes();
+    expect(property.getValues()).andReturn(jcrValues).anyTimes();
+    expect(property.getValue()).andReturn(jcrValues[0]).anyTimes();
+    return property;
+  }
+
+  /**
+   * Iterates a list of properties or nodes.
+   */
+  private static class ListRangeIterator<T> implements PropertyIterator, NodeIterator {
+    private List<T> list;
+    private Iterator<T> iterator;
+    private int position;
+
+    private ListRangeIterator(List<T> list) {
+      this.list = list;
+      this.iterator = list.iterator();
+    }
+
+    public Property nextProperty() {
+      return (Property) next();
+    }
+
+    public Node nextNode() {
+      return (Node) next();
+    }
+
+    public long getPosition() {
+      return position;
+    }
+
+    public long getSize() {
+      return list.size();
+    }
+
+    public void skip(long skipNum) {
+      for (long i = 0; i < skipNum; i++) {
+        next();
+      }
+    }
+
+    public boolean hasNext() {
+      return iterator.hasNext();
+    }
+
+    public Object next() {
+      position++;
+      return iterator.next();
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
   /*
    * Helper methods for mocking.
    */
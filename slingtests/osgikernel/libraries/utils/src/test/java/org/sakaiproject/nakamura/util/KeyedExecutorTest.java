@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ */
+public class KeyedExecutorTest {
+
+  @Test
+  public void testOrderPerKey() throws Exception {
+    final Map<String, List<Integer>> seen = new HashMap<String, List<Integer>>();
+    for (int k = 0; k < 10; k++) {
+      seen.put("key" + k, Collections.synchronizedList(new ArrayList<Integer>()));
+    }
+    KeyedExecutor executor = new KeyedExecutor("test", 4, 10);
+    for (int i = 0; i < 1000; i++) {
+      final List<Integer> list = seen.get("key" + (i % 10));
+      final int n = i;
+      executor.execute("key" + (i % 10), new Runnable() {
+        public void run() {
+          list.add(n);
+        }
+      });
+    }
+    assertTrue(executor.shutdown(10000));
+    assertEquals(1000, executor.getCompleted());
+    for (List<Integer> list : seen.values()) {
+      assertEquals(100, list.size());
+      for (int i = 1; i < list.size(); i++) {
+        assertTrue(list.get(i - 1) < list.get(i));
+      }
+    }
+  }
+
+  @Test
+  public void testKeysRunInParallel() throws Exception {
+    KeyedExecutor executor = new KeyedExecutor("test", 2, 10);
+    final CountDownLatch bothRunning = new CountDownLatch(2);
+    // keys that hash to different workers
+    Object[] keys = new Object[] { 0, 1 };
+    for (Object key : keys) {
+      executor.execute(key, new Runnable() {
+        public void run() {
+          bothRunning.countDown();
+          try {
+            bothRunning.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+          }
+        }
+      });
+    }
+    assertTrue(bothRunning.await(10, TimeUnit.SECONDS));
+    assertTrue(executor.shutdown(10000));
+  }
+
+  @Test
+  public void testFailingTaskDoesNotStopWorker() throws Exception {
+    KeyedExecutor executor = new KeyedExecutor("test", 1, 10);
+    final CountDownLatch ran = new CountDownLatch(1);
+    executor.execute("a", new Runnable() {
+      public void run() {
+        throw new IllegalStateException("Failing on purpose");
+      }
+    });
+    executor.execute("a", new Runnable() {
+      public void run() {
+        ran.countDown();
+      }
+    });
+    assertTrue(ran.await(10, TimeUnit.SECONDS));
+    assertTrue(executor.shutdown(10000));
+    assertEquals(2, executor.getCompleted());
+    assertEquals(1, executor.getFailed());
+  }
+
+  @Test
+  public void testShutdown() throws Exception {
+    KeyedExecutor executor = new KeyedExecutor("test", 1, 10);
+    final CountDownLatch release = new CountDownLatch(1);
+    executor.execute("a", new Runnable() {
+      public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+        }
+      }
+    });
+    // the worker is busy, so shutdown times out.
+    assertFalse(executor.shutdown(100));
+    try {
+      executor.execute("a", new Runnable() {
+        public void run() {
+        }
+      });
+      fail("Tasks should be rejected after shutdown");
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+    release.countDown();
+    assertTrue(executor.shutdown(10000));
+    assertEquals(0, executor.getQueueLength());
+  }
+}
@@ -21,13 +21,18 @@ import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 
 import javax.jcr.Binary;
 import javax.jcr.Property;
@@ -118,4 +123,99 @@ public class MultiValueInputStreamTest {
     verify(property, propertyDefinition, value, bin);
   }
 
+  @Test
+  public void testBulkRead() throws Exception {
+    byte[][] buffers = createBuffers(new int[] { 100, 0, 37, 250 });
+    MultiValueInputStream in = new MultiValueInputStream(createProperty(buffers));
+    assertEquals(0, in.read(new byte[10], 0, 0));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] b = new byte[33];
+    int n;
+    while ((n = in.read(b, 1, 32)) >= 0) {
+      out.write(b, 1, n);
+    }
+    assertArrayEquals(concat(buffers), out.toByteArray());
+    in.close();
+  }
+
+  @Test
+  public void testSkip() throws Exception {
+    byte[][] buffers = createBuffers(new int[] { 100, 0, 37, 250 });
+    byte[] all = concat(buffers);
+    MultiValueInputStream in = new MultiValueInputStream(createProperty(buffers));
+    assertEquals(100, in.available());
+    assertEquals(90, in.skip(90));
+    // only what is left of the current value.
+    assertEquals(10, in.available());
+    assertEquals(all[90], (byte) in.read());
+    assertEquals(100, in.skip(100));
+    assertEquals(all[191], (byte) in.read());
+    assertEquals(all.length - 192, in.skip(1000));
+    assertEquals(-1, in.read());
+    assertEquals(0, in.available());
+    in.close();
+  }
+
+  @Test
+  public void testChannel() throws Exception {
+    byte[][] buffers = createBuffers(new int[] { 100, 37, 250 });
+    ReadableByteChannel channel = new MultiValueInputStream(createProperty(buffers))
+        .getChannel();
+    ByteBuffer heap = ByteBuffer.allocate(64);
+    ByteBuffer direct = ByteBuffer.allocateDirect(64);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    boolean useDirect = false;
+    while (true) {
+      ByteBuffer buffer = useDirect ? direct : heap;
+      buffer.clear();
+      if (channel.read(buffer) < 0) {
+        break;
+      }
+      buffer.flip();
+      byte[] b = new byte[buffer.remaining()];
+      buffer.get(b);
+      out.write(b);
+      useDirect = !useDirect;
+    }
+    assertArrayEquals(concat(buffers), out.toByteArray());
+    channel.close();
+    assertFalse(channel.isOpen());
+  }
+
+  private byte[][] createBuffers(int[] sizes) {
+    byte[][] buffers = new byte[sizes.length][];
+    for (int i = 0; i < sizes.length; i++) {
+      buffers[i] = new byte[sizes[i]];
+      for (int j = 0; j < sizes[i]; j++) {
+        buffers[i][j] = (byte) (i + j);
+      }
+    }
+    return buffers;
+  }
+
+  private byte[] concat(byte[][] buffers) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (byte[] b : buffers) {
+      out.write(b);
+    }
+    return out.toByteArray();
+  }
+
+  private Property createProperty(byte[][] buffers) throws RepositoryException {
+    Property property = createMock(Property.class);
+    PropertyDefinition propertyDefinition = createMock(PropertyDefinition.class);
+    Value[] values = new Value[buffers.length];
+    for (int i = 0; i < buffers.length; i++) {
+      values[i] = createMock(Value.class);
+      Binary bin = createMock(Binary.class);
+      expect(values[i].getBinary()).andReturn(bin);
+      expect(bin.getStream()).andReturn(new ByteArrayInputStream(buffers[i]));
+      replay(values[i], bin);
+    }
+    expect(property.getDefinition()).andReturn(propertyDefinition);
+    expect(propertyDefinition.isMultiple()).andReturn(true);
+    expect(property.getValues()).andReturn(values);
+    replay(property, propertyDefinition);
+    return property;
+  }
 }